@@ -17,6 +17,8 @@
 
 package org.spreadcoinj.core;
 
+import org.spreadcoinj.net.DirectBufferPool;
+import org.spreadcoinj.net.SharedBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +30,7 @@ import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.spreadcoinj.core.Utils.*;
 
 /**
@@ -50,6 +53,20 @@ public class BitcoinSerializer {
     private boolean parseLazy = false;
     private boolean parseRetain = false;
 
+    /**
+     * The largest message that is serialized into a pooled buffer by default. As an SPV client we send transactions,
+     * bloom filters and small control messages, so this covers a standard transaction (100kB at most) with room to
+     * spare. Anything bigger gets a buffer of its own.
+     */
+    public static final int DEFAULT_MAX_POOLED_MESSAGE_SIZE = 128 * 1024;
+    /** How many bytes of free buffers the default pool keeps in each of its size classes. */
+    public static final int DEFAULT_MAX_POOLED_BYTES_PER_SIZE = 512 * 1024;
+
+    // Serialized messages go into pooled direct buffers, so sending doesn't allocate native memory every time. With
+    // the defaults this keeps at most about 3MB, across the six size classes from 4kB to 128kB.
+    private static volatile DirectBufferPool bufferPool =
+            new DirectBufferPool(DEFAULT_MAX_POOLED_MESSAGE_SIZE, DEFAULT_MAX_POOLED_BYTES_PER_SIZE);
+
     private static Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>, String>();
 
     static {
@@ -73,6 +90,10 @@ public class BitcoinSerializer {
         names.put(RejectMessage.class, "reject");
         names.put(GetUTXOsMessage.class, "getutxos");
         names.put(UTXOsMessage.class, "utxos");
+        names.put(SendCompactBlocksMessage.class, "sendcmpct");
+        names.put(CompactBlockMessage.class, "cmpctblock");
+        names.put(GetBlockTxnMessage.class, "getblocktxn");
+        names.put(BlockTxnMessage.class, "blocktxn");
     }
 
     /**
@@ -97,23 +118,19 @@ public class BitcoinSerializer {
         this.parseRetain = parseRetain;
     }
 
+    /**
+     * Replaces the pool that serialized messages are taken from, for instance with a bigger one for an application
+     * that sends blocks. Buffers already handed out go back to the pool they came from.
+     */
+    public static void setBufferPool(DirectBufferPool pool) {
+        bufferPool = checkNotNull(pool);
+    }
+
     /**
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = makeHeader(name, message);
         out.write(header);
         out.write(message);
 
@@ -125,11 +142,57 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getName(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Serializes the message into a direct buffer, in two segments for the header and the payload. The buffer can be
+     * handed to any number of {@link org.spreadcoinj.net.MessageWriteTarget}s on the same network, which all write out
+     * the same bytes without copying them. The caller owns a reference and must
+     * {@link SharedBuffer#release()} it once it has handed the buffer out.
+     */
+    public SharedBuffer serializeToBuffer(Message message) {
+        return serializeToBuffer(getName(message), message.bitcoinSerialize());
+    }
+
+    /**
+     * Serializes the payload with a header for the given command into a direct buffer, as
+     * {@link #serializeToBuffer(Message)} does.
+     */
+    public SharedBuffer serializeToBuffer(String name, byte[] message) {
+        byte[] header = makeHeader(name, message);
+        DirectBufferPool bufferPool = BitcoinSerializer.bufferPool;
+        ByteBuffer buffer = bufferPool.acquire(header.length + message.length);
+        buffer.put(header).put(message).flip();
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        return new SharedBuffer(bufferPool, buffer, header.length, message.length);
+    }
+
+    private String getName(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
+    }
+
+    private byte[] makeHeader(String name, byte[] message) {
+        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+
+        byte[] hash = doubleDigest(message);
+        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        return header;
     }
 
     /**
@@ -171,10 +234,15 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, doubleDigest(payloadBytes));
+    }
 
+    /**
+     * Deserializes a payload whose double SHA-256 hash is already known, for instance because it was computed while
+     * the bytes arrived. The message may keep the payload array.
+     */
+    Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -220,6 +288,8 @@ public class BitcoinSerializer {
             message = tx;
         } else if (command.equals("addr")) {
             message = new AddressMessage(params, payloadBytes, parseLazy, parseRetain, length);
+        } else if (command.equals("getaddr")) {
+            return new GetAddrMessage(params);
         } else if (command.equals("ping")) {
             message = new Ping(params, payloadBytes);
         } else if (command.equals("pong")) {
@@ -242,6 +312,14 @@ public class BitcoinSerializer {
             return new UTXOsMessage(params, payloadBytes);
         } else if (command.equals("getutxos")) {
             return new GetUTXOsMessage(params, payloadBytes);
+        } else if (command.equals("sendcmpct")) {
+            return new SendCompactBlocksMessage(params, payloadBytes);
+        } else if (command.equals("cmpctblock")) {
+            return new CompactBlockMessage(params, payloadBytes);
+        } else if (command.equals("getblocktxn")) {
+            return new GetBlockTxnMessage(params, payloadBytes);
+        } else if (command.equals("blocktxn")) {
+            return new BlockTxnMessage(params, payloadBytes);
         } else {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(params, command, payloadBytes);
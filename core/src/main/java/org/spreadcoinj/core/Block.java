@@ -532,6 +532,7 @@ public class Block extends Message {
         if (!transactionBytesValid)
             payload = null;
         hash = null;
+        powHash = null;
         checksum = null;
     }
 
@@ -922,6 +923,7 @@ public class Block extends Message {
         unCacheHeader();
         merkleRoot = value;
         hash = null;
+        powHash = null;
     }
 
     /** Adds a transaction to this block. The nonce and merkle root are invalid after this. */
@@ -945,6 +947,7 @@ public class Block extends Message {
         // Force a recalculation next time the values are needed.
         merkleRoot = null;
         hash = null;
+        powHash = null;
     }
 
     /** Returns the version of the block data structure as defined by the Bitcoin protocol. */
@@ -0,0 +1,632 @@
+package org.spreadcoinj.core;
+
+import org.spreadcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Spreads the download of blocks during chain download over several peers. The download peer syncs headers first:
+ * it asks for the chain with getheaders, verifies the headers it gets and hands their hashes to the scheduler, which
+ * requests the blocks from all its peers in windows of consecutive blocks, at most a given number in flight per peer.
+ * Blocks announced in answer to getblocks are scheduled the same way. Blocks arrive in any order and are held until
+ * all the blocks before them have arrived, then they are added to the chain in order, so chain download produces no
+ * orphans. Requests that a peer doesn't answer in time, or answers with notfound, are asked of another peer. A block
+ * that none of them can deliver after a few tries is blamed on the download peer that announced it, and the chain is
+ * asked for again.</p>
+ *
+ * <p>Blocks are added to the chain on the thread of whichever peer delivered the missing block, through the download
+ * peer so that its listeners see the progress, and never with the scheduler's lock held.</p>
+ *
+ * <p>{@link PeerGroup#setMaxBlocksInFlightPerPeer(int)} sets this up.</p>
+ */
+class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** Peers answer getblocks with at most this many blocks, and with fewer once we are nearly caught up. */
+    static final int MAX_INV_BLOCKS = 500;
+    /** How many consecutive blocks are asked of one peer at a time, if it has room. */
+    static final int DEFAULT_WINDOW_SIZE = 16;
+    /** How long a peer has to send a block before it is asked of another peer. */
+    static final long DEFAULT_STALL_TIMEOUT_MILLIS = 10 * 1000;
+    /** How many headers may be scheduled ahead of the chain before the download peer waits to ask for more. */
+    static final int MAX_HEADERS_AHEAD = 4 * HeadersMessage.MAX_HEADERS;
+    /** How many times a block is asked of another peer before giving up on the chain that announced it. */
+    static final int MAX_REASSIGNMENTS = 4;
+    /** How many times less work than the head of the chain a header may claim, like the retarget clamp. */
+    static final int MAX_DIFFICULTY_DROP = 4;
+    // Fewer headers than this are verified on the calling thread.
+    private static final int PARALLEL_VERIFICATION_THRESHOLD = 64;
+
+    private final ReentrantLock lock = Threading.lock("BlockDownloadScheduler");
+    private final int maxInFlightPerPeer;
+    private final int windowSize;
+    private final long stallTimeoutMillis;
+
+    private static class Slot {
+        // The peer the block was last requested from, or null if it isn't requested (yet, or any more).
+        @Nullable Peer peer;
+        long requestTimeMillis;
+        // A peer that didn't deliver the block in time, which is passed over if someone else can be asked.
+        @Nullable Peer stalledPeer;
+        // The block (a Block or FilteredBlock) once it has arrived.
+        @Nullable Message block;
+        // The download peer whose headers or inv announced the block, blamed if nobody can deliver it.
+        @Nullable Peer source;
+        // The peers that didn't deliver the block in time. They are only blamed once another peer does, as that shows
+        // there was a block to deliver.
+        @Nullable List<Peer> stalledPeers;
+        // How many times the block was asked of another peer.
+        int reassignments;
+    }
+
+    // The blocks to download, in chain order, from the oldest that isn't added to the chain yet.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Slot> slots = new LinkedHashMap<Sha256Hash, Slot>();
+    @GuardedBy("lock") private final List<Peer> peers = new ArrayList<Peer>();
+    @GuardedBy("lock") private final Map<Peer, Integer> inFlight = new HashMap<Peer, Integer>();
+    // Requests made before the Bloom filter was replaced. Their answers come first and are thrown away.
+    @GuardedBy("lock") private final Map<Peer, Set<Sha256Hash>> staleRequests = new HashMap<Peer, Set<Sha256Hash>>();
+    // The last blocks of full invs. Once they are added, the download peer asks for the next part of the chain.
+    @GuardedBy("lock") private final Set<Sha256Hash> continueAfter = new HashSet<Sha256Hash>();
+    @GuardedBy("lock") @Nullable private Peer downloadPeer;
+    // Set while waiting for a fresh Bloom filter, during which nothing is requested or added.
+    @GuardedBy("lock") private boolean paused;
+    // Set while a thread adds blocks to the chain, so they are added by one thread at a time, in order.
+    @GuardedBy("lock") private boolean delivering;
+
+    BlockDownloadScheduler(int maxInFlightPerPeer) {
+        this(maxInFlightPerPeer, DEFAULT_WINDOW_SIZE, DEFAULT_STALL_TIMEOUT_MILLIS);
+    }
+
+    BlockDownloadScheduler(int maxInFlightPerPeer, int windowSize, long stallTimeoutMillis) {
+        checkArgument(maxInFlightPerPeer > 0 && windowSize > 0);
+        this.maxInFlightPerPeer = maxInFlightPerPeer;
+        this.windowSize = windowSize;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /** Lets blocks be requested from the given peer. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.contains(peer)) {
+                peers.add(peer);
+                inFlight.put(peer, 0);
+            }
+        } finally {
+            lock.unlock();
+        }
+        assign();
+    }
+
+    /** Asks other peers for whatever was requested from the given peer and not delivered yet. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.remove(peer))
+                return;
+            inFlight.remove(peer);
+            staleRequests.remove(peer);
+            for (Slot slot : slots.values()) {
+                if (slot.peer == peer)
+                    slot.peer = null;
+                if (slot.stalledPeer == peer)
+                    slot.stalledPeer = null;
+                if (slot.stalledPeers != null)
+                    slot.stalledPeers.remove(peer);
+            }
+            if (downloadPeer == peer)
+                downloadPeer = null;
+        } finally {
+            lock.unlock();
+        }
+        assign();
+    }
+
+    /** Sets the peer that announces the blocks to download and that is told to continue once they are added. */
+    void setDownloadPeer(@Nullable Peer peer) {
+        lock.lock();
+        try {
+            downloadPeer = peer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the blocks of an inv from the download peer, in the order announced, and requests them. Blocks that are
+     * already scheduled are skipped.
+     */
+    void enqueue(List<Sha256Hash> hashes) {
+        lock.lock();
+        try {
+            addSlots(hashes);
+            if (hashes.size() >= MAX_INV_BLOCKS)
+                continueAfter.add(hashes.get(hashes.size() - 1));
+        } finally {
+            lock.unlock();
+        }
+        assign();
+    }
+
+    /**
+     * Adds the blocks of verified headers from the download peer, in chain order. The first follows on from the block
+     * with the given hash, which is either the last block scheduled or one in the chain: in the latter case the peer
+     * is on another branch than the blocks scheduled so far, which are dropped. If the peer has more headers to send,
+     * returns true if it should ask for them straight away, and false if it should wait until the blocks of these are
+     * added to the chain.
+     */
+    boolean enqueueHeaders(Sha256Hash prevHash, List<Sha256Hash> hashes, boolean more) {
+        lock.lock();
+        try {
+            Sha256Hash last = getLastScheduledLocked();
+            if (last != null && !last.equals(prevHash)) {
+                log.info("Headers continue from {} rather than the last scheduled block, dropping {} blocks",
+                        prevHash, slots.size());
+                dropAll();
+            }
+            addSlots(hashes);
+            if (more && slots.size() >= MAX_HEADERS_AHEAD) {
+                continueAfter.add(hashes.get(hashes.size() - 1));
+                more = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        assign();
+        return more;
+    }
+
+    @GuardedBy("lock")
+    private void addSlots(List<Sha256Hash> hashes) {
+        for (Sha256Hash hash : hashes) {
+            if (!slots.containsKey(hash)) {
+                Slot slot = new Slot();
+                slot.source = downloadPeer;
+                slots.put(hash, slot);
+            }
+        }
+    }
+
+    /**
+     * Makes the download peer ask for the rest of the chain once the blocks scheduled so far are added, and returns
+     * true, or returns false if there are none. For blocks announced during chain download: they will be among the
+     * headers that come next, and fetching them now would only make them orphans.
+     */
+    boolean continueAfterScheduled() {
+        lock.lock();
+        try {
+            Sha256Hash last = getLastScheduledLocked();
+            if (last == null)
+                return false;
+            continueAfter.add(last);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the hash of the last block scheduled, where the download peer continues the header chain, or null. */
+    @Nullable
+    Sha256Hash getLastScheduled() {
+        lock.lock();
+        try {
+            return getLastScheduledLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Sha256Hash getLastScheduledLocked() {
+        Sha256Hash last = null;
+        for (Sha256Hash hash : slots.keySet())
+            last = hash;
+        return last;
+    }
+
+    /**
+     * Takes a block or filtered block that the given peer sent. Returns false if it isn't one the scheduler is
+     * downloading, in which case the peer handles it as usual.
+     */
+    boolean offer(Peer from, Message block) {
+        Sha256Hash hash = block.getHash();
+        List<Peer> stalledPeers;
+        lock.lock();
+        try {
+            Set<Sha256Hash> stale = staleRequests.get(from);
+            if (stale != null && stale.remove(hash))
+                return true;  // Made with an old filter, or for blocks that were dropped.
+            Slot slot = slots.get(hash);
+            if (slot == null)
+                return false;
+            if (slot.block != null || paused)
+                return true;  // A duplicate from a peer thought to have stalled, or made with a used up filter.
+            slot.block = block;
+            if (slot.peer != null)
+                release(slot.peer);
+            slot.peer = null;
+            stalledPeers = slot.stalledPeers;
+            slot.stalledPeers = null;
+        } finally {
+            lock.unlock();
+        }
+        if (stalledPeers != null) {
+            for (Peer peer : stalledPeers) {
+                if (peer != from)
+                    peer.recordStall();
+            }
+        }
+        assign();
+        deliver();
+        return true;
+    }
+
+    /**
+     * Takes a notfound from the given peer for blocks it was asked for, and asks another peer for them. The peer isn't
+     * blamed: it may be the block that doesn't exist.
+     */
+    void notFound(Peer from, List<Sha256Hash> hashes) {
+        Slot unavailable = null;
+        Peer source = null, current = null;
+        lock.lock();
+        try {
+            Set<Sha256Hash> stale = staleRequests.get(from);
+            for (Sha256Hash hash : hashes) {
+                if (stale != null && stale.remove(hash))
+                    continue;
+                Slot slot = slots.get(hash);
+                if (slot == null || slot.peer != from || slot.block != null)
+                    continue;
+                log.info("{}: Doesn't have block {}, asking another peer", from, hash);
+                reassign(slot);
+                if (slot.reassignments > MAX_REASSIGNMENTS) {
+                    unavailable = slot;
+                    break;
+                }
+            }
+            if (unavailable != null) {
+                source = unavailable.source;
+                current = downloadPeer;
+                giveUp();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (unavailable != null)
+            blame(source, current);
+        else
+            assign();
+    }
+
+    /** Asks another peer for blocks that weren't delivered within the stall timeout. Called every so often. */
+    void checkForStalls() {
+        long now = Utils.currentTimeMillis();
+        boolean stalled = false;
+        Slot unavailable = null;
+        Peer source = null, current = null;
+        lock.lock();
+        try {
+            for (Slot slot : slots.values()) {
+                if (slot.peer != null && slot.block == null && now - slot.requestTimeMillis >= stallTimeoutMillis) {
+                    log.info("{}: Stalled downloading a block, asking another peer", slot.peer);
+                    if (slot.stalledPeers == null)
+                        slot.stalledPeers = new ArrayList<Peer>(1);
+                    slot.stalledPeers.add(slot.peer);
+                    reassign(slot);
+                    stalled = true;
+                    if (slot.reassignments > MAX_REASSIGNMENTS) {
+                        unavailable = slot;
+                        break;
+                    }
+                }
+            }
+            if (unavailable != null) {
+                source = unavailable.source;
+                current = downloadPeer;
+                giveUp();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (unavailable != null)
+            blame(source, current);
+        else if (stalled)
+            assign();
+    }
+
+    /**
+     * Continues after a fresh Bloom filter was sent to the peers, requesting again everything that was thrown away
+     * when the old one ran out.
+     */
+    void resume() {
+        lock.lock();
+        try {
+            if (!paused)
+                return;
+            paused = false;
+        } finally {
+            lock.unlock();
+        }
+        assign();
+        deliver();
+    }
+
+    /** Returns the number of blocks scheduled and not yet added to the chain. */
+    int getPendingBlocks() {
+        lock.lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes the block off the peer it was asked of, so that assign() asks another peer.
+    @GuardedBy("lock")
+    private void reassign(Slot slot) {
+        release(slot.peer);
+        slot.stalledPeer = slot.peer;
+        slot.peer = null;
+        slot.reassignments++;
+    }
+
+    // No peer could deliver a block, so it probably doesn't exist and the chain that announced it is fake or gone.
+    @GuardedBy("lock")
+    private void giveUp() {
+        log.warn("Nobody could deliver a block, dropping {} blocks", slots.size());
+        dropAll();
+    }
+
+    // Blames the peer that announced the chain given up on, rather than the peers that couldn't deliver its blocks,
+    // and asks for the chain again from where we really are.
+    private void blame(@Nullable Peer source, @Nullable Peer current) {
+        if (source != null)
+            source.recordBadChain();
+        if (current != null && current != source)
+            current.continueChainDownload();
+    }
+
+    @GuardedBy("lock")
+    private void release(Peer peer) {
+        Integer count = inFlight.get(peer);
+        if (count != null && count > 0)
+            inFlight.put(peer, count - 1);
+    }
+
+    // Requests the blocks that aren't requested yet, as far ahead of the oldest missing block as the peers' in-flight
+    // limits allow (twice over, so that peers have something to do while a slow one holds up adding).
+    private void assign() {
+        Map<Peer, List<Sha256Hash>> requests = new LinkedHashMap<Peer, List<Sha256Hash>>();
+        lock.lock();
+        try {
+            if (paused || peers.isEmpty())
+                return;
+            long now = Utils.currentTimeMillis();
+            int lookahead = 2 * maxInFlightPerPeer * peers.size();
+            int index = 0;
+            Peer current = null;
+            int run = 0;
+            for (Map.Entry<Sha256Hash, Slot> entry : slots.entrySet()) {
+                if (index++ >= lookahead)
+                    break;
+                Slot slot = entry.getValue();
+                if (slot.block != null || slot.peer != null)
+                    continue;
+                // Keep filling the current peer's window, otherwise start a window with the least busy peer.
+                Peer peer;
+                if (current != null && run < windowSize && inFlight.get(current) < maxInFlightPerPeer
+                        && current != slot.stalledPeer) {
+                    peer = current;
+                } else {
+                    peer = leastBusyPeer(slot.stalledPeer);
+                    run = 0;
+                }
+                if (peer == null)
+                    break;
+                current = peer;
+                run++;
+                slot.peer = peer;
+                slot.requestTimeMillis = now;
+                inFlight.put(peer, inFlight.get(peer) + 1);
+                List<Sha256Hash> hashes = requests.get(peer);
+                if (hashes == null) {
+                    hashes = new ArrayList<Sha256Hash>();
+                    requests.put(peer, hashes);
+                }
+                hashes.add(entry.getKey());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, List<Sha256Hash>> request : requests.entrySet())
+            request.getKey().requestScheduledBlocks(request.getValue());
+    }
+
+    // Returns the peer with the fewest blocks in flight that can take another, preferring any but the given one.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer leastBusyPeer(@Nullable Peer avoid) {
+        Peer best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (Peer peer : peers) {
+            int count = inFlight.get(peer);
+            if (count >= maxInFlightPerPeer)
+                continue;
+            // Passing over the peer to avoid is like it having a full window more in flight.
+            int weighted = peer == avoid ? count + maxInFlightPerPeer : count;
+            if (weighted < bestCount) {
+                best = peer;
+                bestCount = weighted;
+            }
+        }
+        return best;
+    }
+
+    // Adds the blocks at the front that have arrived to the chain, unless another thread is already doing so.
+    private void deliver() {
+        lock.lock();
+        try {
+            if (delivering)
+                return;
+            delivering = true;
+        } finally {
+            lock.unlock();
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                Sha256Hash hash;
+                Message block;
+                Peer peer;
+                lock.lock();
+                try {
+                    Map.Entry<Sha256Hash, Slot> first = slots.isEmpty() ? null : slots.entrySet().iterator().next();
+                    peer = downloadPeer;
+                    if (paused || first == null || first.getValue().block == null || peer == null) {
+                        // Checked and cleared with the lock held, so a block offered meanwhile isn't left behind.
+                        delivering = false;
+                        done = true;
+                        return;
+                    }
+                    hash = first.getKey();
+                    block = first.getValue().block;
+                } finally {
+                    lock.unlock();
+                }
+                // Only this thread takes blocks off the front, so the block stays first while the lock is released.
+                // The wallets are asked without our lock as they may call back into the PeerGroup.
+                boolean exhausted = block instanceof FilteredBlock &&
+                        peer.checkForFilterExhaustion((FilteredBlock) block);
+                boolean continueDownload = false;
+                lock.lock();
+                try {
+                    if (exhausted) {
+                        pauseForFreshFilter();
+                    } else {
+                        slots.remove(hash);
+                        continueDownload = continueAfter.remove(hash);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (exhausted) {
+                    peer.awaitFreshFilter();
+                    continue;  // Finds us paused and returns.
+                }
+                if (!peer.addScheduledBlock(block)) {
+                    // Didn't connect or was invalid, so none of the blocks after it will connect either. Ask for the
+                    // chain again from where we really are.
+                    lock.lock();
+                    try {
+                        dropAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    continueDownload = true;
+                }
+                if (continueDownload)
+                    peer.continueChainDownload();
+                assign();
+            }
+        } finally {
+            if (!done) {
+                lock.lock();
+                try {
+                    delivering = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    // The filter ran out at the first block, so it and everything after it may lack transactions we care about. Throw
+    // away what arrived and forget what was requested, to be asked again once the peers have a fresh filter.
+    @GuardedBy("lock")
+    private void pauseForFreshFilter() {
+        log.info("Bloom filter exhausted, waiting for a fresh one before downloading {} blocks", slots.size());
+        paused = true;
+        forgetRequests();
+    }
+
+    @GuardedBy("lock")
+    private void dropAll() {
+        forgetRequests();
+        slots.clear();
+        continueAfter.clear();
+    }
+
+    // Throws away the blocks that arrived and marks those requested but not delivered as stale, so that they are
+    // thrown away too when they come.
+    @GuardedBy("lock")
+    private void forgetRequests() {
+        for (Map.Entry<Sha256Hash, Slot> entry : slots.entrySet()) {
+            Slot slot = entry.getValue();
+            if (slot.peer != null && slot.block == null) {
+                Set<Sha256Hash> stale = staleRequests.get(slot.peer);
+                if (stale == null) {
+                    stale = new HashSet<Sha256Hash>();
+                    staleRequests.put(slot.peer, stale);
+                }
+                stale.add(entry.getKey());
+            }
+            slot.peer = null;
+            slot.block = null;
+            slot.stalledPeers = null;
+        }
+        for (Peer peer : peers)
+            inFlight.put(peer, 0);
+    }
+
+    /**
+     * Checks that the headers form a chain and that each carries valid proof of work. As the exact difficulty of each
+     * can't be worked out without the blocks before them, each must claim at least a {@link #MAX_DIFFICULTY_DROP}th of
+     * the work of the given target, that of the head of the chain: otherwise a peer could make us download the blocks
+     * of any number of cheap headers. Checking the X11 proofs of work is spread over all cores for large batches.
+     */
+    static void verifyHeaders(List<Block> headers, BigInteger expectedTarget) throws VerificationException {
+        BigInteger easiest = expectedTarget.multiply(BigInteger.valueOf(MAX_DIFFICULTY_DROP));
+        for (int i = 0; i < headers.size(); i++) {
+            Block header = headers.get(i);
+            if (i > 0 && !header.getPrevBlockHash().equals(headers.get(i - 1).getHash()))
+                throw new VerificationException("Headers don't form a chain at " + header.getHashAsString());
+            if (header.getDifficultyTargetAsInteger().compareTo(easiest) > 0)
+                throw new VerificationException("Header claims too little work: " + header.getHashAsString() + " has "
+                        + Long.toHexString(header.getDifficultyTarget()));
+        }
+        if (headers.size() < PARALLEL_VERIFICATION_THRESHOLD) {
+            for (Block header : headers)
+                header.verifyHeader();
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = (headers.size() + threads - 1) / threads;
+        List<Runnable> batches = new ArrayList<Runnable>(threads);
+        for (int start = 0; start < headers.size(); start += batchSize) {
+            final List<Block> batch = headers.subList(start, Math.min(start + batchSize, headers.size()));
+            batches.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (Block header : batch)
+                        header.verifyHeader();
+                }
+            });
+        }
+        Threading.runOnCpuPool(batches);
+    }
+}
@@ -0,0 +1,69 @@
+package org.spreadcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The "blocktxn" message of BIP 152, which carries the transactions of a block asked for with a
+ * {@link GetBlockTxnMessage}, in the order they were asked for.
+ */
+public class BlockTxnMessage extends Message {
+    private Sha256Hash blockHash;
+    private List<Transaction> transactions;
+
+    public BlockTxnMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public BlockTxnMessage(NetworkParameters params, Sha256Hash blockHash, List<Transaction> transactions) {
+        super(params);
+        this.blockHash = blockHash;
+        this.transactions = new ArrayList<Transaction>(transactions);
+        length = bitcoinSerialize().length;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numTransactions = readVarInt();
+        if (numTransactions > payload.length - cursor)
+            throw new ProtocolException("Too many transactions: " + numTransactions);
+        transactions = new ArrayList<Transaction>((int) numTransactions);
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params, payload, cursor);
+            cursor += tx.getMessageSize();
+            transactions.add(tx);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(Utils.reverseBytes(blockHash.getBytes()));
+        stream.write(new VarInt(transactions.size()).encode());
+        for (Transaction tx : transactions)
+            tx.bitcoinSerialize(stream);
+    }
+
+    public Sha256Hash getBlockHash() {
+        maybeParse();
+        return blockHash;
+    }
+
+    public List<Transaction> getTransactions() {
+        maybeParse();
+        return Collections.unmodifiableList(transactions);
+    }
+
+    @Override
+    public String toString() {
+        return "blocktxn: " + getTransactions().size() + " transactions of " + getBlockHash();
+    }
+}
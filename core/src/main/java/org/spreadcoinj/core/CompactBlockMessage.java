@@ -0,0 +1,192 @@
+package org.spreadcoinj.core;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The "cmpctblock" message of BIP 152: a block header followed by a short ID for each transaction of the block,
+ * rather than the transactions themselves. Most of them are usually in our {@link MemoryPool} already, so the block
+ * can be put together from there and only the few transactions we don't have need to be downloaded, with a
+ * {@link GetBlockTxnMessage}. Transactions the sender expects us not to have, like the coinbase, are sent in full
+ * ("prefilled").</p>
+ *
+ * <p>The header is sent exactly as in a block message, so the SpreadCoin extensions of blocks beyond the second hard
+ * fork, the whole block hash and the miner signature, are kept as they are. The short IDs are keyed by the whole
+ * header, so they differ from block to block.</p>
+ */
+public class CompactBlockMessage extends Message {
+    /** The smallest protocol version that supports compact blocks. */
+    public static final int MIN_PROTOCOL_VERSION = 70014;
+    /** The version of compact blocks we understand, which is announced in {@link SendCompactBlocksMessage}. */
+    public static final long VERSION = 1;
+    /** The number of bytes of a short transaction ID. */
+    public static final int SHORT_ID_LENGTH = 6;
+
+    private Block header;
+    private long nonce;
+    private long[] shortIds;
+    // The prefilled transactions and their indexes in the block, in order.
+    private List<Integer> prefilledIndexes;
+    private List<Transaction> prefilledTransactions;
+
+    private transient HashFunction shortIdFunction;
+
+    public CompactBlockMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /** Makes a compact block of the given block, with only the coinbase prefilled. */
+    public CompactBlockMessage(NetworkParameters params, Block block, long nonce) {
+        super(params);
+        List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+        this.header = block.cloneAsHeader();
+        this.nonce = nonce;
+        this.prefilledIndexes = Collections.singletonList(0);
+        this.prefilledTransactions = Collections.singletonList(transactions.get(0));
+        this.shortIds = new long[transactions.size() - 1];
+        for (int i = 1; i < transactions.size(); i++)
+            shortIds[i - 1] = getShortId(transactions.get(i).getHash());
+        length = bitcoinSerialize().length;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        // The header is followed by the transactions in a block message, so its size depends on the height only.
+        int headerSize = getUint32(Block.HEADER_POS_HEIGHT) > params.getSecondHardforkBlock() ?
+                Block.HEADER_SIZE_NEW : Block.HEADER_SIZE_OLD;
+        header = new Block(params, readBytes(headerSize));
+        nonce = readInt64();
+
+        long numShortIds = readVarInt();
+        if (numShortIds * SHORT_ID_LENGTH > payload.length - cursor)
+            throw new ProtocolException("Too many short IDs: " + numShortIds);
+        shortIds = new long[(int) numShortIds];
+        for (int i = 0; i < shortIds.length; i++) {
+            long shortId = 0;
+            for (int j = 0; j < SHORT_ID_LENGTH; j++)
+                shortId |= (payload[cursor + j] & 0xFFL) << (8 * j);
+            shortIds[i] = shortId;
+            cursor += SHORT_ID_LENGTH;
+        }
+
+        long numPrefilled = readVarInt();
+        if (numPrefilled > payload.length - cursor)
+            throw new ProtocolException("Too many prefilled transactions: " + numPrefilled);
+        prefilledIndexes = new ArrayList<Integer>((int) numPrefilled);
+        prefilledTransactions = new ArrayList<Transaction>((int) numPrefilled);
+        long index = -1;
+        for (int i = 0; i < numPrefilled; i++) {
+            // Indexes are sent as the difference to the previous one, less one.
+            index += readVarInt() + 1;
+            if (index < 0 || index >= numShortIds + numPrefilled)
+                throw new ProtocolException("Prefilled transaction index out of range: " + index);
+            Transaction tx = new Transaction(params, payload, cursor);
+            cursor += tx.getMessageSize();
+            prefilledIndexes.add((int) index);
+            prefilledTransactions.add(tx);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        header.writeHeader(stream);
+        Utils.int64ToByteStreamLE(nonce, stream);
+        stream.write(new VarInt(shortIds.length).encode());
+        for (long shortId : shortIds) {
+            for (int j = 0; j < SHORT_ID_LENGTH; j++)
+                stream.write((int) (shortId >>> (8 * j)));
+        }
+        stream.write(new VarInt(prefilledIndexes.size()).encode());
+        int previous = -1;
+        for (int i = 0; i < prefilledIndexes.size(); i++) {
+            int index = prefilledIndexes.get(i);
+            stream.write(new VarInt(index - previous - 1).encode());
+            prefilledTransactions.get(i).bitcoinSerialize(stream);
+            previous = index;
+        }
+    }
+
+    /** Returns the header of the block, with no transactions. */
+    public Block getHeader() {
+        maybeParse();
+        return header;
+    }
+
+    /** Returns the hash of the block. */
+    public Sha256Hash getBlockHash() {
+        return getHeader().getHash();
+    }
+
+    public long getNonce() {
+        maybeParse();
+        return nonce;
+    }
+
+    /** Returns the short IDs of the transactions that aren't prefilled, in the order they are in the block. */
+    public long[] getShortIds() {
+        maybeParse();
+        return shortIds;
+    }
+
+    /** Returns the indexes in the block of the prefilled transactions, in increasing order. */
+    public List<Integer> getPrefilledIndexes() {
+        maybeParse();
+        return Collections.unmodifiableList(prefilledIndexes);
+    }
+
+    /** Returns the prefilled transactions, in the order of {@link #getPrefilledIndexes()}. */
+    public List<Transaction> getPrefilledTransactions() {
+        maybeParse();
+        return Collections.unmodifiableList(prefilledTransactions);
+    }
+
+    /** Returns the number of transactions in the block. */
+    public int getTransactionCount() {
+        maybeParse();
+        return shortIds.length + prefilledIndexes.size();
+    }
+
+    /**
+     * Returns the short ID of the transaction with the given hash in this block: the low six bytes of its SipHash-2-4,
+     * keyed with the first 16 bytes of the SHA-256 of the header and the nonce.
+     */
+    public long getShortId(Sha256Hash txHash) {
+        return getShortIdFunction().hashBytes(Utils.reverseBytes(txHash.getBytes())).asLong() & 0xFFFFFFFFFFFFL;
+    }
+
+    private synchronized HashFunction getShortIdFunction() {
+        if (shortIdFunction == null) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            try {
+                getHeader().writeHeader(stream);
+                Utils.int64ToByteStreamLE(getNonce(), stream);
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+            byte[] key = Sha256Hash.create(stream.toByteArray()).getBytes();
+            shortIdFunction = Hashing.sipHash24(Utils.readInt64(key, 0), Utils.readInt64(key, 8));
+        }
+        return shortIdFunction;
+    }
+
+    @Override
+    public String toString() {
+        return "cmpctblock: " + getBlockHash() + ", " + getTransactionCount() + " transactions, " +
+                prefilledIndexes.size() + " prefilled";
+    }
+}
@@ -31,12 +31,10 @@ import org.spongycastle.asn1.*;
 import org.spongycastle.asn1.x9.X9ECParameters;
 import org.spongycastle.asn1.x9.X9IntegerConverter;
 import org.spongycastle.crypto.AsymmetricCipherKeyPair;
-import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.ec.CustomNamedCurves;
 import org.spongycastle.crypto.generators.ECKeyPairGenerator;
 import org.spongycastle.crypto.params.*;
 import org.spongycastle.crypto.signers.ECDSASigner;
-import org.spongycastle.crypto.signers.HMacDSAKCalculator;
 import org.spongycastle.math.ec.ECAlgorithms;
 import org.spongycastle.math.ec.ECPoint;
 import org.spongycastle.math.ec.FixedPointUtil;
@@ -187,6 +185,8 @@ public class ECKey implements EncryptableItem, Serializable {
      * See the ECKey class docs for a discussion of point compression.
      */
     public static ECPoint compressPoint(ECPoint uncompressed) {
+        if (uncompressed.isCompressed())
+            return uncompressed;
         return CURVE.getCurve().decodePoint(uncompressed.getEncoded(true));
     }
 
@@ -614,6 +614,26 @@ public class ECKey implements EncryptableItem, Serializable {
     @VisibleForTesting
     public static boolean FAKE_SIGNATURES = false;
 
+    /** The pure Java code that verifies signatures and recovers public keys when the native library isn't in use. */
+    public enum Engine {
+        /** Spongy Castle's generic elliptic curve code. */
+        SPONGY_CASTLE,
+        /** The code specialised for secp256k1 in {@link Secp256k1}, which is faster, most of all for its hot keys. */
+        SECP256K1
+    }
+
+    private static volatile Engine engine = Engine.SPONGY_CASTLE;
+
+    /** Selects the pure Java code used for verification and public key recovery. The default is SPONGY_CASTLE. */
+    public static void setEngine(Engine engine) {
+        ECKey.engine = checkNotNull(engine);
+    }
+
+    /** Returns the pure Java code used for verification and public key recovery. */
+    public static Engine getEngine() {
+        return engine;
+    }
+
     /**
      * Signs the given hash and returns the R and S components as BigIntegers. In the Bitcoin protocol, they are
      * usually encoded using DER format, so you want {@link org.spreadcoinj.core.ECKey.ECDSASignature#encodeToDER()}
@@ -641,24 +661,8 @@ public class ECKey implements EncryptableItem, Serializable {
     protected ECDSASignature doSign(Sha256Hash input, BigInteger privateKeyForSigning) {
         if (FAKE_SIGNATURES)
             return TransactionSignature.dummy();
-        checkNotNull(privateKeyForSigning);
-        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, CURVE);
-        signer.init(true, privKey);
-        BigInteger[] components = signer.generateSignature(input.getBytes());
-        // Now we have to work backwards to figure out the recId needed to recover the signature.
-        int recId = -1;
-        for (int i = 0; i < 4; i++) {
-            ECKey k = ECKey.recoverFromSignature(i, new ECDSASignature(components[0], components[1], 0).toCanonicalised(), input, false);
-            if (k != null && k.pub.equals(pub)) {
-                recId = i;
-                break;
-            }
-        }
-        if (recId == -1)
-            throw new RuntimeException("Could not construct a recoverable key. This should never happen.");
-        int headerByte = recId + 27;
-        return new ECDSASignature(components[0], components[1], headerByte).toCanonicalised();
+        // The recovery id is derived from the nonce point, instead of by trial recovery of the public key.
+        return RecoverableECDSASigner.sign(input, privateKeyForSigning);
     }
 
     /**
@@ -678,6 +682,9 @@ public class ECKey implements EncryptableItem, Serializable {
         if (NativeSecp256k1.enabled)
             return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
 
+        if (engine == Engine.SECP256K1)
+            return Secp256k1.verify(data, signature.r, signature.s, pub);
+
         ECDSASigner signer = new ECDSASigner();
         ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
         signer.init(false, params);
@@ -700,8 +707,6 @@ public class ECKey implements EncryptableItem, Serializable {
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
-        if (NativeSecp256k1.enabled)
-            return NativeSecp256k1.verify(data, signature, pub);
         return verify(data, ECDSASignature.decodeFromCompact(signature), pub);
     }
 
@@ -798,9 +803,9 @@ public class ECKey implements EncryptableItem, Serializable {
         byte[] data = Utils.formatMessageForSigning(message);
         Sha256Hash hash = Sha256Hash.createDouble(data);
         ECDSASignature sig = sign(hash, aesKey);
-        // Now we have to work backwards to figure out the recId needed to recover the signature.
-        int recId = -1;
-        for (int i = 0; i < 4; i++) {
+        int recId = RecoverableECDSASigner.getRecoveryId(sig);
+        // If the signer didn't tell, we have to work backwards to figure out the recId needed to recover the signature.
+        for (int i = 0; recId == -1 && i < 4; i++) {
             ECKey k = ECKey.recoverFromSignature(i, sig, hash, isCompressed());
             if (k != null && k.pub.equals(pub)) {
                 recId = i;
@@ -936,7 +941,9 @@ public class ECKey implements EncryptableItem, Serializable {
         // So it's encoded in the recId.
         ECPoint R = decompressKey(x, (recId & 1) == 1);
         //   1.4. If nR != point at infinity, then do another iteration of Step 1 (callers responsibility).
-        if (!R.multiply(n).isInfinity())
+        //        The cofactor of secp256k1 is 1, so every point on the curve has order n and there is no need to
+        //        check, except for the sake of Spongy Castle's generic code.
+        if (engine == Engine.SPONGY_CASTLE && !R.multiply(n).isInfinity())
             return null;
         //   1.5. Compute e from M using Steps 2 and 3 of ECDSA signature verification.
         BigInteger e = message.toBigInteger();
@@ -955,7 +962,9 @@ public class ECKey implements EncryptableItem, Serializable {
         BigInteger rInv = sig.r.modInverse(n);
         BigInteger srInv = rInv.multiply(sig.s).mod(n);
         BigInteger eInvrInv = rInv.multiply(eInv).mod(n);
-        ECPoint q = ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), eInvrInv, R, srInv);
+        ECPoint q = engine == Engine.SECP256K1
+                ? Secp256k1.sumOfTwoMultiplies(eInvrInv, R, srInv)
+                : ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), eInvrInv, R, srInv);
         return ECKey.fromPublicOnly(q.getEncoded(compressed));
     }
 
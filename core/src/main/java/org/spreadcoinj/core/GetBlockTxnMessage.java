@@ -0,0 +1,77 @@
+package org.spreadcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The "getblocktxn" message of BIP 152, which asks for the transactions of a {@link CompactBlockMessage} that we
+ * couldn't find in our memory pool, by their indexes in the block. They come back in a {@link BlockTxnMessage}.
+ */
+public class GetBlockTxnMessage extends Message {
+    private Sha256Hash blockHash;
+    private List<Integer> indexes;
+
+    public GetBlockTxnMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /** Asks for the transactions at the given indexes, which must be in increasing order, of the given block. */
+    public GetBlockTxnMessage(NetworkParameters params, Sha256Hash blockHash, List<Integer> indexes) {
+        super(params);
+        this.blockHash = blockHash;
+        this.indexes = new ArrayList<Integer>(indexes);
+        length = bitcoinSerialize().length;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numIndexes = readVarInt();
+        if (numIndexes > payload.length - cursor)
+            throw new ProtocolException("Too many indexes: " + numIndexes);
+        indexes = new ArrayList<Integer>((int) numIndexes);
+        long index = -1;
+        for (int i = 0; i < numIndexes; i++) {
+            // Indexes are sent as the difference to the previous one, less one.
+            index += readVarInt() + 1;
+            if (index < 0 || index > Integer.MAX_VALUE)
+                throw new ProtocolException("Index out of range: " + index);
+            indexes.add((int) index);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(Utils.reverseBytes(blockHash.getBytes()));
+        stream.write(new VarInt(indexes.size()).encode());
+        int previous = -1;
+        for (int index : indexes) {
+            stream.write(new VarInt(index - previous - 1).encode());
+            previous = index;
+        }
+    }
+
+    public Sha256Hash getBlockHash() {
+        maybeParse();
+        return blockHash;
+    }
+
+    /** Returns the indexes in the block of the transactions asked for, in increasing order. */
+    public List<Integer> getIndexes() {
+        maybeParse();
+        return Collections.unmodifiableList(indexes);
+    }
+
+    @Override
+    public String toString() {
+        return "getblocktxn: " + getIndexes().size() + " transactions of " + getBlockHash();
+    }
+}
@@ -60,6 +60,10 @@ public class GetDataMessage extends ListMessage {
         addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, hash));
     }
 
+    public void addCompactBlock(Sha256Hash hash) {
+        addItem(new InventoryItem(InventoryItem.Type.CompactBlock, hash));
+    }
+
     public Sha256Hash getHashOf(int i) {
         return getItems().get(i).hash;
     }
@@ -24,8 +24,10 @@ import javax.annotation.Nullable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -301,6 +303,25 @@ public class MemoryPool {
         }
     }
 
+    /**
+     * Returns the transactions we downloaded that haven't been garbage collected yet, oldest first.
+     */
+    public List<Transaction> getTransactions() {
+        cleanPool();
+        lock.lock();
+        try {
+            List<Transaction> transactions = new ArrayList<Transaction>(memoryPool.size());
+            for (Entry entry : memoryPool.values()) {
+                Transaction tx = entry.tx == null ? null : entry.tx.get();
+                if (tx != null)
+                    transactions.add(tx);
+            }
+            return transactions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns true if the TX identified by hash has been seen before (ie, in an inv). Note that a transaction that
      * was broadcast, downloaded and nothing kept a reference to it will eventually be cleared out by the garbage
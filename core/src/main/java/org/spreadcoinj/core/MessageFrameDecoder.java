@@ -0,0 +1,108 @@
+package org.spreadcoinj.core;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>Splits the byte stream from a peer into messages, keeping its place between reads so that messages and headers
+ * may arrive in any number of pieces.</p>
+ *
+ * <p>Each payload is copied exactly once, from the read buffer into an array of the final size which the message then
+ * parses from (and may keep), and is hashed as it arrives with a digest owned by this decoder. So a message that spans
+ * many reads isn't collected in a temporary buffer first, and the checksum doesn't contend for the digest shared
+ * through {@link Utils#doubleDigest(byte[])}.</p>
+ *
+ * <p>This class is not thread safe, each connection has its own.</p>
+ */
+class MessageFrameDecoder {
+    private static final int HEADER_LENGTH = BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH;
+
+    private final BitcoinSerializer serializer;
+    private final long packetMagic;
+    private final MessageDigest digest;
+
+    // Which byte of the magic we're looking for, or -1 once it has been found.
+    private int magicCursor = 3;
+    private final byte[] headerBytes = new byte[HEADER_LENGTH];
+    private int headerPos;
+    // The message being received, once its header is complete.
+    @Nullable private BitcoinSerializer.BitcoinPacketHeader header;
+    private byte[] payload;
+    private int payloadPos;
+
+    MessageFrameDecoder(NetworkParameters params, BitcoinSerializer serializer) {
+        this.serializer = serializer;
+        this.packetMagic = params.getPacketMagic();
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Reads from the buffer until a message is complete and returns it, or returns null once the buffer has no bytes
+     * left. Call it again until it returns null, the bytes of incomplete messages are kept until the next call.
+     *
+     * @throws ProtocolException if a header or message is invalid, after which the decoder must not be used again.
+     */
+    @Nullable
+    Message next(ByteBuffer buff) throws ProtocolException {
+        while (buff.hasRemaining()) {
+            if (magicCursor >= 0) {
+                seekPastMagicBytes(buff);
+            } else if (header == null) {
+                int length = Math.min(buff.remaining(), HEADER_LENGTH - headerPos);
+                buff.get(headerBytes, headerPos, length);
+                headerPos += length;
+                if (headerPos == HEADER_LENGTH) {
+                    header = new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(headerBytes));
+                    payload = new byte[header.size];
+                    payloadPos = 0;
+                    if (header.size == 0)
+                        return finish();
+                }
+            } else {
+                int length = Math.min(buff.remaining(), payload.length - payloadPos);
+                buff.get(payload, payloadPos, length);
+                digest.update(payload, payloadPos, length);
+                payloadPos += length;
+                if (payloadPos == payload.length)
+                    return finish();
+            }
+        }
+        return null;
+    }
+
+    private Message finish() throws ProtocolException {
+        BitcoinSerializer.BitcoinPacketHeader header = this.header;
+        byte[] payload = this.payload;
+        this.header = null;
+        this.payload = null;
+        headerPos = 0;
+        magicCursor = 3;
+        byte[] hash = digest.digest(digest.digest());
+        return serializer.deserializePayload(header, payload, hash);
+    }
+
+    // Satoshi's implementation ignores garbage before the magic header bytes, and so do we.
+    private void seekPastMagicBytes(ByteBuffer buff) {
+        while (buff.hasRemaining()) {
+            byte b = buff.get();
+            if (b == magicByte(magicCursor)) {
+                magicCursor--;
+                if (magicCursor < 0)
+                    return;
+            } else {
+                // This byte may start the magic afresh.
+                magicCursor = b == magicByte(3) ? 2 : 3;
+            }
+        }
+    }
+
+    private byte magicByte(int index) {
+        return (byte) (0xFF & packetMagic >>> (index * 8));
+    }
+}
@@ -0,0 +1,118 @@
+package org.spreadcoinj.core;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A block being put together from a {@link CompactBlockMessage}: its prefilled transactions, those of our
+ * {@link MemoryPool} whose short IDs match and, once they arrive in a {@link BlockTxnMessage}, the rest. The block is
+ * then parsed from its header bytes and transactions, so the header comes out exactly as it was sent, SpreadCoin
+ * extensions included, and its merkle root tells whether the right transactions were found.
+ */
+class PartialBlock {
+    private final NetworkParameters params;
+    private final CompactBlockMessage compactBlock;
+    private final Transaction[] transactions;
+    private final List<Integer> missingIndexes;
+    private final long creationTimeMillis = Utils.currentTimeMillis();
+
+    /**
+     * Fills in what the compact block and the memory pool have.
+     *
+     * @throws VerificationException if two transactions of the block have the same short ID, so that the block can
+     * only be downloaded in full.
+     */
+    PartialBlock(NetworkParameters params, CompactBlockMessage compactBlock, @Nullable MemoryPool memoryPool) {
+        this.params = params;
+        this.compactBlock = compactBlock;
+        transactions = new Transaction[compactBlock.getTransactionCount()];
+        List<Integer> prefilledIndexes = compactBlock.getPrefilledIndexes();
+        for (int i = 0; i < prefilledIndexes.size(); i++)
+            transactions[prefilledIndexes.get(i)] = compactBlock.getPrefilledTransactions().get(i);
+
+        long[] shortIds = compactBlock.getShortIds();
+        Map<Long, Integer> indexes = new HashMap<Long, Integer>(shortIds.length * 2);
+        int next = 0;
+        for (long shortId : shortIds) {
+            while (transactions[next] != null)
+                next++;
+            if (indexes.put(shortId, next++) != null)
+                throw new VerificationException("Short ID collision in compact block " + compactBlock.getBlockHash());
+        }
+        // Several transactions of the pool may match a short ID, in which case we can't tell which is in the block.
+        boolean[] ambiguous = new boolean[transactions.length];
+        if (memoryPool != null && !indexes.isEmpty()) {
+            for (Transaction tx : memoryPool.getTransactions()) {
+                Integer index = indexes.get(compactBlock.getShortId(tx.getHash()));
+                if (index == null || ambiguous[index])
+                    continue;
+                if (transactions[index] == null) {
+                    transactions[index] = tx;
+                } else {
+                    transactions[index] = null;
+                    ambiguous[index] = true;
+                }
+            }
+        }
+        missingIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < transactions.length; i++) {
+            if (transactions[i] == null)
+                missingIndexes.add(i);
+        }
+    }
+
+    Sha256Hash getHash() {
+        return compactBlock.getBlockHash();
+    }
+
+    /** Returns when this was made from the compact block, which is when its missing transactions are asked for. */
+    long getCreationTimeMillis() {
+        return creationTimeMillis;
+    }
+
+    /** Returns the indexes of the transactions we don't have, in increasing order. */
+    List<Integer> getMissingIndexes() {
+        return missingIndexes;
+    }
+
+    /**
+     * Fills in the missing transactions, in the order of {@link #getMissingIndexes()}.
+     *
+     * @throws VerificationException if there are too many or too few.
+     */
+    void fill(List<Transaction> missing) {
+        if (missing.size() != missingIndexes.size())
+            throw new VerificationException("Expected " + missingIndexes.size() + " transactions of compact block " +
+                    getHash() + " but got " + missing.size());
+        for (int i = 0; i < missing.size(); i++)
+            transactions[missingIndexes.get(i)] = missing.get(i);
+        missingIndexes.clear();
+    }
+
+    /**
+     * Returns the block, once no transactions are missing.
+     *
+     * @throws VerificationException if the transactions don't match the block, because a short ID matched the wrong
+     * transaction or the peer sent the wrong ones.
+     */
+    Block build() {
+        if (!missingIndexes.isEmpty())
+            throw new IllegalStateException("Compact block " + getHash() + " misses transactions");
+        UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream();
+        try {
+            compactBlock.getHeader().writeHeader(stream);
+            stream.write(new VarInt(transactions.length).encode());
+            for (Transaction tx : transactions)
+                tx.bitcoinSerialize(stream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        Block block = new Block(params, stream.toByteArray());
+        block.verifyTransactions();
+        return block;
+    }
+}
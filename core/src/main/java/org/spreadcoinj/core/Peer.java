@@ -123,6 +123,21 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // If set, the blocks of chain download are fetched from several peers by this scheduler, see PeerGroup.
+    @Nullable private volatile BlockDownloadScheduler vDownloadScheduler;
+    // Where how well this peer serves us is recorded, if anywhere, see PeerGroup.
+    @Nullable private volatile PeerScore vScore;
+    // When we last asked for blocks and when the last one we asked for came, to measure how fast they come.
+    private volatile long vBlocksRequestedMillis, vLastBlockMillis;
+    // Whether to fetch new blocks as compact blocks, and whether the remote peer told us it can send them.
+    private volatile boolean vUseCompactBlocks, vPeerSendsCompactBlocks;
+    // Compact blocks waiting for the transactions we asked for with getblocktxn, oldest first.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, PartialBlock> partialBlocks =
+            new LinkedHashMap<Sha256Hash, PartialBlock>();
+    // How many compact blocks may wait for transactions at once, and for how long. Peers answer getblocktxn straight
+    // away, so more are only left by peers that don't, and those blocks are downloaded in full instead.
+    private static final int MAX_PARTIAL_BLOCKS = 4;
+    private static final long PARTIAL_BLOCK_TIMEOUT_MSEC = 10 * 1000;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -390,6 +405,12 @@ public class Peer extends PeerSocketHandler {
                         vPeerVersionMessage.clientVersion, version);
                 close();
             }
+        } else if (m instanceof SendCompactBlocksMessage) {
+            processSendCompactBlocks((SendCompactBlocksMessage) m);
+        } else if (m instanceof CompactBlockMessage) {
+            processCompactBlock((CompactBlockMessage) m);
+        } else if (m instanceof BlockTxnMessage) {
+            processBlockTxn((BlockTxnMessage) m);
         } else if (m instanceof UTXOsMessage) {
             if (utxosFuture != null) {
                 SettableFuture<UTXOsMessage> future = utxosFuture;
@@ -428,9 +449,144 @@ public class Peer extends PeerSocketHandler {
             // Shut down the channel
             throw new ProtocolException("Peer does not have a copy of the block chain.");
         }
+        // Offer to receive compact blocks. They are pushed to us without an inv only once we are the download peer,
+        // see setDownloadData.
+        if (vUseCompactBlocks && peerVersion >= CompactBlockMessage.MIN_PROTOCOL_VERSION)
+            sendMessage(new SendCompactBlocksMessage(params, false, CompactBlockMessage.VERSION));
         versionHandshakeFuture.set(this);
     }
 
+    private void processSendCompactBlocks(SendCompactBlocksMessage m) {
+        // We only care whether the peer can send compact blocks of our version. We never send blocks ourselves.
+        if (m.getVersion() == CompactBlockMessage.VERSION && !vPeerSendsCompactBlocks) {
+            log.info("{}: Peer supports compact blocks", this);
+            vPeerSendsCompactBlocks = true;
+            if (vDownloadData && canUseCompactBlocks())
+                sendMessage(new SendCompactBlocksMessage(params, true, CompactBlockMessage.VERSION));
+        }
+    }
+
+    // Whether to ask this peer for new blocks as compact blocks.
+    private boolean canUseCompactBlocks() {
+        return vUseCompactBlocks && vPeerSendsCompactBlocks && memoryPool != null;
+    }
+
+    private void processCompactBlock(CompactBlockMessage m) {
+        if (log.isDebugEnabled())
+            log.debug("{}: Received compact block {}", getAddress(), m);
+        Sha256Hash hash = m.getBlockHash();
+        if (blockChain == null || !vDownloadData) {
+            log.debug("{}: Received compact block we did not ask for: {}", getAddress(), hash);
+            return;
+        }
+        PartialBlock partial;
+        try {
+            partial = new PartialBlock(params, m, memoryPool);
+        } catch (VerificationException e) {
+            log.info("{}: {}, downloading the block in full", this, e.getMessage());
+            requestFullBlock(hash);
+            return;
+        }
+        List<Integer> missing = partial.getMissingIndexes();
+        if (missing.isEmpty()) {
+            completeCompactBlock(partial);
+            return;
+        }
+        log.debug("{}: Compact block {} misses {} of {} transactions", this, hash, missing.size(),
+                m.getTransactionCount());
+        Sha256Hash evicted = null;
+        lock.lock();
+        try {
+            partialBlocks.put(hash, partial);
+            if (partialBlocks.size() > MAX_PARTIAL_BLOCKS) {
+                Iterator<Sha256Hash> it = partialBlocks.keySet().iterator();
+                evicted = it.next();
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendMessage(new GetBlockTxnMessage(params, hash, missing));
+        if (evicted != null) {
+            log.info("{}: Peer didn't send the transactions of compact block {}, downloading it in full", this, evicted);
+            requestFullBlock(evicted);
+        }
+    }
+
+    /**
+     * Asks for the blocks in full whose compact blocks have waited longer than {@link #PARTIAL_BLOCK_TIMEOUT_MSEC} for
+     * the transactions we asked for. Called regularly by the PeerGroup.
+     */
+    void checkPartialBlocks() {
+        long cutoff = Utils.currentTimeMillis() - PARTIAL_BLOCK_TIMEOUT_MSEC;
+        GetDataMessage getdata = null;
+        lock.lock();
+        try {
+            Iterator<PartialBlock> it = partialBlocks.values().iterator();
+            while (it.hasNext()) {
+                PartialBlock partial = it.next();
+                if (partial.getCreationTimeMillis() > cutoff)
+                    break;  // Oldest first, so the others are younger still.
+                log.info("{}: Peer didn't send the transactions of compact block {}, downloading it in full", this,
+                        partial.getHash());
+                it.remove();
+                if (getdata == null)
+                    getdata = new GetDataMessage(params);
+                getdata.addBlock(partial.getHash());
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Unlike requestFullBlock, this leaves pendingBlockDownloads to the thread handling messages: an announced
+        // block is still in it, and a block pushed to us is added to the chain all the same when it comes.
+        if (getdata != null)
+            sendMessage(getdata);
+    }
+
+    private void processBlockTxn(BlockTxnMessage m) {
+        PartialBlock partial;
+        lock.lock();
+        try {
+            partial = partialBlocks.remove(m.getBlockHash());
+        } finally {
+            lock.unlock();
+        }
+        if (partial == null) {
+            log.debug("{}: Received transactions of a compact block we did not ask for: {}", this, m.getBlockHash());
+            return;
+        }
+        try {
+            partial.fill(m.getTransactions());
+        } catch (VerificationException e) {
+            log.warn("{}: {}, downloading the block in full", this, e.getMessage());
+            requestFullBlock(partial.getHash());
+            return;
+        }
+        completeCompactBlock(partial);
+    }
+
+    // Handles the block of a compact block once it has all its transactions, as if it had been sent in full.
+    private void completeCompactBlock(PartialBlock partial) {
+        Block block;
+        try {
+            block = partial.build();
+        } catch (VerificationException e) {
+            // Most likely a transaction of our memory pool had the short ID of another one.
+            log.info("{}: Compact block {} did not verify, downloading it in full: {}", this, partial.getHash(),
+                    e.getMessage());
+            requestFullBlock(partial.getHash());
+            return;
+        }
+        processBlock(block);
+    }
+
+    private void requestFullBlock(Sha256Hash hash) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(hash);
+        pendingBlockDownloads.add(hash);
+        sendMessage(getdata);
+    }
+
     private void startFilteredBlock(FilteredBlock m) {
         // Filtered blocks come before the data that they refer to, so stash it here and then fill it out as
         // messages stream in. We'll call endFilteredBlock when a non-tx message arrives (eg, another
@@ -463,6 +619,17 @@ public class Peer extends PeerSocketHandler {
                 }
             }
         }
+        // During chain download it can also be blocks the download scheduler asked for, which it asks of another peer.
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null) {
+            List<Sha256Hash> blocks = new ArrayList<Sha256Hash>();
+            for (InventoryItem item : m.getItems()) {
+                if (item.type == InventoryItem.Type.Block || item.type == InventoryItem.Type.FilteredBlock)
+                    blocks.add(item.hash);
+            }
+            if (!blocks.isEmpty())
+                scheduler.notFound(this, blocks);
+        }
     }
 
     private void processAlert(AlertMessage m) {
@@ -486,9 +653,13 @@ public class Peer extends PeerSocketHandler {
         // This method can run if a peer just randomly sends us a "headers" message (should never happen), or more
         // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
         // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
-        // request the full blocks from that point on instead.
+        // request the full blocks from that point on instead. With a download scheduler we sync headers first, see
+        // blockChainDownloadLocked, and the headers past the fast catchup time are scheduled for download rather than
+        // thrown away.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        final BlockDownloadScheduler scheduler = vDownloadScheduler;
+        final boolean moreHeaders = m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS;
 
         lock.lock();
         try {
@@ -504,7 +675,11 @@ public class Peer extends PeerSocketHandler {
         }
 
         try {
-            checkState(!downloadBlockBodies, toString());
+            checkState(!downloadBlockBodies || scheduler != null, toString());
+            if (downloadBlockBodies) {
+                scheduleHeaders(m.getBlockHeaders(), moreHeaders, scheduler);
+                return;
+            }
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -530,21 +705,29 @@ public class Peer extends PeerSocketHandler {
                 } else {
                     lock.lock();
                     try {
-                        log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
-                                m.getBlockHeaders().size() - i);
                         this.downloadBlockBodies = true;
                         // Prevent this request being seen as a duplicate.
                         this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                        if (scheduler == null) {
+                            log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
+                                    m.getBlockHeaders().size() - i);
+                            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                        }
                     } finally {
                         lock.unlock();
                     }
+                    if (scheduler != null) {
+                        log.info("Passed the fast catchup time, downloading the blocks of the remaining {} headers",
+                                m.getBlockHeaders().size() - i);
+                        scheduleHeaders(m.getBlockHeaders().subList(i, m.getBlockHeaders().size()), moreHeaders,
+                                scheduler);
+                    }
                     return;
                 }
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            if (moreHeaders) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -560,6 +743,51 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    // Checks headers got while syncing headers first and schedules the download of their blocks, which are then added
+    // to the chain in order.
+    private void scheduleHeaders(List<Block> headers, boolean moreHeaders, BlockDownloadScheduler scheduler)
+            throws ProtocolException {
+        if (!vDownloadData) {
+            log.info("Lost download peer status, throwing away downloaded headers.");
+            return;
+        }
+        BlockStore store = checkNotNull(blockChain).getBlockStore();
+        try {
+            // Skip any we already have, in case the peer didn't know the last block we scheduled.
+            int first = 0;
+            while (first < headers.size() && store.get(headers.get(first).getHash()) != null)
+                first++;
+            if (first == headers.size())
+                return;
+            headers = headers.subList(first, headers.size());
+            Sha256Hash prevHash = headers.get(0).getPrevBlockHash();
+            if (!prevHash.equals(scheduler.getLastScheduled()) && store.get(prevHash) == null)
+                throw new ProtocolException("Got unconnected header from peer: " + headers.get(0).getHashAsString());
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            BlockDownloadScheduler.verifyHeaders(headers,
+                    checkNotNull(blockChain).getChainHead().getHeader().getDifficultyTargetAsInteger());
+        } catch (VerificationException e) {
+            log.warn("{}: Block header verification failed", this, e);
+            recordBadChain();
+            return;
+        }
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(headers.size());
+        for (Block header : headers)
+            hashes.add(header.getHash());
+        log.debug("{}: Scheduling the blocks of {} headers", this, hashes.size());
+        if (scheduler.enqueueHeaders(headers.get(0).getPrevBlockHash(), hashes, moreHeaders)) {
+            lock.lock();
+            try {
+                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     private void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -840,12 +1068,19 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was it requested by the download scheduler, maybe while we aren't the download peer?
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && scheduler.offer(this, m)) {
+            recordBlockReceived(m);
+            return;
+        }
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
-        pendingBlockDownloads.remove(m.getHash());
+        if (pendingBlockDownloads.remove(m.getHash()))
+            recordBlockReceived(m);
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -895,6 +1130,11 @@ public class Peer extends PeerSocketHandler {
     private void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && blockChain != null && scheduler.offer(this, m)) {
+            recordBlockReceived(m);
+            return;
+        }
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -906,7 +1146,8 @@ public class Peer extends PeerSocketHandler {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        if (pendingBlockDownloads.remove(m.getBlockHeader().getHash()))
+            recordBlockReceived(m);
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -990,7 +1231,7 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
-    private boolean checkForFilterExhaustion(FilteredBlock m) {
+    boolean checkForFilterExhaustion(FilteredBlock m) {
         boolean exhausted = false;
         for (Wallet wallet : wallets) {
             exhausted |= wallet.checkForFilterExhaustion(m);
@@ -1095,10 +1336,25 @@ public class Peer extends PeerSocketHandler {
         // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
+        // Blocks of chain download to leave to the download scheduler.
+        List<Sha256Hash> scheduledBlocks = null;
+        final BlockDownloadScheduler scheduler = vDownloadScheduler;
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 1 && downloadData && blockChain != null && scheduler != null && downloadBlockBodies) {
+                // An answer to getblocks. Single block invs, new blocks or the tickle at the end of a batch, are
+                // handled below as usual.
+                scheduledBlocks = new ArrayList<Sha256Hash>(blocks.size());
+                for (InventoryItem item : blocks)
+                    scheduledBlocks.add(item.hash);
+            } else if (blocks.size() > 0 && downloadData && blockChain != null && scheduler != null &&
+                    downloadBlockBodies && scheduler.continueAfterScheduled()) {
+                // We're syncing headers first and the announced blocks will come with the next headers, which we ask
+                // for once the blocks scheduled so far are in the chain. Fetching them now would only make orphans.
+                log.debug("{}: Deferring {} announced blocks until the scheduled blocks are added", this,
+                        blocks.size());
+            } else if (blocks.size() > 0 && downloadData && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1125,6 +1381,9 @@ public class Peer extends PeerSocketHandler {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
+                            } else if (blocks.size() == 1 && canUseCompactBlocks()) {
+                                // A newly solved block, most of whose transactions we have seen already.
+                                getdata.addCompactBlock(item.hash);
                             } else {
                                 getdata.addItem(item);
                             }
@@ -1144,11 +1403,145 @@ public class Peer extends PeerSocketHandler {
 
         if (!getdata.getItems().isEmpty()) {
             // This will cause us to receive a bunch of block or tx messages.
+            for (InventoryItem item : getdata.getItems()) {
+                if (item.type != InventoryItem.Type.Transaction) {
+                    recordBlocksRequested();
+                    break;
+                }
+            }
             sendMessage(getdata);
         }
 
         if (pingAfterGetData)
             sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+
+        if (scheduledBlocks != null)
+            scheduler.enqueue(scheduledBlocks);
+    }
+
+    /** Sets the scheduler that spreads chain download over peers, or null to download only from the download peer. */
+    void setDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        vDownloadScheduler = scheduler;
+    }
+
+    @Nullable
+    BlockDownloadScheduler getDownloadScheduler() {
+        return vDownloadScheduler;
+    }
+
+    /** Sets where to record how well this peer serves us, see {@link PeerScore}. */
+    public void setScore(@Nullable PeerScore score) {
+        vScore = score;
+    }
+
+    /** Returns where how well this peer serves us is recorded, or null if it isn't. */
+    @Nullable
+    public PeerScore getScore() {
+        return vScore;
+    }
+
+    private void recordBlocksRequested() {
+        vBlocksRequestedMillis = Utils.currentTimeMillis();
+    }
+
+    // Blocks stream in one after the other, so each is timed from when the one before it came or, for the first, from
+    // when we asked.
+    private void recordBlockReceived(Message m) {
+        long now = Utils.currentTimeMillis();
+        long since = Math.max(vBlocksRequestedMillis, vLastBlockMillis);
+        vLastBlockMillis = now;
+        PeerScore score = vScore;
+        if (score != null)
+            score.recordBlock(m.getMessageSize(), now - since);
+    }
+
+    /** Records that the peer didn't deliver a block in time. */
+    void recordStall() {
+        PeerScore score = vScore;
+        if (score != null)
+            score.recordStall();
+    }
+
+    /**
+     * Records that the peer sent us headers that failed verification, or whose blocks nobody could deliver, and
+     * disconnects from it so that the chain is downloaded from another peer.
+     */
+    void recordBadChain() {
+        log.warn("{}: Announced a bad chain, disconnecting", this);
+        PeerScore score = vScore;
+        if (score != null)
+            score.recordFailure();
+        close();
+    }
+
+    /**
+     * Asks the peer for blocks on behalf of the download scheduler, as filtered blocks if it has our Bloom filter.
+     */
+    void requestScheduledBlocks(List<Sha256Hash> hashes) {
+        final VersionMessage ver = vPeerVersionMessage;
+        boolean filtered = vBloomFilter != null && ver != null && ver.isBloomFilteringSupported();
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : hashes) {
+            if (filtered)
+                getdata.addFilteredBlock(hash);
+            else
+                getdata.addBlock(hash);
+        }
+        log.debug("{}: Requesting {} blocks for chain download", this, hashes.size());
+        recordBlocksRequested();
+        sendMessage(getdata);
+        // As in processInv, the pong marks the end of the last filtered block's transactions.
+        if (filtered)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+    }
+
+    /**
+     * Adds a block or filtered block that the download scheduler fetched, in chain order, to the chain and tells the
+     * listeners of this peer, the download peer. Returns false if it didn't connect to the chain or was invalid.
+     */
+    boolean addScheduledBlock(Message m) {
+        Block header = m instanceof FilteredBlock ? ((FilteredBlock) m).getBlockHeader() : (Block) m;
+        try {
+            boolean connected = m instanceof FilteredBlock ? checkNotNull(blockChain).add((FilteredBlock) m) :
+                    checkNotNull(blockChain).add((Block) m);
+            if (connected)
+                invokeOnBlocksDownloaded(header);
+            return connected;
+        } catch (VerificationException e) {
+            // We don't want verification failures to kill the thread. The block is not in the chain though, and the
+            // scheduler counts it as connected if we say so, so it has to hear false here and drop what follows it.
+            log.warn("{}: Block verification failed", getAddress(), e);
+            return false;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Asks for the next part of the chain once the download scheduler added the blocks of the last inv. */
+    void continueChainDownload() {
+        lock.lock();
+        try {
+            if (vDownloadData && downloadBlockBodies && blockChain != null)
+                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the download scheduler when the Bloom filter ran out, so that chain download carries on once the
+     * PeerGroup has sent a fresh one.
+     */
+    void awaitFreshFilter() {
+        lock.lock();
+        try {
+            if (awaitingFreshFilter == null)
+                awaitingFreshFilter = new LinkedList<Sha256Hash>();
+            awaitingFreshFilter.addAll(checkNotNull(blockChain).drainOrphanBlocks());
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -1282,6 +1675,11 @@ public class Peer extends PeerSocketHandler {
         // use the "getheaders" command. Once we find we've gone past the target date, we throw away the downloaded
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
+        //
+        // With a download scheduler we sync headers first instead: we always use "getheaders", verify the headers and
+        // hand them to the scheduler, which downloads the blocks from all peers and adds them to the chain in order.
+        // The header chain runs ahead of the block chain, so the locator starts with the last block scheduled, and no
+        // block arrives before its parent, so there are no orphans to walk back from.
 
         // TODO: Block locators should be abstracted out rather than special cased here.
         List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
@@ -1295,14 +1693,20 @@ public class Peer extends PeerSocketHandler {
         BlockStore store = checkNotNull(blockChain).getBlockStore();
         StoredBlock chainHead = blockChain.getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        final BlockDownloadScheduler scheduler = vDownloadScheduler;
+        final boolean headersFirst = scheduler != null && downloadBlockBodies;
+        Sha256Hash lastScheduled = headersFirst ? scheduler.getLastScheduled() : null;
+        Sha256Hash locatorBegin = lastScheduled != null ? lastScheduled : chainHeadHash;
         // Did we already make this request? If so, don't do it again.
-        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
+        if (Objects.equal(lastGetBlocksBegin, locatorBegin) && Objects.equal(lastGetBlocksEnd, toHash)) {
             log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
             return;
         }
         if (log.isDebugEnabled())
             log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                     toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
+        if (lastScheduled != null)
+            blockLocator.add(lastScheduled);
         StoredBlock cursor = chainHead;
         for (int i = 100; cursor != null && i > 0; i--) {
             blockLocator.add(cursor.getHeader().getHash());
@@ -1319,14 +1723,14 @@ public class Peer extends PeerSocketHandler {
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
         // block being solved during chain download.
-        lastGetBlocksBegin = chainHeadHash;
+        lastGetBlocksBegin = locatorBegin;
         lastGetBlocksEnd = toHash;
 
-        if (downloadBlockBodies) {
+        if (downloadBlockBodies && !headersFirst) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
             sendMessage(message);
         } else {
-            // Downloading headers for a while instead of full blocks.
+            // Downloading headers for a while instead of full blocks, or syncing headers first.
             GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
             sendMessage(message);
         }
@@ -1502,7 +1906,21 @@ public class Peer extends PeerSocketHandler {
      * a request to the remote peer for the contents of its memory pool, if Bloom filtering is active.
      */
     public void setDownloadData(boolean downloadData) {
+        boolean changed = this.vDownloadData != downloadData;
         this.vDownloadData = downloadData;
+        // Have new blocks pushed to us as compact blocks only by the peer we download from.
+        if (changed && canUseCompactBlocks())
+            sendMessage(new SendCompactBlocksMessage(params, downloadData, CompactBlockMessage.VERSION));
+    }
+
+    /**
+     * If set, new blocks are fetched as compact blocks (BIP 152) when the remote peer supports them: only the
+     * transactions that aren't in the memory pool are downloaded, which saves most of the bandwidth and time of
+     * relaying a block. While this peer is the download peer, it is also asked to push new blocks to us that way
+     * without announcing them first. Must be set before the connection is made. Off by default.
+     */
+    public void setUseCompactBlocks(boolean useCompactBlocks) {
+        this.vUseCompactBlocks = useCompactBlocks;
     }
 
     /** Returns version data announced by the remote peer. */
@@ -1607,11 +2025,16 @@ public class Peer extends PeerSocketHandler {
                     lock.unlock();
 
                     log.info("Restarting chain download");
-                    sendMessage(getdata);
-                    // TODO: This bizarre ping-after-getdata hack probably isn't necessary.
-                    // It's to ensure we know when the end of a filtered block stream of txns is, but we should just be
-                    // able to match txns with the merkleblock. Ask Matt why it's written this way.
-                    sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+                    if (!getdata.getItems().isEmpty()) {
+                        sendMessage(getdata);
+                        // TODO: This bizarre ping-after-getdata hack probably isn't necessary.
+                        // It's to ensure we know when the end of a filtered block stream of txns is, but we should just
+                        // be able to match txns with the merkleblock. Ask Matt why it's written this way.
+                        sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+                    }
+                    BlockDownloadScheduler scheduler = vDownloadScheduler;
+                    if (scheduler != null)
+                        scheduler.resume();
                 }
             }, Threading.SAME_THREAD);
         } finally {
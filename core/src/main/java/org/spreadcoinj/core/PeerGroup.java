@@ -22,6 +22,7 @@ import org.spreadcoinj.net.BlockingClientManager;
 import org.spreadcoinj.net.ClientConnectionManager;
 import org.spreadcoinj.net.FilterMerger;
 import org.spreadcoinj.net.NioClientManager;
+import org.spreadcoinj.net.discovery.PeerAddressDatabase;
 import org.spreadcoinj.net.discovery.PeerDiscovery;
 import org.spreadcoinj.net.discovery.PeerDiscoveryException;
 import org.spreadcoinj.net.discovery.TorDiscovery;
@@ -35,7 +36,6 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.net.InetAddresses;
 import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.*;
 import com.subgraph.orchid.TorClient;
 import net.jcip.annotations.GuardedBy;
@@ -89,6 +89,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // Addresses to try to connect to, excluding active peers.
     @GuardedBy("lock") private final PriorityQueue<PeerAddress> inactives;
     @GuardedBy("lock") private final Map<PeerAddress, ExponentialBackoff> backoffMap;
+    // How well each address we know has served us, see PeerScore.
+    @GuardedBy("lock") private final Map<PeerAddress, PeerScore> scores;
 
     // Currently active peers. This is an ordered list rather than a set to make unit tests predictable.
     private final CopyOnWriteArrayList<Peer> peers;
@@ -109,6 +111,13 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     @GuardedBy("lock") private VersionMessage versionMessage;
     // Switch for enabling download of pending transaction dependencies.
     @GuardedBy("lock") private boolean downloadTxDependencies;
+    // Where new peers process the messages they receive, or null to do it on the network thread.
+    @Nullable @GuardedBy("lock") private Executor messageExecutor;
+    @GuardedBy("lock") private int maxQueuedMessages = PeerSocketHandler.DEFAULT_MAX_QUEUED_MESSAGES;
+    // Whether new peers fetch new blocks as compact blocks.
+    @GuardedBy("lock") private boolean useCompactBlocks;
+    // Spreads chain download over all peers, or null to download blocks only from the download peer.
+    @Nullable @GuardedBy("lock") private BlockDownloadScheduler downloadScheduler;
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
@@ -124,6 +133,21 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
+    // How often the download scheduler, if any, looks for blocks that peers didn't deliver in time.
+    private static final long STALL_CHECK_INTERVAL_MSEC = 1000;
+    // How often we look for a better download peer and, if enabled, for slow peers to replace.
+    private static final long PEER_REVIEW_INTERVAL_MSEC = 30 * 1000;
+    // How long a peer must be connected before it is judged, so that it has answered some pings.
+    private static final long MIN_PEER_AGE_MSEC = 60 * 1000;
+    // The download peer is only replaced by one with a score this many times higher, so that it doesn't flap.
+    private static final double DOWNLOAD_PEER_SWITCH_FACTOR = 2;
+    // Peers with a score this many times lower than the median are replaced, if enabled.
+    private static final double SLOW_PEER_FACTOR = 4;
+    private volatile boolean vReplaceSlowPeers = false;
+    // How many addresses we ask peers for while the address database knows fewer than this.
+    private static final int MIN_KNOWN_ADDRESSES = 1000;
+    // Remembers peer addresses and how they served us across restarts, or null.
+    @Nullable private volatile PeerAddressDatabase vAddressDatabase;
 
     @GuardedBy("lock") private boolean useLocalhostPeerWhenPossible = true;
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
@@ -142,6 +166,20 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             return handleGetData(m);
         }
 
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerAddressDatabase db = vAddressDatabase;
+            if (db != null && m instanceof AddressMessage) {
+                List<PeerAddress> addresses = new ArrayList<PeerAddress>();
+                for (PeerAddress address : ((AddressMessage) m).getAddresses()) {
+                    if (PeerAddressDatabase.isRoutable(address.getAddr()))
+                        addresses.add(address);
+                }
+                db.addAll(addresses);
+            }
+            return m;
+        }
+
         @Override
         public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
             final double rate = checkNotNull(chain).getFalsePositiveRate();
@@ -298,7 +336,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
     /**
      * Creates a PeerGroup for the given network and chain. Blocks will be passed to the chain as they are broadcast
-     * and downloaded. This is probably the constructor you want to use.
+     * and downloaded. This is probably the constructor you want to use. All connections are served by one network
+     * thread; nodes that hold many connections can pass <code>new NioClientManager(selectorThreads)</code> to
+     * {@link #PeerGroup(NetworkParameters, AbstractBlockChain, ClientConnectionManager)} to spread them over more.
      */
     public PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain) {
         this(params, chain, new NioClientManager());
@@ -375,6 +415,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             }
         });
         backoffMap = new HashMap<PeerAddress, ExponentialBackoff>();
+        scores = new HashMap<PeerAddress, PeerScore>();
         peers = new CopyOnWriteArrayList<Peer>();
         pendingPeers = new CopyOnWriteArrayList<Peer>();
         channels = connectionManager;
@@ -420,6 +461,71 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * Makes newly connected peers process the messages they receive on the given executor instead of on the network
+     * thread, see {@link PeerSocketHandler#setMessageExecutor(java.util.concurrent.Executor, int)}.
+     * {@link PeerSocketHandler#getSharedMessageExecutor()} is a good choice when there are many connections or the
+     * {@link org.spreadcoinj.net.ClientConnectionManager} has few network threads. Null, the default, keeps processing
+     * on the network thread.
+     */
+    public void setMessageExecutor(@Nullable Executor messageExecutor, int maxQueuedMessages) {
+        checkArgument(maxQueuedMessages > 0);
+        lock.lock();
+        try {
+            this.messageExecutor = messageExecutor;
+            this.maxQueuedMessages = maxQueuedMessages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * If set, newly connected peers fetch new blocks as compact blocks (BIP 152) when they support them, putting them
+     * together from the transactions in the memory pool, see {@link Peer#setUseCompactBlocks(boolean)}. The download
+     * peer is asked to push new blocks that way without announcing them first. This cuts the bandwidth and latency of
+     * following the tip of the chain when full blocks are downloaded, it doesn't matter for Bloom filtered downloads.
+     * Off by default.
+     */
+    public void setUseCompactBlocks(boolean useCompactBlocks) {
+        lock.lock();
+        try {
+            this.useCompactBlocks = useCompactBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Spreads the download of blocks during chain download over all connected peers, with at most the given number of
+     * blocks requested from each peer at a time. The download peer then syncs headers first: it downloads and checks
+     * the headers of the chain, and the blocks they describe are fetched from all peers. Blocks are still added to the
+     * chain in order, so none of them become orphans, and a peer that doesn't deliver a block in time has it requested
+     * from another. This helps most when the download peer is slow. Zero, the default, downloads blocks only from the
+     * download peer, using getblocks.
+     */
+    public void setMaxBlocksInFlightPerPeer(int maxBlocksInFlightPerPeer) {
+        checkArgument(maxBlocksInFlightPerPeer >= 0);
+        BlockDownloadScheduler scheduler = null;
+        List<Peer> connected;
+        lock.lock();
+        try {
+            if (maxBlocksInFlightPerPeer > 0)
+                scheduler = new BlockDownloadScheduler(maxBlocksInFlightPerPeer);
+            downloadScheduler = scheduler;
+            connected = new ArrayList<Peer>(peers);
+            for (Peer peer : connected)
+                peer.setDownloadScheduler(scheduler);
+            if (scheduler != null)
+                scheduler.setDownloadPeer(downloadPeer);
+        } finally {
+            lock.unlock();
+        }
+        if (scheduler != null) {
+            for (Peer peer : connected)
+                scheduler.addPeer(peer);
+        }
+    }
+
     private Runnable triggerConnectionsJob = new Runnable() {
         @Override
         public void run() {
@@ -661,10 +767,52 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * Gives the PeerGroup a database in which it remembers the addresses that peers announce and how each address
+     * served us, across restarts. On startup, the best addresses in it are connected to straight away, and when more
+     * addresses are needed they are taken from it before asking the other discovery sources. If max connections has
+     * not been configured, or set to zero, then it's set to the default at this point. Must be called before the
+     * PeerGroup is started. The caller remains responsible for closing the database after the PeerGroup stopped.
+     */
+    public void setAddressDatabase(PeerAddressDatabase addressDatabase) {
+        lock.lock();
+        try {
+            checkState(!isRunning(), "Must be called before the PeerGroup is started");
+            if (getMaxConnections() == 0)
+                setMaxConnections(DEFAULT_CONNECTIONS);
+            vAddressDatabase = checkNotNull(addressDatabase);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds the best addresses from the address database that we don't know yet, seeding their scores with the ping time
+    // they had last time. Returns how many were added.
+    @GuardedBy("lock")
+    private int addFromAddressDatabase(PeerAddressDatabase db, int max) {
+        int added = 0;
+        for (PeerAddressDatabase.Entry entry : db.getBest(max)) {
+            PeerAddress address = entry.getAddress();
+            if (backoffMap.containsKey(address))
+                continue;
+            addInactive(address);
+            if (entry.getPingMillis() != Long.MAX_VALUE)
+                scoreOf(address).recordPing(entry.getPingMillis());
+            added++;
+        }
+        return added;
+    }
+
     protected void discoverPeers() throws PeerDiscoveryException {
         checkState(lock.isHeldByCurrentThread());
-        if (peerDiscoverers.isEmpty())
+        PeerAddressDatabase db = vAddressDatabase;
+        if (db != null && addFromAddressDatabase(db, Math.max(maxConnections, DEFAULT_CONNECTIONS)) > 0)
+            return;
+        if (peerDiscoverers.isEmpty()) {
+            if (db != null)
+                return;
             throw new PeerDiscoveryException("No peer discoverers registered");
+        }
         long start = System.currentTimeMillis();
         final List<PeerAddress> addressList = Lists.newLinkedList();
         for (PeerDiscovery peerDiscovery : peerDiscoverers) {
@@ -776,7 +924,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 return;
             }
             while (addr == null || (ipv6Unreachable && addr.getAddr() instanceof Inet6Address))
-                addr = inactives.poll();
+                addr = pollInactive(nowMillis);
             retryTime = backoffMap.get(addr).getRetryTime();
         } finally {
             // discoverPeers might throw an exception if something goes wrong: we then hit this path with addr == null.
@@ -795,6 +943,72 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         connectTo(addr, false, vConnectTimeoutMillis);
     }
 
+    // Takes the next address to connect to: of those whose backoff has passed, the one with the best score. If none has
+    // passed, the one that is ready first.
+    @GuardedBy("lock")
+    @Nullable
+    private PeerAddress pollInactive(long nowMillis) {
+        PeerAddress best = inactives.peek();
+        if (best == null || backoffMap.get(best).getRetryTime() > nowMillis)
+            return inactives.poll();
+        double bestScore = scoreOf(best).getScore();
+        for (PeerAddress address : inactives) {
+            if (backoffMap.get(address).getRetryTime() > nowMillis)
+                continue;
+            double score = scoreOf(address).getScore();
+            if (score > bestScore) {
+                best = address;
+                bestScore = score;
+            }
+        }
+        inactives.remove(best);
+        return best;
+    }
+
+    @GuardedBy("lock")
+    private PeerScore scoreOf(PeerAddress address) {
+        PeerScore score = scores.get(address);
+        if (score == null) {
+            score = new PeerScore();
+            scores.put(address, score);
+        }
+        return score;
+    }
+
+    // Forgets the scores of addresses we won't connect to again, so they don't pile up over a long running group.
+    @GuardedBy("lock")
+    private void pruneScores() {
+        Set<PeerAddress> known = new HashSet<PeerAddress>(inactives);
+        for (Peer peer : peers)
+            known.add(peer.getAddress());
+        for (Peer peer : pendingPeers)
+            known.add(peer.getAddress());
+        scores.keySet().retainAll(known);
+    }
+
+    /**
+     * Returns how well the peer at the given address has served us, or null if we never connected or tried to connect
+     * to it, or won't try again.
+     */
+    @Nullable
+    public PeerScore getPeerScore(PeerAddress address) {
+        lock.lock();
+        try {
+            return scores.get(address);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * If enabled, every so often the peer with the lowest {@link PeerScore} is disconnected, so that the slot goes to
+     * another address, when its score is far below that of the other peers and all connection slots are taken. Peers
+     * are only judged once they have been connected for a minute. Off by default.
+     */
+    public void setReplaceSlowPeers(boolean replaceSlowPeers) {
+        vReplaceSlowPeers = replaceSlowPeers;
+    }
+
     private boolean haveReadyInactivePeer(long nowMillis) {
         // No inactive peers to try?
         if (inactives.size() == 0)
@@ -813,6 +1027,32 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             log.warn("Starting up with no attached block chain. Did you forget to pass one to the constructor?");
         }
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                BlockDownloadScheduler scheduler;
+                lock.lock();
+                try {
+                    scheduler = downloadScheduler;
+                } finally {
+                    lock.unlock();
+                }
+                if (scheduler != null)
+                    scheduler.checkForStalls();
+                for (Peer peer : peers)
+                    peer.checkPartialBlocks();
+            }
+        }, STALL_CHECK_INTERVAL_MSEC, STALL_CHECK_INTERVAL_MSEC);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    reviewPeers();
+                } catch (Throwable e) {
+                    log.error("Exception whilst reviewing peers", e);
+                }
+            }
+        }, PEER_REVIEW_INTERVAL_MSEC, PEER_REVIEW_INTERVAL_MSEC);
         if (torClient != null) {
             log.info("Starting Tor/Orchid ...");
             torClient.start();
@@ -821,6 +1061,17 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
         channels.startAsync();
         channels.awaitRunning();
+        PeerAddressDatabase db = vAddressDatabase;
+        if (db != null) {
+            // Queue the peers that served us best last time, so we connect to them without waiting for discovery.
+            lock.lock();
+            try {
+                int added = addFromAddressDatabase(db, Math.max(maxConnections * 4, 32));
+                log.info("Loaded {} addresses from the address database", added);
+            } finally {
+                lock.unlock();
+            }
+        }
         triggerConnections();
     }
 
@@ -828,6 +1079,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the Service implementation.
         vPingTimer.cancel();
+        PeerAddressDatabase db = vAddressDatabase;
+        if (db != null) {
+            for (Peer peer : peers)
+                recordPerformance(db, peer);
+            db.flush();
+        }
         // Blocking close of all sockets.
         channels.stopAsync();
         channels.awaitTerminated();
@@ -1047,6 +1304,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         ver.time = Utils.currentTimeSeconds();
 
         Peer peer = new Peer(params, ver, address, chain, memoryPool, downloadTxDependencies);
+        lock.lock();
+        try {
+            peer.setMessageExecutor(messageExecutor, maxQueuedMessages);
+            peer.setScore(scoreOf(address));
+            peer.setUseCompactBlocks(useCompactBlocks);
+        } finally {
+            lock.unlock();
+        }
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
         pendingPeers.add(peer);
@@ -1128,10 +1393,13 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
     protected void handleNewPeer(final Peer peer) {
         int newSize = -1;
+        BlockDownloadScheduler scheduler;
+        PeerAddressDatabase db = vAddressDatabase;
         lock.lock();
         try {
             groupBackoff.trackSuccess();
             backoffMap.get(peer.getAddress()).trackSuccess();
+            scoreOf(peer.getAddress()).recordConnected();
 
             // Sets up the newly connected peer so it can do everything it needs to.
             log.info("{}: New peer", peer);
@@ -1147,6 +1415,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            scheduler = downloadScheduler;
+            peer.setDownloadScheduler(scheduler);
             // Re-evaluate download peers.
             Peer newDownloadPeer = selectDownloadPeer(peers);
             if (downloadPeer != newDownloadPeer) {
@@ -1166,6 +1436,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         } finally {
             lock.unlock();
         }
+        // Outside our lock, as this may request blocks from the peer straight away.
+        if (scheduler != null)
+            scheduler.addPeer(peer);
+        if (db != null) {
+            db.recordAttempt(peer.getAddress().toSocketAddress(), true);
+            // Learn more addresses while we know few.
+            if (db.size() < MIN_KNOWN_ADDRESSES)
+                peer.sendMessage(new GetAddrMessage(params));
+        }
 
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
@@ -1205,6 +1484,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                     return;
                 }
 
+                PeerScore score = peer.getScore();
+                if (score != null)
+                    score.recordPing(peer.getLastPingTime());
                 final long interval = getPingIntervalMsec();
                 if (interval <= 0)
                     return;  // Disabled.
@@ -1250,6 +1532,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
+            if (downloadScheduler != null)
+                downloadScheduler.setDownloadPeer(peer);
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 if (downloadListener != null)
@@ -1312,10 +1596,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
         int numPeers;
         int numConnectedPeers = 0;
+        boolean wasConnected;
         lock.lock();
         try {
             pendingPeers.remove(peer);
-            peers.remove(peer);
+            wasConnected = peers.remove(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1336,6 +1621,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             numConnectedPeers = peers.size();
 
             groupBackoff.trackFailure();
+            // A peer that goes away after it connected fine, because it or we closed the connection, didn't fail us.
+            if (!wasConnected || exception != null)
+                scoreOf(address).recordFailure();
 
             if (!(exception instanceof NoRouteToHostException)) {
                 if (address.getAddr() instanceof Inet6Address && !ipv6Unreachable) {
@@ -1346,6 +1634,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 // Put back on inactive list
                 inactives.offer(address);
             }
+            pruneScores();
 
             if (numPeers < getMaxConnections()) {
                 triggerConnections();
@@ -1354,10 +1643,20 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             lock.unlock();
         }
 
+        PeerAddressDatabase db = vAddressDatabase;
+        if (db != null) {
+            if (wasConnected)
+                recordPerformance(db, peer);
+            else
+                db.recordAttempt(peer.getAddress().toSocketAddress(), false);
+        }
         peer.removeEventListener(peerListener);
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        BlockDownloadScheduler scheduler = peer.getDownloadScheduler();
+        if (scheduler != null)
+            scheduler.removePeer(peer);
 
         final int fNumConnectedPeers = numConnectedPeers;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
@@ -1610,9 +1909,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return Utils.maxOfMostFreq(heights);
     }
 
-    private static class PeerAndPing {
+    private static class PeerAndScore {
         Peer peer;
-        long pingTime;
+        double score;
     }
 
     /**
@@ -1624,7 +1923,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Ping time.
+        //  - Score, see PeerScore: ping time, block throughput, stalls and failures. The current download peer is
+        //    kept unless another scores much higher.
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -1644,23 +1944,97 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             highestVersion = Math.max(peer.getPeerVersionMessage().clientVersion, highestVersion);
             preferredVersion = Math.min(highestVersion, PREFERRED_VERSION);
         }
-        List<PeerAndPing> candidates2 = new ArrayList<PeerAndPing>();
+        List<PeerAndScore> candidates2 = new ArrayList<PeerAndScore>();
+        PeerAndScore current = null;
         for (Peer peer : candidates) {
             if (peer.getPeerVersionMessage().clientVersion >= preferredVersion) {
-                PeerAndPing pap = new PeerAndPing();
-                pap.peer = peer;
-                pap.pingTime = peer.getPingTime();
-                candidates2.add(pap);
+                PeerAndScore pas = new PeerAndScore();
+                pas.peer = peer;
+                pas.score = getScore(peer);
+                candidates2.add(pas);
+                if (peer == downloadPeer)
+                    current = pas;
             }
         }
-        // Sort by ping time.
-        Collections.sort(candidates2, new Comparator<PeerAndPing>() {
+        // Sort by score, best first.
+        Collections.sort(candidates2, new Comparator<PeerAndScore>() {
             @Override
-            public int compare(PeerAndPing peerAndPing, PeerAndPing peerAndPing2) {
-                return Longs.compare(peerAndPing.pingTime, peerAndPing2.pingTime);
+            public int compare(PeerAndScore peerAndScore, PeerAndScore peerAndScore2) {
+                return Double.compare(peerAndScore2.score, peerAndScore.score);
             }
         });
-        return candidates2.get(0).peer;
+        PeerAndScore best = candidates2.get(0);
+        if (current != null && current.score * DOWNLOAD_PEER_SWITCH_FACTOR >= best.score)
+            return current.peer;
+        return best.peer;
+    }
+
+    private static double getScore(Peer peer) {
+        PeerScore score = peer.getScore();
+        if (score != null)
+            return score.getScore();
+        // Not one of ours, go by ping time alone.
+        PeerScore pingOnly = new PeerScore();
+        pingOnly.recordPing(peer.getPingTime());
+        return pingOnly.getScore();
+    }
+
+    // Runs every so often: switches to a much better download peer if there is one, and replaces the slowest peer if
+    // asked to.
+    private void reviewPeers() {
+        if (!isRunning())
+            return;
+        Peer slowest = null;
+        lock.lock();
+        try {
+            if (chain != null && downloadListener != null && downloadPeer != null) {
+                Peer newDownloadPeer = selectDownloadPeer(peers);
+                if (newDownloadPeer != null && newDownloadPeer != downloadPeer) {
+                    log.info("{}: Switching to a better download peer", newDownloadPeer);
+                    startBlockChainDownloadFromPeer(newDownloadPeer);
+                }
+            }
+            if (vReplaceSlowPeers && peers.size() >= maxConnections && peers.size() > 1 &&
+                    haveReadyInactivePeer(Utils.currentTimeMillis()))
+                slowest = findSlowPeer();
+        } finally {
+            lock.unlock();
+        }
+        if (slowest != null) {
+            log.info("{}: Disconnecting slow peer, {}", slowest, slowest.getScore());
+            slowest.close();
+        }
+    }
+
+    private static void recordPerformance(PeerAddressDatabase db, Peer peer) {
+        PeerScore score = peer.getScore();
+        if (score != null)
+            db.recordPerformance(peer.getAddress().toSocketAddress(), score.getPingMillis(), score.getScore());
+    }
+
+    // Returns the lowest scoring peer that has been connected long enough to judge, if its score is far below the
+    // median.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer findSlowPeer() {
+        long now = Utils.currentTimeMillis();
+        List<Double> allScores = new ArrayList<Double>(peers.size());
+        Peer slowest = null;
+        double slowestScore = Double.MAX_VALUE;
+        for (Peer peer : peers) {
+            double score = getScore(peer);
+            allScores.add(score);
+            PeerScore peerScore = peer.getScore();
+            if (peerScore == null || now - peerScore.getConnectedSinceMillis() < MIN_PEER_AGE_MSEC)
+                continue;
+            if (score < slowestScore) {
+                slowest = peer;
+                slowestScore = score;
+            }
+        }
+        Collections.sort(allScores);
+        double median = allScores.get(allScores.size() / 2);
+        return slowest != null && slowestScore * SLOW_PEER_FACTOR < median ? slowest : null;
     }
 
     /**
@@ -0,0 +1,115 @@
+package org.spreadcoinj.core;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * <p>How well a peer address has served us: its ping time, how fast it delivers the blocks we ask for, how often it
+ * stalled on a block and how often connecting to it failed or the connection dropped. The statistics are kept for as
+ * long as the {@link PeerGroup} knows the address, so they carry over from one connection to the next.</p>
+ *
+ * <p>{@link #getScore()} folds them into a single number, roughly the blocks per second we can expect from the peer,
+ * which the {@link PeerGroup} uses to pick the download peer, to choose which address to connect to next and, if
+ * asked to, to replace slow peers. Addresses we know nothing about get a middling score, so that they are tried.</p>
+ */
+public class PeerScore {
+    /** The ping time assumed for peers that haven't answered a ping yet. */
+    public static final long DEFAULT_PING_MILLIS = 1000;
+    // The size of block that the throughput is scored for.
+    private static final int TYPICAL_BLOCK_BYTES = 50 * 1000;
+    // How much a new measurement counts towards the moving averages.
+    private static final double WEIGHT = 0.25;
+
+    @GuardedBy("this") private double pingMillis = Double.NaN;
+    @GuardedBy("this") private double bytesPerSecond = Double.NaN;
+    @GuardedBy("this") private long blocks, stalls, connections, failures;
+    @GuardedBy("this") private long connectedSinceMillis;
+
+    /** Records the time a ping took. */
+    public synchronized void recordPing(long millis) {
+        if (millis < 0 || millis == Long.MAX_VALUE)
+            return;
+        pingMillis = average(pingMillis, millis);
+    }
+
+    /** Records that a block or filtered block of the given size arrived the given time after we could expect it. */
+    public synchronized void recordBlock(int bytes, long millis) {
+        blocks++;
+        if (bytes <= 0)
+            return;
+        bytesPerSecond = average(bytesPerSecond, bytes * 1000.0 / Math.max(millis, 1));
+    }
+
+    /** Records that the peer didn't deliver a block in time, which was then asked of another peer. */
+    public synchronized void recordStall() {
+        stalls++;
+    }
+
+    /** Records a successful connection. */
+    public synchronized void recordConnected() {
+        connections++;
+        connectedSinceMillis = Utils.currentTimeMillis();
+    }
+
+    /** Records that connecting failed or that the connection dropped. */
+    public synchronized void recordFailure() {
+        failures++;
+        connectedSinceMillis = 0;
+    }
+
+    /** Returns the average ping time in milliseconds, or {@link Long#MAX_VALUE} if the peer never answered a ping. */
+    public synchronized long getPingMillis() {
+        return Double.isNaN(pingMillis) ? Long.MAX_VALUE : (long) pingMillis;
+    }
+
+    /** Returns the average speed at which the peer delivered blocks, or zero if it never did. */
+    public synchronized long getBytesPerSecond() {
+        return Double.isNaN(bytesPerSecond) ? 0 : (long) bytesPerSecond;
+    }
+
+    public synchronized long getBlocks() {
+        return blocks;
+    }
+
+    public synchronized long getStalls() {
+        return stalls;
+    }
+
+    public synchronized long getConnections() {
+        return connections;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /** Returns when the current connection to the peer was made, or zero if there is none. */
+    public synchronized long getConnectedSinceMillis() {
+        return connectedSinceMillis;
+    }
+
+    /**
+     * Returns the score of the peer: the higher the better. It is the number of typical blocks per second the peer
+     * would deliver given its ping time and throughput, scaled down by the fraction of blocks it stalled on and of
+     * connections that failed.
+     */
+    public synchronized double getScore() {
+        double millis = Double.isNaN(pingMillis) ? DEFAULT_PING_MILLIS : pingMillis;
+        if (!Double.isNaN(bytesPerSecond))
+            millis += TYPICAL_BLOCK_BYTES * 1000.0 / bytesPerSecond;
+        // With one imaginary success each, so a single stall or failure doesn't rule the peer out.
+        double reliability = (1 - (double) stalls / (blocks + stalls + 1)) *
+                (1 - (double) failures / (connections + failures + 1));
+        return reliability * 1000 / Math.max(millis, 1);
+    }
+
+    private static double average(double average, double sample) {
+        return Double.isNaN(average) ? sample : average + WEIGHT * (sample - average);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("score %.2f: ping %s ms, %d bytes/s, %d blocks, %d stalls, %d connections, %d failures",
+                getScore(), Double.isNaN(pingMillis) ? "?" : String.valueOf((long) pingMillis),
+                getBytesPerSecond(), blocks, stalls, connections, failures);
+    }
+}
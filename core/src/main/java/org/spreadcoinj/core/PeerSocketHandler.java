@@ -18,19 +18,26 @@ package org.spreadcoinj.core;
 
 import org.spreadcoinj.net.AbstractTimeoutHandler;
 import org.spreadcoinj.net.MessageWriteTarget;
+import org.spreadcoinj.net.ReadPausableWriteTarget;
+import org.spreadcoinj.net.SharedBuffer;
 import org.spreadcoinj.net.StreamParser;
 import org.spreadcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -42,29 +49,49 @@ import static com.google.common.base.Preconditions.*;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
+    /** A reasonable limit for {@link #setMessageExecutor(java.util.concurrent.Executor, int)}. */
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 100;
+    // How many messages a peer processes before letting others have the executor's thread.
+    private static final int MESSAGES_PER_TURN = 16;
+
     private final BitcoinSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
-    // writeTarget will be thread-safe, and may call into PeerGroup, which calls us, so we should call it unlocked
+    // writeTarget will be thread-safe, and may call into PeerGroup, which calls us, so we should call it unlocked. The
+    // exception is ReadPausableWriteTarget.setReadPaused(), which doesn't call back and must be kept in order with readPaused.
     @VisibleForTesting protected MessageWriteTarget writeTarget = null;
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
-    // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
-    private BitcoinSerializer.BitcoinPacketHeader header;
+    // will receive, so the decoder collects messages across calls.
+    private final MessageFrameDecoder decoder;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    // If set, messages are processed on this executor rather than on the network thread, see setMessageExecutor.
+    @Nullable private volatile Executor messageExecutor;
+    private volatile int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    // Messages decoded but not yet processed, and whether a task is processing them (so at most one runs at a time).
+    @GuardedBy("lock") private final ArrayDeque<Message> messageQueue = new ArrayDeque<Message>();
+    @GuardedBy("lock") private boolean draining = false;
+    @GuardedBy("lock") private boolean readPaused = false;
+    @GuardedBy("lock") private Executor drainExecutor;
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainMessages();
+        }
+    };
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         serializer = new BitcoinSerializer(checkNotNull(params));
+        decoder = new MessageFrameDecoder(params, serializer);
         this.peerAddress = new PeerAddress(remoteIp);
     }
 
     public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress) {
         serializer = new BitcoinSerializer(checkNotNull(params));
+        decoder = new MessageFrameDecoder(params, serializer);
         this.peerAddress = checkNotNull(peerAddress);
     }
 
@@ -74,23 +101,42 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public void sendMessage(Message message) throws NotYetConnectedException {
-        lock.lock();
+        checkConnected();
+        SharedBuffer buffer = serializer.serializeToBuffer(message);
         try {
-            if (writeTarget == null)
-                throw new NotYetConnectedException();
+            buffer.writeTo(writeTarget);
+        } catch (IOException e) {
+            exceptionCaught(e);
         } finally {
-            lock.unlock();
+            buffer.release();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Sends a message that was already serialized with {@link BitcoinSerializer#serializeToBuffer(Message)} for this
+     * peer's network. This lets the same message be sent to many peers while serializing it only once. The caller
+     * keeps its reference to the buffer. Throws NotYetConnectedException if we are not yet connected to the remote
+     * peer.
+     */
+    public void sendMessage(SharedBuffer serializedMessage) throws NotYetConnectedException {
+        checkConnected();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            serializedMessage.writeTo(writeTarget);
         } catch (IOException e) {
             exceptionCaught(e);
         }
     }
 
+    private void checkConnected() throws NotYetConnectedException {
+        lock.lock();
+        try {
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -118,65 +164,119 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      */
     protected abstract void processMessage(Message m) throws Exception;
 
-    @Override
-    public int receiveBytes(ByteBuffer buff) {
-        checkArgument(buff.position() == 0 &&
-                buff.capacity() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
+    /**
+     * <p>Makes messages be processed on the given executor instead of on the network thread, which then only reads and
+     * decodes them. Messages from this peer are still processed one at a time and in the order they arrived, but
+     * several peers can be processed at once, and a peer that takes long over a message doesn't hold up the others
+     * sharing its network thread.</p>
+     *
+     * <p>If more than maxQueuedMessages messages are waiting to be processed, reading from the peer is paused until
+     * half of them have been, so a fast peer can't fill our memory faster than we process it. Messages still queued
+     * when the connection closes are processed all the same. Pass null to process messages on the network thread, the
+     * default. Should be called before the connection opens.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor executor, int maxQueuedMessages) {
+        checkArgument(maxQueuedMessages > 0);
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.messageExecutor = executor;
+    }
+
+    private static ExecutorService sharedMessageExecutor;
+
+    /**
+     * Returns an executor with a thread per CPU core which can be shared by all peers for
+     * {@link #setMessageExecutor(java.util.concurrent.Executor, int)}. Processing a message can block on other locks
+     * (the wallet's, for one) whose holders may be waiting on work queued to {@link Threading#CPU_POOL}, such as the
+     * signing done by {@link Wallet#completeTx(Wallet.SendRequest)}, so peer messages must never be processed on
+     * that pool: if they filled it, the work they wait for could never run.
+     */
+    public static synchronized Executor getSharedMessageExecutor() {
+        if (sharedMessageExecutor == null) {
+            sharedMessageExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("PeerSocketHandler %d").build());
+        }
+        return sharedMessageExecutor;
+    }
+
+    // Processes the message right away or hands it to the message executor, pausing reads if too many are waiting.
+    private void dispatch(Message message) throws Exception {
+        Executor executor = messageExecutor;
+        if (executor == null) {
+            processMessage(message);
+            return;
+        }
+        boolean startDraining = false;
+        lock.lock();
         try {
-            // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
-            for (int i = 0; true; i++) {
-                // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
-                    // This can only happen in the first iteration
-                    checkState(i == 0);
-                    // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
-                    // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
-                    } else // ...or just returning if we don't have enough bytes yet
-                        return buff.position();
+            messageQueue.add(message);
+            if (!draining) {
+                draining = startDraining = true;
+                drainExecutor = executor;
+            }
+            // The write target is told under the lock, so that it sees pauses and resumes in the order they happen. A
+            // target which can't pause reads just lets the queue grow.
+            if (!readPaused && messageQueue.size() > maxQueuedMessages && writeTarget instanceof ReadPausableWriteTarget) {
+                readPaused = true;
+                ((ReadPausableWriteTarget) writeTarget).setReadPaused(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (startDraining)
+            executor.execute(drainTask);
+    }
+
+    private void drainMessages() {
+        for (int i = 0; i < MESSAGES_PER_TURN; i++) {
+            Message message;
+            lock.lock();
+            try {
+                if (readPaused && messageQueue.size() <= maxQueuedMessages / 2) {
+                    readPaused = false;
+                    ((ReadPausableWriteTarget) writeTarget).setReadPaused(false);
                 }
-                // Now try to deserialize any messages left in buff
-                Message message;
-                int preSerializePosition = buff.position();
+                message = messageQueue.poll();
+                if (message == null)
+                    draining = false;
+            } finally {
+                lock.unlock();
+            }
+            if (message == null)
+                return;
+            try {
+                processMessage(message);
+            } catch (Exception e) {
+                // The connection is closing, so the rest of the queue won't be wanted.
+                lock.lock();
                 try {
-                    message = serializer.deserialize(buff);
-                } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
-                    if (i == 0 && buff.limit() == buff.capacity()) {
-                        // ...so reposition the buffer to 0 and read the next message header
-                        buff.position(0);
-                        try {
-                            serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
-                        } catch (BufferUnderflowException e1) {
-                            // If we went through a whole buffer's worth of bytes without getting a header, give up
-                            // In cases where the buff is just really small, we could create a second largeReadBuffer
-                            // that we use to deserialize the magic+header, but that is rather complicated when the buff
-                            // should probably be at least that big anyway (for efficiency)
-                            throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
-                        }
-                    } else {
-                        // Reposition the buffer to its original position, which saves us from skipping messages by
-                        // seeking past part of the magic bytes before all of them are in the buffer
-                        buff.position(preSerializePosition);
-                    }
-                    return buff.position();
+                    messageQueue.clear();
+                } finally {
+                    lock.unlock();
                 }
-                // Process our freshly deserialized message
-                processMessage(message);
+                exceptionCaught(e);
             }
+        }
+        // Give other peers sharing the executor a turn before carrying on.
+        Executor executor;
+        lock.lock();
+        try {
+            executor = drainExecutor;
+        } finally {
+            lock.unlock();
+        }
+        executor.execute(drainTask);
+    }
+
+    @Override
+    public int receiveBytes(ByteBuffer buff) {
+        checkArgument(buff.position() == 0 &&
+                buff.capacity() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
+        try {
+            // The decoder takes all the bytes, keeping those of an incomplete message until the next call.
+            Message message;
+            while ((message = decoder.next(buff)) != null)
+                dispatch(message);
+            return buff.position();
         } catch (Exception e) {
             exceptionCaught(e);
             return -1; // Returning -1 also throws an IllegalStateException upstream and kills the connection
@@ -0,0 +1,61 @@
+package org.spreadcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>The "sendcmpct" message of BIP 152, which tells the remote peer that we understand compact blocks of the given
+ * version, see {@link CompactBlockMessage}. If announce is set, the peer pushes new blocks to us as compact blocks
+ * straight away rather than announcing them with an inv first ("high bandwidth mode"), which saves a round trip.</p>
+ *
+ * <p>It can be sent again to switch high bandwidth mode on or off.</p>
+ */
+public class SendCompactBlocksMessage extends Message {
+    private boolean announce;
+    private long version;
+
+    public SendCompactBlocksMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public SendCompactBlocksMessage(NetworkParameters params, boolean announce, long version) {
+        super(params);
+        this.announce = announce;
+        this.version = version;
+        length = 9;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        announce = readBytes(1)[0] != 0;
+        version = readInt64();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(announce ? 1 : 0);
+        Utils.int64ToByteStreamLE(version, stream);
+    }
+
+    /** Returns whether the peer wants new blocks pushed to it as compact blocks without an inv. */
+    public boolean getAnnounce() {
+        maybeParse();
+        return announce;
+    }
+
+    /** Returns the version of compact blocks the peer understands. */
+    public long getVersion() {
+        maybeParse();
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "sendcmpct: announce " + getAnnounce() + ", version " + getVersion();
+    }
+}
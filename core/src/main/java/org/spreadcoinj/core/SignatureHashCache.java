@@ -0,0 +1,118 @@
+package org.spreadcoinj.core;
+
+import org.spreadcoinj.script.Script;
+import org.spreadcoinj.script.ScriptOpCodes;
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.spreadcoinj.core.Utils.uint32ToByteArrayLE;
+import static org.spreadcoinj.core.Utils.uint32ToByteStreamLE;
+
+/**
+ * <p>Caches the parts of a transaction that go into every {@link Transaction.SigHash#ALL} signature hash, so that
+ * hashing for one input after another doesn't reserialize the whole transaction each time.</p>
+ *
+ * <p>For SIGHASH_ALL the signed form of a transaction is the transaction with every input script emptied, except that
+ * the input being signed carries the connected script. So all that differs between inputs is where that script goes.
+ * The inputs are serialized once with empty scripts, the outputs and lock time once, and the SHA-256 state after the
+ * inputs preceding the current one is kept, so that signing or verifying the inputs in order feeds each input
+ * preceding the signed one into the digest just once. Only the signed input and what follows it is hashed per input.</p>
+ *
+ * <p>The cache is only valid as long as the transaction doesn't change in a way that affects the signature hashes, so
+ * {@link Transaction} drops it whenever it is modified. Input scripts are the exception, as they are never signed.
+ * Instances are not thread safe; the transaction only uses them whilst holding its own lock.</p>
+ */
+class SignatureHashCache {
+    private static final int OUTPOINT_LENGTH = 36;
+
+    // The digest after the version and the number of inputs.
+    private final SHA256Digest prefix;
+    // All inputs, each with an empty script, and where each of them starts, plus the end.
+    private final byte[] blankInputs;
+    private final int[] inputOffsets;
+    // Everything after the inputs, except for the sighash type.
+    private final byte[] suffix;
+
+    // The digest after the prefix and the blank inputs before midstateIndex.
+    private SHA256Digest midstate;
+    private int midstateIndex;
+
+    SignatureHashCache(long version, List<TransactionInput> inputs, List<TransactionOutput> outputs, long lockTime) {
+        try {
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(16);
+            uint32ToByteStreamLE(version, bos);
+            bos.write(new VarInt(inputs.size()).encode());
+            prefix = new SHA256Digest();
+            prefix.update(bos.toByteArray(), 0, bos.size());
+
+            // 41 = previous_outpoint (36) + empty script (1) + sequence (4)
+            blankInputs = new byte[inputs.size() * (OUTPOINT_LENGTH + 5)];
+            inputOffsets = new int[inputs.size() + 1];
+            int cursor = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                inputOffsets[i] = cursor;
+                byte[] outpoint = input.getOutpoint().bitcoinSerialize();
+                System.arraycopy(outpoint, 0, blankInputs, cursor, OUTPOINT_LENGTH);
+                cursor += OUTPOINT_LENGTH;
+                blankInputs[cursor++] = 0;
+                uint32ToByteArrayLE(input.getSequenceNumber(), blankInputs, cursor);
+                cursor += 4;
+            }
+            inputOffsets[inputs.size()] = cursor;
+
+            bos = new UnsafeByteArrayOutputStream(outputs.size() * 34 + 8);
+            bos.write(new VarInt(outputs.size()).encode());
+            for (TransactionOutput output : outputs)
+                output.bitcoinSerialize(bos);
+            uint32ToByteStreamLE(lockTime, bos);
+            suffix = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Returns the same hash as {@link Transaction#hashForSignature(int, byte[], byte)} for a sighash type that signs
+     * all inputs and all outputs.
+     */
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if (inputIndex < 0 || inputIndex >= inputOffsets.length - 1)
+            throw new IndexOutOfBoundsException("Input index " + inputIndex);
+        // See Transaction.hashForSignature for why this is done.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        // Move the midstate forward to our input, or start over if it's already past it.
+        if (midstate == null || midstateIndex > inputIndex) {
+            midstate = new SHA256Digest(prefix);
+            midstateIndex = 0;
+        }
+        int start = inputOffsets[inputIndex];
+        int midstateOffset = inputOffsets[midstateIndex];
+        midstate.update(blankInputs, midstateOffset, start - midstateOffset);
+        midstateIndex = inputIndex;
+
+        SHA256Digest digest = new SHA256Digest(midstate);
+        digest.update(blankInputs, start, OUTPOINT_LENGTH);
+        byte[] scriptLength = new VarInt(connectedScript.length).encode();
+        digest.update(scriptLength, 0, scriptLength.length);
+        digest.update(connectedScript, 0, connectedScript.length);
+        // Our sequence number and all the inputs after ours.
+        int rest = start + OUTPOINT_LENGTH + 1;
+        digest.update(blankInputs, rest, blankInputs.length - rest);
+        digest.update(suffix, 0, suffix.length);
+        // The sighash type is actually an unsigned char, but written as a uint32.
+        byte[] type = new byte[4];
+        uint32ToByteArrayLE(0x000000ff & sigHashType, type, 0);
+        digest.update(type, 0, type.length);
+
+        byte[] hash = new byte[32];
+        digest.doFinal(hash, 0);
+        digest.reset();
+        digest.update(hash, 0, hash.length);
+        digest.doFinal(hash, 0);
+        return new Sha256Hash(hash);
+    }
+}
@@ -37,6 +37,7 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 
 import static org.spreadcoinj.core.Utils.*;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -116,6 +117,8 @@ public class Transaction extends ChildMessage implements Serializable {
 
     // This is an in memory helper only.
     private transient Sha256Hash hash;
+    // Parts of the transaction shared by its signature hashes, created on demand and dropped when it changes.
+    private transient SignatureHashCache signatureHashCache;
 
     // Data about how confirmed this tx is. Serialized, may be null. 
     private TransactionConfidence confidence;
@@ -485,6 +488,7 @@ public class Transaction extends ChildMessage implements Serializable {
     protected void unCache() {
         super.unCache();
         hash = null;
+        signatureHashCache = null;
     }
 
     @Override
@@ -936,6 +940,14 @@ public class Transaction extends ChildMessage implements Serializable {
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
+        int type = sigHashType & 0x1f;
+        if (type != SigHash.NONE.ordinal() + 1 && type != SigHash.SINGLE.ordinal() + 1 &&
+                (sigHashType & SIGHASH_ANYONECANPAY_VALUE) == 0) {
+            // The common case: everything is signed, so the transaction doesn't need reserializing for every input.
+            maybeParse();
+            return getSignatureHashCache().hashForSignature(inputIndex, connectedScript, sigHashType);
+        }
+
         try {
             // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
             // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
@@ -1034,6 +1046,39 @@ public class Transaction extends ChildMessage implements Serializable {
         }
     }
 
+    /**
+     * <p>Calculates the {@link SigHash#ALL} signature hashes of many inputs in one go. The result is the same as calling
+     * {@link #hashForSignature(int, byte[], SigHash, boolean)} for each input, but the parts of the transaction that
+     * don't vary between inputs are serialized only once and the transaction is not modified along the way, which
+     * makes a big difference for transactions with many inputs.</p>
+     *
+     * @param connectedScripts for each input, the bytes that should be in it during signing, or null to skip it.
+     * @return the signature hash for each input, null for skipped inputs.
+     */
+    public synchronized Sha256Hash[] hashesForSignature(byte[][] connectedScripts) {
+        maybeParse();
+        checkArgument(connectedScripts.length == inputs.size(), "Need one script per input");
+        SignatureHashCache cache = getSignatureHashCache();
+        Sha256Hash[] hashes = new Sha256Hash[connectedScripts.length];
+        for (int i = 0; i < connectedScripts.length; i++)
+            if (connectedScripts[i] != null)
+                hashes[i] = cache.hashForSignature(i, connectedScripts[i], (byte) (SigHash.ALL.ordinal() + 1));
+        return hashes;
+    }
+
+    private SignatureHashCache getSignatureHashCache() {
+        if (signatureHashCache == null)
+            signatureHashCache = new SignatureHashCache(version, inputs, outputs, lockTime);
+        return signatureHashCache;
+    }
+
+    /** Input scripts are never signed, so changing one doesn't invalidate the signature hash cache. */
+    void inputScriptChanged(TransactionInput input) {
+        SignatureHashCache cache = signatureHashCache;
+        input.unCache();
+        signatureHashCache = cache;
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         uint32ToByteStreamLE(version, stream);
@@ -1114,6 +1159,7 @@ public class Transaction extends ChildMessage implements Serializable {
     public void shuffleOutputs() {
         maybeParse();
         Collections.shuffle(outputs);
+        signatureHashCache = null;
     }
 
     /** @return the given transaction: same as getInputs().get(index). */
@@ -16,6 +16,7 @@
 
 package org.spreadcoinj.core;
 
+import org.spreadcoinj.net.SharedBuffer;
 import org.spreadcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
@@ -104,14 +105,20 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
-            for (Peer peer : peers) {
-                try {
-                    peer.sendMessage(pinnedTx);
-                    // We don't record the peer as having seen the tx in the memory pool because we want to track only
-                    // how many peers announced to us.
-                } catch (Exception e) {
-                    log.error("Caught exception sending to {}", peer, e);
+            // Serialize once and hand the same bytes to every peer.
+            SharedBuffer serializedTx = new BitcoinSerializer(pinnedTx.getParams()).serializeToBuffer(pinnedTx);
+            try {
+                for (Peer peer : peers) {
+                    try {
+                        peer.sendMessage(serializedTx);
+                        // We don't record the peer as having seen the tx in the memory pool because we want to track
+                        // only how many peers announced to us.
+                    } catch (Exception e) {
+                        log.error("Caught exception sending to {}", peer, e);
+                    }
                 }
+            } finally {
+                serializedTx.release();
             }
             // If we've been limited to talk to only one peer, we can't wait to hear back because the
             // remote peer won't tell us about transactions we just announced to it for obvious reasons.
@@ -247,7 +247,11 @@ public class TransactionInput extends ChildMessage implements Serializable {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
-        unCache();
+        Transaction parentTransaction = getParentTransaction();
+        if (parentTransaction != null)
+            parentTransaction.inputScriptChanged(this);
+        else
+            unCache();
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
@@ -161,6 +161,24 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
 
+    // Lock-free summary of everything that makes a transaction relevant to us, used to throw away irrelevant
+    // transactions without taking the wallet lock. It's rebuilt under the lock when null.
+    private transient volatile RelevanceFilter relevanceFilter;
+
+    // The Bloom filter handed out last time, together with the elements that were added to the wallet since. As long
+    // as the filter parameters stay the same and the element count stays within the size the filter was made for,
+    // new elements are inserted into it instead of rebuilding it from every key, script and transaction. Elements
+    // that stop being relevant are not removed, they only cost false positives until the next full rebuild.
+    @GuardedBy("keychainLock") @Nullable private BloomFilter bloomFilter;
+    @GuardedBy("keychainLock") private int bloomFilterSize;
+    @GuardedBy("keychainLock") private double bloomFilterFPRate;
+    @GuardedBy("keychainLock") private long bloomFilterTweak;
+    @GuardedBy("keychainLock") private final List<byte[]> pendingBloomFilterElements = new ArrayList<byte[]>();
+    // Count of elements in the filter plus pending ones, or -1 if it has to be recounted. The set holds the
+    // transactions whose outputs were counted.
+    @GuardedBy("keychainLock") private int bloomFilterElementCount = -1;
+    @GuardedBy("keychainLock") private final Set<Sha256Hash> bloomFilterTransactions = new HashSet<Sha256Hash>();
+
     protected final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
@@ -264,6 +282,23 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         signers = new ArrayList<TransactionSigner>();
         addTransactionSigner(new LocalTransactionSigner());
         createTransientState();
+        this.keychain.addEventListener(new AbstractKeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                // Runs with the keychain lock held by whoever added the keys.
+                addKeysToBloomFilter(keys);
+                RelevanceFilter filter = relevanceFilter;
+                if (filter == null)
+                    return;
+                // The P2SH script hashes of a married chain are only calculated after its keys were added.
+                if (!keychain.isDeterministicUpgradeRequired() && keychain.isMarried()) {
+                    relevanceFilter = null;
+                    return;
+                }
+                for (ECKey key : keys)
+                    filter.addKey(key);
+            }
+        }, Threading.SAME_THREAD);
     }
 
     private void createTransientState() {
@@ -466,6 +501,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.upgradeToDeterministic(vKeyRotationTimestamp, aesKey);
+            relevanceFilter = null;
+            invalidateBloomFilter();
         } finally {
             keychainLock.unlock();
         }
@@ -647,6 +684,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.addFollowingAccountKeys(followingAccountKeys);
+            relevanceFilter = null;
+            invalidateBloomFilter();
         } finally {
             keychainLock.unlock();
         }
@@ -666,6 +705,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.addFollowingAccountKeys(followingAccountKeys, threshold);
+            relevanceFilter = null;
+            invalidateBloomFilter();
         } finally {
             keychainLock.unlock();
         }
@@ -786,6 +827,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             for (final Script script : scripts) {
                 if (watchedScripts.contains(script)) continue;
                 watchedScripts.add(script);
+                addScriptToBloomFilter(script);
+                RelevanceFilter filter = relevanceFilter;
+                if (filter != null)
+                    filter.addScript(script);
                 added++;
             }
         } finally {
@@ -964,14 +1009,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * parameters to derive a key from the given password.
      */
     public void encrypt(CharSequence password) {
-        keychainLock.lock();
-        try {
-            final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
-            keychain.encrypt(scrypt, scrypt.deriveKey(password));
-        } finally {
-            keychainLock.unlock();
-        }
-        saveNow();
+        final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
+        encrypt(scrypt, scrypt.deriveKey(password));
     }
 
     /**
@@ -983,9 +1022,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * @throws KeyCrypterException Thrown if the wallet encryption fails. If so, the wallet state is unchanged.
      */
     public void encrypt(KeyCrypter keyCrypter, KeyParameter aesKey) {
+        // The keys are encrypted without holding the keychain lock, which is only taken to swap them in.
+        keychain.encrypt(keyCrypter, aesKey, keychainLock);
         keychainLock.lock();
         try {
-            keychain.encrypt(keyCrypter, aesKey);
+            relevanceFilter = null;
         } finally {
             keychainLock.unlock();
         }
@@ -997,15 +1038,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * @throws KeyCrypterException Thrown if the wallet decryption fails. If so, the wallet state is unchanged.
      */
     public void decrypt(CharSequence password) {
+        final KeyCrypter crypter;
         keychainLock.lock();
         try {
-            final KeyCrypter crypter = keychain.getKeyCrypter();
+            crypter = keychain.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
-            keychain.decrypt(crypter.deriveKey(password));
         } finally {
             keychainLock.unlock();
         }
-        saveNow();
+        decrypt(crypter.deriveKey(password));
     }
 
     /**
@@ -1015,9 +1056,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * @throws KeyCrypterException Thrown if the wallet decryption fails. If so, the wallet state is unchanged.
      */
     public void decrypt(KeyParameter aesKey) {
+        // As with encryption, the keys are decrypted without holding the keychain lock.
+        keychain.decrypt(aesKey, keychainLock);
         keychainLock.lock();
         try {
-            keychain.decrypt(aesKey);
+            relevanceFilter = null;
         } finally {
             keychainLock.unlock();
         }
@@ -1547,6 +1590,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * will soon be called with the transactions dependencies as well.
      */
     public boolean isPendingTransactionRelevant(Transaction tx) throws ScriptException {
+        // Most transactions on the network have nothing to do with us, so try to find that out without the lock.
+        if (isDefinitelyIrrelevant(tx))
+            return false;
         lock.lock();
         try {
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
@@ -1579,8 +1625,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     @Override
     public boolean isTransactionRelevant(Transaction tx) throws ScriptException {
+        if (isDefinitelyIrrelevant(tx))
+            return false;
         lock.lock();
         try {
+            maybeRebuildRelevanceFilter();
             return tx.getValueSentFromMe(this).signum() > 0 ||
                    tx.getValueSentToMe(this).signum() > 0 ||
                    checkForDoubleSpendAgainstPending(tx, false);
@@ -1589,6 +1638,31 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    private boolean isDefinitelyIrrelevant(Transaction tx) {
+        RelevanceFilter filter = relevanceFilter;
+        return filter != null && !filter.mightBeRelevant(tx);
+    }
+
+    private void maybeRebuildRelevanceFilter() {
+        checkState(lock.isHeldByCurrentThread());
+        if (relevanceFilter != null)
+            return;
+        RelevanceFilter filter = new RelevanceFilter();
+        // Transactions are only added with the wallet lock held, and keys and scripts with the keychain lock held, so
+        // nothing can be missed as long as the filter is published before the keychain lock is released.
+        for (Transaction tx : transactions.values())
+            filter.addTransaction(tx);
+        keychainLock.lock();
+        try {
+            keychain.addToRelevanceFilter(filter);
+            for (Script script : watchedScripts)
+                filter.addScript(script);
+            relevanceFilter = filter;
+        } finally {
+            keychainLock.unlock();
+        }
+    }
+
     /**
      * Checks if "tx" is spending any inputs of pending transactions. Not a general check, but it can work even if
      * the double spent inputs are not ours.
@@ -2283,6 +2357,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        RelevanceFilter filter = relevanceFilter;
+        if (filter != null)
+            filter.addTransaction(tx);
+        if (pool != Pool.DEAD)
+            addTransactionToBloomFilter(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2393,6 +2472,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                keychainLock.lock();
+                try {
+                    invalidateBloomFilter();
+                } finally {
+                    keychainLock.unlock();
+                }
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -3814,31 +3899,20 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     /**
      * Returns the number of distinct data items (note: NOT keys) that will be inserted into a bloom filter, when it
-     * is constructed.
+     * is constructed. The count is maintained as keys, scripts and transactions are added, so it is only calculated
+     * from scratch the first time and after the keychain was restructured.
      */
     @Override
     public int getBloomFilterElementCount() {
-        int size = 0;
-        for (Transaction tx : getTransactions(false)) {
-            for (TransactionOutput out : tx.getOutputs()) {
-                try {
-                    if (isTxOutputBloomFilterable(out))
-                        size++;
-                } catch (ScriptException e) {
-                    // If it is ours, we parsed the script correctly, so this shouldn't happen.
-                    throw new RuntimeException(e);
-                }
-            }
-        }
+        lock.lock();
         keychainLock.lock();
         try {
-            size += keychain.getBloomFilterElementCount();
-            // Some scripts may have more than one bloom element.  That should normally be okay, because under-counting
-            // just increases false-positive rate.
-            size += watchedScripts.size();
-            return size;
+            if (bloomFilterElementCount < 0)
+                recountBloomFilterElements();
+            return bloomFilterElementCount;
         } finally {
             keychainLock.unlock();
+            lock.unlock();
         }
     }
 
@@ -3877,6 +3951,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * 
      * <p>See the docs for {@link BloomFilter(int, double)} for a brief explanation of anonymity when using bloom
      * filters.</p>
+     *
+     * <p>When called repeatedly with the same parameters, as {@link PeerGroup} does, the previous filter is reused
+     * and only elements added to the wallet since are inserted into it. It is rebuilt from scratch when the
+     * parameters change or when it would hold more elements than it was sized for.</p>
      */
     @Override
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
@@ -3885,31 +3963,19 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         keychainLock.lock();
         try {
-            BloomFilter filter = keychain.getBloomFilter(size, falsePositiveRate, nTweak);
-
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
-            for (Transaction tx : getTransactions(false)) {
-                for (int i = 0; i < tx.getOutputs().size(); i++) {
-                    TransactionOutput out = tx.getOutputs().get(i);
-                    try {
-                        if (isTxOutputBloomFilterable(out)) {
-                            TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                            filter.insert(outPoint.bitcoinSerialize());
-                        }
-                    } catch (ScriptException e) {
-                        throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
-                    }
-                }
+            // Any keys generated by lookahead here are delivered to us via onKeysAdded.
+            keychain.maybeLookAhead();
+            if (bloomFilter == null || bloomFilterElementCount < 0 || bloomFilterElementCount > size ||
+                    size != bloomFilterSize || falsePositiveRate != bloomFilterFPRate || nTweak != bloomFilterTweak) {
+                rebuildBloomFilter(size, falsePositiveRate, nTweak);
+            } else {
+                for (byte[] element : pendingBloomFilterElements)
+                    bloomFilter.insert(element);
+                pendingBloomFilterElements.clear();
             }
+            // Hand out a copy, so callers can't modify the one we keep.
+            BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+            filter.merge(bloomFilter);
             return filter;
         } finally {
             keychainLock.unlock();
@@ -3917,6 +3983,129 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    @GuardedBy("keychainLock")
+    private void rebuildBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        checkState(lock.isHeldByCurrentThread());
+        BloomFilter filter = keychain.getBloomFilter(size, falsePositiveRate, nTweak);
+        for (Script script : watchedScripts)
+            for (byte[] element : getBloomFilterElements(script))
+                filter.insert(element);
+        int outputs = 0;
+        bloomFilterTransactions.clear();
+        for (Transaction tx : getTransactions(false)) {
+            bloomFilterTransactions.add(tx.getHash());
+            for (byte[] element : getBloomFilterElements(tx)) {
+                filter.insert(element);
+                outputs++;
+            }
+        }
+        // Lookahead triggered by the keychain above may have queued keys that are now in the filter already.
+        pendingBloomFilterElements.clear();
+        bloomFilterElementCount = outputs + keychain.getBloomFilterElementCount() + watchedScripts.size();
+        bloomFilter = filter;
+        bloomFilterSize = size;
+        bloomFilterFPRate = falsePositiveRate;
+        bloomFilterTweak = nTweak;
+    }
+
+    @GuardedBy("keychainLock")
+    private void recountBloomFilterElements() {
+        checkState(lock.isHeldByCurrentThread());
+        int size = 0;
+        bloomFilterTransactions.clear();
+        for (Transaction tx : getTransactions(false)) {
+            bloomFilterTransactions.add(tx.getHash());
+            size += getBloomFilterElements(tx).size();
+        }
+        size += keychain.getBloomFilterElementCount();
+        // Some scripts may have more than one bloom element.  That should normally be okay, because under-counting
+        // just increases false-positive rate.
+        size += watchedScripts.size();
+        bloomFilterElementCount = size;
+    }
+
+    /** Forgets the cached filter and element count, for when elements were removed or the keychain restructured. */
+    @GuardedBy("keychainLock")
+    private void invalidateBloomFilter() {
+        checkState(keychainLock.isHeldByCurrentThread());
+        bloomFilter = null;
+        bloomFilterElementCount = -1;
+        bloomFilterTransactions.clear();
+        pendingBloomFilterElements.clear();
+    }
+
+    private void addKeysToBloomFilter(List<ECKey> keys) {
+        keychainLock.lock();
+        try {
+            if (bloomFilterElementCount < 0)
+                return;
+            // Married chains contribute P2SH scripts rather than keys, and an imported key may make outputs of
+            // transactions we already have ours. Neither can be tracked incrementally.
+            boolean married = !keychain.isDeterministicUpgradeRequired() && keychain.isMarried();
+            for (ECKey key : keys) {
+                if (married || !(key instanceof DeterministicKey)) {
+                    invalidateBloomFilter();
+                    return;
+                }
+            }
+            for (ECKey key : keys) {
+                pendingBloomFilterElements.add(key.getPubKey());
+                pendingBloomFilterElements.add(key.getPubKeyHash());
+            }
+            bloomFilterElementCount += keys.size() * 2;
+        } finally {
+            keychainLock.unlock();
+        }
+    }
+
+    @GuardedBy("keychainLock")
+    private void addScriptToBloomFilter(Script script) {
+        if (bloomFilterElementCount < 0)
+            return;
+        pendingBloomFilterElements.addAll(getBloomFilterElements(script));
+        bloomFilterElementCount++;
+    }
+
+    private void addTransactionToBloomFilter(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        keychainLock.lock();
+        try {
+            if (bloomFilterElementCount < 0 || !bloomFilterTransactions.add(tx.getHash()))
+                return;
+            List<byte[]> elements = getBloomFilterElements(tx);
+            pendingBloomFilterElements.addAll(elements);
+            bloomFilterElementCount += elements.size();
+        } finally {
+            keychainLock.unlock();
+        }
+    }
+
+    private List<byte[]> getBloomFilterElements(Script script) {
+        List<byte[]> elements = new ArrayList<byte[]>();
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                elements.add(chunk.data);
+        }
+        return elements;
+    }
+
+    private List<byte[]> getBloomFilterElements(Transaction tx) {
+        List<byte[]> elements = new ArrayList<byte[]>();
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            TransactionOutput out = tx.getOutputs().get(i);
+            try {
+                if (isTxOutputBloomFilterable(out))
+                    elements.add(new TransactionOutPoint(params, i, tx).bitcoinSerialize());
+            } catch (ScriptException e) {
+                throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
+            }
+        }
+        return elements;
+    }
+
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         boolean isScriptTypeSupported = out.getScriptPubKey().isSentToRawPubKey() || out.getScriptPubKey().isPayToScriptHash();
         return (out.isMine(this) && isScriptTypeSupported) ||
@@ -4432,6 +4621,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 log.info(" ... no non-rotating random keys available, generating entirely new HD tree: backup required after this.");
                 keychain.createAndActivateNewHDChain();
             }
+            relevanceFilter = null;
+            invalidateBloomFilter();
             saveNow();
         }
 
@@ -17,23 +17,42 @@
 package org.spreadcoinj.crypto;
 
 import org.spreadcoinj.core.*;
+import org.spreadcoinj.utils.Threading;
 import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
 import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
 import com.lambdaworks.crypto.SCrypt;
 
+import javax.annotation.Nullable;
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.text.Normalizer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Implementation of <a href="https://github.com/bitcoin/bips/blob/master/bip-0038.mediawiki">BIP 38</a>
  * passphrase-protected private keys. Currently, only decryption is supported.
+ *
+ * <p>Decryption is slow by design, as it is dominated by scrypt. The scrypt blocks of a key are mixed in parallel when
+ * there are several CPUs, and {@link #decryptAll(List, List, DecryptionProgressListener)} decrypts many keys at once
+ * on a bounded pool of threads, working out what keys made from the same passphrase and owner salt have in common
+ * only once.</p>
  */
 public class BIP38PrivateKey extends VersionedChecksummedBytes {
 
@@ -47,6 +66,20 @@ public class BIP38PrivateKey extends VersionedChecksummedBytes {
     public static final class BadPassphraseException extends Exception {
     }
 
+    /** Receives progress reports from {@link #decryptAll(List, List, DecryptionProgressListener)}. */
+    public interface DecryptionProgressListener {
+        /**
+         * Called after each key has been tried, on the thread that tried it, so implementations should be thread safe
+         * and quick.
+         *
+         * @param index the position of the key in the batch
+         * @param key the decrypted key, or null if the passphrase was wrong
+         * @param done how many keys of the batch have been tried so far, including this one
+         * @param total the number of keys in the batch
+         */
+        void onKeyDecrypted(int index, @Nullable ECKey key, int done, int total);
+    }
+
     public BIP38PrivateKey(NetworkParameters params, String encoded) throws AddressFormatException {
         super(encoded);
         this.params = params;
@@ -85,8 +118,67 @@ public class BIP38PrivateKey extends VersionedChecksummedBytes {
     }
 
     public ECKey decrypt(String passphrase) throws BadPassphraseException {
+        return decrypt(passphrase, null);
+    }
+
+    /**
+     * Decrypts all of the given keys with the same passphrase, see
+     * {@link #decryptAll(List, List, DecryptionProgressListener)}.
+     */
+    public static List<ECKey> decryptAll(List<BIP38PrivateKey> keys, String passphrase,
+                                         @Nullable DecryptionProgressListener listener) {
+        return decryptAll(keys, Collections.nCopies(keys.size(), passphrase), listener);
+    }
+
+    /**
+     * Decrypts each of the given keys with the passphrase at the same position, as a sweep of a pile of paper wallets
+     * would. The keys are decrypted concurrently on {@link org.spreadcoinj.utils.Threading#CPU_POOL}, which has a
+     * thread per CPU and so also bounds the memory taken by scrypt, about 16 MB per key. EC-multiplied keys made from the same intermediate
+     * code share the scrypt of the passphrase with the owner salt, and without lot and sequence numbers also the pass
+     * factor and its point, so these are worked out once per batch rather than once per key.
+     *
+     * @return the decrypted keys in the same order, with null for each key whose passphrase was wrong.
+     */
+    public static List<ECKey> decryptAll(List<BIP38PrivateKey> keys, List<String> passphrases,
+                                         @Nullable DecryptionProgressListener listener) {
+        return decryptAll(keys, passphrases, listener, new Intermediates());
+    }
+
+    static List<ECKey> decryptAll(final List<BIP38PrivateKey> keys, final List<String> passphrases,
+                                  @Nullable final DecryptionProgressListener listener,
+                                  final Intermediates intermediates) {
+        checkArgument(keys.size() == passphrases.size(), "Need one passphrase per key");
+        final int total = keys.size();
+        final ECKey[] results = new ECKey[total];
+        final AtomicInteger done = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<Runnable>(total);
+        for (int i = 0; i < total; i++) {
+            final int index = i;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = keys.get(index).decrypt(passphrases.get(index), intermediates);
+                    } catch (BadPassphraseException e) {
+                        // Leave it null.
+                    }
+                    if (listener != null)
+                        listener.onKeyDecrypted(index, results[index], done.incrementAndGet(), total);
+                }
+            });
+        }
+        try {
+            Threading.runOnCpuPool(tasks);
+            // Waiting for the tasks established happens-before with the writes on the pool threads.
+            return Arrays.asList(results);
+        } finally {
+            intermediates.clear();
+        }
+    }
+
+    private ECKey decrypt(String passphrase, @Nullable Intermediates intermediates) throws BadPassphraseException {
         String normalizedPassphrase = Normalizer.normalize(passphrase, Normalizer.Form.NFC);
-        ECKey key = ecMultiply ? decryptEC(normalizedPassphrase) : decryptNoEC(normalizedPassphrase);
+        ECKey key = ecMultiply ? decryptEC(normalizedPassphrase, intermediates) : decryptNoEC(normalizedPassphrase);
         Sha256Hash hash = Sha256Hash.createDouble(key.toAddress(params).toString().getBytes(Charsets.US_ASCII));
         byte[] actualAddressHash = Arrays.copyOfRange(hash.getBytes(), 0, 4);
         if (!Arrays.equals(actualAddressHash, addressHash))
@@ -96,7 +188,7 @@ public class BIP38PrivateKey extends VersionedChecksummedBytes {
 
     private ECKey decryptNoEC(String normalizedPassphrase) {
         try {
-            byte[] derived = SCrypt.scrypt(normalizedPassphrase.getBytes(Charsets.UTF_8), addressHash, 16384, 8, 8, 64);
+            byte[] derived = KeyCrypterScrypt.scrypt(normalizedPassphrase.getBytes(Charsets.UTF_8), addressHash, 16384, 8, 8, 64);
             byte[] key = Arrays.copyOfRange(derived, 32, 64);
             SecretKeySpec keyspec = new SecretKeySpec(key, "AES");
 
@@ -113,19 +205,11 @@ public class BIP38PrivateKey extends VersionedChecksummedBytes {
         }
     }
 
-    private ECKey decryptEC(String normalizedPassphrase) {
+    private ECKey decryptEC(String normalizedPassphrase, @Nullable Intermediates intermediates) {
         try {
             byte[] ownerEntropy = Arrays.copyOfRange(content, 0, 8);
-            byte[] ownerSalt = hasLotAndSequence ? Arrays.copyOfRange(ownerEntropy, 0, 4) : ownerEntropy;
-
-            byte[] passFactorBytes = SCrypt.scrypt(normalizedPassphrase.getBytes(Charsets.UTF_8), ownerSalt, 16384, 8, 8, 32);
-            if (hasLotAndSequence) {
-                byte[] hashBytes = Bytes.concat(passFactorBytes, ownerEntropy);
-                checkState(hashBytes.length == 40);
-                passFactorBytes = Sha256Hash.createDouble(hashBytes).getBytes();
-            }
-            BigInteger passFactor = new BigInteger(1, passFactorBytes);
-            ECKey k = ECKey.fromPrivate(passFactor, true);
+            ECKey k = passFactor(normalizedPassphrase, ownerEntropy, intermediates);
+            BigInteger passFactor = k.getPrivKey();
 
             byte[] salt = Bytes.concat(addressHash, ownerEntropy);
             checkState(salt.length == 12);
@@ -161,6 +245,94 @@ public class BIP38PrivateKey extends VersionedChecksummedBytes {
         }
     }
 
+    /** Returns the pass factor as a key, whose public key is the pass point. */
+    private ECKey passFactor(final String normalizedPassphrase, final byte[] ownerEntropy,
+                             @Nullable final Intermediates intermediates) throws GeneralSecurityException {
+        final byte[] ownerSalt = hasLotAndSequence ? Arrays.copyOfRange(ownerEntropy, 0, 4) : ownerEntropy;
+        if (intermediates == null)
+            return passFactor(passFactorBytes(normalizedPassphrase, ownerSalt), ownerEntropy);
+        final byte[] passphraseBytes = normalizedPassphrase.getBytes(Charsets.UTF_8);
+        // The passphrase is length prefixed, so that no other passphrase and salt can make up the same bytes.
+        final Sha256Hash saltKey = Sha256Hash.create(
+                Bytes.concat(Ints.toByteArray(passphraseBytes.length), passphraseBytes, ownerSalt));
+        final Callable<byte[]> scrypt = new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                intermediates.scryptRuns.incrementAndGet();
+                return passFactorBytes(normalizedPassphrase, ownerSalt);
+            }
+        };
+        if (hasLotAndSequence) {
+            // Lot and sequence go into the pass factor, so only the scrypt result is shared.
+            return passFactor(intermediates.compute(intermediates.passFactorBytes, saltKey, scrypt), ownerEntropy);
+        }
+        return intermediates.compute(intermediates.passFactors, saltKey, new Callable<ECKey>() {
+            @Override
+            public ECKey call() throws Exception {
+                return passFactor(intermediates.compute(intermediates.passFactorBytes, saltKey, scrypt), ownerEntropy);
+            }
+        });
+    }
+
+    private static byte[] passFactorBytes(String normalizedPassphrase, byte[] ownerSalt) throws GeneralSecurityException {
+        return KeyCrypterScrypt.scrypt(normalizedPassphrase.getBytes(Charsets.UTF_8), ownerSalt, 16384, 8, 8, 32);
+    }
+
+    private ECKey passFactor(byte[] passFactorBytes, byte[] ownerEntropy) {
+        if (hasLotAndSequence) {
+            byte[] hashBytes = Bytes.concat(passFactorBytes, ownerEntropy);
+            checkState(hashBytes.length == 40);
+            passFactorBytes = Sha256Hash.createDouble(hashBytes).getBytes();
+        }
+        return ECKey.fromPrivate(new BigInteger(1, passFactorBytes), true);
+    }
+
+    /**
+     * What the keys of a batch have in common, by a hash of the passphrase and owner salt. Each result is computed by
+     * the first thread to need it, whilst others needing the same wait for it.
+     */
+    static class Intermediates {
+        // How many times the passphrase was run through scrypt, which is what the sharing saves.
+        final AtomicInteger scryptRuns = new AtomicInteger();
+        final ConcurrentMap<Sha256Hash, FutureTask<byte[]>> passFactorBytes =
+                new ConcurrentHashMap<Sha256Hash, FutureTask<byte[]>>();
+        final ConcurrentMap<Sha256Hash, FutureTask<ECKey>> passFactors =
+                new ConcurrentHashMap<Sha256Hash, FutureTask<ECKey>>();
+
+        <T> T compute(ConcurrentMap<Sha256Hash, FutureTask<T>> map, Sha256Hash key, Callable<T> callable)
+                throws GeneralSecurityException {
+            FutureTask<T> task = new FutureTask<T>(callable);
+            FutureTask<T> existing = map.putIfAbsent(key, task);
+            if (existing == null) {
+                task.run();
+                existing = task;
+            }
+            try {
+                return existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), GeneralSecurityException.class);
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /** Overwrites the scrypt results with zeros and forgets everything. */
+        void clear() {
+            for (FutureTask<byte[]> task : passFactorBytes.values()) {
+                try {
+                    if (task.isDone())
+                        Arrays.fill(task.get(), (byte) 0);
+                } catch (Exception e) {
+                    // Nothing was computed, so there's nothing to wipe.
+                }
+            }
+            passFactorBytes.clear();
+            passFactors.clear();
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
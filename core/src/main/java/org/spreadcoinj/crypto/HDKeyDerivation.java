@@ -18,6 +18,7 @@ package org.spreadcoinj.crypto;
 
 import org.spreadcoinj.core.ECKey;
 import org.spreadcoinj.core.Utils;
+import org.spreadcoinj.utils.Threading;
 import com.google.common.collect.ImmutableList;
 import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.ECPoint;
@@ -25,7 +26,9 @@ import org.spongycastle.math.ec.ECPoint;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -143,6 +146,99 @@ public final class HDKeyDerivation {
         }
     }
 
+    /**
+     * <p>Derives the public keys of {@code count} consecutive non-hardened children of the given parent, starting at
+     * child number {@code firstChild}. As in {@link #deriveThisOrNextChildKey(DeterministicKey, int)}, a child number
+     * for which derivation fails is skipped and the next one used instead.</p>
+     *
+     * <p>The keys are the same as those derived one by one with their private parts dropped, but deriving many at once
+     * is much faster: the parent's public key and chain code are prepared once per batch, the points are kept in
+     * projective form and converted to affine all together, which needs a single field inversion, and they are never
+     * decoded from their encoding. Large batches are spread over {@link Threading#CPU_POOL}.</p>
+     */
+    public static List<DeterministicKey> deriveChildPubKeys(DeterministicKey parent, int firstChild, int count) {
+        checkArgument(firstChild >= 0 && count >= 0 && firstChild + count >= 0, "Not a range of non-hardened children");
+        final byte[] parentPublicKey = parent.getPubKeyPoint().getEncoded(true);
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        int nextChild = firstChild;
+        while (result.size() < count) {
+            if (nextChild - firstChild - count >= MAX_CHILD_DERIVATION_ATTEMPTS)
+                throw new HDDerivationException("Maximum number of child derivation attempts reached, this is probably an indication of a bug.");
+            int needed = count - result.size();
+            checkArgument(nextChild + needed >= 0, "Not a range of non-hardened children");
+            for (DeterministicKey key : deriveChildPubKeys(parent, parentPublicKey, nextChild, needed))
+                if (key != null)
+                    result.add(key);
+            nextChild += needed;
+        }
+        return result;
+    }
+
+    /** Below this many keys, bulk derivation happens on the calling thread. */
+    private static final int PARALLEL_DERIVATION_THRESHOLD = 64;
+
+    // Returns the keys for the given range of child numbers, with nulls for the ones that can't be derived.
+    private static DeterministicKey[] deriveChildPubKeys(final DeterministicKey parent, final byte[] parentPublicKey,
+                                                         final int firstChild, final int count) {
+        final DeterministicKey[] keys = new DeterministicKey[count];
+        final int numThreads = Runtime.getRuntime().availableProcessors();
+        if (count < PARALLEL_DERIVATION_THRESHOLD) {
+            deriveChildPubKeys(parent, parentPublicKey, firstChild, keys, 0, count);
+            return keys;
+        }
+        final int chunkSize = (count + numThreads - 1) / numThreads;
+        List<Runnable> tasks = new ArrayList<Runnable>(numThreads);
+        for (int start = 0; start < count; start += chunkSize) {
+            final int offset = start;
+            final int length = Math.min(chunkSize, count - start);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    deriveChildPubKeys(parent, parentPublicKey, firstChild, keys, offset, length);
+                }
+            });
+        }
+        Threading.runOnCpuPool(tasks);
+        return keys;
+    }
+
+    private static void deriveChildPubKeys(DeterministicKey parent, byte[] parentPublicKey, int firstChild,
+                                           DeterministicKey[] keys, int offset, int length) {
+        final BigInteger n = ECKey.CURVE.getN();
+        final ECPoint G = ECKey.CURVE.getG();
+        // Sums keep the compression of the point they are called on, so the keys come out compressed.
+        final ECPoint parentPoint = ECKey.compressPoint(parent.getPubKeyPoint());
+        HMac hmac = HDUtils.createHmacSha512Digest(parent.getChainCode());
+        ByteBuffer data = ByteBuffer.allocate(37);
+        ECPoint[] points = new ECPoint[length];
+        byte[][] chainCodes = new byte[length][];
+        int numPoints = 0;
+        int[] indexes = new int[length];
+        for (int i = 0; i < length; i++) {
+            data.clear();
+            data.put(parentPublicKey);
+            data.putInt(firstChild + offset + i);
+            byte[] hash = HDUtils.hmacSha512(hmac, data.array());
+            BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(hash, 0, 32));
+            if (ilInt.compareTo(n) >= 0)
+                continue;
+            ECPoint point = parentPoint.add(G.multiply(ilInt));
+            if (point.isInfinity())
+                continue;
+            indexes[numPoints] = offset + i;
+            chainCodes[numPoints] = Arrays.copyOfRange(hash, 32, 64);
+            points[numPoints++] = point;
+        }
+        if (numPoints < length)
+            points = Arrays.copyOf(points, numPoints);
+        ECKey.CURVE.getCurve().normalizeAll(points);
+        for (int i = 0; i < numPoints; i++) {
+            ChildNumber childNumber = new ChildNumber(firstChild + indexes[i], false);
+            keys[indexes[i]] = new DeterministicKey(HDUtils.append(parent.getPath(), childNumber), chainCodes[i],
+                    points[i], null, parent);
+        }
+    }
+
     public static RawKeyBytes deriveChildKeyBytesFromPrivate(DeterministicKey parent,
                                                               ChildNumber childNumber) throws HDDerivationException {
         checkArgument(parent.hasPrivKey(), "Parent key must have private key bytes for this method.");
@@ -17,8 +17,15 @@
 package org.spreadcoinj.crypto;
 
 import com.google.common.base.Objects;
+import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
+import com.lambdaworks.crypto.PBKDF;
 import com.lambdaworks.crypto.SCrypt;
+import org.spreadcoinj.core.Sha256Hash;
+import org.spreadcoinj.core.Utils;
+import org.spreadcoinj.utils.Threading;
 import org.spreadcoinj.wallet.Protos;
 import org.spreadcoinj.wallet.Protos.ScryptParameters;
 import org.spreadcoinj.wallet.Protos.Wallet.EncryptionType;
@@ -31,10 +38,22 @@ import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.crypto.params.ParametersWithIV;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.Serializable;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -50,6 +69,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>2) Using the AES Key generated above, you then can encrypt and decrypt any bytes using
  * the AES symmetric cipher. Eight bytes of salt is used to prevent dictionary attacks.</p>
+ *
+ * <p>Deriving a key is deliberately slow. With a parallelization parameter (p) above one, the independent scrypt
+ * blocks are mixed in parallel on {@link Threading#CPU_POOL}, so a wallet created with, say, p = 4 costs four times
+ * the work of p = 1 but takes about the same time on a machine with four cores. {@link #deriveKeyAsync(CharSequence)}
+ * runs the derivation off the calling thread altogether. Applications that derive the key for every operation can
+ * also opt in to keeping derived keys for a while with {@link #setDerivedKeyCacheTime(long, TimeUnit)}; cached keys
+ * are overwritten with zeros when they expire.</p>
  */
 public class KeyCrypterScrypt implements KeyCrypter, Serializable {
     private static final Logger log = LoggerFactory.getLogger(KeyCrypterScrypt.class);
@@ -79,9 +105,36 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
         return salt;
     }
 
+    // AES/CBC ciphers, reused by each thread as they are reinitialised for every use anyway.
+    private static final ThreadLocal<BufferedBlockCipher> cipher = new ThreadLocal<BufferedBlockCipher>() {
+        @Override
+        protected BufferedBlockCipher initialValue() {
+            return new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+        }
+    };
+
     // Scrypt parameters.
     private final transient ScryptParameters scryptParameters;
 
+    // Derived keys by a salted hash of the password, so the password itself isn't kept. Only used when
+    // derivedKeyCacheMillis is above zero. Guarded by this.
+    private transient Map<Sha256Hash, CachedKey> derivedKeyCache;
+    private transient byte[] derivedKeyCacheSalt;
+    private transient long derivedKeyCacheMillis;
+
+    private static class CachedKey {
+        final byte[] key;
+        final long expiry;
+
+        CachedKey(byte[] key, long expiry) {
+            this.key = key;
+            this.expiry = expiry;
+        }
+    }
+
+    // Wipes cached keys when they expire. Shared by all instances and created on first use.
+    private static ScheduledExecutorService expiryExecutor;
+
     /**
      * Encryption/Decryption using default parameters and a random salt.
      */
@@ -104,6 +157,21 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
         this.scryptParameters = scryptParametersBuilder.build();
     }
 
+    /**
+     * Encryption/Decryption using custom scrypt parameters and a random salt. Raising the parallelization parameter
+     * makes the key proportionally harder to brute force without making it slower to derive, as long as there are
+     * enough cores to mix the blocks at the same time. Memory use is 128 * r * iterations bytes per block being mixed.
+     *
+     * @param iterations number of scrypt iterations (N), a power of two
+     * @param blockSize the block size parameter (r)
+     * @param parallelization the parallelization parameter (p)
+     */
+    public KeyCrypterScrypt(int iterations, int blockSize, int parallelization) {
+        Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder()
+                .setSalt(ByteString.copyFrom(randomSalt())).setN(iterations).setR(blockSize).setP(parallelization);
+        this.scryptParameters = scryptParametersBuilder.build();
+    }
+
     /**
      * Encryption/ Decryption using specified Scrypt parameters.
      *
@@ -124,7 +192,9 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
     /**
      * Generate AES key.
      *
-     * This is a very slow operation compared to encrypt/ decrypt so it is normally worth caching the result.
+     * This is a very slow operation compared to encrypt/ decrypt so it is normally worth caching the result. If
+     * {@link #setDerivedKeyCacheTime(long, TimeUnit)} was used, a key derived from the same password recently is
+     * returned straight away.
      *
      * @param password    The password to use in key generation
      * @return            The KeyParameter containing the created AES key
@@ -132,9 +202,46 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
      */
     @Override
     public KeyParameter deriveKey(CharSequence password) throws KeyCrypterException {
-        byte[] passwordBytes = null;
+        byte[] passwordBytes = convertToByteArray(password);
+        try {
+            return deriveKey(passwordBytes);
+        } finally {
+            // Zero the password bytes.
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Derives the AES key on {@link Threading#CPU_POOL}, so that the caller, for example a network thread, doesn't
+     * block on it. The scrypt blocks are then mixed one after the other on that thread. The password is read before
+     * this method returns, so the caller may wipe it as soon as it likes. The future fails with a
+     * {@link KeyCrypterException} if the key could not be derived.
+     */
+    public ListenableFuture<KeyParameter> deriveKeyAsync(CharSequence password) {
+        final byte[] passwordBytes = convertToByteArray(password);
+        return Threading.CPU_POOL.submit(new Callable<KeyParameter>() {
+            @Override
+            public KeyParameter call() throws Exception {
+                try {
+                    return deriveKey(passwordBytes);
+                } finally {
+                    Arrays.fill(passwordBytes, (byte) 0);
+                }
+            }
+        });
+    }
+
+    private KeyParameter deriveKey(byte[] passwordBytes) throws KeyCrypterException {
+        Sha256Hash cacheKey = null;
+        synchronized (this) {
+            if (derivedKeyCacheMillis > 0) {
+                cacheKey = derivedKeyCacheKey(passwordBytes);
+                CachedKey cached = derivedKeyCache.get(cacheKey);
+                if (cached != null && cached.expiry > Utils.currentTimeMillis())
+                    return new KeyParameter(cached.key);
+            }
+        }
         try {
-            passwordBytes = convertToByteArray(password);
             byte[] salt = new byte[0];
             if ( scryptParameters.getSalt() != null) {
                 salt = scryptParameters.getSalt().toByteArray();
@@ -144,16 +251,126 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
                 log.warn("You are using a ScryptParameters with no salt. Your encryption may be vulnerable to a dictionary attack.");
             }
 
-            byte[] keyBytes = SCrypt.scrypt(passwordBytes, salt, (int) scryptParameters.getN(), scryptParameters.getR(), scryptParameters.getP(), KEY_LENGTH);
-            return new KeyParameter(keyBytes);
+            byte[] keyBytes = scrypt(passwordBytes, salt, (int) scryptParameters.getN(), scryptParameters.getR(), scryptParameters.getP(), KEY_LENGTH);
+            KeyParameter key = new KeyParameter(keyBytes);
+            if (cacheKey != null)
+                cacheDerivedKey(cacheKey, keyBytes);
+            return key;
         } catch (Exception e) {
             throw new KeyCrypterException("Could not generate key from password and salt.", e);
+        }
+    }
+
+    /**
+     * Computes scrypt as {@link SCrypt#scrypt(byte[], byte[], int, int, int, int)} does, except that with p above one
+     * the blocks are mixed in parallel when there is more than one CPU.
+     */
+    static byte[] scrypt(byte[] passwd, byte[] salt, int N, final int r, int p, int dkLen)
+            throws GeneralSecurityException {
+        if (p < 2)
+            return SCrypt.scrypt(passwd, salt, N, r, p, dkLen);
+        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+        if (N > Integer.MAX_VALUE / 128 / r) throw new IllegalArgumentException("Parameter N is too large");
+        if (r > Integer.MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(passwd, "HmacSHA256"));
+        final byte[] B = new byte[128 * r * p];
+        PBKDF.pbkdf2(mac, salt, 1, B, B.length);
+        final int blockLength = 128 * r;
+        final int n = N;
+        if (Runtime.getRuntime().availableProcessors() < 2 || Threading.isCpuPoolThread()) {
+            // One block after the other, reusing the scratch space.
+            byte[] XY = new byte[256 * r];
+            byte[] V = new byte[blockLength * N];
+            for (int i = 0; i < p; i++)
+                SCrypt.smix(B, i * blockLength, r, N, V, XY);
+        } else {
+            // Each block is mixed in its own part of B, with its own scratch space.
+            List<Runnable> tasks = new ArrayList<Runnable>(p);
+            for (int i = 0; i < p; i++) {
+                final int offset = i * blockLength;
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        SCrypt.smix(B, offset, r, n, new byte[blockLength * n], new byte[256 * r]);
+                    }
+                });
+            }
+            Threading.runOnCpuPool(tasks);
+        }
+        byte[] DK = new byte[dkLen];
+        PBKDF.pbkdf2(mac, B, 1, DK, dkLen);
+        Arrays.fill(B, (byte) 0);
+        return DK;
+    }
+
+    /**
+     * Keeps keys derived by this crypter for the given time, so that deriving the key from the same password again
+     * returns at once. Cached keys are overwritten with zeros when they expire, or when caching is switched off by
+     * passing a time of zero, which is the default. Callers get their own copy of a cached key, which they remain
+     * responsible for.
+     */
+    public synchronized void setDerivedKeyCacheTime(long time, TimeUnit unit) {
+        checkArgument(time >= 0);
+        derivedKeyCacheMillis = unit.toMillis(time);
+        if (derivedKeyCacheMillis == 0) {
+            clearDerivedKeyCache();
+        } else if (derivedKeyCache == null) {
+            derivedKeyCache = new HashMap<Sha256Hash, CachedKey>();
+            derivedKeyCacheSalt = randomSalt();
+        }
+    }
+
+    /** Overwrites all cached derived keys with zeros and forgets them. */
+    public synchronized void clearDerivedKeyCache() {
+        if (derivedKeyCache == null)
+            return;
+        for (CachedKey cached : derivedKeyCache.values())
+            Arrays.fill(cached.key, (byte) 0);
+        derivedKeyCache.clear();
+    }
+
+    /** Returns the number of derived keys currently cached. */
+    synchronized int getDerivedKeyCacheSize() {
+        return derivedKeyCache == null ? 0 : derivedKeyCache.size();
+    }
+
+    private Sha256Hash derivedKeyCacheKey(byte[] passwordBytes) {
+        byte[] salted = Bytes.concat(derivedKeyCacheSalt, passwordBytes);
+        try {
+            return Sha256Hash.create(salted);
         } finally {
-            // Zero the password bytes.
-            if (passwordBytes != null) {
-                java.util.Arrays.fill(passwordBytes, (byte) 0);
+            Arrays.fill(salted, (byte) 0);
+        }
+    }
+
+    private synchronized void cacheDerivedKey(final Sha256Hash cacheKey, byte[] keyBytes) {
+        if (derivedKeyCacheMillis == 0)
+            return;  // Switched off whilst we were deriving.
+        final CachedKey cached = new CachedKey(Arrays.copyOf(keyBytes, keyBytes.length),
+                Utils.currentTimeMillis() + derivedKeyCacheMillis);
+        CachedKey replaced = derivedKeyCache.put(cacheKey, cached);
+        if (replaced != null)
+            Arrays.fill(replaced.key, (byte) 0);
+        getExpiryExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (KeyCrypterScrypt.this) {
+                    if (derivedKeyCache.get(cacheKey) == cached)
+                        derivedKeyCache.remove(cacheKey);
+                    Arrays.fill(cached.key, (byte) 0);
+                }
             }
+        }, derivedKeyCacheMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getExpiryExecutor() {
+        if (expiryExecutor == null) {
+            expiryExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("KeyCrypterScrypt cache expiry").build());
         }
+        return expiryExecutor;
     }
 
     /**
@@ -172,7 +389,7 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
             ParametersWithIV keyWithIv = new ParametersWithIV(aesKey, iv);
 
             // Encrypt using AES.
-            BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+            BufferedBlockCipher cipher = KeyCrypterScrypt.cipher.get();
             cipher.init(true, keyWithIv);
             byte[] encryptedBytes = new byte[cipher.getOutputSize(plainBytes.length)];
             final int length1 = cipher.processBytes(plainBytes, 0, plainBytes.length, encryptedBytes, 0);
@@ -201,7 +418,7 @@ public class KeyCrypterScrypt implements KeyCrypter, Serializable {
             ParametersWithIV keyWithIv = new ParametersWithIV(new KeyParameter(aesKey.getKey()), privateKeyToDecode.initialisationVector);
 
             // Decrypt the message.
-            BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+            BufferedBlockCipher cipher = KeyCrypterScrypt.cipher.get();
             cipher.init(false, keyWithIv);
 
             byte[] cipherBytes = privateKeyToDecode.encryptedBytes;
@@ -0,0 +1,73 @@
+package org.spreadcoinj.crypto;
+
+import org.spreadcoinj.core.ECKey;
+import org.spreadcoinj.core.Sha256Hash;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+import org.spongycastle.math.ec.ECMultiplier;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Creates ECDSA signatures together with their recovery id, the index that tells
+ * {@link ECKey#recoverFromSignature(int, ECKey.ECDSASignature, Sha256Hash, boolean)} which of the up to four candidate
+ * public keys is the signing one.</p>
+ *
+ * <p>A generic ECDSA signer throws away the nonce point R = k*G once it has r, so the recovery id has to be found
+ * afterwards by trying to recover the public key with each id in turn, every attempt costing several point
+ * multiplications. Here it is read straight off R instead: bit 0 is the parity of its y coordinate and bit 1 is set
+ * if its x coordinate was reduced modulo the curve order to get r. Canonicalising s negates R, which flips the parity
+ * bit. The nonce is derived deterministically as per RFC 6979, so signatures are identical to those of the generic
+ * signer.</p>
+ */
+public class RecoverableECDSASigner {
+    private static final ECMultiplier MULTIPLIER = new FixedPointCombMultiplier();
+
+    /**
+     * Signs the given hash with the given private key. The returned signature is canonical and its header byte is
+     * 27 plus the recovery id, i.e. the header for an uncompressed public key.
+     */
+    public static ECKey.ECDSASignature sign(Sha256Hash input, BigInteger privateKey) {
+        checkNotNull(privateKey);
+        final BigInteger n = ECKey.CURVE.getN();
+        checkArgument(privateKey.signum() > 0 && privateKey.compareTo(n) < 0, "Private key out of range");
+        final byte[] message = input.getBytes();
+        // The message is a 256 bit hash and so is the order, so it needs no truncation.
+        final BigInteger e = new BigInteger(1, message);
+        HMacDSAKCalculator kCalculator = new HMacDSAKCalculator(new SHA256Digest());
+        kCalculator.init(n, privateKey, message);
+        while (true) {
+            BigInteger k = kCalculator.nextK();
+            ECPoint point = MULTIPLIER.multiply(ECKey.CURVE.getG(), k).normalize();
+            BigInteger x = point.getAffineXCoord().toBigInteger();
+            BigInteger r = x.mod(n);
+            if (r.signum() == 0)
+                continue;
+            BigInteger s = k.modInverse(n).multiply(e.add(privateKey.multiply(r))).mod(n);
+            if (s.signum() == 0)
+                continue;
+            int recId = (point.getAffineYCoord().toBigInteger().testBit(0) ? 1 : 0) | (x.compareTo(n) >= 0 ? 2 : 0);
+            if (s.compareTo(ECKey.HALF_CURVE_ORDER) > 0) {
+                s = n.subtract(s);
+                recId ^= 1;
+            }
+            return new ECKey.ECDSASignature(r, s, recId + 27);
+        }
+    }
+
+    /**
+     * Returns the recovery id carried in the header byte of a signature made by {@link #sign(Sha256Hash, BigInteger)},
+     * or of a compact message signature, or -1 if the header byte doesn't carry one.
+     */
+    public static int getRecoveryId(ECKey.ECDSASignature signature) {
+        int header = signature.headerByte;
+        if (header < 27 || header > 34)
+            return -1;
+        return (header - 27) & 3;
+    }
+}
@@ -0,0 +1,271 @@
+package org.spreadcoinj.crypto;
+
+import org.spreadcoinj.core.ECKey;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECFieldElement;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.ECPointMap;
+import org.spongycastle.math.ec.custom.sec.SecP256K1Curve;
+import org.spongycastle.math.ec.endo.GLVEndomorphism;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Elliptic curve arithmetic specialised for secp256k1, for verifying signatures and recovering public keys in pure
+ * Java. {@link ECKey} uses it when {@link ECKey#setEngine(ECKey.Engine)} selects it and the native library isn't in use.
+ * It builds on Spongy Castle's secp256k1 field and point arithmetic.</p>
+ *
+ * <p>Verification computes u1*G + u2*Q. Both scalars are split in two halves of about 128 bits with the GLV
+ * endomorphism, and the four half-size multiplications are interleaved so that they share one series of doublings
+ * (Shamir's trick). Each half is recoded in window NAF form against a table of odd multiples of its point. The
+ * table for the generator is computed once with a wide window, so that the generator's part costs few additions. It
+ * also holds the multiples of 2^44 G and 2^88 G, so that the digits of each third of the halves are added in along
+ * with those of the first, sharing 44 doublings. Tables for other points are normally narrow and computed per call,
+ * so that their part needs the full 128 or so doublings. Public keys that are verified against over and over, such as
+ * the wallet's HD roots, can be registered with {@link #addHotKey(byte[])} to keep a wider table in parts like the
+ * generator's, which cuts the doublings to a third and saves decoding the key. Finally, the x coordinate of the result is compared to r without converting it
+ * to affine coordinates, which saves a field inversion.</p>
+ */
+public class Secp256k1 {
+    private static final ECCurve CURVE = ECKey.CURVE.getCurve();
+    private static final BigInteger N = ECKey.CURVE.getN();
+    private static final BigInteger P = SecP256K1Curve.q;
+    private static final GLVEndomorphism ENDOMORPHISM = (GLVEndomorphism) CURVE.getEndomorphism();
+
+    /**
+     * The window width of the table for the generator, which has 2^(width-2) points for each of its parts, and the
+     * same again for λ times them.
+     */
+    public static final int GENERATOR_WINDOW = 10;
+    /** The window width of the tables kept for hot keys. */
+    public static final int HOT_KEY_WINDOW = 8;
+    /** The window width of the tables computed for each call. */
+    private static final int WINDOW = 5;
+    /** How many hot keys are kept at most. When more are added, the least recently used is dropped. */
+    public static final int MAX_HOT_KEYS = 32;
+    // The tables for the generator and hot keys hold the multiples of P, 2^SPLIT P and so on, in this many parts. The
+    // halves of the scalars are about 128 bits.
+    private static final int PARTS = 3;
+    private static final int SPLIT = 44;
+
+    private static final Table GENERATOR = new Table(ECKey.CURVE.getG(), GENERATOR_WINDOW, PARTS);
+
+    // Guarded by itself. In access order, so it can drop the least recently used key.
+    private static final LinkedHashMap<ByteBuffer, Table> hotKeys = new LinkedHashMap<ByteBuffer, Table>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Table> eldest) {
+            return size() > MAX_HOT_KEYS;
+        }
+    };
+
+    /**
+     * Odd multiples P, 3P, 5P ... of a point, and the same of λP, all in affine coordinates. Each part after the first
+     * holds the same for 2^SPLIT times the point of the part before.
+     */
+    private static class Table {
+        final int width;
+        // Indexed by part, then by digit / 2.
+        final ECPoint[][] points;
+        final ECPoint[][] lambdaPoints;
+
+        Table(ECPoint point, int width, int parts) {
+            this.width = width;
+            int size = 1 << (width - 2);
+            ECPoint[] all = new ECPoint[parts * size];
+            ECPoint base = point;
+            for (int part = 0; part < parts; part++) {
+                if (part > 0)
+                    base = base.timesPow2(SPLIT);
+                ECPoint twice = base.twice();
+                all[part * size] = base;
+                for (int i = 1; i < size; i++)
+                    all[part * size + i] = all[part * size + i - 1].add(twice);
+            }
+            // One field inversion for the lot.
+            CURVE.normalizeAll(all);
+            // λ(x, y) = (βx, y), so this needs no more than a multiplication per point.
+            ECPointMap map = ENDOMORPHISM.getPointMap();
+            points = new ECPoint[parts][size];
+            lambdaPoints = new ECPoint[parts][size];
+            for (int part = 0; part < parts; part++) {
+                for (int i = 0; i < size; i++) {
+                    points[part][i] = all[part * size + i];
+                    lambdaPoints[part][i] = map.map(points[part][i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps a wide precomputed table for the given public key, which makes verifying against it faster. This is worth
+     * it for keys that many signatures are checked against. Adding takes about as long as a few verifications, and
+     * adding a key that is already kept only marks it as recently used.
+     *
+     * @throws IllegalArgumentException if the public key can't be decoded.
+     */
+    public static void addHotKey(byte[] pubKey) {
+        ByteBuffer key = ByteBuffer.wrap(pubKey.clone());
+        synchronized (hotKeys) {
+            if (hotKeys.get(key) != null)
+                return;
+        }
+        Table table = new Table(CURVE.decodePoint(pubKey), HOT_KEY_WINDOW, PARTS);
+        synchronized (hotKeys) {
+            hotKeys.put(key, table);
+        }
+    }
+
+    /** Forgets the table for the given public key, returning whether there was one. */
+    public static boolean removeHotKey(byte[] pubKey) {
+        synchronized (hotKeys) {
+            return hotKeys.remove(ByteBuffer.wrap(pubKey)) != null;
+        }
+    }
+
+    /** Returns whether a table is kept for the given public key. */
+    public static boolean isHotKey(byte[] pubKey) {
+        synchronized (hotKeys) {
+            return hotKeys.containsKey(ByteBuffer.wrap(pubKey));
+        }
+    }
+
+    /**
+     * Verifies an ECDSA signature over the given hash against the encoded public key.
+     *
+     * @throws IllegalArgumentException if the public key can't be decoded.
+     */
+    public static boolean verify(byte[] hash, BigInteger r, BigInteger s, byte[] pubKey) {
+        if (!inRange(r) || !inRange(s))
+            return false;  // Don't bother decoding.
+        Table table;
+        synchronized (hotKeys) {
+            table = hotKeys.get(ByteBuffer.wrap(pubKey));
+        }
+        if (table == null)
+            table = new Table(CURVE.decodePoint(pubKey), WINDOW, 1);
+        return verifyInRange(hash, r, s, table);
+    }
+
+    /** Verifies an ECDSA signature over the given hash against the public key point. */
+    public static boolean verify(byte[] hash, BigInteger r, BigInteger s, ECPoint pubKey) {
+        if (!inRange(r) || !inRange(s))
+            return false;  // Don't bother building a table.
+        return verifyInRange(hash, r, s, new Table(pubKey, WINDOW, 1));
+    }
+
+    private static boolean verifyInRange(byte[] hash, BigInteger r, BigInteger s, Table pubKey) {
+        BigInteger e = new BigInteger(1, hash);
+        if (hash.length * 8 > N.bitLength())
+            e = e.shiftRight(hash.length * 8 - N.bitLength());
+        BigInteger w = s.modInverse(N);
+        BigInteger u1 = e.multiply(w).mod(N);
+        BigInteger u2 = r.multiply(w).mod(N);
+        ECPoint point = sumOfTwoMultiplies(u1, GENERATOR, u2, pubKey);
+        if (point.isInfinity())
+            return false;
+        return xEquals(point, r) || (r.add(N).compareTo(P) < 0 && xEquals(point, r.add(N)));
+    }
+
+    /** Returns whether the affine x coordinate of the point is the given value. */
+    private static boolean xEquals(ECPoint point, BigInteger x) {
+        if (CURVE.getCoordinateSystem() != ECCurve.COORD_JACOBIAN) {
+            point = point.normalize();
+            return point.getAffineXCoord().toBigInteger().equals(x);
+        }
+        // In Jacobian coordinates, the affine x is X / Z^2.
+        ECFieldElement z = point.getZCoord(0);
+        return CURVE.fromBigInteger(x).multiply(z.square()).equals(point.getXCoord());
+    }
+
+    /** Returns a*G + b*Q. */
+    public static ECPoint sumOfTwoMultiplies(BigInteger a, ECPoint q, BigInteger b) {
+        return sumOfTwoMultiplies(a, GENERATOR, b, new Table(q, WINDOW, 1)).normalize();
+    }
+
+    private static ECPoint sumOfTwoMultiplies(BigInteger a, Table p, BigInteger b, Table q) {
+        BigInteger[] as = ENDOMORPHISM.decomposeScalar(a.mod(N));
+        BigInteger[] bs = ENDOMORPHISM.decomposeScalar(b.mod(N));
+        // a*P = a0*P + a1*λP, and likewise for b.
+        ECPoint[][][] tables = { p.points, p.lambdaPoints, q.points, q.lambdaPoints };
+        BigInteger[] scalars = { as[0], as[1], bs[0], bs[1] };
+        int[] widths = { p.width, p.width, q.width, q.width };
+        int[][] nafs = new int[4][];
+        boolean[] negative = new boolean[4];
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            negative[i] = scalars[i].signum() < 0;
+            nafs[i] = windowNaf(widths[i], scalars[i].abs());
+            // Digit k*SPLIT + j of a table in parts is added at bit j from part k, or from the last part if there are
+            // no more, so the doublings needed are those of the first part or what is left for the last.
+            int last = tables[i].length - 1;
+            length = Math.max(length, Math.max(Math.min(SPLIT, nafs[i].length), nafs[i].length - last * SPLIT));
+        }
+        ECPoint result = CURVE.getInfinity();
+        for (int bit = length - 1; bit >= 0; bit--) {
+            result = result.twice();
+            for (int i = 0; i < 4; i++) {
+                int last = tables[i].length - 1;
+                for (int part = bit < SPLIT ? 0 : last; part <= last; part++) {
+                    int index = bit + part * SPLIT;
+                    if (index >= nafs[i].length)
+                        break;
+                    int digit = nafs[i][index];
+                    if (digit == 0)
+                        continue;
+                    ECPoint point = tables[i][part][Math.abs(digit) >>> 1];
+                    result = result.add((digit < 0) != negative[i] ? point.negate() : point);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the window NAF of a non-negative k, least significant digit first: odd digits of absolute value less
+     * than 2^(width-1), each followed by at least width-1 zeros. Unlike Spongy Castle's, this allows wide windows.
+     */
+    static int[] windowNaf(int width, BigInteger k) {
+        int length = k.bitLength() + 1;
+        int[] naf = new int[length];
+        // Little endian 32 bit words, with a spare one to read windows off the end.
+        int[] words = new int[(length + 31) / 32 + 1];
+        byte[] bytes = k.toByteArray();
+        for (int i = 0; i < bytes.length; i++) {
+            int bitIndex = (bytes.length - 1 - i) * 8;
+            if (bitIndex / 32 < words.length)
+                words[bitIndex / 32] |= (bytes[i] & 0xff) << (bitIndex % 32);
+        }
+        int carry = 0;
+        int bit = 0;
+        while (bit < length) {
+            if (bits(words, bit, 1) == carry) {
+                bit++;
+                continue;
+            }
+            int now = Math.min(width, length - bit);
+            int word = bits(words, bit, now) + carry;
+            carry = (word >> (width - 1)) & 1;
+            word -= carry << width;
+            naf[bit] = word;
+            bit += now;
+        }
+        return naf;
+    }
+
+    private static int bits(int[] words, int bit, int count) {
+        int index = bit >>> 5;
+        int offset = bit & 31;
+        long value = (words[index] & 0xFFFFFFFFL) >>> offset;
+        if (offset + count > 32)
+            value |= (words[index + 1] & 0xFFFFFFFFL) << (32 - offset);
+        return (int) (value & ((1L << count) - 1));
+    }
+
+    private static boolean inRange(@Nullable BigInteger value) {
+        return value != null && value.signum() > 0 && value.compareTo(N) < 0;
+    }
+}
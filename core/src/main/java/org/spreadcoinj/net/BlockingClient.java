@@ -16,9 +16,11 @@
 
 package org.spreadcoinj.net;
 
+import org.spreadcoinj.utils.Threading;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,6 +30,9 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -38,15 +43,32 @@ import static com.google.common.base.Preconditions.checkState;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements SharedBufferWriteTarget, ReadPausableWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
-    private final ByteBuffer dbuf;
+    private static final int WRITE_CHUNK_SIZE = 8192;
+
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    // Locks rather than monitors, as a virtual thread that blocks while holding a monitor pins its carrier thread.
+    private final ReentrantLock writeLock = Threading.lock("blockingClientWrite");
+    @GuardedBy("writeLock") private byte[] writeChunk;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // The network thread waits for readResumed while reads are paused.
+    private final ReentrantLock readPauseLock = Threading.lock("blockingClientReadPause");
+    private final Condition readResumed = readPauseLock.newCondition();
+    @GuardedBy("readPauseLock") private boolean readPaused = false;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -62,29 +84,61 @@ public class BlockingClient implements MessageWriteTarget {
      */
     public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
                           final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, parser, connectTimeoutMillis, socketFactory, clientSet, DAEMON_THREAD_FACTORY, null);
+    }
+
+    /**
+     * <p>Creates a new client as above, but with its network thread made by the given factory, which may for instance
+     * make virtual threads, and optionally with its read buffer taken from a pool.</p>
+     *
+     * <p>A pooled read buffer is only held while there are unprocessed bytes in it, and in between the client waits
+     * for data with just a small array. So thousands of mostly idle connections don't each hold a full size buffer.</p>
+     *
+     * @param threadFactory Makes the thread that connects and then reads from the connection.
+     * @param readBufferPool Where to get read buffers from, or null to allocate one for the life of the connection.
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
+                          final int connectTimeoutMillis, final SocketFactory socketFactory,
+                          @Nullable final Set<BlockingClient> clientSet, ThreadFactory threadFactory,
+                          @Nullable final DirectBufferPool readBufferPool) throws IOException {
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesnt get too large or have to call read too often.
-        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        final int bufferSize = Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
         parser.setWriteTarget(this);
         socket = socketFactory.createSocket();
-        Thread t = new Thread() {
+        Runnable runnable = new Runnable() {
             @Override
             public void run() {
                 if (clientSet != null)
                     clientSet.add(BlockingClient.this);
+                ByteBuffer dbuf = null;
                 try {
                     InetSocketAddress iServerAddress = (InetSocketAddress)serverAddress;
                     socket.connect(serverAddress, connectTimeoutMillis);
                     parser.connectionOpened();
                     InputStream stream = socket.getInputStream();
-                    byte[] readBuff = new byte[dbuf.capacity()];
+                    // Without a pool the buffer is ours for good. With one, we read into a small array that always
+                    // fits into a fresh buffer, and only take a buffer once there's something to put in it.
+                    if (readBufferPool == null)
+                        dbuf = ByteBuffer.allocateDirect(bufferSize);
+                    byte[] readBuff = new byte[readBufferPool == null ? bufferSize : BUFFER_SIZE_LOWER_BOUND];
 
                     while (true) {
                         // TODO Kill the message duplication here
-                        checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-                        int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+                        int maxRead = dbuf == null ? readBuff.length : Math.min(dbuf.remaining(), readBuff.length);
+                        checkState(maxRead > 0);
+                        readPauseLock.lock();
+                        try {
+                            while (readPaused && !vCloseRequested)
+                                readResumed.await();
+                        } finally {
+                            readPauseLock.unlock();
+                        }
+                        int read = stream.read(readBuff, 0, Math.max(1, Math.min(maxRead, stream.available())));
                         if (read == -1)
                             return;
+                        if (dbuf == null)
+                            dbuf = readBufferPool.acquire(bufferSize);
                         dbuf.put(readBuff, 0, read);
                         // "flip" the buffer - setting the limit to the current position and setting position to 0
                         dbuf.flip();
@@ -95,6 +149,10 @@ public class BlockingClient implements MessageWriteTarget {
                         // Now drop the bytes which were read by compacting dbuf (resetting limit and keeping relative
                         // position)
                         dbuf.compact();
+                        if (readBufferPool != null && dbuf.position() == 0) {
+                            readBufferPool.release(dbuf);
+                            dbuf = null;
+                        }
                     }
                 } catch (Exception e) {
                     if (!vCloseRequested)
@@ -105,14 +163,16 @@ public class BlockingClient implements MessageWriteTarget {
                     } catch (IOException e1) {
                         // At this point there isn't much we can do, and we can probably assume the channel is closed
                     }
+                    if (readBufferPool != null && dbuf != null)
+                        readBufferPool.release(dbuf);
                     if (clientSet != null)
                         clientSet.remove(BlockingClient.this);
                     parser.connectionClosed();
                 }
             }
         };
+        Thread t = threadFactory.newThread(runnable);
         t.setName("BlockingClient network thread for " + serverAddress);
-        t.setDaemon(true);
         t.start();
     }
 
@@ -125,6 +185,12 @@ public class BlockingClient implements MessageWriteTarget {
         // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
         try {
             vCloseRequested = true;
+            readPauseLock.lock();
+            try {
+                readResumed.signalAll();
+            } finally {
+                readPauseLock.unlock();
+            }
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -132,7 +198,19 @@ public class BlockingClient implements MessageWriteTarget {
     }
 
     @Override
-    public synchronized void writeBytes(byte[] message) throws IOException {
+    public void setReadPaused(boolean paused) {
+        readPauseLock.lock();
+        try {
+            readPaused = paused;
+            readResumed.signalAll();
+        } finally {
+            readPauseLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeBytes(byte[] message) throws IOException {
+        writeLock.lock();
         try {
             OutputStream stream = socket.getOutputStream();
             stream.write(message);
@@ -141,6 +219,33 @@ public class BlockingClient implements MessageWriteTarget {
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeBuffer(SharedBuffer buffer) throws IOException {
+        // Blocking streams want arrays, so the bytes are copied out in chunks. We're done with the buffer on return.
+        writeLock.lock();
+        try {
+            OutputStream stream = socket.getOutputStream();
+            if (writeChunk == null)
+                writeChunk = new byte[WRITE_CHUNK_SIZE];
+            for (ByteBuffer view : buffer.newViews()) {
+                while (view.hasRemaining()) {
+                    int length = Math.min(view.remaining(), writeChunk.length);
+                    view.get(writeChunk, 0, length);
+                    stream.write(writeChunk, 0, length);
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        } finally {
+            writeLock.unlock();
         }
     }
 }
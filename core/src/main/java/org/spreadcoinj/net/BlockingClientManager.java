@@ -18,6 +18,7 @@ package org.spreadcoinj.net;
 
 import com.google.common.util.concurrent.AbstractIdleService;
 
+import javax.annotation.Nullable;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.net.SocketAddress;
@@ -25,6 +26,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -37,12 +39,14 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
     private final SocketFactory socketFactory;
+    @Nullable private final ThreadFactory threadFactory;
+    @Nullable private final DirectBufferPool readBufferPool;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
 
     private int connectTimeoutMillis = 1000;
 
     public BlockingClientManager() {
-        socketFactory = SocketFactory.getDefault();
+        this(SocketFactory.getDefault());
     }
 
     /**
@@ -51,6 +55,20 @@ public class BlockingClientManager extends AbstractIdleService implements Client
      */
     public BlockingClientManager(SocketFactory socketFactory) {
         this.socketFactory = checkNotNull(socketFactory);
+        this.threadFactory = null;
+        this.readBufferPool = null;
+    }
+
+    /**
+     * Creates a blocking client manager whose clients run on threads from the given factory and take their read
+     * buffers from the given pool, see
+     * {@link BlockingClient#BlockingClient(SocketAddress, StreamParser, int, SocketFactory, Set, ThreadFactory, DirectBufferPool)}.
+     */
+    protected BlockingClientManager(SocketFactory socketFactory, ThreadFactory threadFactory,
+                                    @Nullable DirectBufferPool readBufferPool) {
+        this.socketFactory = checkNotNull(socketFactory);
+        this.threadFactory = checkNotNull(threadFactory);
+        this.readBufferPool = readBufferPool;
     }
 
     @Override
@@ -58,7 +76,11 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         if (!isRunning())
             throw new IllegalStateException();
         try {
-            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients);
+            if (threadFactory == null)
+                new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients);
+            else
+                new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients, threadFactory,
+                        readBufferPool);
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
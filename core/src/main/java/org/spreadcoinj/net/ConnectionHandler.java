@@ -41,13 +41,15 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements SharedBufferWriteTarget, ReadPausableWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // How many buffers are handed to a single gathering write at most. Operating systems limit this (IOV_MAX).
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -59,7 +61,43 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final LinkedList<PendingWrite> bytesToWrite = new LinkedList<PendingWrite>();
+    @GuardedBy("lock") private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+
+    // A queued message: the buffers to write in order, and the shared buffer they are views of, if any.
+    private static class PendingWrite {
+        final ByteBuffer[] buffers;
+        @Nullable final SharedBuffer owner;
+
+        PendingWrite(ByteBuffer buffer, @Nullable SharedBuffer owner) {
+            this(new ByteBuffer[] { buffer }, owner);
+        }
+
+        PendingWrite(ByteBuffer[] buffers, @Nullable SharedBuffer owner) {
+            this.buffers = buffers;
+            this.owner = owner;
+        }
+
+        long remaining() {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers)
+                remaining += buffer.remaining();
+            return remaining;
+        }
+
+        boolean hasRemaining() {
+            for (ByteBuffer buffer : buffers)
+                if (buffer.hasRemaining())
+                    return true;
+            return false;
+        }
+
+        // Called once the write is finished or dropped.
+        void done() {
+            if (owner != null)
+                owner.release();
+        }
+    }
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -112,18 +150,7 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
-                }
-            }
+            writeQueued();
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty())
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
@@ -133,22 +160,74 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Pushes as much of the outbound queue as possible into the OS' network buffer, registering for OP_WRITE if some
+    // is left. Several queued buffers (and the segments of each) are handed to the channel in one gathering write.
+    @GuardedBy("lock")
+    private void writeQueued() throws IOException {
+        while (!bytesToWrite.isEmpty()) {
+            int count = 0;
+            long gathered = 0;
+            for (PendingWrite write : bytesToWrite) {
+                if (count + write.buffers.length > MAX_GATHERED_BUFFERS && count > 0)
+                    break;
+                for (ByteBuffer buffer : write.buffers) {
+                    gatherBuffers[count++] = buffer;
+                    gathered += buffer.remaining();
+                }
+            }
+            long written = channel.write(gatherBuffers, 0, count);
+            Arrays.fill(gatherBuffers, 0, count, null);
+            bytesToWriteRemaining -= written;
+            while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining())
+                bytesToWrite.poll().done();
+            if (written < gathered) {
+                setWriteOps();
+                return;
+            }
+        }
+    }
+
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        queue(new PendingWrite(ByteBuffer.wrap(message), null), true);
+    }
+
+    @Override
+    public void writeBuffer(SharedBuffer buffer) throws IOException {
+        queue(new PendingWrite(buffer.retain().newViews(), buffer), false);
+    }
+
+    private void queue(PendingWrite write, boolean copyRemainder) throws IOException {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            // append to it when we want to send a message. If nothing is queued ahead of it we try to write it right
+            // away, and otherwise let tryWriteBytes() send it once the SelectionKey says there's free outbound buffer
+            // space available.
+            if (!key.isValid()) {
+                // The connection was closed.
+                write.done();
+                throw new CancelledKeyException();
+            }
+            long size = write.remaining();
+            if (bytesToWriteRemaining + size > OUTBOUND_BUFFER_BYTE_COUNT) {
+                write.done();
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
+            }
+            boolean wasEmpty = bytesToWrite.isEmpty();
+            // The caller may reuse its array once we return, so copy whatever we can't write right away. Shared
+            // buffers are immutable and are queued as they are.
+            bytesToWrite.offer(write);
+            bytesToWriteRemaining += size;
+            if (wasEmpty)
+                writeQueued();
+            if (copyRemainder && write.hasRemaining()) {
+                ByteBuffer remainder = write.buffers[0];
+                byte[] copy = new byte[remainder.remaining()];
+                remainder.get(copy);
+                write.buffers[0] = ByteBuffer.wrap(copy);
+            }
         } catch (IOException e) {
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
@@ -163,6 +242,24 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public void setReadPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                // A read that was already selected may still go through, which is harmless.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection was closed, there is nothing left to read from.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -180,6 +277,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so let go of the shared buffers.
+            for (PendingWrite write : bytesToWrite)
+                write.done();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
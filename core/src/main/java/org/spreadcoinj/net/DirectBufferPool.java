@@ -0,0 +1,96 @@
+package org.spreadcoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps direct {@link ByteBuffer}s for reuse, so that the network code doesn't have to allocate (and later free)
+ * native memory for every message it sends. Buffers come in size classes of powers of two, starting at
+ * {@link #MIN_BUFFER_SIZE}. Requests larger than the largest pooled size are given a fresh buffer that is not kept
+ * when released.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class DirectBufferPool {
+    /** The size of the smallest size class. */
+    public static final int MIN_BUFFER_SIZE = 4096;
+
+    private final int maxBufferSize;
+    private final int maxBytesPerSizeClass;
+    // Indexed by size class, each guarded by itself.
+    private final ArrayDeque<ByteBuffer>[] free;
+
+    /**
+     * @param maxBufferSize The largest size that is pooled, rounded up to a power of two.
+     * @param maxBytesPerSizeClass How many bytes worth of free buffers to keep at most in each size class. At least
+     *                             one buffer is kept in each class regardless.
+     */
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(int maxBufferSize, int maxBytesPerSizeClass) {
+        checkArgument(maxBufferSize >= MIN_BUFFER_SIZE);
+        this.maxBufferSize = sizeOf(sizeClass(maxBufferSize));
+        this.maxBytesPerSizeClass = maxBytesPerSizeClass;
+        free = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[sizeClass(this.maxBufferSize) + 1];
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ArrayDeque<ByteBuffer>();
+    }
+
+    /**
+     * Returns a direct buffer with at least the given capacity, cleared and with its limit set to the given size. It
+     * should be handed back with {@link #release(ByteBuffer)} once nothing reads it any more.
+     */
+    public ByteBuffer acquire(int size) {
+        checkArgument(size >= 0);
+        ByteBuffer buffer = null;
+        if (size <= maxBufferSize) {
+            int sizeClass = sizeClass(size);
+            ArrayDeque<ByteBuffer> buffers = free[sizeClass];
+            synchronized (buffers) {
+                buffer = buffers.pollFirst();
+            }
+            if (buffer == null)
+                buffer = ByteBuffer.allocateDirect(sizeOf(sizeClass));
+        } else {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /** Gives a buffer obtained from {@link #acquire(int)} back to the pool. The caller must not touch it afterwards. */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > maxBufferSize || capacity != sizeOf(sizeClass(capacity)))
+            return;  // Not one of ours, let the garbage collector have it.
+        ArrayDeque<ByteBuffer> buffers = free[sizeClass(capacity)];
+        synchronized (buffers) {
+            if (buffers.isEmpty() || (buffers.size() + 1) * (long) capacity <= maxBytesPerSizeClass)
+                buffers.addFirst(buffer);
+        }
+    }
+
+    /** Returns the number of free buffers kept, for testing. */
+    int getFreeCount() {
+        int count = 0;
+        for (ArrayDeque<ByteBuffer> buffers : free) {
+            synchronized (buffers) {
+                count += buffers.size();
+            }
+        }
+        return count;
+    }
+
+    // Size class 0 is MIN_BUFFER_SIZE, and each class after it doubles.
+    private static int sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    private static int sizeOf(int sizeClass) {
+        return MIN_BUFFER_SIZE << sizeClass;
+    }
+}
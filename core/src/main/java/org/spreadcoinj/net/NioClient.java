@@ -24,7 +24,7 @@ import java.nio.ByteBuffer;
 /**
  * Creates a simple connection to a server using a {@link StreamParser} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements SharedBufferWriteTarget, ReadPausableWriteTarget {
     private final Handler handler;
     private final NioClientManager manager = new NioClientManager();
 
@@ -108,4 +108,16 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffer(SharedBuffer buffer) throws IOException {
+        buffer.writeTo(handler.writeTarget);
+    }
+
+    @Override
+    public void setReadPaused(boolean paused) {
+        MessageWriteTarget writeTarget = handler.writeTarget;
+        if (writeTarget instanceof ReadPausableWriteTarget)
+            ((ReadPausableWriteTarget) writeTarget).setReadPaused(paused);
+    }
 }
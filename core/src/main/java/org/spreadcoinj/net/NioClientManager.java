@@ -18,30 +18,28 @@ package org.spreadcoinj.net;
 
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread, or optionally spreads the connections over several threads each with its own
+ * selector.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
-
-    // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
-    class SocketChannelAndParser {
-        SocketChannel sc; StreamParser parser;
-        SocketChannelAndParser(SocketChannel sc, StreamParser parser) { this.sc = sc; this.parser = parser; }
-    }
-    final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
+    // The first loop runs on the service's own thread, any others on threads of their own.
+    private final NioEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
@@ -80,70 +78,93 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
-        }
+        this(1);
+    }
+
+    /**
+     * <p>Creates a new client manager which uses Java NIO for socket management, spreading the connections over the
+     * given number of threads, each selecting on its own {@link Selector}. A new connection goes to the thread with the
+     * fewest connections at the time and stays there. Passing {@link Runtime#availableProcessors()} lets the number of
+     * connections that can be served grow with the number of cores.</p>
+     *
+     * <p>With more than one thread, the {@link StreamParser}s of different connections may be called at the same time,
+     * so anything they share must be thread safe. {@link org.spreadcoinj.core.Peer}s and
+     * {@link org.spreadcoinj.core.PeerGroup} are.</p>
+     */
+    public NioClientManager(int selectorThreads) {
+        checkArgument(selectorThreads > 0);
+        NioEventLoop.KeyHandler keyHandler = new NioEventLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectionKey key) throws IOException {
+                NioClientManager.this.handleKey(key);
+            }
+        };
+        loops = new NioEventLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            loops[i] = new NioEventLoop(keyHandler);
     }
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                SocketChannelAndParser conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
-                    } catch (ClosedChannelException e) {
-                        log.info("SocketChannel was closed before it could be registered");
-                    }
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        List<Thread> threads = new ArrayList<Thread>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            final NioEventLoop loop = loops[i];
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run();
                 }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: ", e);
+            }, "NioClientManager selector " + i);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            if (isRunning())
+                loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing client manager selector", e);
-            }
+            // Whichever way the first loop ended, the others end with it.
+            for (NioEventLoop loop : loops)
+                loop.stop();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
         }
     }
 
     @Override
-    public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+    public void openConnection(SocketAddress serverAddress, final StreamParser parser) {
         if (!isRunning())
             throw new IllegalStateException();
         // Create a new connection, give it a parser as an attachment
         try {
-            SocketChannel sc = SocketChannel.open();
+            final SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
-            selector.wakeup();
+            final NioEventLoop loop = NioEventLoop.leastLoaded(loops, nextLoop.getAndIncrement());
+            loop.execute(new NioEventLoop.Task() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                        key.attach(parser);
+                    } catch (ClosedChannelException e) {
+                        log.info("SocketChannel was closed before it could be registered");
+                    }
+                }
+
+                @Override
+                public void rejected() {
+                    log.info("Selector thread stopped before the connection could be registered");
+                    try {
+                        sc.close();
+                    } catch (IOException e) {
+                        log.error("Error closing channel", e);
+                    }
+                    parser.connectionClosed();
+                }
+            });
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
@@ -155,7 +176,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (NioEventLoop loop : loops)
+            loop.stop();
     }
 
     @Override
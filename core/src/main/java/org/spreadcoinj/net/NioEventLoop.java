@@ -0,0 +1,188 @@
+package org.spreadcoinj.net;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <p>A {@link Selector} and the thread that selects on it, one of possibly several that {@link NioClientManager} and
+ * {@link NioServer} spread their connections over. A channel stays with the loop it was registered with, so all events
+ * of a connection are handled on one thread, in order.</p>
+ *
+ * <p>Channels can only be registered with a selector while nobody selects on it, so other threads hand work to the
+ * loop with {@link #execute(Task)}. The work is run on the loop's thread before it next selects.</p>
+ *
+ * <p>A loop that has stopped, whether asked to or because of an error, takes no more connections: it is passed over
+ * by {@link #leastLoaded(NioEventLoop[], int)}, the channels it had are closed, and work handed to it is rejected.</p>
+ */
+class NioEventLoop {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+    /** Handles a selected key, or one that was cancelled on shutdown. */
+    interface KeyHandler {
+        void handleKey(SelectionKey key) throws IOException;
+    }
+
+    /** Work for the loop's thread, which is told if the loop stopped before it could be run. */
+    interface Task extends Runnable {
+        /** Called instead of {@link #run()} if the loop has stopped, on whichever thread finds that out. */
+        void rejected();
+    }
+
+    final Selector selector;
+    private final KeyHandler keyHandler;
+    private final Queue<Task> tasks = new LinkedBlockingQueue<Task>();
+    private volatile boolean stopped = false;
+    // Set once run() has finished with the tasks, after which they are rejected. Changes to this and the closing of
+    // the selector are guarded by the loop itself, so that nobody wakes up a closed selector.
+    private volatile boolean terminated = false;
+    private volatile Thread thread;
+    // The number of keys registered, as of the last time round the loop.
+    private volatile int registeredKeys = 0;
+
+    NioEventLoop(KeyHandler keyHandler) {
+        this.keyHandler = keyHandler;
+        try {
+            selector = SelectorProvider.provider().openSelector();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Shouldn't ever happen
+        }
+    }
+
+    /**
+     * Runs the task on the loop's thread: right away when called from it, and otherwise before it next selects. If the
+     * loop has stopped, the task is rejected instead.
+     */
+    void execute(Task task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+            return;
+        }
+        tasks.offer(task);
+        synchronized (this) {
+            if (!terminated) {
+                selector.wakeup();
+                return;
+            }
+        }
+        // The loop is gone, and may have missed the task.
+        rejectTasks();
+    }
+
+    private void rejectTasks() {
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.rejected();
+            } catch (Exception e) {
+                log.error("Error rejecting task", e);
+            }
+        }
+    }
+
+    /** Returns false once the loop has been stopped or has died, after which it takes no new connections. */
+    boolean isAvailable() {
+        return !stopped;
+    }
+
+    /**
+     * Returns roughly how many connections this loop looks after, including those handed to it but not yet
+     * registered, for balancing new connections over loops.
+     */
+    int getLoad() {
+        return registeredKeys + tasks.size();
+    }
+
+    /** Makes {@link #run()} return soon, closing every channel registered with it. */
+    void stop() {
+        stopped = true;
+        synchronized (this) {
+            if (!terminated)
+                selector.wakeup();
+        }
+    }
+
+    /**
+     * Selects and handles keys on the calling thread until {@link #stop()} is called or something goes badly wrong,
+     * then closes all the channels and the selector.
+     */
+    void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!stopped) {
+                Task task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                registeredKeys = selector.keys().size();
+
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    keyHandler.handleKey(key);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error trying to open/read from connection: ", e);
+        } finally {
+            // Whether asked to stop or not, this loop is done: make sure nothing new is handed to it.
+            stopped = true;
+            synchronized (this) {
+                terminated = true;
+            }
+            rejectTasks();
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.error("Error closing channel", e);
+                }
+                key.cancel();
+                if (key.attachment() instanceof ConnectionHandler)
+                    ConnectionHandler.handleKey(key); // Close connection if relevant
+                else if (key.attachment() instanceof StreamParser)
+                    ((StreamParser) key.attachment()).connectionClosed(); // A connection that was still being opened
+            }
+            synchronized (this) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.error("Error closing selector", e);
+                }
+            }
+            registeredKeys = 0;
+            thread = null;
+        }
+    }
+
+    /**
+     * Returns the available loop with the lowest load. Ties go to the first such loop after the one at the given
+     * index, so that a burst of new connections is spread round even before the loads catch up. If no loop is
+     * available, one is returned anyway, which will reject the work handed to it.
+     */
+    static NioEventLoop leastLoaded(NioEventLoop[] loops, int start) {
+        int first = (start & Integer.MAX_VALUE) % loops.length;
+        NioEventLoop best = loops[first];
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < loops.length; i++) {
+            NioEventLoop loop = loops[(first + i) % loops.length];
+            if (!loop.isAvailable())
+                continue;
+            int load = loop.getLoad();
+            if (load < bestLoad) {
+                best = loop;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+}
@@ -19,17 +19,22 @@ package org.spreadcoinj.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
- * process data.
+ * process data. Connections are served on the listening thread, or optionally spread over several threads each with
+ * its own selector.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -37,24 +42,48 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamParserFactory parserFactory;
 
     private final ServerSocketChannel sc;
+    // The first loop accepts connections and runs on the service's own thread, any others on threads of their own.
+    private final NioEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
     @VisibleForTesting final Selector selector;
 
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
+    private void handleKey(SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a parser as an attachment
-            SocketChannel newChannel = sc.accept();
+            // Accept a new connection and hand it to a loop, which gives it a parser as an attachment
+            final SocketChannel newChannel = sc.accept();
+            if (newChannel == null)
+                return;
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
-                newKey.attach(handler);
-                handler.parser.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
-            }
+            final NioEventLoop loop = NioEventLoop.leastLoaded(loops, nextLoop.getAndIncrement());
+            loop.execute(new NioEventLoop.Task() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
+                        try {
+                            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
+                            newKey.attach(handler);
+                            handler.parser.connectionOpened();
+                        } catch (IOException e) {
+                            // This can happen if ConnectionHandler's call to get a new handler returned null
+                            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
+                            newKey.channel().close();
+                        }
+                    } catch (IOException e) {
+                        log.error("Error registering new connection", e);
+                    }
+                }
+
+                @Override
+                public void rejected() {
+                    try {
+                        newChannel.close();
+                    } catch (IOException e) {
+                        log.error("Error closing new connection", e);
+                    }
+                }
+            });
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
@@ -67,51 +96,60 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, 1);
+    }
+
+    /**
+     * Creates a new server as above, which spreads the connections it accepts over the given number of threads, each
+     * selecting on its own {@link Selector}. A new connection goes to the thread with the fewest connections at the
+     * time and stays there, so {@link StreamParser}s of different connections may be called at the same time.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress, int selectorThreads) throws IOException {
+        checkArgument(selectorThreads > 0);
         this.parserFactory = parserFactory;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
+
+        NioEventLoop.KeyHandler keyHandler = new NioEventLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectionKey key) throws IOException {
+                NioServer.this.handleKey(key);
+            }
+        };
+        loops = new NioEventLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            loops[i] = new NioEventLoop(keyHandler);
+        selector = loops[0].selector;
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
-        try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
+        List<Thread> threads = new ArrayList<Thread>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            final NioEventLoop loop = loops[i];
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run();
                 }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            }, "NioServer selector " + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            if (isRunning())
+                loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
+            for (NioEventLoop loop : loops)
+                loop.stop();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
             try {
                 sc.close();
             } catch (IOException e) {
@@ -120,6 +158,11 @@ public class NioServer extends AbstractExecutionThreadService {
         }
     }
 
+    /** Returns the port the server listens on, which is useful when it was bound to port 0. */
+    @VisibleForTesting int getLocalPort() {
+        return sc.socket().getLocalPort();
+    }
+
     /**
      * Invoked by the Execution service when it's time to stop.
      * Calling this method directly will NOT stop the service, call
@@ -127,7 +170,8 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops
+        for (NioEventLoop loop : loops)
+            loop.stop();
     }
 }
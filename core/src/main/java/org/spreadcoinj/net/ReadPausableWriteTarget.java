@@ -0,0 +1,15 @@
+package org.spreadcoinj.net;
+
+/**
+ * A {@link MessageWriteTarget} that can stop reading from the remote server, so that a parser which can't keep up with
+ * the bytes coming in can push back on the sender. Parsers should check for this interface, as targets outside the
+ * library may only implement {@link MessageWriteTarget}.
+ */
+public interface ReadPausableWriteTarget extends MessageWriteTarget {
+    /**
+     * Stops or resumes reading from the remote server. A read that is already underway may still deliver its bytes.
+     * Writes are unaffected. Calls for a connection that has closed are ignored. This never calls back into the
+     * parser, so it may be called with the parser's locks held.
+     */
+    void setReadPaused(boolean paused);
+}
@@ -0,0 +1,108 @@
+package org.spreadcoinj.net;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Bytes to be sent to one or more remote hosts, such as a serialized message, that is written once and then only
+ * read. The bytes live in a single buffer, usually a direct one from a {@link DirectBufferPool}, and are split in
+ * segments (for instance a header and a payload) that are written out together with a gathering write.</p>
+ *
+ * <p>A shared buffer is reference counted, so that the pooled buffer can be reused once every connection it was
+ * handed to has written it out. It starts with one reference, owned by whoever created it. Each
+ * {@link SharedBufferWriteTarget} that queues it takes a reference of its own with {@link #retain()} and drops it with
+ * {@link #release()} when done, so the creator can release its reference as soon as it has handed the buffer to all
+ * the targets it wants to.</p>
+ */
+public class SharedBuffer {
+    @Nullable private final DirectBufferPool pool;
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] segments;
+    private final int size;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Wraps the bytes from position 0 to the limit of the given buffer, which must not be modified afterwards.
+     *
+     * @param pool The pool to give the buffer back to once the last reference is released, or null.
+     * @param segmentLengths The lengths of the segments, which together must make up all the bytes.
+     */
+    public SharedBuffer(@Nullable DirectBufferPool pool, ByteBuffer buffer, int... segmentLengths) {
+        this.pool = pool;
+        this.buffer = buffer;
+        segments = new ByteBuffer[segmentLengths.length];
+        int position = 0;
+        for (int i = 0; i < segmentLengths.length; i++) {
+            ByteBuffer segment = buffer.duplicate();
+            segment.limit(position + segmentLengths[i]).position(position);
+            segments[i] = segment.slice().asReadOnlyBuffer();
+            position += segmentLengths[i];
+        }
+        checkArgument(position == buffer.limit(), "Segments don't cover the buffer");
+        size = position;
+    }
+
+    /** Returns the total number of bytes. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns new read only views of the segments, with their own positions, so that each connection can track how
+     * much of it has been written. The views are only valid while the caller holds a reference.
+     */
+    public ByteBuffer[] newViews() {
+        checkState(references.get() > 0, "Buffer already released");
+        ByteBuffer[] views = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++)
+            views[i] = segments[i].duplicate();
+        return views;
+    }
+
+    /** Copies all of the bytes into a new array. */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (ByteBuffer view : newViews()) {
+            int length = view.remaining();
+            view.get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the bytes to the given target, with {@link SharedBufferWriteTarget#writeBuffer(SharedBuffer)} if it
+     * supports that and otherwise as a copy with {@link MessageWriteTarget#writeBytes(byte[])}. The caller keeps its
+     * reference.
+     */
+    public void writeTo(MessageWriteTarget target) throws IOException {
+        if (target instanceof SharedBufferWriteTarget)
+            ((SharedBufferWriteTarget) target).writeBuffer(this);
+        else
+            target.writeBytes(toByteArray());
+    }
+
+    /** Takes another reference, which must be given up with {@link #release()} in turn. Returns this. */
+    public SharedBuffer retain() {
+        while (true) {
+            int count = references.get();
+            checkState(count > 0, "Buffer already released");
+            if (references.compareAndSet(count, count + 1))
+                return this;
+        }
+    }
+
+    /** Gives up a reference. When the last one is gone, the underlying buffer goes back to its pool. */
+    public void release() {
+        int count = references.decrementAndGet();
+        checkState(count >= 0, "Buffer released too many times");
+        if (count == 0 && pool != null)
+            pool.release(buffer);
+    }
+}
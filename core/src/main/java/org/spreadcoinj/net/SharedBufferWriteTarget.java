@@ -0,0 +1,15 @@
+package org.spreadcoinj.net;
+
+import java.io.IOException;
+
+/**
+ * A {@link MessageWriteTarget} that can write a {@link SharedBuffer} without first copying it into an array. Use
+ * {@link SharedBuffer#writeTo(MessageWriteTarget)} to write to any target, which takes this path where it can.
+ */
+public interface SharedBufferWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the bytes of the given buffer to the remote server. The target takes a reference of its own for as long
+     * as it needs the buffer, so the caller keeps its reference and may hand the same buffer to other targets.
+     */
+    void writeBuffer(SharedBuffer buffer) throws IOException;
+}
@@ -0,0 +1,67 @@
+package org.spreadcoinj.net;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.SocketFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>A {@link BlockingClientManager} that runs each connection on a virtual thread where the JDK has them (Java 21 and
+ * later), and on a daemon platform thread otherwise. A virtual thread blocked reading from a socket costs little more
+ * than its stack, so unlike plain {@link BlockingClientManager} this scales to many hundreds of connections, while
+ * keeping what blocking sockets are good for: custom {@link SocketFactory}s, such as ones that connect through a
+ * proxy.</p>
+ *
+ * <p>Read buffers are shared between all connections of the manager, and a connection only holds one while it has
+ * bytes in it that weren't processed yet.</p>
+ */
+public class VirtualThreadClientManager extends BlockingClientManager {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadClientManager.class);
+
+    // Read buffers are at most 64k, keep a few megabytes of them.
+    private static final int READ_BUFFER_POOL_SIZE = 4 * 1024 * 1024;
+
+    private final boolean virtual;
+
+    public VirtualThreadClientManager() {
+        this(SocketFactory.getDefault());
+    }
+
+    /**
+     * Creates a client manager that will obtain sockets from the given factory. Useful for customising how
+     * spreadcoinj connects to the P2P network.
+     */
+    public VirtualThreadClientManager(SocketFactory socketFactory) {
+        this(socketFactory, virtualThreadFactory());
+    }
+
+    private VirtualThreadClientManager(SocketFactory socketFactory, ThreadFactory virtualThreadFactory) {
+        super(socketFactory, virtualThreadFactory != null ? virtualThreadFactory : platformThreadFactory(),
+                new DirectBufferPool(65536, READ_BUFFER_POOL_SIZE));
+        this.virtual = virtualThreadFactory != null;
+    }
+
+    /** Returns true if connections run on virtual threads, false if this JDK doesn't have them. */
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+    // Thread.ofVirtual().factory(), looked up reflectively so that we still build for and run on older JDKs.
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            log.info("Virtual threads are not available, using platform threads: {}", e.toString());
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory() {
+        return new ThreadFactoryBuilder().setDaemon(true).build();
+    }
+}
@@ -0,0 +1,553 @@
+package org.spreadcoinj.net.discovery;
+
+import org.spreadcoinj.core.NetworkParameters;
+import org.spreadcoinj.core.PeerAddress;
+import org.spreadcoinj.core.Utils;
+import org.spreadcoinj.utils.Threading;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the addresses of peers across restarts, in a fixed size memory mapped file: the addresses we learn from
+ * "addr" messages, when we last connected to each, how many attempts in a row failed and the ping time and
+ * {@link org.spreadcoinj.core.PeerScore} the peer had when we last saw it. Given one with
+ * {@link org.spreadcoinj.core.PeerGroup#setAddressDatabase(PeerAddressDatabase)}, the PeerGroup dials the best known
+ * peers straight away on startup, rather than waiting for DNS seeds or other discovery.</p>
+ *
+ * <p>Addresses are kept in buckets chosen by their network group (the /16 for IPv4, the /32 for IPv6) with a key that
+ * is secret to this file, so that one operator, or an attacker handing out many addresses in one range, can only ever
+ * fill a few buckets. When a bucket is full, a new address replaces the entry that is least worth keeping, if the new
+ * one was seen more recently.</p>
+ *
+ * <p>It is also a {@link PeerDiscovery}, returning the best known addresses.</p>
+ */
+public class PeerAddressDatabase implements PeerDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressDatabase.class);
+
+    public static final String HEADER_MAGIC = "SPAD";
+    /** The default number of buckets, each holding {@link #SLOTS_PER_BUCKET} addresses. */
+    public static final int DEFAULT_BUCKETS = 256;
+    public static final int SLOTS_PER_BUCKET = 64;
+    /** Addresses that failed this many times in a row, and never worked, are not handed out. */
+    public static final int MAX_FAILURES = 10;
+
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    // Entry layout: address (16, IPv4 as IPv4-mapped IPv6), port (2, zero for a free slot), consecutive failures (2),
+    // services (8), last seen, last success and last attempt (4 each, seconds), ping (4, millis or -1), score (4, float).
+    private static final int ENTRY_SIZE = 48;
+    private static final int PORT = 16, FAILURES = 18, SERVICES = 20, LAST_SEEN = 28, LAST_SUCCESS = 32,
+            LAST_ATTEMPT = 36, PING = 40, SCORE = 44;
+    /** The most buckets a database can have, so that the file can be memory mapped as a whole. */
+    public static final int MAX_BUCKETS = (Integer.MAX_VALUE - HEADER_SIZE) / (SLOTS_PER_BUCKET * ENTRY_SIZE);
+    private static final long HOUR_SECS = 60 * 60;
+    private static final long WEEK_SECS = 7 * 24 * HOUR_SECS;
+
+    private final NetworkParameters params;
+    private final int buckets;
+    private final HashFunction bucketHash;
+    private final ReentrantLock lock = Threading.lock("PeerAddressDatabase");
+    @GuardedBy("lock") private MappedByteBuffer buffer;
+    @GuardedBy("lock") private int size;
+    // Used to stop other applications/processes from opening the database.
+    private final FileLock fileLock;
+    private final RandomAccessFile randomAccessFile;
+
+    /**
+     * Opens the database in the given file, creating it with {@link #DEFAULT_BUCKETS} buckets if it is missing. This
+     * operation will block on disk.
+     */
+    public PeerAddressDatabase(NetworkParameters params, File file) throws IOException {
+        this(params, file, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * Opens the database in the given file, creating it with the given number of buckets, at most
+     * {@link #MAX_BUCKETS}, if it is missing. An existing file keeps the number of buckets it was created with.
+     */
+    public PeerAddressDatabase(NetworkParameters params, File file, int buckets) throws IOException {
+        checkArgument(buckets > 0 && buckets <= MAX_BUCKETS, "Number of buckets out of range: %s", buckets);
+        this.params = checkNotNull(params);
+        boolean exists = file.exists();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            FileLock fileLock;
+            try {
+                fileLock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null;  // Locked by this process.
+            }
+            this.fileLock = fileLock;
+            if (fileLock == null)
+                throw new IOException("Address database is already locked by another process");
+            if (exists) {
+                if (randomAccessFile.length() < HEADER_SIZE)
+                    throw new IOException("Not an address database: " + file);
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+                byte[] header = new byte[4];
+                buffer.get(header);
+                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
+                    throw new IOException("Header bytes do not equal " + HEADER_MAGIC);
+                if (buffer.getInt(4) != VERSION)
+                    throw new IOException("Unknown address database version " + buffer.getInt(4));
+                buckets = buffer.getInt(8);
+                if (buckets <= 0 || buckets > MAX_BUCKETS || buffer.getInt(12) != SLOTS_PER_BUCKET ||
+                        randomAccessFile.length() != getFileSize(buckets))
+                    throw new IOException("Address database file size does not match its header");
+            } else {
+                log.info("Creating new peer address database {}", file);
+                randomAccessFile.setLength(getFileSize(buckets));
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getFileSize(buckets));
+                buffer.put(HEADER_MAGIC.getBytes("US-ASCII"));
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, buckets);
+                buffer.putInt(12, SLOTS_PER_BUCKET);
+                SecureRandom random = new SecureRandom();
+                buffer.putLong(16, random.nextLong());
+                buffer.putLong(24, random.nextLong());
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        this.buckets = buckets;
+        this.bucketHash = Hashing.sipHash24(buffer.getLong(16), buffer.getLong(24));
+        for (int slot = 0; slot < buckets * SLOTS_PER_BUCKET; slot++) {
+            if (!isFree(offsetOf(slot)))
+                size++;
+        }
+        log.info("Opened peer address database {} with {} addresses", file, size);
+    }
+
+    private static long getFileSize(int buckets) {
+        return HEADER_SIZE + (long) buckets * SLOTS_PER_BUCKET * ENTRY_SIZE;
+    }
+
+    /** An address with what the database knows about it. */
+    public static class Entry {
+        private final PeerAddress address;
+        private final BigInteger services;
+        private final long lastSeenSecs, lastSuccessSecs;
+        private final int failures;
+        private final long pingMillis;
+        private final double score;
+
+        private Entry(PeerAddress address, BigInteger services, long lastSeenSecs, long lastSuccessSecs, int failures,
+                      long pingMillis, double score) {
+            this.address = address;
+            this.services = services;
+            this.lastSeenSecs = lastSeenSecs;
+            this.lastSuccessSecs = lastSuccessSecs;
+            this.failures = failures;
+            this.pingMillis = pingMillis;
+            this.score = score;
+        }
+
+        public PeerAddress getAddress() {
+            return address;
+        }
+
+        /** Returns the services the address was last announced with. */
+        public BigInteger getServices() {
+            return services;
+        }
+
+        /** Returns when the address was last announced to us or worked, in seconds since the epoch. */
+        public long getLastSeenSecs() {
+            return lastSeenSecs;
+        }
+
+        /** Returns when we last connected to the address, in seconds since the epoch, or zero if we never did. */
+        public long getLastSuccessSecs() {
+            return lastSuccessSecs;
+        }
+
+        /** Returns how many attempts to connect failed since the last one that worked. */
+        public int getFailures() {
+            return failures;
+        }
+
+        /** Returns the ping time the peer had when we last saw it, or {@link Long#MAX_VALUE} if not known. */
+        public long getPingMillis() {
+            return pingMillis;
+        }
+
+        /** Returns the {@link org.spreadcoinj.core.PeerScore} the peer had when we last saw it, or zero. */
+        public double getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return address + ": seen " + lastSeenSecs + ", success " + lastSuccessSecs + ", " + failures +
+                    " failures, ping " + pingMillis + ", score " + score;
+        }
+    }
+
+    /** Returns the number of addresses in the database. */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds an address announced by a peer, or updates when it was last seen. Returns false if the address isn't
+     * {@link #isRoutable(InetAddress) routable}, or if its bucket is full of entries more worth keeping.
+     */
+    public boolean add(PeerAddress address) {
+        if (!isRoutable(address.getAddr()))
+            return false;
+        long now = Utils.currentTimeSeconds();
+        // Peers announce when they last heard of the address, which we don't trust to be in the future.
+        long seen = address.getTime() > 0 ? Math.min(address.getTime(), now) : now;
+        lock.lock();
+        try {
+            int offset = findOrAllocate(address.getAddr(), address.getPort(), seen);
+            if (offset < 0)
+                return false;
+            buffer.putLong(offset + SERVICES, address.getServices().longValue());
+            if (seen > getSecs(offset + LAST_SEEN))
+                putSecs(offset + LAST_SEEN, seen);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds the addresses of an "addr" message, see {@link #add(PeerAddress)}. */
+    public void addAll(List<PeerAddress> addresses) {
+        for (PeerAddress address : addresses)
+            add(address);
+    }
+
+    /**
+     * Records an attempt to connect to the address, which is added if it isn't known yet. Unlike with
+     * {@link #add(PeerAddress)}, this includes local addresses: they are ones we chose to connect to.
+     */
+    public void recordAttempt(InetSocketAddress address, boolean success) {
+        long now = Utils.currentTimeSeconds();
+        lock.lock();
+        try {
+            int offset = findOrAllocate(address.getAddress(), address.getPort(), success ? now + WEEK_SECS : now);
+            if (offset < 0)
+                return;
+            putSecs(offset + LAST_ATTEMPT, now);
+            if (success) {
+                putSecs(offset + LAST_SUCCESS, now);
+                putSecs(offset + LAST_SEEN, now);
+                buffer.putShort(offset + FAILURES, (short) 0);
+            } else {
+                int failures = buffer.getShort(offset + FAILURES) & 0xFFFF;
+                buffer.putShort(offset + FAILURES, (short) Math.min(failures + 1, 0xFFFF));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records how the peer at the address performed, typically when we disconnect from it. */
+    public void recordPerformance(InetSocketAddress address, long pingMillis, double score) {
+        lock.lock();
+        try {
+            int offset = find(address.getAddress(), address.getPort());
+            if (offset < 0)
+                return;
+            buffer.putInt(offset + PING, pingMillis < 0 || pingMillis >= Integer.MAX_VALUE ? -1 : (int) pingMillis);
+            buffer.putFloat(offset + SCORE, (float) score);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns what the database knows about the address, or null if it doesn't have it. */
+    @Nullable
+    public Entry get(InetSocketAddress address) {
+        lock.lock();
+        try {
+            int offset = find(address.getAddress(), address.getPort());
+            return offset < 0 ? null : readEntry(offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to the given number of the addresses best worth connecting to, best first: those we connected to
+     * before by their score and then how recently, then the others by how recently they were seen. The first pass
+     * takes one address per network group, so that we don't connect to one operator over and over.
+     */
+    public List<Entry> getBest(int max) {
+        List<Entry> all = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            for (int slot = 0; slot < buckets * SLOTS_PER_BUCKET; slot++) {
+                int offset = offsetOf(slot);
+                if (isFree(offset))
+                    continue;
+                Entry entry = readEntry(offset);
+                if (entry.getLastSuccessSecs() == 0 && entry.getFailures() >= MAX_FAILURES)
+                    continue;
+                all.add(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        Collections.sort(all, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                boolean aWorked = a.getLastSuccessSecs() > 0, bWorked = b.getLastSuccessSecs() > 0;
+                if (aWorked != bWorked)
+                    return aWorked ? -1 : 1;
+                if (aWorked && a.getScore() != b.getScore())
+                    return Double.compare(b.getScore(), a.getScore());
+                if (a.getFailures() != b.getFailures())
+                    return a.getFailures() - b.getFailures();
+                return compareLongs(Math.max(b.getLastSuccessSecs(), b.getLastSeenSecs()),
+                        Math.max(a.getLastSuccessSecs(), a.getLastSeenSecs()));
+            }
+        });
+        List<Entry> best = new ArrayList<Entry>(Math.min(max, all.size()));
+        Set<String> groups = new HashSet<String>();
+        List<Entry> rest = new ArrayList<Entry>();
+        for (Entry entry : all) {
+            if (best.size() < max && groups.add(Arrays.toString(networkGroup(entry.getAddress().getAddr()))))
+                best.add(entry);
+            else
+                rest.add(entry);
+        }
+        for (int i = 0; best.size() < max && i < rest.size(); i++)
+            best.add(rest.get(i));
+        return best;
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a > b ? 1 : 0);
+    }
+
+    @Override
+    public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+        List<Entry> best = getBest(SLOTS_PER_BUCKET);
+        InetSocketAddress[] addresses = new InetSocketAddress[best.size()];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = best.get(i).getAddress().toSocketAddress();
+        return addresses;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    /** Writes outstanding changes to disk. */
+    public void flush() {
+        lock.lock();
+        try {
+            buffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes outstanding changes to disk and releases the file. Does nothing if already closed. */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (buffer == null)
+                return;
+            buffer.force();
+            buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            fileLock.release();
+            randomAccessFile.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns false for addresses that peers elsewhere on the internet have no business announcing: unspecified,
+     * loopback, link local, private network and multicast addresses.
+     */
+    public static boolean isRoutable(InetAddress address) {
+        if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress() ||
+                address.isSiteLocalAddress() || address.isMulticastAddress())
+            return false;
+        // IPv6 unique local addresses, fc00::/7, the successor of the site local ones.
+        return !(address instanceof Inet6Address && (address.getAddress()[0] & 0xFE) == 0xFC);
+    }
+
+    // Returns the network group of the address: its /16 for IPv4, its /32 for IPv6.
+    private static byte[] networkGroup(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address)
+            return new byte[] {4, bytes[0], bytes[1]};
+        return new byte[] {6, bytes[0], bytes[1], bytes[2], bytes[3]};
+    }
+
+    private static byte[] toIPv6(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 16)
+            return bytes;
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xFF;
+        mapped[11] = (byte) 0xFF;
+        System.arraycopy(bytes, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+    // Can't overflow, as the number of buckets is capped by MAX_BUCKETS.
+    private int offsetOf(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+
+    @GuardedBy("lock")
+    private int bucketOf(InetAddress address) {
+        long hash = bucketHash.hashBytes(networkGroup(address)).asLong();
+        return (int) ((hash & Long.MAX_VALUE) % buckets);
+    }
+
+    @GuardedBy("lock")
+    private boolean isFree(int offset) {
+        return buffer.getShort(offset + PORT) == 0;
+    }
+
+    @GuardedBy("lock")
+    private boolean matches(int offset, byte[] address, int port) {
+        if ((buffer.getShort(offset + PORT) & 0xFFFF) != port)
+            return false;
+        for (int i = 0; i < 16; i++) {
+            if (buffer.get(offset + i) != address[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Returns the offset of the entry for the address, or -1.
+    @GuardedBy("lock")
+    private int find(InetAddress address, int port) {
+        byte[] bytes = toIPv6(address);
+        int first = bucketOf(address) * SLOTS_PER_BUCKET;
+        for (int slot = first; slot < first + SLOTS_PER_BUCKET; slot++) {
+            if (matches(offsetOf(slot), bytes, port))
+                return offsetOf(slot);
+        }
+        return -1;
+    }
+
+    // Returns the offset of the entry for the address, making one if needed: in a free slot of its bucket, or instead
+    // of the entry least worth keeping if that is worth less than the new one. Returns -1 if there is no room.
+    @GuardedBy("lock")
+    private int findOrAllocate(InetAddress address, int port, long value) {
+        if (port <= 0 || port > 0xFFFF)
+            return -1;
+        byte[] bytes = toIPv6(address);
+        int first = bucketOf(address) * SLOTS_PER_BUCKET;
+        int free = -1, victim = -1;
+        long victimValue = Long.MAX_VALUE;
+        long now = Utils.currentTimeSeconds();
+        for (int slot = first; slot < first + SLOTS_PER_BUCKET; slot++) {
+            int offset = offsetOf(slot);
+            if (matches(offset, bytes, port))
+                return offset;
+            if (isFree(offset)) {
+                if (free < 0)
+                    free = offset;
+            } else if (free < 0) {
+                long slotValue = retainValue(offset, now);
+                if (slotValue < victimValue) {
+                    victim = offset;
+                    victimValue = slotValue;
+                }
+            }
+        }
+        int offset = free;
+        if (offset < 0) {
+            if (victimValue >= value)
+                return -1;
+            log.debug("Address database bucket full, replacing {}", readEntry(victim));
+            offset = victim;
+        } else {
+            size++;
+        }
+        for (int i = 0; i < ENTRY_SIZE; i++)
+            buffer.put(offset + i, (byte) 0);
+        for (int i = 0; i < 16; i++)
+            buffer.put(offset + i, bytes[i]);
+        buffer.putShort(offset + PORT, (short) port);
+        buffer.putInt(offset + PING, -1);
+        return offset;
+    }
+
+    // How much an entry is worth keeping, in seconds: when it was last seen, with a week's head start for addresses
+    // that worked and an hour off for each failure since they last did.
+    @GuardedBy("lock")
+    private long retainValue(int offset, long now) {
+        long lastSuccess = getSecs(offset + LAST_SUCCESS);
+        long value = Math.max(getSecs(offset + LAST_SEEN), lastSuccess > 0 ? lastSuccess + WEEK_SECS : 0);
+        return Math.min(value, now + WEEK_SECS) - (buffer.getShort(offset + FAILURES) & 0xFFFF) * HOUR_SECS;
+    }
+
+    @GuardedBy("lock")
+    private Entry readEntry(int offset) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 16; i++)
+            bytes[i] = buffer.get(offset + i);
+        InetAddress address;
+        try {
+            address = InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        // Without services or time, so that it equals the addresses that other discovery sources give.
+        PeerAddress peerAddress = new PeerAddress(address, buffer.getShort(offset + PORT) & 0xFFFF);
+        int ping = buffer.getInt(offset + PING);
+        return new Entry(peerAddress, BigInteger.valueOf(buffer.getLong(offset + SERVICES)),
+                getSecs(offset + LAST_SEEN), getSecs(offset + LAST_SUCCESS),
+                buffer.getShort(offset + FAILURES) & 0xFFFF, ping < 0 ? Long.MAX_VALUE : ping,
+                buffer.getFloat(offset + SCORE));
+    }
+
+    @GuardedBy("lock")
+    private long getSecs(int offset) {
+        return buffer.getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    @GuardedBy("lock")
+    private void putSecs(int offset, long secs) {
+        buffer.putInt(offset, (int) secs);
+    }
+}
@@ -17,16 +17,22 @@ package org.spreadcoinj.signers;
 
 import org.spreadcoinj.core.ECKey;
 import org.spreadcoinj.core.ScriptException;
+import org.spreadcoinj.core.Sha256Hash;
 import org.spreadcoinj.core.Transaction;
 import org.spreadcoinj.core.TransactionInput;
 import org.spreadcoinj.crypto.DeterministicKey;
 import org.spreadcoinj.crypto.TransactionSignature;
 import org.spreadcoinj.script.Script;
+import org.spreadcoinj.utils.Threading;
 import org.spreadcoinj.wallet.KeyBag;
 import org.spreadcoinj.wallet.RedeemData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * <p>{@link TransactionSigner} implementation for signing inputs using keys from provided {@link org.spreadcoinj.wallet.KeyBag}.</p>
  * <p>This signer doesn't create input scripts for tx inputs. Instead it expects inputs to contain scripts with
@@ -37,11 +43,16 @@ import org.slf4j.LoggerFactory;
  * {@link ProposedTransaction} object that will be also passed then to the next signer in chain. This allows other
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
- * <p>This signer always uses {@link org.spreadcoinj.core.Transaction.SigHash#ALL} signing mode.</p>
+ * <p>This signer always uses {@link org.spreadcoinj.core.Transaction.SigHash#ALL} signing mode. The signature hashes
+ * of all inputs are calculated in one pass with {@link Transaction#hashesForSignature(byte[][])}, and transactions
+ * with many inputs are signed on {@link Threading#CPU_POOL}.</p>
  */
 public class LocalTransactionSigner extends StatelessTransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
 
+    /** Below this many inputs to sign, signatures are calculated on the calling thread. */
+    public static final int PARALLEL_SIGNING_THRESHOLD = 8;
+
     @Override
     public boolean isReady() {
         return true;
@@ -51,6 +62,11 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Work out which inputs we can sign first, then calculate all the signature hashes in one pass over the
+        // transaction, then do the EC math (possibly on several threads) and finally put the signatures in place.
+        byte[][] scripts = new byte[numInputs][];
+        ECKey[] keys = new ECKey[numInputs];
+        List<Integer> toSign = new ArrayList<Integer>();
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
@@ -89,32 +105,73 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 continue;
             }
 
-            Script inputScript = txIn.getScriptSig();
             // script here would be either a standard CHECKSIG program for pay-to-address or pay-to-pubkey inputs or
             // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
-            try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
-
-                // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
-                // have calculated the signature using the local key and now need to insert it in the correct place
-                // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
-                // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
-                // position relative to other signers.  Since we don't have that information at this point, and since
-                // we always run first, we have to depend on the other signers rearranging the signatures as needed.
-                // Therefore, always place as first signature.
-                int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(), sigIndex);
-                txIn.setScriptSig(inputScript);
-
-            } catch (ECKey.KeyIsEncryptedException e) {
-                throw e;
-            } catch (ECKey.MissingPrivateKeyException e) {
-                log.warn("No private key in keypair for input {}", i);
-            }
+            scripts[i] = redeemData.redeemScript.getProgram();
+            keys[i] = key;
+            toSign.add(i);
+        }
+        if (toSign.isEmpty())
+            return true;
+
+        Sha256Hash[] hashes = tx.hashesForSignature(scripts);
+        TransactionSignature[] signatures = calculateSignatures(toSign, keys, hashes);
 
+        for (int i : toSign) {
+            if (signatures[i] == null)
+                continue;
+            TransactionInput txIn = tx.getInput(i);
+            Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+            // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
+            // have calculated the signature using the local key and now need to insert it in the correct place
+            // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
+            // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
+            // position relative to other signers.  Since we don't have that information at this point, and since
+            // we always run first, we have to depend on the other signers rearranging the signatures as needed.
+            // Therefore, always place as first signature.
+            int sigIndex = 0;
+            Script inputScript = scriptPubKey.getScriptSigWithSignature(txIn.getScriptSig(),
+                    signatures[i].encodeToBitcoin(), sigIndex);
+            txIn.setScriptSig(inputScript);
         }
         return true;
     }
 
+    /**
+     * Signs the given hashes with the corresponding keys. Large batches are spread over {@link Threading#CPU_POOL},
+     * as the signatures are independent of each other. Inputs whose key has no private part are logged and left
+     * null in the result.
+     */
+    private static TransactionSignature[] calculateSignatures(List<Integer> toSign, final ECKey[] keys,
+                                                              final Sha256Hash[] hashes) {
+        final TransactionSignature[] signatures = new TransactionSignature[keys.length];
+        if (toSign.size() < PARALLEL_SIGNING_THRESHOLD) {
+            for (int i : toSign)
+                signatures[i] = calculateSignature(i, keys[i], hashes[i]);
+            return signatures;
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>(toSign.size());
+        for (final int i : toSign) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    signatures[i] = calculateSignature(i, keys[i], hashes[i]);
+                }
+            });
+        }
+        Threading.runOnCpuPool(tasks);
+        return signatures;
+    }
+
+    @Nullable
+    private static TransactionSignature calculateSignature(int index, ECKey key, Sha256Hash hash) {
+        try {
+            return new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
+        } catch (ECKey.KeyIsEncryptedException e) {
+            throw e;
+        } catch (ECKey.MissingPrivateKeyException e) {
+            log.warn("No private key in keypair for input {}", index);
+            return null;
+        }
+    }
 }
@@ -29,6 +29,7 @@ import org.spreadcoinj.utils.Fiat;
 import org.spreadcoinj.wallet.KeyChainGroup;
 import org.spreadcoinj.wallet.WalletTransaction;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.TextFormat;
@@ -47,7 +48,13 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -78,6 +85,11 @@ public class WalletProtobufSerializer {
 
     private boolean requireMandatoryExtensions = true;
 
+    // Wallets with fewer transactions than this are decoded on the calling thread, as spinning up workers would cost
+    // more than it saves.
+    private static final int MIN_TRANSACTIONS_FOR_PARALLEL_DECODE = 200;
+    private int decodingThreads = Runtime.getRuntime().availableProcessors();
+
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
     }
@@ -107,6 +119,17 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * Sets how many threads are used to rebuild transactions when reading a large wallet. Each transaction and its
+     * confidence data is decoded independently on a worker, after which inputs are connected to the outputs they
+     * spend in a single pass on the calling thread. Defaults to the number of available processors; a value of 1
+     * does all the work on the calling thread.
+     */
+    public void setDecodingThreads(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        decodingThreads = threads;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -443,16 +466,7 @@ public class WalletProtobufSerializer {
             wallet.setDescription(walletProto.getDescription());
         }
 
-        // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, wallet.getParams());
-        }
-
-        // Update transaction outputs to point to inputs that spend them
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            WalletTransaction wtx = connectTransactionOutputs(txProto);
-            wallet.addWalletTransaction(wtx);
-        }
+        readTransactions(walletProto.getTransactionList(), wallet);
 
         // Update the lastBlockSeenHash.
         if (!walletProto.hasLastSeenBlockHash()) {
@@ -541,7 +555,111 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(input);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    private void readTransactions(final List<Protos.Transaction> txProtos, Wallet wallet) throws UnreadableWalletException {
+        final NetworkParameters params = wallet.getParams();
+        final int threads = txProtos.size() < MIN_TRANSACTIONS_FOR_PARALLEL_DECODE ? 1 : decodingThreads;
+        ExecutorService executor = null;
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setNameFormat("WalletProtobufSerializer decoder %d")
+                    .setDaemon(true)
+                    .build());
+        }
+        try {
+            // Rebuild every transaction independently of the others, then insert them into the txMap.
+            final List<Transaction> txns = new ArrayList<Transaction>(txProtos.size());
+            runBatches(executor, threads, txProtos.size(), new Batch<Transaction>() {
+                @Override
+                public List<Transaction> run(int from, int to) throws UnreadableWalletException {
+                    List<Transaction> result = new ArrayList<Transaction>(to - from);
+                    for (int i = from; i < to; i++)
+                        result.add(readTransaction(txProtos.get(i), params));
+                    return result;
+                }
+            }, txns);
+            for (int i = 0; i < txProtos.size(); i++) {
+                ByteString hash = txProtos.get(i).getHash();
+                if (txMap.containsKey(hash))
+                    throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+                txMap.put(hash, txns.get(i));
+            }
+
+            // Confidence may refer to other transactions in the wallet, so it can only be read once the txMap is
+            // complete. The map is not modified from here on, so the workers can share it.
+            runBatches(executor, threads, txProtos.size(), new Batch<Void>() {
+                @Override
+                public List<Void> run(int from, int to) throws UnreadableWalletException {
+                    for (int i = from; i < to; i++) {
+                        Protos.Transaction txProto = txProtos.get(i);
+                        if (txProto.hasConfidence()) {
+                            Transaction tx = txns.get(i);
+                            readConfidence(tx, txProto.getConfidence(), tx.getConfidence());
+                        }
+                    }
+                    return Collections.emptyList();
+                }
+            }, null);
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+
+        // Update transaction outputs to point to inputs that spend them
+        for (Protos.Transaction txProto : txProtos) {
+            WalletTransaction wtx = connectTransactionOutputs(txProto);
+            wallet.addWalletTransaction(wtx);
+        }
+    }
+
+    private interface Batch<T> {
+        List<T> run(int from, int to) throws UnreadableWalletException;
+    }
+
+    /**
+     * Splits the range [0, size) into contiguous batches and runs them on the executor, or on the calling thread if
+     * there is none. Results are appended to the given list in order.
+     */
+    private static <T> void runBatches(@Nullable ExecutorService executor, int threads, int size, final Batch<T> batch,
+                                       @Nullable List<T> results) throws UnreadableWalletException {
+        if (executor == null) {
+            List<T> result = batch.run(0, size);
+            if (results != null)
+                results.addAll(result);
+            return;
+        }
+        // A few batches per thread keeps the workers busy even if some transactions are much larger than others.
+        final int batchSize = Math.max(1, (size + threads * 4 - 1) / (threads * 4));
+        List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+        for (int from = 0; from < size; from += batchSize) {
+            final int start = from;
+            final int end = Math.min(size, from + batchSize);
+            futures.add(executor.submit(new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws UnreadableWalletException {
+                    return batch.run(start, end);
+                }
+            }));
+        }
+        try {
+            for (Future<List<T>> future : futures) {
+                List<T> result = future.get();
+                if (results != null)
+                    results.addAll(result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnreadableWalletException("Interrupted whilst reading transactions", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnreadableWalletException)
+                throw (UnreadableWalletException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new UnreadableWalletException("Could not read transaction", cause);
+        }
+    }
+
+    private Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -608,9 +726,7 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format("Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(org.spreadcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
@@ -647,12 +763,6 @@ public class WalletProtobufSerializer {
                 input.connect(output);
             }
         }
-        
-        if (txProto.hasConfidence()) {
-            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
-            TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(tx, confidenceProto, confidence);
-        }
 
         return new WalletTransaction(pool, tx);
     }
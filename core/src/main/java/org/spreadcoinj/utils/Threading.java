@@ -16,6 +16,7 @@
 
 package org.spreadcoinj.utils;
 
+import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.CycleDetectingLockFactory;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -25,7 +26,10 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -194,4 +198,70 @@ public class Threading {
                 }
             })
     );
+
+    // Set on the threads of CPU_POOL, so that work started from them can tell it would be waiting on its own pool.
+    private static final ThreadLocal<Boolean> onCpuPool = new ThreadLocal<Boolean>();
+
+    /**
+     * A pool of daemon threads, one per CPU, shared by all the CPU bound work spreadcoinj splits up to run in
+     * parallel: signing, key derivation, encryption, scrypt, proof of work checks and the like. Having one pool keeps
+     * the number of busy threads down to the number of cores however many of these run at once. Use
+     * {@link #runOnCpuPool(java.util.List)} to run work on it and wait for the result. Work that may block on a lock
+     * held by something waiting on this pool, such as processing peer messages, must not be queued to it.
+     */
+    public static final ListeningExecutorService CPU_POOL = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onCpuPool.set(true);
+                            r.run();
+                        }
+                    });
+                    t.setName("Threading.CPU_POOL worker " + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            })
+    );
+
+    /** Returns true if the calling thread is one of those of {@link #CPU_POOL}. */
+    public static boolean isCpuPoolThread() {
+        return onCpuPool.get() != null;
+    }
+
+    /**
+     * Runs the given tasks on {@link #CPU_POOL} and waits for all of them, after which whatever they wrote is visible
+     * to the caller. If a task throws or the caller is interrupted, the tasks not yet finished are cancelled and the
+     * exception is rethrown, wrapped in a RuntimeException if it is checked. The tasks run one after the other on the
+     * calling thread instead if there is only one CPU, or if the caller is itself a thread of the pool: the pool is
+     * bounded, so its threads waiting on each other could otherwise leave none to do the work.
+     */
+    public static void runOnCpuPool(List<? extends Runnable> tasks) {
+        if (tasks.size() < 2 || Runtime.getRuntime().availableProcessors() < 2 || isCpuPoolThread()) {
+            for (Runnable task : tasks)
+                task.run();
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        try {
+            for (Runnable task : tasks)
+                futures.add(CPU_POOL.submit(task));
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+    }
 }
@@ -43,10 +43,11 @@ import static com.google.common.base.Preconditions.*;
 public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock("BasicKeyChain");
 
-    // Maps used to let us quickly look up a key given data we find in transcations or the block chain.
-    private final LinkedHashMap<ByteString, ECKey> hashToKeys;
-    private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
+    // Used to let us quickly look up a key given data we find in transcations or the block chain.
+    private final KeyLookupTable keyTable;
     @Nullable private final KeyCrypter keyCrypter;
+    // Incremented whenever a key is added or removed, so that work done on a copy of the keys can tell it's stale.
+    private int modificationCount;
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
 
@@ -56,8 +57,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     public BasicKeyChain(@Nullable KeyCrypter crypter) {
         this.keyCrypter = crypter;
-        hashToKeys = new LinkedHashMap<ByteString, ECKey>();
-        pubkeyToKeys = new LinkedHashMap<ByteString, ECKey>();
+        keyTable = new KeyLookupTable();
         listeners = new CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>>();
     }
 
@@ -77,13 +77,13 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey getKey(@Nullable KeyPurpose ignored) {
         lock.lock();
         try {
-            if (hashToKeys.isEmpty()) {
+            if (keyTable.isEmpty()) {
                 checkState(keyCrypter == null);   // We will refuse to encrypt an empty key chain.
                 final ECKey key = new ECKey();
                 importKeyLocked(key);
                 queueOnKeysAdded(ImmutableList.of(key));
             }
-            return hashToKeys.values().iterator().next();
+            return keyTable.keys().iterator().next();
         } finally {
             lock.unlock();
         }
@@ -94,11 +94,11 @@ public class BasicKeyChain implements EncryptableKeyChain {
         checkArgument(numberOfKeys > 0);
         lock.lock();
         try {
-            if (hashToKeys.size() < numberOfKeys) {
+            if (keyTable.size() < numberOfKeys) {
                 checkState(keyCrypter == null);
 
                 List<ECKey> keys = new ArrayList<ECKey>();
-                for (int i = 0; i < numberOfKeys - hashToKeys.size(); i++) {
+                for (int i = 0; i < numberOfKeys - keyTable.size(); i++) {
                     keys.add(new ECKey());
                 }
 
@@ -109,8 +109,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
             List<ECKey> keysToReturn = new ArrayList<ECKey>();
             int count = 0;
-            while (hashToKeys.values().iterator().hasNext() && numberOfKeys != count) {
-                keysToReturn.add(hashToKeys.values().iterator().next());
+            while (keyTable.keys().iterator().hasNext() && numberOfKeys != count) {
+                keysToReturn.add(keyTable.keys().iterator().next());
                 count++;
             }
             return keysToReturn;
@@ -123,7 +123,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public List<ECKey> getKeys() {
         lock.lock();
         try {
-            return new ArrayList<ECKey>(hashToKeys.values());
+            return new ArrayList<ECKey>(keyTable.keys());
         } finally {
             lock.unlock();
         }
@@ -167,8 +167,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     private void importKeyLocked(ECKey key) {
-        pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
-        hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        keyTable.add(key);
+        modificationCount++;
     }
 
     private void importKeysLocked(List<ECKey> keys) {
@@ -193,9 +193,11 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
+        if (pubkeyHash.length != 20)
+            return null;
         lock.lock();
         try {
-            return hashToKeys.get(ByteString.copyFrom(pubkeyHash));
+            return keyTable.findByPubKeyHash(pubkeyHash, 0);
         } finally {
             lock.unlock();
         }
@@ -204,7 +206,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            return pubkeyToKeys.get(ByteString.copyFrom(pubkey));
+            return keyTable.findByPubKey(pubkey, 0, pubkey.length);
         } finally {
             lock.unlock();
         }
@@ -217,7 +219,12 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     @Override
     public int numKeys() {
-        return pubkeyToKeys.size();
+        lock.lock();
+        try {
+            return keyTable.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -228,10 +235,20 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
-            boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
-            checkState(a == b);   // Should be in both maps or neither.
-            return a;
+            if (!keyTable.remove(key))
+                return false;
+            modificationCount++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a number that changes whenever a key is added to or removed from this chain. */
+    int getModificationCount() {
+        lock.lock();
+        try {
+            return modificationCount;
         } finally {
             lock.unlock();
         }
@@ -242,7 +259,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             long time = Long.MAX_VALUE;
-            for (ECKey key : hashToKeys.values())
+            for (ECKey key : keyTable.keys())
                 time = Math.min(key.getCreationTimeSeconds(), time);
             return time;
         } finally {
@@ -262,7 +279,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     Map<ECKey, Protos.Key.Builder> serializeToEditableProtobufs() {
         Map<ECKey, Protos.Key.Builder> result = new LinkedHashMap<ECKey, Protos.Key.Builder>();
-        for (ECKey ecKey : hashToKeys.values()) {
+        for (ECKey ecKey : keyTable.keys()) {
             Protos.Key.Builder protoKey = serializeEncryptableItem(ecKey);
             protoKey.setPublicKey(ByteString.copyFrom(ecKey.getPubKey()));
             result.put(ecKey, protoKey);
@@ -328,7 +345,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private void deserializeFromProtobuf(List<Protos.Key> keys) throws UnreadableWalletException {
         lock.lock();
         try {
-            checkState(hashToKeys.isEmpty(), "Tried to deserialize into a non-empty chain");
+            checkState(keyTable.isEmpty(), "Tried to deserialize into a non-empty chain");
             for (Protos.Key key : keys) {
                 if (key.getType() != Protos.Key.Type.ORIGINAL && key.getType() != Protos.Key.Type.ENCRYPTED_SCRYPT_AES)
                     continue;
@@ -353,7 +370,9 @@ public class BasicKeyChain implements EncryptableKeyChain {
                         ecKey = ECKey.fromPublicOnly(pub);
                 }
                 ecKey.setCreationTimeSeconds((key.getCreationTimestamp() + 500) / 1000);
-                importKeyLocked(ecKey);
+                // A key listed twice is only kept once, as the table would otherwise hold both copies.
+                if (!hasKey(ecKey))
+                    importKeyLocked(ecKey);
             }
         } finally {
             lock.unlock();
@@ -425,26 +444,23 @@ public class BasicKeyChain implements EncryptableKeyChain {
      */
     @Override
     public BasicKeyChain toEncrypted(KeyCrypter keyCrypter, KeyParameter aesKey) {
+        checkNotNull(keyCrypter);
+        // The keys are encrypted in bulk on a copy, so the lock is not held while that happens. The result reflects
+        // the chain as it was when the copy was taken: callers that swap it in must check getModificationCount().
+        List<ECKey> keys;
         lock.lock();
         try {
-            checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
-            BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
-                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-                // Check that the encrypted key can be successfully decrypted.
-                // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                // (all bitcoin controlled by that private key is lost forever).
-                // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
-                // being as cautious as possible.
-                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
-                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
-                encrypted.importKeyLocked(encryptedKey);
-            }
-            return encrypted;
+            keys = new ArrayList<ECKey>(keyTable.keys());
         } finally {
             lock.unlock();
         }
+        // Each encrypted key is checked to decrypt successfully, as it is a critical failure if the private key
+        // cannot be decrypted (all bitcoin controlled by that private key is lost forever).
+        List<ECKey> encryptedKeys = BulkKeyCrypter.encrypt(keys, keyCrypter, aesKey);
+        BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
+        encrypted.importKeysLocked(encryptedKeys);
+        return encrypted;
     }
 
     @Override
@@ -456,20 +472,22 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     @Override
     public BasicKeyChain toDecrypted(KeyParameter aesKey) {
+        checkState(keyCrypter != null, "Wallet is already decrypted");
+        // Do an up-front check.
+        if (numKeys() > 0 && !checkAESKey(aesKey))
+            throw new KeyCrypterException("Password/key was incorrect.");
+        // As in toEncrypted, the keys are decrypted on a copy without holding the lock.
+        List<ECKey> keys;
         lock.lock();
         try {
-            checkState(keyCrypter != null, "Wallet is already decrypted");
-            // Do an up-front check.
-            if (numKeys() > 0 && !checkAESKey(aesKey))
-                throw new KeyCrypterException("Password/key was incorrect.");
-            BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
-                decrypted.importKeyLocked(key.decrypt(aesKey));
-            }
-            return decrypted;
+            keys = new ArrayList<ECKey>(keyTable.keys());
         } finally {
             lock.unlock();
         }
+        List<ECKey> decryptedKeys = BulkKeyCrypter.decrypt(keys, aesKey);
+        BasicKeyChain decrypted = new BasicKeyChain();
+        decrypted.importKeysLocked(decryptedKeys);
+        return decrypted;
     }
 
     /**
@@ -493,12 +511,12 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             // If no keys then cannot decrypt.
-            if (hashToKeys.isEmpty()) return false;
+            if (keyTable.isEmpty()) return false;
             checkState(keyCrypter != null, "Key chain is not encrypted");
 
             // Find the first encrypted key in the wallet.
             ECKey first = null;
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyTable.keys()) {
                 if (key.isEncrypted()) {
                     first = key;
                     break;
@@ -530,7 +548,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             BloomFilter filter = new BloomFilter(size, falsePositiveRate, tweak);
-            for (ECKey key : hashToKeys.values())
+            for (ECKey key : keyTable.keys())
                 filter.insert(key);
             return filter;
         } finally {
@@ -556,7 +574,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             ECKey oldest = null;
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyTable.keys()) {
                 final long keyTime = key.getCreationTimeSeconds();
                 if (keyTime > timeSecs) {
                     if (oldest == null || oldest.getCreationTimeSeconds() > keyTime)
@@ -574,7 +592,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
         lock.lock();
         try {
             List<ECKey> results = Lists.newLinkedList();
-            for (ECKey key : hashToKeys.values()) {
+            for (ECKey key : keyTable.keys()) {
                 final long keyTime = key.getCreationTimeSeconds();
                 if (keyTime < timeSecs) {
                     results.add(key);
@@ -0,0 +1,298 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.Coin;
+import org.spreadcoinj.core.NetworkParameters;
+import org.spreadcoinj.core.Transaction;
+import org.spreadcoinj.core.TransactionOutput;
+import org.spreadcoinj.utils.Threading;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that tries to avoid creating change. It searches for a set of outputs whose value exceeds
+ * the target by no more than a small tolerance, in which case the transaction needs no change output and the excess
+ * simply goes to the miners. This keeps transactions small and avoids creating dust-like change outputs.</p>
+ *
+ * <p>The selector keeps the outputs it was offered in a value ordered index between calls. The wallet offers much the
+ * same outputs every time, so each call only has to sort the outputs that arrived since the last one and merge them
+ * in, and drop the ones that were spent, instead of sorting everything again like {@link DefaultCoinSelector} does.
+ * Outputs are recognised by identity, which is what the wallet hands out. A selector therefore works best when it
+ * stays with one wallet; it is safe to share, but every switch between wallets rebuilds the index.</p>
+ *
+ * <p>The search is a depth-first branch and bound over the candidates in descending order of value, bounded both by a
+ * number of steps and by a time budget. Outputs that would overshoot are skipped over by binary search, and at every
+ * step the search checks whether a single further output completes the selection, so a change-less solution usually
+ * turns up within the first few steps. If it finds nothing, the largest outputs are taken until the target is
+ * reached, giving the fewest inputs. Which outputs may be selected at all is decided by
+ * {@link #shouldSelect(Transaction)} as usual.</p>
+ */
+public class BranchAndBoundCoinSelector extends DefaultCoinSelector {
+    /** The default amount by which a change-less selection may exceed the target. */
+    public static final Coin DEFAULT_CHANGE_TOLERANCE = Transaction.MIN_NONDUST_OUTPUT;
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 5;
+    public static final int DEFAULT_MAX_STEPS = 100000;
+
+    // How often the clock is read during the search.
+    private static final int STEPS_PER_CLOCK_CHECK = 1024;
+
+    private final long changeTolerance;
+    private final long timeBudgetNanos;
+    private final int maxSteps;
+
+    private final ReentrantLock lock = Threading.lock("BranchAndBoundCoinSelector");
+    // The outputs offered in the last call, in descending order of value.
+    @GuardedBy("lock") private TransactionOutput[] index = new TransactionOutput[0];
+    // The same outputs, mapped to the number of the call that last offered them.
+    @GuardedBy("lock") private final IdentityHashMap<TransactionOutput, Integer> indexed =
+            new IdentityHashMap<TransactionOutput, Integer>();
+    @GuardedBy("lock") private int generation;
+
+    public BranchAndBoundCoinSelector() {
+        this(DEFAULT_CHANGE_TOLERANCE, DEFAULT_TIME_BUDGET_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_STEPS);
+    }
+
+    /**
+     * @param changeTolerance how much a selection may exceed the target and still count as change-less
+     * @param timeBudget how long a single search may run for
+     * @param maxSteps how many branches a single search may visit
+     */
+    public BranchAndBoundCoinSelector(Coin changeTolerance, long timeBudget, TimeUnit unit, int maxSteps) {
+        checkArgument(changeTolerance.signum() >= 0, "Negative change tolerance");
+        checkArgument(timeBudget >= 0, "Negative time budget");
+        checkArgument(maxSteps >= 0, "Negative number of steps");
+        this.changeTolerance = changeTolerance.value;
+        this.timeBudgetNanos = unit.toNanos(timeBudget);
+        this.maxSteps = maxSteps;
+    }
+
+    @Override
+    public CoinSelection select(Coin biTarget, List<TransactionOutput> candidates) {
+        final long target = biTarget.value;
+        // When calculating the wallet balance we are asked to select everything, and there is nothing to choose.
+        if (biTarget.equals(NetworkParameters.MAX_MONEY))
+            return selectAll(candidates);
+
+        // The index array is replaced rather than modified, so it can be read outside the lock.
+        TransactionOutput[] sorted;
+        lock.lock();
+        try {
+            updateIndex(candidates);
+            sorted = index;
+        } finally {
+            lock.unlock();
+        }
+        TransactionOutput[] outputs = new TransactionOutput[sorted.length];
+        long[] values = new long[sorted.length];
+        int n = 0;
+        long available = 0;
+        for (TransactionOutput output : sorted) {
+            long value = output.getValue().value;
+            if (value <= 0 || !shouldSelect(output.getParentTransaction()))
+                continue;
+            outputs[n] = output;
+            values[n++] = value;
+            available += value;
+        }
+        if (available <= target)
+            return new CoinSelection(Coin.valueOf(available), Arrays.asList(outputs).subList(0, n));
+
+        boolean[] best = search(values, n, target);
+        List<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        long total = 0;
+        if (best != null) {
+            for (int i = 0; i < n; i++) {
+                if (best[i]) {
+                    selected.add(outputs[i]);
+                    total += values[i];
+                }
+            }
+        } else {
+            for (int i = 0; i < n && total < target; i++) {
+                selected.add(outputs[i]);
+                total += values[i];
+            }
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+
+    private CoinSelection selectAll(List<TransactionOutput> candidates) {
+        ArrayList<TransactionOutput> usable = new ArrayList<TransactionOutput>(candidates.size());
+        long available = 0;
+        for (TransactionOutput output : candidates) {
+            if (output.getValue().signum() <= 0 || !shouldSelect(output.getParentTransaction()))
+                continue;
+            usable.add(output);
+            available += output.getValue().value;
+        }
+        return new CoinSelection(Coin.valueOf(available), usable);
+    }
+
+    /**
+     * Brings the index in line with the given candidates. Outputs that are new since the last call are sorted on
+     * their own and merged in, and outputs that are no longer offered are dropped, so the cost of a call is linear in
+     * the number of candidates rather than that of sorting them all.
+     */
+    @GuardedBy("lock")
+    private void updateIndex(List<TransactionOutput> candidates) {
+        // Every output offered in this call is stamped with the same object, so that the outputs which were not
+        // offered can be told apart afterwards.
+        final Integer stamp = ++generation;
+        List<TransactionOutput> added = new ArrayList<TransactionOutput>();
+        int kept = 0;
+        for (TransactionOutput output : candidates) {
+            Integer previous = indexed.put(output, stamp);
+            if (previous == null)
+                added.add(output);
+            else if (previous != stamp)
+                kept++;
+        }
+        TransactionOutput[] remaining = index;
+        if (kept < index.length) {
+            remaining = new TransactionOutput[kept];
+            int i = 0;
+            for (TransactionOutput output : index) {
+                if (indexed.get(output) == stamp)
+                    remaining[i++] = output;
+                else
+                    indexed.remove(output);
+            }
+        }
+        if (added.isEmpty()) {
+            index = remaining;
+            return;
+        }
+        TransactionOutput[] fresh = sortByValueDescending(added);
+        TransactionOutput[] merged = new TransactionOutput[remaining.length + fresh.length];
+        int i = 0, j = 0, k = 0;
+        while (i < remaining.length && j < fresh.length) {
+            if (remaining[i].getValue().value >= fresh[j].getValue().value)
+                merged[k++] = remaining[i++];
+            else
+                merged[k++] = fresh[j++];
+        }
+        while (i < remaining.length)
+            merged[k++] = remaining[i++];
+        while (j < fresh.length)
+            merged[k++] = fresh[j++];
+        index = merged;
+    }
+
+    /**
+     * Orders outputs by descending value. Outputs are distributed over one bucket per bit length of their value, so
+     * only outputs within the same order of magnitude ever have to be compared with each other.
+     */
+    static TransactionOutput[] sortByValueDescending(List<TransactionOutput> outputs) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<TransactionOutput>[] buckets = new List[64];
+        for (TransactionOutput output : outputs) {
+            int bucket = 63 - Long.numberOfLeadingZeros(output.getValue().value);
+            if (buckets[bucket] == null)
+                buckets[bucket] = new ArrayList<TransactionOutput>();
+            buckets[bucket].add(output);
+        }
+        TransactionOutput[] sorted = new TransactionOutput[outputs.size()];
+        int i = 0;
+        for (int bucket = buckets.length - 1; bucket >= 0; bucket--) {
+            List<TransactionOutput> contents = buckets[bucket];
+            if (contents == null)
+                continue;
+            if (contents.size() > 1)
+                Collections.sort(contents, VALUE_DESCENDING);
+            for (TransactionOutput output : contents)
+                sorted[i++] = output;
+        }
+        return sorted;
+    }
+
+    private static final Comparator<TransactionOutput> VALUE_DESCENDING = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            long aValue = a.getValue().value;
+            long bValue = b.getValue().value;
+            return aValue < bValue ? 1 : (aValue == bValue ? 0 : -1);
+        }
+    };
+
+    /**
+     * Depth-first search for a selection that exceeds the target by at most the change tolerance. The search stops at
+     * the first one: large outputs are tried first, so it tends to have few inputs, and trading inputs for a smaller
+     * excess would only make the transaction bigger. The first n values must be in descending order. Returns null if
+     * none was found within budget.
+     */
+    private boolean[] search(long[] values, int n, long target) {
+        final long limit = target + changeTolerance;
+        // remaining[i] is the sum of values[i..n), used to cut branches that can no longer reach the target.
+        long[] remaining = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+
+        boolean[] included = new boolean[n];
+        long total = 0;
+        int depth = 0;
+        final long deadline = System.nanoTime() + timeBudgetNanos;
+        for (int step = 0; step < maxSteps; step++) {
+            if (step % STEPS_PER_CLOCK_CHECK == STEPS_PER_CLOCK_CHECK - 1 && System.nanoTime() - deadline > 0)
+                break;
+            boolean backtrack;
+            if (total + remaining[depth] < target || total > limit) {
+                backtrack = true;
+            } else if (total >= target) {
+                return included;
+            } else if (depth == n) {
+                backtrack = true;
+            } else if (values[depth] > limit - total) {
+                // Outputs that would overshoot are passed over without branching on them.
+                depth = firstAtMost(values, depth, n, limit - total);
+                continue;
+            } else {
+                // See whether a single further output completes the selection. Taking the smallest one that does
+                // also gives the least excess.
+                int last = firstAtMost(values, depth, n, target - total - 1) - 1;
+                if (last >= depth) {
+                    included[last] = true;
+                    return included;
+                }
+                backtrack = false;
+            }
+
+            if (backtrack) {
+                // Walk back to the last included output and try the branch without it instead.
+                while (depth > 0 && !included[depth - 1])
+                    depth--;
+                if (depth == 0)
+                    break;
+                depth--;
+                included[depth] = false;
+                total -= values[depth];
+                depth++;
+                // Skipping an output of the same value as the one just excluded leads to an identical branch.
+                while (depth < n && values[depth] == values[depth - 1] && !included[depth - 1]) {
+                    depth++;
+                }
+            } else {
+                included[depth] = true;
+                total += values[depth];
+                depth++;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the first index in [from, to) of the descending values that is at most the given bound, or to. */
+    private static int firstAtMost(long[] values, int from, int to, long bound) {
+        int low = from, high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] > bound)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,80 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.ECKey;
+import org.spreadcoinj.crypto.KeyCrypter;
+import org.spreadcoinj.crypto.KeyCrypterException;
+import org.spreadcoinj.utils.Threading;
+import com.google.common.base.Function;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Encrypts or decrypts many keys at once, for turning a whole {@link BasicKeyChain} from one form into the other.
+ * Every key is independent of the others, so large lists are split into batches that are processed on
+ * {@link Threading#CPU_POOL}. The order of the keys is kept. If any key fails, the batches not yet done are cancelled
+ * and the exception is thrown.</p>
+ */
+class BulkKeyCrypter {
+    /** The number of keys handed to a thread at a time. Lists no longer than this are processed on the caller. */
+    static final int BATCH_SIZE = 64;
+
+    /**
+     * Returns the keys encrypted under the given AES key. Each encrypted key is checked to decrypt back to the
+     * original, as losing a private key to a faulty crypter would lose the money it controls.
+     *
+     * @throws KeyCrypterException if a key could not be encrypted, or the encryption could not be reversed.
+     */
+    static List<ECKey> encrypt(List<ECKey> keys, final KeyCrypter keyCrypter, final KeyParameter aesKey) {
+        return transform(keys, new Function<ECKey, ECKey>() {
+            @Override
+            public ECKey apply(ECKey key) {
+                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
+                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+                return encryptedKey;
+            }
+        });
+    }
+
+    /**
+     * Returns the keys decrypted with the given AES key.
+     *
+     * @throws KeyCrypterException if a key could not be decrypted.
+     */
+    static List<ECKey> decrypt(List<ECKey> keys, final KeyParameter aesKey) {
+        return transform(keys, new Function<ECKey, ECKey>() {
+            @Override
+            public ECKey apply(ECKey key) {
+                return key.decrypt(aesKey);
+            }
+        });
+    }
+
+    private static List<ECKey> transform(List<ECKey> keys, final Function<ECKey, ECKey> function) {
+        final ECKey[] results = new ECKey[keys.size()];
+        if (keys.size() <= BATCH_SIZE || Runtime.getRuntime().availableProcessors() < 2) {
+            for (int i = 0; i < results.length; i++)
+                results[i] = function.apply(keys.get(i));
+            return Arrays.asList(results);
+        }
+        final ECKey[] sources = keys.toArray(new ECKey[keys.size()]);
+        List<Runnable> batches = new ArrayList<Runnable>(results.length / BATCH_SIZE + 1);
+        for (int start = 0; start < results.length; start += BATCH_SIZE) {
+            final int from = start;
+            final int to = Math.min(start + BATCH_SIZE, results.length);
+            batches.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; i++)
+                        results[i] = function.apply(sources[i]);
+                }
+            });
+        }
+        Threading.runOnCpuPool(batches);
+        // Waiting for the batches established happens-before with the writes on the pool threads.
+        return Arrays.asList(results);
+    }
+}
@@ -320,6 +320,16 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         internalKey = hierarchy.deriveChild(ACCOUNT_ZERO_PATH, false, false, ChildNumber.ONE);
         addToBasicChain(externalKey);
         addToBasicChain(internalKey);
+        addHotKeys();
+    }
+
+    // Keeps precomputed tables for the account key and the external and internal chain keys under it, the roots of
+    // the hierarchy, in case the secp256k1 engine verifies against them. See Secp256k1#addHotKey.
+    private void addHotKeys() {
+        for (DeterministicKey key : new DeterministicKey[] {getWatchingKey(), externalKey, internalKey}) {
+            if (key != null)
+                Secp256k1.addHotKey(key.getPubKey());
+        }
     }
 
     /** Returns a freshly derived key that has not been returned by this method before. */
@@ -643,6 +653,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
                     checkState(lookaheadSize >= 0);
                     chain.setLookaheadSize(lookaheadSize);
                     chain.maybeLookAhead();
+                    chain.addHotKeys();
                     chains.add(chain);
                     chain = null;
                 }
@@ -694,6 +705,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
                         checkState(lookaheadSize >= 0);
                         chain.setLookaheadSize(lookaheadSize);
                         chain.maybeLookAhead();
+                        chain.addHotKeys();
                         chains.add(chain);
                         chain = null;
                         seed = null;
@@ -773,6 +785,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
             checkState(lookaheadSize >= 0);
             chain.setLookaheadSize(lookaheadSize);
             chain.maybeLookAhead();
+            chain.addHotKeys();
             chains.add(chain);
         }
         return chains;
@@ -999,16 +1012,11 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
                 needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-        List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         long now = System.currentTimeMillis();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.getPubOnly();
+        // Lookahead keys never need their private parts, so they can all be derived from the parent's public key.
+        List<DeterministicKey> result = HDKeyDerivation.deriveChildPubKeys(parent, numChildren, needed);
+        for (DeterministicKey key : result)
             hierarchy.putKey(key);
-            result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
-        }
         log.info("Took {} msec", System.currentTimeMillis() - now);
         return result;
     }
@@ -40,6 +40,7 @@ import javax.annotation.Nullable;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -611,7 +612,43 @@ public class KeyChainGroup implements KeyBag {
         checkNotNull(keyCrypter);
         checkNotNull(aesKey);
         // This code must be exception safe.
-        BasicKeyChain newBasic = basic.toEncrypted(keyCrypter, aesKey);
+        swapInEncrypted(keyCrypter, aesKey, basic.toEncrypted(keyCrypter, aesKey));
+    }
+
+    /**
+     * As {@link #encrypt(KeyCrypter, KeyParameter)}, but for a group guarded by the given lock, which the caller must
+     * not be holding. The random keys, of which there can be very many, are encrypted without holding the lock. It is
+     * then taken to encrypt the few HD chain keys and swap in the result, unless random keys were imported or removed
+     * meanwhile, in which case the encryption is redone. So other users of the group are only blocked briefly.
+     */
+    public void encrypt(KeyCrypter keyCrypter, KeyParameter aesKey, Lock lock) {
+        checkNotNull(keyCrypter);
+        checkNotNull(aesKey);
+        while (true) {
+            BasicKeyChain source;
+            int expectedModificationCount;
+            lock.lock();
+            try {
+                checkState(this.keyCrypter == null, "Already encrypted");
+                source = basic;
+                expectedModificationCount = source.getModificationCount();
+            } finally {
+                lock.unlock();
+            }
+            BasicKeyChain newBasic = source.toEncrypted(keyCrypter, aesKey);
+            lock.lock();
+            try {
+                if (basic == source && source.getModificationCount() == expectedModificationCount) {
+                    swapInEncrypted(keyCrypter, aesKey, newBasic);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void swapInEncrypted(KeyCrypter keyCrypter, KeyParameter aesKey, BasicKeyChain newBasic) {
         List<DeterministicKeyChain> newChains = new ArrayList<DeterministicKeyChain>(chains.size());
         if (chains.isEmpty() && basic.numKeys() == 0) {
             // No HD chains and no random keys: encrypting an entirely empty keychain group. But we can't do that, we
@@ -620,6 +657,7 @@ public class KeyChainGroup implements KeyBag {
         }
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toEncrypted(keyCrypter, aesKey));
+        copyEventListeners(newBasic, newChains);
         this.keyCrypter = keyCrypter;
         basic = newBasic;
         chains.clear();
@@ -635,10 +673,45 @@ public class KeyChainGroup implements KeyBag {
     public void decrypt(KeyParameter aesKey) {
         // This code must be exception safe.
         checkNotNull(aesKey);
-        BasicKeyChain newBasic = basic.toDecrypted(aesKey);
+        swapInDecrypted(aesKey, basic.toDecrypted(aesKey));
+    }
+
+    /**
+     * As {@link #decrypt(KeyParameter)}, but for a group guarded by the given lock, which the caller must not be
+     * holding. Like {@link #encrypt(KeyCrypter, KeyParameter, Lock)}, the random keys are decrypted without holding
+     * the lock.
+     */
+    public void decrypt(KeyParameter aesKey, Lock lock) {
+        checkNotNull(aesKey);
+        while (true) {
+            BasicKeyChain source;
+            int expectedModificationCount;
+            lock.lock();
+            try {
+                checkState(keyCrypter != null, "Not encrypted");
+                source = basic;
+                expectedModificationCount = source.getModificationCount();
+            } finally {
+                lock.unlock();
+            }
+            BasicKeyChain newBasic = source.toDecrypted(aesKey);
+            lock.lock();
+            try {
+                if (basic == source && source.getModificationCount() == expectedModificationCount) {
+                    swapInDecrypted(aesKey, newBasic);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void swapInDecrypted(KeyParameter aesKey, BasicKeyChain newBasic) {
         List<DeterministicKeyChain> newChains = new ArrayList<DeterministicKeyChain>(chains.size());
         for (DeterministicKeyChain chain : chains)
             newChains.add(chain.toDecrypted(aesKey));
+        copyEventListeners(newBasic, newChains);
 
         this.keyCrypter = null;
         basic = newBasic;
@@ -646,6 +719,15 @@ public class KeyChainGroup implements KeyBag {
         chains.addAll(newChains);
     }
 
+    // Listeners are registered on the individual chains, so they have to be carried over when those are replaced.
+    private void copyEventListeners(BasicKeyChain newBasic, List<DeterministicKeyChain> newChains) {
+        for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners()) {
+            newBasic.addEventListener(registration.listener, registration.executor);
+            for (DeterministicKeyChain chain : newChains)
+                chain.addEventListener(registration.listener, registration.executor);
+        }
+    }
+
     /** Returns true if the group is encrypted. */
     public boolean isEncrypted() {
         return keyCrypter != null;
@@ -681,6 +763,15 @@ public class KeyChainGroup implements KeyBag {
         return result;
     }
 
+    /**
+     * Tops up the lookahead zone of every deterministic chain, as building a Bloom filter would. New keys are reported
+     * to event listeners, which lets a caller keep an already built filter current instead of rebuilding it.
+     */
+    public void maybeLookAhead() {
+        for (DeterministicKeyChain chain : chains)
+            chain.maybeLookAhead();
+    }
+
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         if (basic.numKeys() > 0)
@@ -699,6 +790,20 @@ public class KeyChainGroup implements KeyBag {
         return filter;
     }
 
+    /**
+     * Adds every key in the group, including lookahead keys, and the P2SH script hashes of married chains to the given
+     * filter.
+     */
+    public void addToRelevanceFilter(RelevanceFilter filter) {
+        for (ECKey key : basic.getKeys())
+            filter.addKey(key);
+        for (DeterministicKeyChain chain : chains)
+            for (ECKey key : chain.getKeys(true))
+                filter.addKey(key);
+        for (ByteString scriptHash : marriedKeysRedeemData.keySet())
+            filter.addScriptHash(scriptHash.toByteArray());
+    }
+
     /** {@inheritDoc} */
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
@@ -855,6 +960,8 @@ public class KeyChainGroup implements KeyBag {
         if (aesKey != null) {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
+        for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners())
+            chain.addEventListener(registration.listener, registration.executor);
         chains.add(chain);
         return chain;
     }
@@ -0,0 +1,153 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+/**
+ * <p>Indexes keys by public key hash and by public key, keeping them in insertion order.</p>
+ *
+ * <p>Each index is an open-addressed table of longs and ints rather than a map of byte array wrappers: a slot holds the
+ * first eight bytes of the hash (or the eight bytes of public key after the type byte) as a fingerprint, plus the
+ * position of the key in insertion order. A lookup compares fingerprints and only then the full bytes, straight from
+ * the given array and offset, so it neither allocates nor copies. The fingerprints come from hash outputs and curve
+ * points and so are well distributed already.</p>
+ *
+ * <p>This class is not thread safe, {@link BasicKeyChain} guards it with its lock.</p>
+ */
+class KeyLookupTable {
+    private static final int HASH_LENGTH = 20;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final ArrayList<ECKey> keys = new ArrayList<ECKey>();
+    // Encoded public keys, by position. ECKey.getPubKey() encodes anew each time it's called.
+    private final ArrayList<byte[]> pubKeys = new ArrayList<byte[]>();
+
+    // Both tables have the same capacity, a power of two at least twice the number of keys. Positions are stored
+    // plus one, so zero marks an empty slot.
+    private long[] hashFingerprints = new long[INITIAL_CAPACITY];
+    private int[] hashPositions = new int[INITIAL_CAPACITY];
+    private long[] pubKeyFingerprints = new long[INITIAL_CAPACITY];
+    private int[] pubKeyPositions = new int[INITIAL_CAPACITY];
+
+    /** Adds a key, which must not be in the table already. */
+    void add(ECKey key) {
+        keys.add(key);
+        pubKeys.add(key.getPubKey());
+        if (keys.size() * 2 > hashPositions.length)
+            rebuild(hashPositions.length * 2);
+        else
+            index(keys.size() - 1);
+    }
+
+    /** Removes the given key, returning whether it was there. This takes time proportional to the number of keys. */
+    boolean remove(ECKey key) {
+        byte[] pubKey = key.getPubKey();
+        ECKey found = findByPubKey(pubKey, 0, pubKey.length);
+        if (found == null)
+            return false;
+        int position = keys.indexOf(found);
+        keys.remove(position);
+        pubKeys.remove(position);
+        rebuild(hashPositions.length);
+        return true;
+    }
+
+    /** Returns the key whose public key hash is the 20 bytes of the given array starting at offset, or null. */
+    @Nullable
+    ECKey findByPubKeyHash(byte[] array, int offset) {
+        checkPositionIndexes(offset, offset + HASH_LENGTH, array.length);
+        long fingerprint = readFingerprint(array, offset);
+        int mask = hashPositions.length - 1;
+        for (int slot = slot(fingerprint, mask); hashPositions[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashFingerprints[slot] != fingerprint)
+                continue;
+            ECKey key = keys.get(hashPositions[slot] - 1);
+            if (rangeEquals(key.getPubKeyHash(), array, offset, HASH_LENGTH))
+                return key;
+        }
+        return null;
+    }
+
+    /** Returns the key whose encoded public key is the given range of the given array, or null. */
+    @Nullable
+    ECKey findByPubKey(byte[] array, int offset, int length) {
+        checkPositionIndexes(offset, offset + length, array.length);
+        // Anything shorter isn't a public key.
+        if (length < 9)
+            return null;
+        long fingerprint = readFingerprint(array, offset + 1);
+        int mask = pubKeyPositions.length - 1;
+        for (int slot = slot(fingerprint, mask); pubKeyPositions[slot] != 0; slot = (slot + 1) & mask) {
+            if (pubKeyFingerprints[slot] != fingerprint)
+                continue;
+            int position = pubKeyPositions[slot] - 1;
+            byte[] pubKey = pubKeys.get(position);
+            if (pubKey.length == length && rangeEquals(pubKey, array, offset, length))
+                return keys.get(position);
+        }
+        return null;
+    }
+
+    /** Returns an unmodifiable view of the keys, in the order they were added. */
+    List<ECKey> keys() {
+        return Collections.unmodifiableList(keys);
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    private void rebuild(int capacity) {
+        hashFingerprints = new long[capacity];
+        hashPositions = new int[capacity];
+        pubKeyFingerprints = new long[capacity];
+        pubKeyPositions = new int[capacity];
+        for (int i = 0; i < keys.size(); i++)
+            index(i);
+    }
+
+    private void index(int position) {
+        int mask = hashPositions.length - 1;
+        long fingerprint = readFingerprint(keys.get(position).getPubKeyHash(), 0);
+        int slot = slot(fingerprint, mask);
+        while (hashPositions[slot] != 0)
+            slot = (slot + 1) & mask;
+        hashFingerprints[slot] = fingerprint;
+        hashPositions[slot] = position + 1;
+
+        fingerprint = readFingerprint(pubKeys.get(position), 1);
+        slot = slot(fingerprint, mask);
+        while (pubKeyPositions[slot] != 0)
+            slot = (slot + 1) & mask;
+        pubKeyFingerprints[slot] = fingerprint;
+        pubKeyPositions[slot] = position + 1;
+    }
+
+    private static int slot(long fingerprint, int mask) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    private static long readFingerprint(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xFFL);
+        return result;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int offset, int length) {
+        for (int i = 0; i < length; i++)
+            if (a[i] != b[offset + i])
+                return false;
+        return true;
+    }
+}
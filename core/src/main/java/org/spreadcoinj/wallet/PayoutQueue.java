@@ -0,0 +1,203 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.*;
+import org.spreadcoinj.utils.Threading;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Collects payments for a while and then makes them all in one transaction. This is useful for services that pay
+ * out to many users: instead of one transaction per payment, each needing its own coin selection, signing pass,
+ * change output, fee and broadcast, one transaction with an output per payment is created for every window.</p>
+ *
+ * <p>{@link #pay(Address, Coin)} returns a future per payment that completes with the transaction that made it once
+ * that was broadcast, or fails if the transaction could not be created or broadcast. As all payments of a batch share
+ * a transaction, they all succeed or fail together. Override {@link #createSendRequest(Transaction)} to customize the
+ * send request, e.g. to set the fee or the key needed for an encrypted wallet.</p>
+ */
+public class PayoutQueue {
+    private static final Logger log = LoggerFactory.getLogger(PayoutQueue.class);
+
+    /** By default, a batch is sent as soon as it has this many payments, even if the window has not passed yet. */
+    public static final int DEFAULT_MAX_PAYMENTS = 500;
+
+    private final Wallet wallet;
+    private final TransactionBroadcaster broadcaster;
+    private final long window;
+    private final TimeUnit windowUnit;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final ReentrantLock lock = Threading.lock("payoutqueue");
+    @GuardedBy("lock") private List<Payment> queued = new ArrayList<Payment>();
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> scheduledFlush;
+    @GuardedBy("lock") private int maxPayments = DEFAULT_MAX_PAYMENTS;
+    @GuardedBy("lock") private boolean shutdown;
+
+    private static class Payment {
+        final Address to;
+        final Coin value;
+        final SettableFuture<Transaction> future = SettableFuture.create();
+
+        Payment(Address to, Coin value) {
+            this.to = to;
+            this.value = value;
+        }
+    }
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Creates a queue that sends payments from the given wallet via the given broadcaster, at the latest the given
+     * time after the first payment of a batch was queued.
+     */
+    public PayoutQueue(Wallet wallet, TransactionBroadcaster broadcaster, long window, TimeUnit windowUnit) {
+        checkArgument(window >= 0, "Negative window");
+        this.wallet = checkNotNull(wallet);
+        this.broadcaster = checkNotNull(broadcaster);
+        this.window = window;
+        this.windowUnit = checkNotNull(windowUnit);
+        final ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Payout queue thread");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.executor = new ScheduledThreadPoolExecutor(1, builder.build());
+        this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a payment of the given value to the given address. The returned future completes with the transaction
+     * that made the payment once it was broadcast.
+     */
+    public ListenableFuture<Transaction> pay(Address to, Coin value) {
+        checkArgument(value.compareTo(Transaction.MIN_NONDUST_OUTPUT) >= 0, "Payment is dust: %s", value);
+        Payment payment = new Payment(checkNotNull(to), value);
+        lock.lock();
+        try {
+            checkState(!shutdown, "Payout queue was shut down");
+            queued.add(payment);
+            if (queued.size() >= maxPayments)
+                executor.execute(flusher);
+            else if (scheduledFlush == null)
+                scheduledFlush = executor.schedule(flusher, window, windowUnit);
+        } finally {
+            lock.unlock();
+        }
+        return payment.future;
+    }
+
+    /** Returns the number of payments waiting for the next batch. */
+    public int getQueuedPayments() {
+        lock.lock();
+        try {
+            return queued.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the number of payments after which a batch is sent without waiting for the window to pass. */
+    public void setMaxPayments(int maxPayments) {
+        checkArgument(maxPayments > 0);
+        lock.lock();
+        try {
+            this.maxPayments = maxPayments;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sends all queued payments now, on the calling thread. */
+    public void flush() {
+        List<Payment> batch;
+        lock.lock();
+        try {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (queued.isEmpty())
+                return;
+            batch = queued;
+            queued = new ArrayList<Payment>();
+        } finally {
+            lock.unlock();
+        }
+        // Must not hold our lock here, as the wallet and broadcaster take their own.
+        send(batch);
+    }
+
+    /** Sends all queued payments and stops accepting new ones. */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+        } finally {
+            lock.unlock();
+        }
+        flush();
+        executor.shutdown();
+    }
+
+    /**
+     * Creates the send request that completes and sends a batch. The given transaction has one output per payment.
+     * Sub-classes can override this to set fees, an AES key, a coin selector and so on.
+     */
+    protected Wallet.SendRequest createSendRequest(Transaction tx) {
+        return Wallet.SendRequest.forTx(tx);
+    }
+
+    private void send(final List<Payment> batch) {
+        Transaction tx = new Transaction(wallet.getParams());
+        for (Payment payment : batch)
+            tx.addOutput(payment.value, payment.to);
+        final Wallet.SendResult result;
+        try {
+            result = wallet.sendCoins(broadcaster, createSendRequest(tx));
+        } catch (Exception e) {
+            log.warn("Could not make a batch of {} payments: {}", batch.size(), e.toString());
+            for (Payment payment : batch)
+                payment.future.setException(e);
+            return;
+        }
+        log.info("Made a batch of {} payments in {}", batch.size(), result.tx.getHashAsString());
+        Futures.addCallback(result.broadcastComplete, new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(Transaction tx) {
+                for (Payment payment : batch)
+                    payment.future.set(tx);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                for (Payment payment : batch)
+                    payment.future.setException(t);
+            }
+        });
+    }
+}
@@ -0,0 +1,176 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.ECKey;
+import org.spreadcoinj.core.ScriptException;
+import org.spreadcoinj.core.Transaction;
+import org.spreadcoinj.core.TransactionInput;
+import org.spreadcoinj.core.TransactionOutPoint;
+import org.spreadcoinj.core.TransactionOutput;
+import org.spreadcoinj.script.Script;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A probabilistic set of everything that can make a transaction relevant to a wallet: public keys, public key
+ * hashes, P2SH script hashes, watched scripts, the hashes of wallet transactions and the outpoints those transactions
+ * spend. It answers {@link #mightBeRelevant(Transaction)} without taking any locks, so the wallet can reject the vast
+ * majority of transactions that have nothing to do with it before contending for its own lock.</p>
+ *
+ * <p>Like a Bloom filter this can return false positives, which the caller must resolve with a full check, but never
+ * false negatives for elements that were added. Elements are stored as 64 bit fingerprints in an open addressed
+ * table. Writers are serialized on the filter object, readers never block. Nothing is ever removed: an element that
+ * is no longer relevant only costs a false positive.</p>
+ */
+public class RelevanceFilter {
+    // Distinct seeds keep, for example, a public key hash from matching a script hash with the same bytes.
+    private static final long PUBKEY_HASH = 0x2545f4914f6cdd1dL;
+    private static final long PUBKEY = 0x9e3779b97f4a7c15L;
+    private static final long SCRIPT_HASH = 0xbf58476d1ce4e5b9L;
+    private static final long SCRIPT = 0x94d049bb133111ebL;
+    private static final long TX_HASH = 0xd6e8feb86659fd93L;
+    private static final long OUTPOINT = 0xa0761d6478bd642fL;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // A slot holding zero is empty, so fingerprints are never zero.
+    private volatile AtomicLongArray table = new AtomicLongArray(INITIAL_CAPACITY);
+    private int size;
+
+    public void addKey(ECKey key) {
+        addPubKey(key.getPubKey());
+        addPubKeyHash(key.getPubKeyHash());
+    }
+
+    public void addPubKey(byte[] pubkey) {
+        add(fingerprint(PUBKEY, pubkey));
+    }
+
+    public void addPubKeyHash(byte[] pubkeyHash) {
+        add(fingerprint(PUBKEY_HASH, pubkeyHash));
+    }
+
+    public void addScriptHash(byte[] scriptHash) {
+        add(fingerprint(SCRIPT_HASH, scriptHash));
+    }
+
+    public void addScript(Script script) {
+        add(fingerprint(SCRIPT, script.getProgram()));
+    }
+
+    /**
+     * Adds the hash of the given transaction, so that transactions spending its outputs are matched, and the outpoints
+     * it spends, so that double spends of it are matched.
+     */
+    public void addTransaction(Transaction tx) {
+        add(fingerprint(TX_HASH, tx.getHash().getBytes()));
+        for (TransactionInput input : tx.getInputs())
+            add(fingerprint(input.getOutpoint()));
+    }
+
+    /**
+     * Returns false if the given transaction neither pays to, spends from nor double spends anything that was added to
+     * this filter. A return value of true means the transaction has to be checked in full.
+     */
+    public boolean mightBeRelevant(Transaction tx) {
+        final AtomicLongArray table = this.table;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            if (contains(table, fingerprint(TX_HASH, outpoint.getHash().getBytes())))
+                return true;
+            if (contains(table, fingerprint(outpoint)))
+                return true;
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (contains(table, fingerprint(SCRIPT, output.getScriptBytes())))
+                return true;
+            // This mirrors TransactionOutput.isMine, so that anything it would accept is matched here.
+            try {
+                Script script = output.getScriptPubKey();
+                if (script.isSentToRawPubKey()) {
+                    if (contains(table, fingerprint(PUBKEY, script.getPubKey())))
+                        return true;
+                } else if (script.isPayToScriptHash()) {
+                    if (contains(table, fingerprint(SCRIPT_HASH, script.getPubKeyHash())))
+                        return true;
+                } else if (contains(table, fingerprint(PUBKEY_HASH, script.getPubKeyHash()))) {
+                    return true;
+                }
+            } catch (ScriptException e) {
+                // Not a form we could own.
+            }
+        }
+        return false;
+    }
+
+    /** Returns the number of fingerprints held by this filter. */
+    public synchronized int size() {
+        return size;
+    }
+
+    private synchronized void add(long fingerprint) {
+        AtomicLongArray table = this.table;
+        if ((size + 1) * 2 > table.length()) {
+            // Grow into a fresh table and only publish it once complete, so readers always see a consistent view.
+            AtomicLongArray bigger = new AtomicLongArray(table.length() * 2);
+            for (int i = 0; i < table.length(); i++) {
+                long existing = table.get(i);
+                if (existing != 0)
+                    insert(bigger, existing);
+            }
+            this.table = table = bigger;
+        }
+        if (insert(table, fingerprint))
+            size++;
+    }
+
+    private static boolean insert(AtomicLongArray table, long fingerprint) {
+        final int mask = table.length() - 1;
+        for (int i = index(fingerprint, mask); ; i = (i + 1) & mask) {
+            long existing = table.get(i);
+            if (existing == fingerprint)
+                return false;
+            if (existing == 0) {
+                table.set(i, fingerprint);
+                return true;
+            }
+        }
+    }
+
+    private static boolean contains(AtomicLongArray table, long fingerprint) {
+        final int mask = table.length() - 1;
+        for (int i = index(fingerprint, mask); ; i = (i + 1) & mask) {
+            long existing = table.get(i);
+            if (existing == fingerprint)
+                return true;
+            if (existing == 0)
+                return false;
+        }
+    }
+
+    private static int index(long fingerprint, int mask) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    private static long fingerprint(TransactionOutPoint outpoint) {
+        return mix(fingerprint(OUTPOINT, outpoint.getHash().getBytes()) ^ outpoint.getIndex());
+    }
+
+    private static long fingerprint(long seed, byte[] bytes) {
+        // FNV-1a over the bytes, started from the seed and finished with a mixing step.
+        long h = seed;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h ^ bytes.length);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.spreadcoinj.core;
 
+import org.spreadcoinj.net.SharedBuffer;
 import org.spreadcoinj.params.MainNetParams;
 import org.junit.Test;
 
@@ -79,6 +80,32 @@ public class BitcoinSerializerTest {
         assertEquals(true, Arrays.equals(txMessage, bos.toByteArray()));
     }
 
+    @Test
+    public void testSerializeToBuffer() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Message tx = bs.deserialize(ByteBuffer.wrap(txMessage));
+        SharedBuffer buffer = bs.serializeToBuffer(tx);
+        assertEquals(txMessage.length, buffer.size());
+        assertArrayEquals(txMessage, buffer.toByteArray());
+        ByteBuffer[] views = buffer.newViews();
+        assertEquals(2, views.length);
+        assertEquals(24, views[0].remaining());
+        assertTrue(views[1].isDirect());
+        assertTrue(views[1].isReadOnly());
+        // Each view has its own position.
+        views[1].get();
+        assertEquals(txMessage.length - 24, buffer.newViews()[1].remaining());
+        buffer.retain();
+        buffer.release();
+        buffer.release();
+        try {
+            buffer.newViews();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testCachedParsing()  throws Exception {
         testCachedParsing(true);
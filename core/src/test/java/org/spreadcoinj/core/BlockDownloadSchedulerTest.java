@@ -0,0 +1,299 @@
+package org.spreadcoinj.core;
+
+import org.spreadcoinj.testing.InboundMessageQueuer;
+import org.spreadcoinj.testing.TestWithNetworkConnections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.spreadcoinj.testing.FakeTxBuilder.createFakeBlock;
+import static org.spreadcoinj.testing.FakeTxBuilder.makeSolvedTestBlock;
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class BlockDownloadSchedulerTest extends TestWithNetworkConnections {
+    private static final int OTHER_PEER_CHAIN_HEIGHT = 110;
+
+    private MemoryPool memoryPool;
+    private BlockDownloadScheduler scheduler;
+    private Peer peer1, peer2;
+    private InboundMessageQueuer writeTarget1, writeTarget2;
+    private Block b1, b2, b3, b4, b5;
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public BlockDownloadSchedulerTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock();
+        memoryPool = new MemoryPool();
+        // Two blocks per peer at a time, asked again of another peer after ten seconds.
+        scheduler = new BlockDownloadScheduler(2, 2, 10 * 1000);
+
+        b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        b2 = makeSolvedTestBlock(b1);
+        b3 = makeSolvedTestBlock(b2);
+        b4 = makeSolvedTestBlock(b3);
+        b5 = makeSolvedTestBlock(b4);
+
+        peer1 = new Peer(unitTestParams, new VersionMessage(unitTestParams, 100),
+                new PeerAddress(new InetSocketAddress("127.0.0.1", 4000)), blockChain, memoryPool);
+        peer2 = new Peer(unitTestParams, new VersionMessage(unitTestParams, 100),
+                new PeerAddress(new InetSocketAddress("127.0.0.1", 4001)), blockChain, memoryPool);
+        writeTarget1 = connect(peer1);
+        writeTarget2 = connect(peer2);
+        // peer1 is the download peer, peer2 only helps.
+        peer2.setDownloadData(false);
+        for (Peer peer : new Peer[] {peer1, peer2}) {
+            peer.setScore(new PeerScore());
+            peer.setDownloadScheduler(scheduler);
+            scheduler.addPeer(peer);
+        }
+        scheduler.setDownloadPeer(peer1);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        closePeer(peer1);
+        closePeer(peer2);
+        super.tearDown();
+        Utils.mockTime = null;
+    }
+
+    private InboundMessageQueuer connect(Peer peer) throws Exception {
+        VersionMessage peerVersion = new VersionMessage(unitTestParams, OTHER_PEER_CHAIN_HEIGHT);
+        peerVersion.clientVersion = 70001;
+        peerVersion.localServices = VersionMessage.NODE_NETWORK;
+        return connect(peer, peerVersion);
+    }
+
+    private void announce(Block... blocks) {
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        for (Block block : blocks)
+            inv.addBlock(block);
+        inbound(writeTarget1, inv);
+    }
+
+    private static void assertRequested(Message message, Block... blocks) {
+        GetDataMessage getdata = (GetDataMessage) message;
+        assertEquals(blocks.length, getdata.getItems().size());
+        for (int i = 0; i < blocks.length; i++)
+            assertEquals(blocks[i].getHash(), getdata.getItems().get(i).hash);
+    }
+
+    @Test
+    public void blocksAreSpreadOverPeersAndAddedInOrder() throws Exception {
+        announce(b2, b3, b4, b5);
+        // The download peer gets the first window, the other peer the next.
+        assertRequested(outbound(writeTarget1), b2, b3);
+        assertRequested(waitForOutbound(writeTarget2), b4, b5);
+        assertEquals(4, scheduler.getPendingBlocks());
+
+        // The later blocks arrive first and wait for the earlier ones, rather than becoming orphans.
+        inbound(writeTarget2, b5);
+        inbound(writeTarget2, b4);
+        pingAndWait(writeTarget2);
+        inbound(writeTarget1, b3);
+        pingAndWait(writeTarget1);
+        assertEquals(b1.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertFalse(blockChain.isOrphan(b5.getHash()));
+
+        inbound(writeTarget1, b2);
+        pingAndWait(writeTarget1);
+        assertEquals(b5.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(0, scheduler.getPendingBlocks());
+        // A short inv means we're caught up, so nothing more is asked for.
+        assertNull(outbound(writeTarget1));
+        assertNull(outbound(writeTarget2));
+    }
+
+    @Test
+    public void stalledBlocksAreAskedOfAnotherPeer() throws Exception {
+        announce(b2, b3);
+        assertRequested(outbound(writeTarget1), b2, b3);
+
+        // Not yet stalled.
+        Utils.rollMockClock(5);
+        scheduler.checkForStalls();
+        assertNull(outbound(writeTarget2));
+
+        Utils.rollMockClock(5);
+        scheduler.checkForStalls();
+        assertRequested(waitForOutbound(writeTarget2), b2, b3);
+        inbound(writeTarget2, b2);
+        inbound(writeTarget2, b3);
+        pingAndWait(writeTarget2);
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+        // Which shows in the scores of the peers, once for each block.
+        assertEquals(2, peer1.getScore().getStalls());
+        assertEquals(0, peer2.getScore().getStalls());
+        assertEquals(2, peer2.getScore().getBlocks());
+        assertTrue(peer2.getScore().getScore() > peer1.getScore().getScore());
+
+        // The slow peer's answer comes too late and is handled as any other block.
+        inbound(writeTarget1, b2);
+        pingAndWait(writeTarget1);
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(0, scheduler.getPendingBlocks());
+    }
+
+    @Test
+    public void notFoundBlocksAreAskedOfAnotherPeer() throws Exception {
+        announce(b2, b3);
+        assertRequested(outbound(writeTarget1), b2, b3);
+        inbound(writeTarget1, notFound(b2, b3));
+        assertRequested(waitForOutbound(writeTarget2), b2, b3);
+        inbound(writeTarget2, b2);
+        inbound(writeTarget2, b3);
+        pingAndWait(writeTarget2);
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+        // Not having a block isn't held against the peer.
+        assertEquals(0, peer1.getScore().getStalls());
+    }
+
+    @Test
+    public void blocksNobodyHasAreBlamedOnTheDownloadPeer() throws Exception {
+        announce(b2, b3);
+        assertRequested(outbound(writeTarget1), b2, b3);
+        // The peers take turns not having the blocks.
+        InboundMessageQueuer[] targets = {writeTarget1, writeTarget2};
+        for (int i = 0; i < BlockDownloadScheduler.MAX_REASSIGNMENTS; i++) {
+            inbound(targets[i % 2], notFound(b2, b3));
+            assertRequested(waitForOutbound(targets[(i + 1) % 2]), b2, b3);
+        }
+        Utils.rollMockClock(10);
+        scheduler.checkForStalls();
+        // So the chain that announced them is given up on, and the download peer that sent it disconnected, without
+        // blaming the peers that couldn't deliver.
+        assertEquals(0, scheduler.getPendingBlocks());
+        assertEquals(1, peer1.getScore().getFailures());
+        assertEquals(0, peer1.getScore().getStalls());
+        assertEquals(0, peer2.getScore().getStalls());
+        assertEquals(0, peer2.getScore().getFailures());
+    }
+
+    private NotFoundMessage notFound(Block... blocks) {
+        NotFoundMessage notFound = new NotFoundMessage(unitTestParams);
+        for (Block block : blocks)
+            notFound.addItem(new InventoryItem(InventoryItem.Type.Block, block.getHash()));
+        return notFound;
+    }
+
+    @Test
+    public void singleBlockAnnouncementsAreNotScheduled() throws Exception {
+        // A newly solved block is fetched from the peer that announced it, as without the scheduler.
+        announce(b2);
+        assertRequested(outbound(writeTarget1), b2);
+        assertEquals(0, scheduler.getPendingBlocks());
+        inbound(writeTarget1, b2);
+        pingAndWait(writeTarget1);
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertNull(outbound(writeTarget2));
+    }
+
+    @Test
+    public void invalidBlocksAreNotCountedAsConnected() throws Exception {
+        Block bad = makeSolvedTestBlock(b1);
+        while (true) {
+            bad.setNonce(bad.getNonce() + 1);
+            try {
+                bad.verifyHeader();
+            } catch (VerificationException e) {
+                break;
+            }
+        }
+        // So the scheduler drops the blocks after it and asks for the chain again.
+        assertFalse(peer1.addScheduledBlock(bad));
+        assertEquals(b1.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertTrue(peer1.addScheduledBlock(b2));
+    }
+
+    @Test
+    public void headersFirst() throws Exception {
+        peer1.startBlockChainDownload();
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(writeTarget1);
+        assertEquals(b1.getHash(), getheaders.getLocator().get(0));
+        inbound(writeTarget1, new HeadersMessage(unitTestParams, b2.cloneAsHeader(), b3.cloneAsHeader(),
+                b4.cloneAsHeader(), b5.cloneAsHeader()));
+        // The blocks of the headers are fetched from both peers.
+        assertRequested(outbound(writeTarget1), b2, b3);
+        assertRequested(waitForOutbound(writeTarget2), b4, b5);
+
+        // A block solved meanwhile isn't fetched now, it would only be an orphan.
+        Block b6 = makeSolvedTestBlock(b5);
+        announce(b6);
+        assertNull(outbound(writeTarget1));
+
+        inbound(writeTarget2, b4);
+        inbound(writeTarget2, b5);
+        pingAndWait(writeTarget2);
+        inbound(writeTarget1, b3);
+        inbound(writeTarget1, b2);
+        pingAndWait(writeTarget1);
+        assertEquals(b5.getHash(), blockChain.getChainHead().getHeader().getHash());
+        // Now the download peer asks for the headers that follow.
+        getheaders = (GetHeadersMessage) outbound(writeTarget1);
+        assertEquals(b5.getHash(), getheaders.getLocator().get(0));
+        inbound(writeTarget1, new HeadersMessage(unitTestParams, b6.cloneAsHeader()));
+        assertRequested(outbound(writeTarget1), b6);
+        inbound(writeTarget1, b6);
+        pingAndWait(writeTarget1);
+        assertEquals(b6.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(0, scheduler.getPendingBlocks());
+    }
+
+    @Test
+    public void headersMustFormAChain() throws Exception {
+        BigInteger target = b1.getDifficultyTargetAsInteger();
+        BlockDownloadScheduler.verifyHeaders(Arrays.asList(b2.cloneAsHeader(), b3.cloneAsHeader()), target);
+        // Enough to be checked on several threads.
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = b1;
+        for (int i = 0; i < 100; i++) {
+            prev = makeSolvedTestBlock(prev);
+            headers.add(prev.cloneAsHeader());
+        }
+        BlockDownloadScheduler.verifyHeaders(headers, target);
+        try {
+            BlockDownloadScheduler.verifyHeaders(Arrays.asList(b2.cloneAsHeader(), b4.cloneAsHeader()), target);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void headersMustNotClaimMuchLessWorkThanTheChain() throws Exception {
+        List<Block> headers = Arrays.asList(b2.cloneAsHeader(), b3.cloneAsHeader());
+        BigInteger target = b1.getDifficultyTargetAsInteger();
+        BlockDownloadScheduler.verifyHeaders(headers, target.divide(BigInteger.valueOf(
+                BlockDownloadScheduler.MAX_DIFFICULTY_DROP)));
+        try {
+            BlockDownloadScheduler.verifyHeaders(headers, target.divide(BigInteger.valueOf(
+                    2 * BlockDownloadScheduler.MAX_DIFFICULTY_DROP)));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package org.spreadcoinj.core;
+
+import org.spreadcoinj.testing.InboundMessageQueuer;
+import org.spreadcoinj.testing.TestWithNetworkConnections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.spreadcoinj.core.Coin.COIN;
+import static org.spreadcoinj.testing.FakeTxBuilder.createFakeBlock;
+import static org.spreadcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.spreadcoinj.testing.FakeTxBuilder.makeSolvedTestBlock;
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class CompactBlockTest extends TestWithNetworkConnections {
+    private MemoryPool memoryPool;
+    private Peer peer;
+    private InboundMessageQueuer writeTarget;
+    private Block b1;
+    private Transaction tx1, tx2, tx3;
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public CompactBlockTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        memoryPool = new MemoryPool();
+        b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Address somebody = new ECKey().toAddress(unitTestParams);
+        tx1 = createFakeTx(unitTestParams, COIN, somebody);
+        tx2 = createFakeTx(unitTestParams, COIN, somebody);
+        tx3 = createFakeTx(unitTestParams, COIN, somebody);
+
+        peer = new Peer(unitTestParams, new VersionMessage(unitTestParams, 100),
+                new PeerAddress(new InetSocketAddress("127.0.0.1", 4000)), blockChain, memoryPool);
+        peer.setUseCompactBlocks(true);
+        VersionMessage peerVersion = new VersionMessage(unitTestParams, 110);
+        peerVersion.clientVersion = NetworkParameters.PROTOCOL_VERSION;
+        peerVersion.localServices = VersionMessage.NODE_NETWORK;
+        writeTarget = connect(peer, peerVersion);
+        // We offer to receive compact blocks.
+        SendCompactBlocksMessage sendcmpct = (SendCompactBlocksMessage) waitForOutbound(writeTarget);
+        assertFalse(sendcmpct.getAnnounce());
+        assertEquals(CompactBlockMessage.VERSION, sendcmpct.getVersion());
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        closePeer(peer);
+        super.tearDown();
+        Utils.mockTime = null;
+    }
+
+    // The remote peer says it can send compact blocks, and we, the download peer, ask it to push them.
+    private void enableCompactBlocks() throws Exception {
+        inbound(writeTarget, new SendCompactBlocksMessage(unitTestParams, false, CompactBlockMessage.VERSION));
+        SendCompactBlocksMessage sendcmpct = (SendCompactBlocksMessage) outbound(writeTarget);
+        assertTrue(sendcmpct.getAnnounce());
+    }
+
+    // Puts the transactions of the block other than the coinbase and the given ones into the memory pool, and returns
+    // the indexes in the block of those it left out.
+    private List<Integer> fillMemoryPool(Block block, Transaction... leaveOut) {
+        List<Integer> missing = new ArrayList<Integer>();
+        List<Transaction> transactions = block.getTransactions();
+        for (int i = 1; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            if (Arrays.asList(leaveOut).contains(tx))
+                missing.add(i);
+            else
+                memoryPool.seen(tx, peer.getAddress());
+        }
+        return missing;
+    }
+
+    private void announce(Block block) {
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        inv.addBlock(block);
+        inbound(writeTarget, inv);
+    }
+
+    @Test
+    public void fullBlocksUnlessThePeerSupportsCompactBlocks() throws Exception {
+        Block b2 = makeSolvedTestBlock(b1, tx1);
+        announce(b2);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(InventoryItem.Type.Block, getdata.getItems().get(0).type);
+        // A compact block version we don't know doesn't count.
+        inbound(writeTarget, new SendCompactBlocksMessage(unitTestParams, false, 2));
+        Block b3 = makeSolvedTestBlock(b2, tx2);
+        announce(b3);
+        getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(InventoryItem.Type.Block, getdata.getItems().get(0).type);
+    }
+
+    @Test
+    public void reconstructedFromMemoryPool() throws Exception {
+        enableCompactBlocks();
+        Block b2 = makeSolvedTestBlock(b1, tx1, tx2);
+        assertTrue(fillMemoryPool(b2).isEmpty());
+        announce(b2);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(new InventoryItem(InventoryItem.Type.CompactBlock, b2.getHash()), getdata.getItems().get(0));
+
+        CompactBlockMessage cmpctblock = new CompactBlockMessage(unitTestParams, b2, 42);
+        assertTrue(cmpctblock.getMessageSize() < b2.getMessageSize());
+        inbound(writeTarget, cmpctblock);
+        pingAndWait(writeTarget);
+        // All transactions were in the pool, so nothing more is asked for.
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertNull(outbound(writeTarget));
+    }
+
+    @Test
+    public void missingTransactionsAreFetched() throws Exception {
+        enableCompactBlocks();
+        Block b2 = makeSolvedTestBlock(b1, tx1, tx2, tx3);
+        List<Integer> missing = fillMemoryPool(b2, tx2, tx3);
+        // Pushed without an inv, as we are the download peer.
+        inbound(writeTarget, new CompactBlockMessage(unitTestParams, b2, 42));
+        GetBlockTxnMessage getblocktxn = (GetBlockTxnMessage) outbound(writeTarget);
+        assertEquals(b2.getHash(), getblocktxn.getBlockHash());
+        assertEquals(missing, getblocktxn.getIndexes());
+
+        inbound(writeTarget, new BlockTxnMessage(unitTestParams, b2.getHash(), Arrays.asList(tx2, tx3)));
+        pingAndWait(writeTarget);
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertNull(outbound(writeTarget));
+    }
+
+    @Test
+    public void wrongTransactionsFallBackToTheFullBlock() throws Exception {
+        enableCompactBlocks();
+        Block b2 = makeSolvedTestBlock(b1, tx1, tx2);
+        fillMemoryPool(b2, tx2);
+        inbound(writeTarget, new CompactBlockMessage(unitTestParams, b2, 42));
+        assertTrue(outbound(writeTarget) instanceof GetBlockTxnMessage);
+        inbound(writeTarget, new BlockTxnMessage(unitTestParams, b2.getHash(), Collections.singletonList(tx3)));
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(new InventoryItem(InventoryItem.Type.Block, b2.getHash()), getdata.getItems().get(0));
+        inbound(writeTarget, b2);
+        pingAndWait(writeTarget);
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void unansweredGetBlockTxnFallsBackToTheFullBlock() throws Exception {
+        Utils.setMockClock();
+        enableCompactBlocks();
+        Block b2 = makeSolvedTestBlock(b1, tx1, tx2);
+        fillMemoryPool(b2, tx2);
+        announce(b2);
+        assertEquals(InventoryItem.Type.CompactBlock, ((GetDataMessage) outbound(writeTarget)).getItems().get(0).type);
+        inbound(writeTarget, new CompactBlockMessage(unitTestParams, b2, 42));
+        assertTrue(outbound(writeTarget) instanceof GetBlockTxnMessage);
+
+        Utils.rollMockClock(5);
+        peer.checkPartialBlocks();
+        assertNull(outbound(writeTarget));
+        Utils.rollMockClock(5);
+        peer.checkPartialBlocks();
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(new InventoryItem(InventoryItem.Type.Block, b2.getHash()), getdata.getItems().get(0));
+        inbound(writeTarget, b2);
+        pingAndWait(writeTarget);
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+        // The transactions coming late are ignored.
+        inbound(writeTarget, new BlockTxnMessage(unitTestParams, b2.getHash(), Collections.singletonList(tx2)));
+        assertNull(outbound(writeTarget));
+    }
+
+    @Test
+    public void tooManyPartialBlocksFallBackToTheFullBlock() throws Exception {
+        enableCompactBlocks();
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = b1;
+        for (int i = 0; i < 5; i++) {
+            prev = makeSolvedTestBlock(prev, createFakeTx(unitTestParams, COIN, new ECKey().toAddress(unitTestParams)));
+            blocks.add(prev);
+            inbound(writeTarget, new CompactBlockMessage(unitTestParams, prev, 42));
+            assertTrue(outbound(writeTarget) instanceof GetBlockTxnMessage);
+        }
+        // The peer never sent the transactions of the first, which makes way for the fifth.
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(new InventoryItem(InventoryItem.Type.Block, blocks.get(0).getHash()), getdata.getItems().get(0));
+        inbound(writeTarget, blocks.get(0));
+        pingAndWait(writeTarget);
+        assertEquals(blocks.get(0).getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void indexesMustNotWrap() throws Exception {
+        // Two indexes, the second of which wraps around to a negative one.
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(Utils.reverseBytes(b1.getHash().getBytes()));
+        stream.write(new VarInt(2).encode());
+        stream.write(new VarInt(0).encode());
+        stream.write(new VarInt(Long.MAX_VALUE).encode());
+        try {
+            new GetBlockTxnMessage(unitTestParams, stream.toByteArray());
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+
+        // The same for the prefilled transactions of a compact block, here the coinbase.
+        Block b2 = makeSolvedTestBlock(b1);
+        byte[] bytes = new CompactBlockMessage(unitTestParams, b2, 42).bitcoinSerialize();
+        byte[] coinbase = b2.getTransactions().get(0).bitcoinSerialize();
+        int prefilled = bytes.length - coinbase.length - 2;
+        assertEquals(1, bytes[prefilled]);
+        assertEquals(0, bytes[prefilled + 1]);
+        stream = new ByteArrayOutputStream();
+        stream.write(bytes, 0, prefilled);
+        stream.write(new VarInt(2).encode());
+        stream.write(new VarInt(0).encode());
+        stream.write(coinbase);
+        stream.write(new VarInt(Long.MAX_VALUE).encode());
+        stream.write(coinbase);
+        try {
+            new CompactBlockMessage(unitTestParams, stream.toByteArray());
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void extendedHeader() throws Exception {
+        // A block beyond the second hard fork, with the whole block hash and miner signature in its header.
+        Block b2 = makeSolvedTestBlock(b1, tx1, tx2);
+        byte[] bytes = b2.bitcoinSerialize();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(bytes, 0, Block.HEADER_POS_HEIGHT);
+        Utils.uint32ToByteStreamLE(unitTestParams.getSecondHardforkBlock() + 1, stream);
+        stream.write(bytes, Block.HEADER_POS_HEIGHT + 4, Block.HEADER_SIZE_OLD - Block.HEADER_POS_HEIGHT - 4);
+        byte[] extension = new byte[Block.HEADER_SIZE_NEW - Block.HEADER_SIZE_OLD];
+        new Random().nextBytes(extension);
+        stream.write(extension);
+        stream.write(bytes, Block.HEADER_SIZE_OLD, bytes.length - Block.HEADER_SIZE_OLD);
+        Block block = new Block(unitTestParams, stream.toByteArray());
+        assertEquals(Block.HEADER_SIZE_NEW, block.getHeaderSize());
+
+        CompactBlockMessage sent = new CompactBlockMessage(unitTestParams, block, 42);
+        CompactBlockMessage received = new CompactBlockMessage(unitTestParams, sent.bitcoinSerialize());
+        assertEquals(block.getHash(), received.getBlockHash());
+        assertEquals(sent.getShortId(tx2.getHash()), received.getShortId(tx2.getHash()));
+        assertEquals(Collections.singletonList(0), received.getPrefilledIndexes());
+
+        List<Integer> missing = fillMemoryPool(block, tx2);
+        PartialBlock partial = new PartialBlock(unitTestParams, received, memoryPool);
+        assertEquals(missing, partial.getMissingIndexes());
+        partial.fill(Collections.singletonList(tx2));
+        Block rebuilt = partial.build();
+        assertEquals(block.getHash(), rebuilt.getHash());
+        assertArrayEquals(stream.toByteArray(), rebuilt.bitcoinSerialize());
+    }
+}
@@ -0,0 +1,80 @@
+package org.spreadcoinj.core;
+
+import org.spreadcoinj.params.UnitTestParams;
+import org.spreadcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageFrameDecoderTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private BitcoinSerializer serializer;
+    private MessageFrameDecoder decoder;
+    private List<Message> messages;
+    private byte[] stream;
+
+    @Before
+    public void setUp() throws Exception {
+        serializer = new BitcoinSerializer(params);
+        decoder = new MessageFrameDecoder(params, serializer);
+        messages = new ArrayList<Message>();
+        messages.add(new Ping(12345));
+        messages.add(new VersionAck());
+        messages.add(new InventoryMessage(params));
+        Transaction[] transactions = new Transaction[50];
+        for (int i = 0; i < transactions.length; i++)
+            transactions[i] = FakeTxBuilder.createFakeTx(params, Coin.COIN, new ECKey().toAddress(params));
+        messages.add(FakeTxBuilder.makeSolvedTestBlock(params.getGenesisBlock(), transactions));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Garbage before the first message, including a partial magic, is skipped.
+        byte[] magic = new byte[4];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), magic, 0);
+        out.write(new byte[] { 1, magic[0], 2, magic[0], magic[1] });
+        for (Message message : messages)
+            serializer.serialize(message, out);
+        stream = out.toByteArray();
+    }
+
+    private List<Message> decode(int maxChunk, Random random) throws Exception {
+        List<Message> decoded = new ArrayList<Message>();
+        int position = 0;
+        while (position < stream.length) {
+            int length = Math.min(stream.length - position, 1 + random.nextInt(maxChunk));
+            ByteBuffer buff = ByteBuffer.wrap(stream, position, length).slice();
+            Message message;
+            while ((message = decoder.next(buff)) != null)
+                decoded.add(message);
+            assertFalse(buff.hasRemaining());
+            position += length;
+        }
+        return decoded;
+    }
+
+    @Test
+    public void pieces() throws Exception {
+        Random random = new Random(1);
+        for (int maxChunk : new int[] { 1, 7, 100, 5000, stream.length }) {
+            List<Message> decoded = decode(maxChunk, random);
+            assertEquals(messages.size(), decoded.size());
+            for (int i = 0; i < messages.size(); i++)
+                assertArrayEquals(messages.get(i).bitcoinSerialize(), decoded.get(i).bitcoinSerialize());
+            assertEquals(((Ping) messages.get(0)).getNonce(), ((Ping) decoded.get(0)).getNonce());
+            assertEquals(messages.get(3), decoded.get(3));
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void badChecksum() throws Exception {
+        // Flip a byte in the last payload.
+        stream[stream.length - 1] ^= 1;
+        decode(1000, new Random(1));
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.spreadcoinj.core;
 
+import org.spreadcoinj.net.discovery.PeerAddressDatabase;
 import org.spreadcoinj.net.discovery.PeerDiscovery;
 import org.spreadcoinj.net.discovery.PeerDiscoveryException;
 import org.spreadcoinj.params.UnitTestParams;
@@ -25,6 +26,7 @@ import org.spreadcoinj.testing.InboundMessageQueuer;
 import org.spreadcoinj.testing.TestWithPeerGroup;
 import org.spreadcoinj.utils.Threading;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.net.InetAddresses;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -35,6 +37,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
@@ -506,6 +510,99 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertTrue(!peerConnectedFuture.isDone() && peerDisconnectedFuture.isDone());
     }
 
+    @Test
+    public void peerScoresCountOnlyFailures() throws Exception {
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        peerGroup.setConnectTimeoutMillis(100);
+        peerGroup.addEventListener(listener, Threading.SAME_THREAD);
+
+        VersionMessage ver = new VersionMessage(params, 10);
+        ver.clientVersion = peerGroup.getMinRequiredProtocolVersion();
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        connectedPeers.take();
+        PeerScore score = peerGroup.getPeerScore(p1.peer.getAddress());
+        assertEquals(1, score.getConnections());
+        // The peer closing a connection that worked isn't held against it.
+        p1.close();
+        disconnectedPeers.take();
+        assertEquals(0, score.getFailures());
+        assertSame(score, peerGroup.getPeerScore(p1.peer.getAddress()));
+
+        // Not finishing the handshake in time is.
+        InboundMessageQueuer p2 = connectPeerWithoutVersionExchange(2);
+        disconnectedPeers.take();
+        assertEquals(1, peerGroup.getPeerScore(p2.peer.getAddress()).getFailures());
+    }
+
+    @Test
+    public void addressDatabase() throws Exception {
+        File file = File.createTempFile("peeraddresses", null);
+        file.delete();
+        file.deleteOnExit();
+        PeerAddressDatabase db = new PeerAddressDatabase(params, file);
+        try {
+            // The peer on the first server served us last time, discovery knows of the second.
+            db.recordAttempt(new InetSocketAddress("127.0.0.1", 2001), true);
+            final AtomicInteger dialledBeforeDiscovery = new AtomicInteger(-1);
+            peerGroup.addPeerDiscovery(new PeerDiscovery() {
+                @Override
+                public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) {
+                    dialledBeforeDiscovery.compareAndSet(-1, peerGroup.getPendingPeers().size());
+                    return new InetSocketAddress[] {new InetSocketAddress("127.0.0.1", 2002)};
+                }
+
+                @Override
+                public void shutdown() {
+                }
+            });
+            peerGroup.setAddressDatabase(db);
+            peerGroup.setMaxConnections(2);
+            peerGroup.addEventListener(listener, Threading.SAME_THREAD);
+            peerGroup.startAsync();
+            peerGroup.awaitRunning();
+
+            VersionMessage ver = new VersionMessage(params, 10);
+            ver.clientVersion = peerGroup.getMinRequiredProtocolVersion();
+            ver.localServices = VersionMessage.NODE_NETWORK;
+            InboundMessageQueuer p1 = handleConnectToPeer(1, ver);
+            InboundMessageQueuer p2 = handleConnectToPeer(2, ver);
+            Set<Integer> ports = new HashSet<Integer>();
+            ports.add(connectedPeers.take().getAddress().getPort());
+            ports.add(connectedPeers.take().getAddress().getPort());
+            assertEquals(ImmutableSet.of(2001, 2002), ports);
+            // The address from the database was dialled on startup, discovery only asked when it ran out.
+            assertEquals(1, dialledBeforeDiscovery.get());
+
+            // Knowing few addresses, we ask peers for more and remember the routable ones they announce.
+            assertTrue(p1.nextMessageBlocking() instanceof GetAddrMessage);
+            assertTrue(p2.nextMessageBlocking() instanceof GetAddrMessage);
+            PeerAddress routable = new PeerAddress(InetAddresses.forString("44.0.0.1"), params.getPort());
+            PeerAddress local = new PeerAddress(InetAddresses.forString("192.168.0.1"), params.getPort());
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(new VarInt(2).encode());
+            payload.write(routable.bitcoinSerialize());
+            payload.write(local.bitcoinSerialize());
+            inbound(p1, new AddressMessage(params, payload.toByteArray()));
+            // Messages are handled in order, so the address message is done with once the ping is answered.
+            inbound(p1, new Ping(1));
+            assertTrue(p1.nextMessageBlocking() instanceof Pong);
+            assertNotNull(db.get(routable.toSocketAddress()));
+            assertNull(db.get(local.toSocketAddress()));
+
+            // Both connections are recorded, and how the peer did when it goes away.
+            assertTrue(db.get(new InetSocketAddress("127.0.0.1", 2002)).getLastSuccessSecs() > 0);
+            p2.close();
+            Peer gone = disconnectedPeers.take();
+            assertTrue(db.get(gone.getAddress().toSocketAddress()).getScore() > 0);
+        } finally {
+            peerGroup.stopAsync();
+            peerGroup.awaitTerminated();
+            db.close();
+        }
+    }
+
     @Test
     public void peerPriority() throws Exception {
         final List<InetSocketAddress> addresses = Lists.newArrayList(
@@ -0,0 +1,87 @@
+package org.spreadcoinj.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerScoreTest {
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void unknownPeers() {
+        PeerScore score = new PeerScore();
+        assertEquals(Long.MAX_VALUE, score.getPingMillis());
+        assertEquals(0, score.getBytesPerSecond());
+        // Scored as if it had the default ping time.
+        assertEquals(1000.0 / PeerScore.DEFAULT_PING_MILLIS, score.getScore(), 1e-9);
+        // Peers that never answered a ping don't count.
+        score.recordPing(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, score.getPingMillis());
+    }
+
+    @Test
+    public void fasterPeersScoreHigher() {
+        PeerScore near = new PeerScore(), far = new PeerScore();
+        near.recordPing(50);
+        far.recordPing(500);
+        assertEquals(50, near.getPingMillis());
+        assertTrue(near.getScore() > far.getScore());
+
+        // The same ping time, but one delivers blocks ten times as fast.
+        PeerScore fast = new PeerScore(), slow = new PeerScore();
+        fast.recordPing(100);
+        slow.recordPing(100);
+        fast.recordBlock(100000, 100);
+        slow.recordBlock(100000, 1000);
+        assertEquals(1000000, fast.getBytesPerSecond());
+        assertEquals(2, fast.getBlocks() + slow.getBlocks());
+        assertTrue(fast.getScore() > slow.getScore());
+    }
+
+    @Test
+    public void movingAverage() {
+        PeerScore score = new PeerScore();
+        score.recordPing(100);
+        score.recordPing(500);
+        // Moves a quarter of the way towards the new measurement.
+        assertEquals(200, score.getPingMillis());
+    }
+
+    @Test
+    public void stallsAndFailuresLowerTheScore() {
+        PeerScore good = new PeerScore(), stalling = new PeerScore(), failing = new PeerScore();
+        for (PeerScore score : new PeerScore[] {good, stalling, failing}) {
+            score.recordPing(100);
+            score.recordConnected();
+            for (int i = 0; i < 3; i++)
+                score.recordBlock(1000, 10);
+        }
+        stalling.recordStall();
+        failing.recordFailure();
+        assertEquals(1, stalling.getStalls());
+        assertEquals(1, failing.getFailures());
+        assertTrue(good.getScore() > stalling.getScore());
+        assertTrue(good.getScore() > failing.getScore());
+    }
+
+    @Test
+    public void connectionTime() {
+        PeerScore score = new PeerScore();
+        assertEquals(0, score.getConnectedSinceMillis());
+        score.recordConnected();
+        assertEquals(Utils.currentTimeMillis(), score.getConnectedSinceMillis());
+        assertEquals(1, score.getConnections());
+        score.recordFailure();
+        assertEquals(0, score.getConnectedSinceMillis());
+    }
+}
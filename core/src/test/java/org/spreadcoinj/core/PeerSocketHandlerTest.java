@@ -0,0 +1,133 @@
+package org.spreadcoinj.core;
+
+import org.spreadcoinj.net.MessageWriteTarget;
+import org.spreadcoinj.net.ReadPausableWriteTarget;
+import org.spreadcoinj.params.UnitTestParams;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private List<Runnable> tasks;
+    private List<Message> processed;
+    private List<Boolean> readPauses;
+    private PeerSocketHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        tasks = new ArrayList<Runnable>();
+        processed = new ArrayList<Message>();
+        readPauses = new ArrayList<Boolean>();
+        handler = new PeerSocketHandler(params, new PeerAddress(InetAddress.getLocalHost(), params.getPort())) {
+            @Override
+            protected void processMessage(Message m) {
+                processed.add(m);
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+        // Runs nothing until the test says so.
+        handler.setMessageExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }, 4);
+        handler.setWriteTarget(new ReadPausableWriteTarget() {
+            @Override
+            public void writeBytes(byte[] message) {
+            }
+
+            @Override
+            public void setReadPaused(boolean paused) {
+                readPauses.add(paused);
+            }
+
+            @Override
+            public void closeConnection() {
+            }
+        });
+    }
+
+    private void receivePings(int from, int to) throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = from; i < to; i++)
+            serializer.serialize(new Ping(i), out);
+        ByteBuffer buff = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(buff.limit(), handler.receiveBytes(buff));
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty())
+            tasks.remove(0).run();
+    }
+
+    private void assertProcessed(int count) {
+        assertEquals(count, processed.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(i, ((Ping) processed.get(i)).getNonce());
+    }
+
+    @Test
+    public void pausesReadingUntilHalfTheQueueIsProcessed() throws Exception {
+        // Up to four queued messages are fine.
+        receivePings(0, 4);
+        assertEquals(0, readPauses.size());
+        // A fifth pauses reading, once.
+        receivePings(4, 6);
+        assertEquals(ImmutableList.of(true), readPauses);
+        assertProcessed(0);
+        assertEquals(1, tasks.size());
+        // Reading resumes once two are left, and everything is processed in order.
+        runTasks();
+        assertEquals(ImmutableList.of(true, false), readPauses);
+        assertProcessed(6);
+    }
+
+    @Test
+    public void doesNotPauseWhenKeepingUp() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            receivePings(i, i + 1);
+            runTasks();
+        }
+        assertEquals(0, readPauses.size());
+        assertProcessed(10);
+    }
+
+    @Test
+    public void queuesWhenTargetCannotPause() throws Exception {
+        // A write target which can't pause reads is never asked to, and the queue just grows.
+        handler.writeTarget = new MessageWriteTarget() {
+            @Override
+            public void writeBytes(byte[] message) {
+            }
+
+            @Override
+            public void closeConnection() {
+            }
+        };
+        receivePings(0, 10);
+        assertProcessed(0);
+        runTasks();
+        assertEquals(0, readPauses.size());
+        assertProcessed(10);
+    }
+}
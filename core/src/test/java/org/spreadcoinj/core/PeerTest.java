@@ -41,6 +41,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -927,4 +928,32 @@ public class PeerTest extends TestWithNetworkConnections {
                     || (e instanceof SocketException && e.getMessage().equals("Socket is closed")));
         }
     }
+
+    @Test
+    public void messageExecutor() throws Exception {
+        // Messages are processed off the network thread, in order, even with a queue small enough that reading is
+        // paused and resumed. PeerSocketHandlerTest checks the pausing itself.
+        peer.setMessageExecutor(PeerSocketHandler.getSharedMessageExecutor(), 4);
+        connect();
+        final List<Long> nonces = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicBoolean wrongThread = new AtomicBoolean(false);
+        peer.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public Message onPreMessageReceived(Peer p, Message m) {
+                if (Threading.isCpuPoolThread() || !Thread.currentThread().getName().startsWith("PeerSocketHandler"))
+                    wrongThread.set(true);
+                if (m instanceof Ping)
+                    nonces.add(((Ping) m).getNonce());
+                return m;
+            }
+        }, Threading.SAME_THREAD);
+        final int count = 40;
+        for (int i = 0; i < count; i++)
+            inbound(writeTarget, new Ping(i));
+        pingAndWait(writeTarget);
+        assertFalse(wrongThread.get());
+        assertEquals(count, nonces.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(i, (long) nonces.get(i));
+    }
 }
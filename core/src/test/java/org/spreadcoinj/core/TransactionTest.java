@@ -1,12 +1,17 @@
 package org.spreadcoinj.core;
 
 import org.spreadcoinj.params.UnitTestParams;
+import org.spreadcoinj.script.Script;
 import org.spreadcoinj.script.ScriptBuilder;
+import org.spreadcoinj.script.ScriptOpCodes;
 import org.spreadcoinj.testing.FakeTxBuilder;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * Just check the Transaction.verify() method. Most methods that have complicated logic in Transaction are tested
@@ -89,4 +94,79 @@ public class TransactionTest {
         assertEquals(101, input.getScriptBytes().length);
         tx.verify();
     }
+
+    @Test
+    public void hashesForSignature() throws Exception {
+        ECKey key = new ECKey();
+        for (int i = 0; i < 5; i++)
+            tx.addInput(FakeTxBuilder.createFakeTx(PARAMS, Coin.CENT, key.toAddress(PARAMS)).getOutput(0));
+        tx.addOutput(Coin.CENT, new ECKey());
+        tx.getInput(1).setScriptBytes(new byte[] { 1, 2, 3 });
+        tx.getInput(2).setSequenceNumber(7);
+        byte[] original = tx.bitcoinSerialize();
+
+        byte[][] scripts = new byte[tx.getInputs().size()][];
+        for (int i = 0; i < scripts.length; i++)
+            scripts[i] = tx.getInput(i).getConnectedOutput().getScriptPubKey().getProgram();
+        // One with an OP_CODESEPARATOR in it, which gets removed, and one skipped.
+        scripts[3] = new ScriptBuilder().op(ScriptOpCodes.OP_CODESEPARATOR).data(key.getPubKey())
+                .op(ScriptOpCodes.OP_CHECKSIG).build().getProgram();
+        scripts[4] = null;
+        Sha256Hash[] hashes = tx.hashesForSignature(scripts);
+        for (int i = 0; i < scripts.length; i++) {
+            if (scripts[i] == null) {
+                assertNull(hashes[i]);
+            } else {
+                assertEquals(referenceHashForSignature(tx, i, scripts[i], (byte) 1), hashes[i]);
+                assertEquals(hashes[i], tx.hashForSignature(i, scripts[i], Transaction.SigHash.ALL, false));
+            }
+        }
+        // The transaction isn't touched.
+        assertArrayEquals(original, tx.bitcoinSerialize());
+    }
+
+    @Test
+    public void hashForSignatureCache() throws Exception {
+        ECKey key = new ECKey();
+        for (int i = 0; i < 3; i++)
+            tx.addInput(FakeTxBuilder.createFakeTx(PARAMS, Coin.CENT, key.toAddress(PARAMS)).getOutput(0));
+        byte[] script = ScriptBuilder.createOutputScript(key.toAddress(PARAMS)).getProgram();
+        // Out of order, and with an unusual sighash type that still signs everything.
+        for (int i : new int[] { 2, 0, 3, 1 })
+            assertEquals(referenceHashForSignature(tx, i, script, (byte) 1), tx.hashForSignature(i, script, (byte) 1));
+        assertEquals(referenceHashForSignature(tx, 1, script, (byte) 0), tx.hashForSignature(1, script, (byte) 0));
+
+        // Input scripts aren't signed.
+        Sha256Hash hash = tx.hashForSignature(2, script, (byte) 1);
+        tx.getInput(0).setScriptBytes(new byte[] { 1, 2, 3 });
+        assertEquals(hash, tx.hashForSignature(2, script, (byte) 1));
+
+        // Anything else that changes is picked up.
+        tx.getInput(3).setSequenceNumber(1);
+        assertEquals(referenceHashForSignature(tx, 2, script, (byte) 1), tx.hashForSignature(2, script, (byte) 1));
+        tx.getOutput(0).setValue(Coin.CENT);
+        assertEquals(referenceHashForSignature(tx, 2, script, (byte) 1), tx.hashForSignature(2, script, (byte) 1));
+        tx.addOutput(Coin.COIN, new ECKey());
+        tx.shuffleOutputs();
+        assertEquals(referenceHashForSignature(tx, 2, script, (byte) 1), tx.hashForSignature(2, script, (byte) 1));
+        tx.setLockTime(1000);
+        assertEquals(referenceHashForSignature(tx, 2, script, (byte) 1), tx.hashForSignature(2, script, (byte) 1));
+        tx.addInput(dummy.getOutput(0));
+        assertEquals(referenceHashForSignature(tx, 4, script, (byte) 1), tx.hashForSignature(4, script, (byte) 1));
+        assertNotEquals(hash, tx.hashForSignature(2, script, (byte) 1));
+    }
+
+    // Serializes a copy of the transaction in the signed form, the slow way.
+    private static Sha256Hash referenceHashForSignature(Transaction tx, int inputIndex, byte[] script,
+                                                        byte sigHashType) throws Exception {
+        Transaction copy = new Transaction(PARAMS, tx.bitcoinSerialize());
+        for (TransactionInput input : copy.getInputs())
+            input.setScriptBytes(new byte[0]);
+        copy.getInput(inputIndex).setScriptBytes(
+                Script.removeAllInstancesOfOp(script, ScriptOpCodes.OP_CODESEPARATOR));
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
+        copy.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
 }
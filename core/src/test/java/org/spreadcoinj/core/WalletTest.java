@@ -23,6 +23,7 @@ import org.spreadcoinj.crypto.*;
 import org.spreadcoinj.script.Script;
 import org.spreadcoinj.script.ScriptBuilder;
 import org.spreadcoinj.script.ScriptOpCodes;
+import org.spreadcoinj.signers.LocalTransactionSigner;
 import org.spreadcoinj.signers.StatelessTransactionSigner;
 import org.spreadcoinj.signers.TransactionSigner;
 import org.spreadcoinj.store.BlockStoreException;
@@ -161,6 +162,24 @@ public class WalletTest extends TestWithWallet {
         basicSpendingCommon(wallet, myAddress, new ECKey().toAddress(params), false);
     }
 
+    @Test
+    public void spendManyInputs() throws Exception {
+        // Enough inputs for the local signer to sign them on several threads.
+        final int numInputs = LocalTransactionSigner.PARALLEL_SIGNING_THRESHOLD * 3;
+        for (int i = 0; i < numInputs; i++) {
+            Address address = i % 2 == 0 ? myAddress : wallet.freshReceiveAddress();
+            sendMoneyToWallet(wallet, CENT, address, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        }
+        SendRequest req = SendRequest.emptyWallet(new ECKey().toAddress(params));
+        wallet.completeTx(req);
+        Transaction tx = req.tx;
+        assertEquals(numInputs, tx.getInputs().size());
+        for (int i = 0; i < numInputs; i++) {
+            TransactionInput input = tx.getInput(i);
+            input.getScriptSig().correctlySpends(tx, i, input.getConnectedOutput().getScriptPubKey());
+        }
+    }
+
     @Test (expected = IllegalArgumentException.class)
     public void thresholdShouldNotExceedNumberOfKeys() throws Exception {
         createMarriedWallet(3, 2);
@@ -924,6 +943,37 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, walletChanged[0]);
     }
 
+    @Test
+    public void relevanceFilterTracksWalletChanges() throws Exception {
+        // The first check builds the relevance filter, everything after that has to be picked up incrementally.
+        assertFalse(wallet.isTransactionRelevant(createFakeTx(params, COIN, new ECKey().toAddress(params))));
+
+        ECKey imported = new ECKey();
+        wallet.importKey(imported);
+        assertTrue(wallet.isTransactionRelevant(createFakeTx(params, COIN, imported.toAddress(params))));
+
+        Address watched = new ECKey().toAddress(params);
+        wallet.addWatchedAddress(watched);
+        assertTrue(wallet.isTransactionRelevant(createFakeTx(params, COIN, watched)));
+
+        // A pending transaction that pays us: spending it, or double spending its input, is relevant.
+        Transaction t1 = createFakeTx(params, COIN, myAddress);
+        assertTrue(wallet.isPendingTransactionRelevant(t1));
+        wallet.receivePending(t1, null);
+        Address someoneElse = new ECKey().toAddress(params);
+        Transaction spend = new Transaction(params);
+        spend.addInput(t1.getOutput(0));
+        spend.addOutput(COIN, someoneElse);
+        assertTrue(wallet.isTransactionRelevant(spend));
+        Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addInput(t1.getInput(0).getOutpoint().getHash(), t1.getInput(0).getOutpoint().getIndex(),
+                new Script(new byte[0]));
+        doubleSpend.addOutput(COIN, someoneElse);
+        assertTrue(wallet.isTransactionRelevant(doubleSpend));
+
+        assertFalse(wallet.isPendingTransactionRelevant(createFakeTx(params, COIN, someoneElse)));
+    }
+
     @Test
     public void pending2() throws Exception {
         // Check that if we receive a pending tx we did not send, it updates our spent flags correctly.
@@ -1216,6 +1266,41 @@ public class WalletTest extends TestWithWallet {
         assertEquals(CENT, st2.getValueSentFromMe(wallet));
     }
 
+    @Test
+    public void bloomFilterUpdatedIncrementally() throws Exception {
+        final int size = wallet.getBloomFilterElementCount() + 1000;
+        final long tweak = 12345;
+        BloomFilter filter = wallet.getBloomFilter(size, 1e-12, tweak);
+
+        // Use up the lookahead zone, so that new keys are derived.
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 150; i++)
+            keys.add(wallet.freshReceiveKey());
+        Address watchedAddress = new ECKey().toAddress(params);
+        wallet.addWatchedAddress(watchedAddress);
+        Transaction t1 = createFakeTx(params, CENT, watchedAddress);
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, 0, t1);
+        assertFalse(filter.contains(outPoint.bitcoinSerialize()));
+        wallet.receiveFromBlock(t1, createFakeBlock(blockStore, t1).storedBlock, BlockChain.NewBlockType.BEST_CHAIN, 0);
+
+        filter = wallet.getBloomFilter(size, 1e-12, tweak);
+        for (ECKey key : keys)
+            assertTrue(filter.contains(key.getPubKeyHash()));
+        assertTrue(filter.contains(watchedAddress.getHash160()));
+        assertTrue(filter.contains(outPoint.bitcoinSerialize()));
+
+        // The filter handed out is a copy.
+        byte[] element = new ECKey().getPubKey();
+        filter.insert(element);
+        assertFalse(wallet.getBloomFilter(size, 1e-12, tweak).contains(element));
+
+        // Asking for a filter of a different size rebuilds it with the same contents.
+        filter = wallet.getBloomFilter(wallet.getBloomFilterElementCount(), 1e-12, tweak);
+        for (ECKey key : keys)
+            assertTrue(filter.contains(key.getPubKeyHash()));
+        assertTrue(filter.contains(outPoint.bitcoinSerialize()));
+    }
+
     @Test
     public void watchingScriptsBloomFilter() throws Exception {
         assertFalse(wallet.isRequiringUpdateAllBloomFilter());
@@ -17,26 +17,44 @@
 package org.spreadcoinj.crypto;
 
 import org.spreadcoinj.core.ECKey;
+import org.spreadcoinj.core.NetworkParameters;
+import org.spreadcoinj.core.Sha256Hash;
 import org.spreadcoinj.crypto.BIP38PrivateKey.BadPassphraseException;
 import org.spreadcoinj.params.MainNetParams;
 import org.spreadcoinj.params.TestNetParams;
 import org.junit.Ignore;
 import org.junit.Test;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
+import com.lambdaworks.crypto.SCrypt;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
-@Ignore
 public class BIP38PrivateKeyTest {
 
     private static final MainNetParams MAINNET = MainNetParams.get();
     private static final TestNetParams TESTNET = TestNetParams.get();
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_noCompression_noEcMultiply_test1() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MAINNET,
                 "6PRVWUbkzzsbcVac2qwfssoUJAN1Xhrg6bNk8J7Nzm5H7kxEbn2Nh2ZoGg");
@@ -46,6 +64,7 @@ public class BIP38PrivateKeyTest {
     }
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_noCompression_noEcMultiply_test2() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MAINNET,
                 "6PRNFFkZc2NZ6dJqFfhRoFNMR9Lnyj7dYGrzdgXXVMXcxoKTePPX1dWByq");
@@ -55,6 +74,7 @@ public class BIP38PrivateKeyTest {
     }
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_noCompression_noEcMultiply_test3() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MAINNET,
                 "6PRW5o9FLp4gJDDVqJQKJFTpMvdsSGJxMYHtHaQBF3ooa8mwD69bapcDQn");
@@ -70,6 +90,7 @@ public class BIP38PrivateKeyTest {
     }
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_compression_noEcMultiply_test1() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MainNetParams.get(),
                 "6PYNKZ1EAgYgmQfmNVamxyXVWHzK5s6DGhwP4J5o44cvXdoY7sRzhtpUeo");
@@ -79,6 +100,7 @@ public class BIP38PrivateKeyTest {
     }
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_compression_noEcMultiply_test2() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MainNetParams.get(),
                 "6PYLtMnXvfG3oJde97zRyLYFZCYizPU5T3LwgdYJz1fRhh16bU7u6PPmY7");
@@ -88,6 +110,7 @@ public class BIP38PrivateKeyTest {
     }
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_ecMultiply_noCompression_noLotAndSequence_test1() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MainNetParams.get(),
                 "6PfQu77ygVyJLZjfvMLyhLMQbYnu5uguoJJ4kMCLqWwPEdfpwANVS76gTX");
@@ -97,6 +120,7 @@ public class BIP38PrivateKeyTest {
     }
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_ecMultiply_noCompression_noLotAndSequence_test2() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MainNetParams.get(),
                 "6PfLGnQs6VZnrNpmVKfjotbnQuaJK4KZoPFrAjx1JMJUa1Ft8gnf5WxfKd");
@@ -106,6 +130,7 @@ public class BIP38PrivateKeyTest {
     }
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_ecMultiply_noCompression_lotAndSequence_test1() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MainNetParams.get(),
                 "6PgNBNNzDkKdhkT6uJntUXwwzQV8Rr2tZcbkDcuC9DZRsS6AtHts4Ypo1j");
@@ -115,6 +140,7 @@ public class BIP38PrivateKeyTest {
     }
 
     @Test
+    @Ignore("Address hash is of a Bitcoin address")
     public void bip38testvector_ecMultiply_noCompression_lotAndSequence_test2() throws Exception {
         BIP38PrivateKey encryptedKey = new BIP38PrivateKey(MainNetParams.get(),
                 "6PgGWtx25kUg8QWvwuJAgorN6k9FbE25rv5dMRwu5SKMnfpfVe5mar2ngH");
@@ -159,4 +185,104 @@ public class BIP38PrivateKeyTest {
                 .readObject();
         assertEquals(key, keyCopy);
     }
+
+    @Test
+    public void decryptAll() throws Exception {
+        BIP38PrivateKey noEC = new BIP38PrivateKey(TESTNET, "6PRPhQhmtw6dQu6jD8E1KS4VphwJxBS9Eh9C8FQELcrwN3vPvskv9NKvuL");
+        BIP38PrivateKey ec = new BIP38PrivateKey(TESTNET, "6PfMmVHn153N3x83Yiy4Nf76dHUkXufe2Adr9Fw5bewrunGNeaw2QCpifb");
+        // Keys from one intermediate code, which share the scrypt of the passphrase.
+        Random random = new Random(1);
+        byte[] ownerSalt = new byte[4];
+        random.nextBytes(ownerSalt);
+        ECKey[] expected = new ECKey[3];
+        BIP38PrivateKey[] lotAndSequence = new BIP38PrivateKey[3];
+        for (int i = 0; i < 3; i++) {
+            byte[] seed = new byte[24];
+            random.nextBytes(seed);
+            byte[] ownerEntropy = Bytes.concat(ownerSalt, new byte[] { 0, 0, 0x10, (byte) (i + 1) });
+            expected[i] = ECKey.fromPrivate(passFactor("password", ownerEntropy)
+                    .multiply(new BigInteger(1, Sha256Hash.createDouble(seed).getBytes())).mod(ECKey.CURVE.getN()), false);
+            lotAndSequence[i] = encryptEC(TESTNET, "password", ownerEntropy, seed, expected[i]);
+        }
+
+        List<BIP38PrivateKey> keys = ImmutableList.of(noEC, ec, ec, lotAndSequence[0], lotAndSequence[1],
+                lotAndSequence[2]);
+        List<String> passphrases = ImmutableList.of("password", "password", "wrong", "password", "password",
+                "password");
+        final List<Integer> progress = new CopyOnWriteArrayList<Integer>();
+        List<ECKey> decrypted = BIP38PrivateKey.decryptAll(keys, passphrases,
+                new BIP38PrivateKey.DecryptionProgressListener() {
+                    @Override
+                    public void onKeyDecrypted(int index, ECKey key, int done, int total) {
+                        assertEquals(6, total);
+                        progress.add(done);
+                    }
+                });
+        assertEquals(ImmutableList.of(1, 2, 3, 4, 5, 6), progress);
+        assertEquals("93MLfjbY6ugAsLeQfFY6zodDa8izgm1XAwA9cpMbUTwLkDitopg",
+                decrypted.get(0).getPrivateKeyEncoded(TESTNET).toString());
+        assertEquals("91tCpdaGr4Khv7UAuUxa6aMqeN5GcPVJxzLtNsnZHTCndxkRcz2",
+                decrypted.get(1).getPrivateKeyEncoded(TESTNET).toString());
+        assertNull(decrypted.get(2));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(expected[i].getPrivKey(), decrypted.get(3 + i).getPrivKey());
+            assertEquals(expected[i].getPrivKey(), lotAndSequence[i].decrypt("password").getPrivKey());
+        }
+    }
+
+    @Test
+    public void decryptAllSharesIntermediates() throws Exception {
+        BIP38PrivateKey ec = new BIP38PrivateKey(TESTNET, "6PfMmVHn153N3x83Yiy4Nf76dHUkXufe2Adr9Fw5bewrunGNeaw2QCpifb");
+        Random random = new Random(2);
+        byte[] ownerSalt = new byte[4];
+        random.nextBytes(ownerSalt);
+        List<BIP38PrivateKey> keys = new ArrayList<BIP38PrivateKey>();
+        keys.add(ec);
+        keys.add(ec);
+        for (int i = 0; i < 3; i++) {
+            byte[] seed = new byte[24];
+            random.nextBytes(seed);
+            byte[] ownerEntropy = Bytes.concat(ownerSalt, new byte[] { 0, 0, 0x10, (byte) (i + 1) });
+            ECKey key = ECKey.fromPrivate(passFactor("password", ownerEntropy)
+                    .multiply(new BigInteger(1, Sha256Hash.createDouble(seed).getBytes())).mod(ECKey.CURVE.getN()), false);
+            keys.add(encryptEC(TESTNET, "password", ownerEntropy, seed, key));
+        }
+        BIP38PrivateKey.Intermediates intermediates = new BIP38PrivateKey.Intermediates();
+        List<ECKey> decrypted = BIP38PrivateKey.decryptAll(keys, Collections.nCopies(keys.size(), "password"), null,
+                intermediates);
+        for (ECKey key : decrypted)
+            assertNotNull(key);
+        // Once for the two copies of the first key, and once for the three keys of the same intermediate code.
+        assertEquals(2, intermediates.scryptRuns.get());
+    }
+
+    private static BigInteger passFactor(String passphrase, byte[] ownerEntropy) throws Exception {
+        byte[] preFactor = SCrypt.scrypt(passphrase.getBytes(Charsets.UTF_8), Arrays.copyOfRange(ownerEntropy, 0, 4),
+                16384, 8, 8, 32);
+        return new BigInteger(1, Sha256Hash.createDouble(Bytes.concat(preFactor, ownerEntropy)).getBytes());
+    }
+
+    // Encrypts an EC-multiplied key with lot and sequence numbers, as a key generator given an intermediate code would.
+    private static BIP38PrivateKey encryptEC(NetworkParameters params, String passphrase, byte[] ownerEntropy,
+                                             byte[] seed, ECKey key) throws Exception {
+        byte[] passPoint = ECKey.fromPrivate(passFactor(passphrase, ownerEntropy), true).getPubKey();
+        byte[] addressHash = Arrays.copyOfRange(Sha256Hash.createDouble(
+                key.toAddress(params).toString().getBytes(Charsets.US_ASCII)).getBytes(), 0, 4);
+        byte[] derived = SCrypt.scrypt(passPoint, Bytes.concat(addressHash, ownerEntropy), 1024, 1, 1, 64);
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Arrays.copyOfRange(derived, 32, 64), "AES"));
+        byte[] part1 = Arrays.copyOfRange(seed, 0, 16);
+        for (int i = 0; i < 16; i++)
+            part1[i] ^= derived[i];
+        part1 = cipher.doFinal(part1);
+        byte[] part2 = Bytes.concat(Arrays.copyOfRange(part1, 8, 16), Arrays.copyOfRange(seed, 16, 24));
+        for (int i = 0; i < 16; i++)
+            part2[i] ^= derived[i + 16];
+        part2 = cipher.doFinal(part2);
+        byte[] bytes = Bytes.concat(new byte[] { 0x01, 0x43, 0x04 }, addressHash, ownerEntropy,
+                Arrays.copyOfRange(part1, 0, 8), part2);
+        byte[] checksum = Sha256Hash.createDouble(bytes).getBytes();
+        return new BIP38PrivateKey(params, org.spreadcoinj.core.Base58.encode(
+                Bytes.concat(bytes, Arrays.copyOfRange(checksum, 0, 4))));
+    }
 }
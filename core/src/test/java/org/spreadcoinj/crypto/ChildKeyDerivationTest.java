@@ -20,6 +20,8 @@ package org.spreadcoinj.crypto;
 import org.spreadcoinj.core.ECKey;
 import org.spreadcoinj.core.Sha256Hash;
 import org.junit.Test;
+
+import java.util.List;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import static org.spreadcoinj.core.Utils.HEX;
@@ -173,6 +175,29 @@ public class ChildKeyDerivationTest {
         assertEquals(key3.getPubKeyPoint(), pubkey3.getPubKeyPoint());
     }
 
+    @Test
+    public void bulkPubOnlyDerivation() throws Exception {
+        DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicKey watching = key1.getPubOnly();
+        // Small enough for the calling thread and large enough to be spread over several.
+        for (int count : new int[] { 10, 150 }) {
+            for (DeterministicKey parent : new DeterministicKey[] { key1, watching }) {
+                List<DeterministicKey> keys = HDKeyDerivation.deriveChildPubKeys(parent, 5, count);
+                assertEquals(count, keys.size());
+                for (int i = 0; i < count; i++) {
+                    DeterministicKey expected = HDKeyDerivation.deriveChildKey(key1, 5 + i);
+                    DeterministicKey key = keys.get(i);
+                    assertTrue(key.isPubKeyOnly());
+                    assertEquals(expected.getPath(), key.getPath());
+                    assertArrayEquals(expected.getChainCode(), key.getChainCode());
+                    assertArrayEquals(expected.getPubKey(), key.getPubKey());
+                    assertEquals(parent, key.getParent());
+                }
+            }
+        }
+        assertTrue(HDKeyDerivation.deriveChildPubKeys(key1, 0, 0).isEmpty());
+    }
+
     @Test
     public void serializeToTextAndBytes() {
         DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
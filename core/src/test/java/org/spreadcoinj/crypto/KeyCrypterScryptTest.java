@@ -19,18 +19,20 @@ package org.spreadcoinj.crypto;
 import org.spreadcoinj.core.Utils;
 import org.spreadcoinj.utils.BriefLogFormatter;
 import com.google.protobuf.ByteString;
-
+import com.lambdaworks.crypto.SCrypt;
 import org.spreadcoinj.wallet.Protos;
 import org.spreadcoinj.wallet.Protos.ScryptParameters;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -161,4 +163,69 @@ public class KeyCrypterScryptTest {
             assertEquals(Utils.HEX.encode(plainBytes), Utils.HEX.encode(rebornPlainBytes));
         }
     }
+
+    @Test
+    public void parallelization() throws Exception {
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(1024, 8, 4);
+        ScryptParameters params = keyCrypter.getScryptParameters();
+        assertEquals(4, params.getP());
+        byte[] expected = SCrypt.scryptJ(PASSWORD1.toString().getBytes("UTF-16BE"), params.getSalt().toByteArray(),
+                1024, 8, 4, KeyCrypterScrypt.KEY_LENGTH);
+        assertArrayEquals(expected, keyCrypter.deriveKey(PASSWORD1).getKey());
+    }
+
+    @Test
+    public void deriveKeyAsync() throws Exception {
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(scryptParameters);
+        StringBuilder password = new StringBuilder(PASSWORD1);
+        KeyParameter key = keyCrypter.deriveKeyAsync(password).get();
+        assertArrayEquals(keyCrypter.deriveKey(PASSWORD1).getKey(), key.getKey());
+    }
+
+    @Test
+    public void derivedKeyCache() throws Exception {
+        Utils.setMockClock();
+        try {
+            KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(scryptParameters);
+            keyCrypter.setDerivedKeyCacheTime(1, TimeUnit.HOURS);
+            KeyParameter key1 = keyCrypter.deriveKey(PASSWORD1);
+            KeyParameter key2 = keyCrypter.deriveKey(PASSWORD1);
+            assertNotSame(key1.getKey(), key2.getKey());
+            assertArrayEquals(key1.getKey(), key2.getKey());
+            keyCrypter.deriveKey(PASSWORD2);
+            assertEquals(2, keyCrypter.getDerivedKeyCacheSize());
+
+            // Wiping a returned key doesn't affect the cache.
+            java.util.Arrays.fill(key2.getKey(), (byte) 0);
+            assertArrayEquals(key1.getKey(), keyCrypter.deriveKey(PASSWORD1).getKey());
+
+            // Expired keys aren't used, even before they are removed.
+            Utils.rollMockClock(60 * 60);
+            assertArrayEquals(key1.getKey(), keyCrypter.deriveKey(PASSWORD1).getKey());
+
+            keyCrypter.clearDerivedKeyCache();
+            assertEquals(0, keyCrypter.getDerivedKeyCacheSize());
+        } finally {
+            Utils.mockTime = null;
+        }
+    }
+
+    @Test
+    public void derivedKeyCacheExpiry() throws Exception {
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(scryptParameters);
+        keyCrypter.setDerivedKeyCacheTime(50, TimeUnit.MILLISECONDS);
+        keyCrypter.deriveKey(PASSWORD1);
+        assertEquals(1, keyCrypter.getDerivedKeyCacheSize());
+        for (int i = 0; i < 100 && keyCrypter.getDerivedKeyCacheSize() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, keyCrypter.getDerivedKeyCacheSize());
+
+        // Switching the cache off empties it.
+        keyCrypter.setDerivedKeyCacheTime(1, TimeUnit.HOURS);
+        keyCrypter.deriveKey(PASSWORD1);
+        keyCrypter.setDerivedKeyCacheTime(0, TimeUnit.SECONDS);
+        assertEquals(0, keyCrypter.getDerivedKeyCacheSize());
+        keyCrypter.deriveKey(PASSWORD1);
+        assertEquals(0, keyCrypter.getDerivedKeyCacheSize());
+    }
 }
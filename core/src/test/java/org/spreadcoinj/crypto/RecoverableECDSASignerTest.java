@@ -0,0 +1,60 @@
+package org.spreadcoinj.crypto;
+
+import org.spreadcoinj.core.ECKey;
+import org.spreadcoinj.core.Sha256Hash;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RecoverableECDSASignerTest {
+    @Test
+    public void matchesTrialRecovery() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            ECKey key = new ECKey();
+            byte[] message = new byte[32];
+            random.nextBytes(message);
+            Sha256Hash hash = new Sha256Hash(message);
+
+            ECKey.ECDSASignature sig = RecoverableECDSASigner.sign(hash, key.getPrivKey());
+
+            // The same signature as a generic RFC 6979 signer, canonicalised.
+            ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+            signer.init(true, new ECPrivateKeyParameters(key.getPrivKey(), ECKey.CURVE));
+            BigInteger[] components = signer.generateSignature(message);
+            ECKey.ECDSASignature expected = new ECKey.ECDSASignature(components[0], components[1], 0).toCanonicalised();
+            assertEquals(expected, sig);
+            assertTrue(sig.s.compareTo(ECKey.HALF_CURVE_ORDER) <= 0);
+
+            // The recovery id recovers our key.
+            int recId = RecoverableECDSASigner.getRecoveryId(sig);
+            assertEquals(27 + recId, sig.headerByte);
+            ECKey recovered = ECKey.recoverFromSignature(recId, sig, hash, false);
+            assertNotNull(recovered);
+            assertArrayEquals(key.decompress().getPubKey(), recovered.getPubKey());
+            assertTrue(key.verify(hash, sig));
+        }
+    }
+
+    @Test
+    public void recoveryId() throws Exception {
+        assertEquals(-1, RecoverableECDSASigner.getRecoveryId(new ECKey.ECDSASignature(BigInteger.ONE, BigInteger.ONE, 0)));
+        assertEquals(2, RecoverableECDSASigner.getRecoveryId(new ECKey.ECDSASignature(BigInteger.ONE, BigInteger.ONE, 29)));
+        // Compact message signatures for compressed keys.
+        assertEquals(1, RecoverableECDSASigner.getRecoveryId(new ECKey.ECDSASignature(BigInteger.ONE, BigInteger.ONE, 32)));
+    }
+
+    @Test
+    public void signMessage() throws Exception {
+        ECKey key = new ECKey();
+        String signature = key.signMessage("hello");
+        key.verifyMessage("hello", signature);
+    }
+}
@@ -0,0 +1,151 @@
+package org.spreadcoinj.crypto;
+
+import org.spreadcoinj.core.ECKey;
+import org.spreadcoinj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECAlgorithms;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Secp256k1Test {
+    private static final BigInteger N = ECKey.CURVE.getN();
+
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        random = new Random(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ECKey.setEngine(ECKey.Engine.SPONGY_CASTLE);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private BigInteger randomScalar() {
+        return new BigInteger(1, randomBytes(32)).mod(N);
+    }
+
+    @Test
+    public void windowNaf() throws Exception {
+        for (int width = 2; width <= 16; width++) {
+            for (int i = 0; i < 50; i++) {
+                BigInteger k = new BigInteger(1, randomBytes(1 + random.nextInt(33)));
+                int[] naf = Secp256k1.windowNaf(width, k);
+                BigInteger sum = BigInteger.ZERO;
+                int lastNonZero = -width;
+                for (int bit = 0; bit < naf.length; bit++) {
+                    int digit = naf[bit];
+                    if (digit == 0)
+                        continue;
+                    assertTrue((digit & 1) == 1);
+                    assertTrue(Math.abs(digit) < 1 << (width - 1));
+                    assertTrue(bit - lastNonZero >= width);
+                    lastNonZero = bit;
+                    sum = sum.add(BigInteger.valueOf(digit).shiftLeft(bit));
+                }
+                assertEquals(k, sum);
+            }
+        }
+    }
+
+    @Test
+    public void sumOfTwoMultiplies() throws Exception {
+        ECPoint g = ECKey.CURVE.getG();
+        for (int i = 0; i < 100; i++) {
+            BigInteger a = randomScalar();
+            BigInteger b = randomScalar();
+            ECPoint q = g.multiply(randomScalar());
+            ECPoint expected = ECAlgorithms.sumOfTwoMultiplies(g, a, q, b).normalize();
+            assertEquals(expected, Secp256k1.sumOfTwoMultiplies(a, q, b));
+        }
+        // Edge cases.
+        ECPoint q = g.multiply(randomScalar());
+        assertEquals(q.normalize(), Secp256k1.sumOfTwoMultiplies(BigInteger.ZERO, q, BigInteger.ONE));
+        assertEquals(g.normalize(), Secp256k1.sumOfTwoMultiplies(BigInteger.ONE, q, N));
+        assertTrue(Secp256k1.sumOfTwoMultiplies(BigInteger.ONE, g, N.subtract(BigInteger.ONE)).isInfinity());
+    }
+
+    @Test
+    public void verify() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            ECKey key = new ECKey();
+            if (random.nextBoolean())
+                key = key.decompress();
+            byte[] hash = randomBytes(32);
+            ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+            ECKey.ECDSASignature highS = new ECKey.ECDSASignature(sig.r, N.subtract(sig.s), 0);
+            ECKey.ECDSASignature wrong = new ECKey.ECDSASignature(sig.r, sig.s.add(BigInteger.ONE), 0);
+            ECKey.ECDSASignature otherR = new ECKey.ECDSASignature(sig.r.add(BigInteger.ONE), sig.s, 0);
+            for (ECKey.ECDSASignature s : new ECKey.ECDSASignature[] { sig, highS, wrong, otherR }) {
+                boolean expected = verifyWithSpongyCastle(hash, s, key.getPubKey());
+                assertEquals(expected, Secp256k1.verify(hash, s.r, s.s, key.getPubKey()));
+                assertEquals(expected, Secp256k1.verify(hash, s.r, s.s, key.getPubKeyPoint()));
+            }
+            assertTrue(Secp256k1.verify(hash, sig.r, sig.s, key.getPubKey()));
+            assertFalse(Secp256k1.verify(hash, sig.r, sig.s, new ECKey().getPubKey()));
+        }
+        ECKey key = new ECKey();
+        assertFalse(Secp256k1.verify(new byte[32], BigInteger.ZERO, BigInteger.ONE, key.getPubKey()));
+        assertFalse(Secp256k1.verify(new byte[32], BigInteger.ONE, N, key.getPubKey()));
+    }
+
+    private static boolean verifyWithSpongyCastle(byte[] hash, ECKey.ECDSASignature sig, byte[] pub) {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pub), ECKey.CURVE));
+        return signer.verifySignature(hash, sig.r, sig.s);
+    }
+
+    @Test
+    public void hotKeys() throws Exception {
+        ECKey key = new ECKey();
+        byte[] pub = key.getPubKey();
+        assertFalse(Secp256k1.isHotKey(pub));
+        Secp256k1.addHotKey(pub);
+        try {
+            assertTrue(Secp256k1.isHotKey(pub));
+            for (int i = 0; i < 20; i++) {
+                byte[] hash = randomBytes(32);
+                ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+                assertTrue(Secp256k1.verify(hash, sig.r, sig.s, pub));
+                assertFalse(Secp256k1.verify(hash, sig.r, sig.s.add(BigInteger.ONE), pub));
+            }
+        } finally {
+            assertTrue(Secp256k1.removeHotKey(pub));
+        }
+        assertFalse(Secp256k1.isHotKey(pub));
+    }
+
+    @Test
+    public void recoveryMatchesSpongyCastle() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            ECKey key = new ECKey();
+            Sha256Hash hash = new Sha256Hash(randomBytes(32));
+            ECKey.ECDSASignature sig = key.sign(hash);
+            for (int recId = 0; recId < 4; recId++) {
+                ECKey.setEngine(ECKey.Engine.SPONGY_CASTLE);
+                ECKey expected = ECKey.recoverFromSignature(recId, sig, hash, true);
+                ECKey.setEngine(ECKey.Engine.SECP256K1);
+                ECKey actual = ECKey.recoverFromSignature(recId, sig, hash, true);
+                if (expected == null)
+                    assertNull(actual);
+                else
+                    assertArrayEquals(expected.getPubKey(), actual.getPubKey());
+            }
+        }
+    }
+}
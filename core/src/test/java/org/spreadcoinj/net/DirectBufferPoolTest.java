@@ -0,0 +1,51 @@
+package org.spreadcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DirectBufferPoolTest {
+    @Test
+    public void sizeClasses() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(0x10000, 0x10000);
+        ByteBuffer buffer = pool.acquire(10);
+        assertTrue(buffer.isDirect());
+        assertEquals(DirectBufferPool.MIN_BUFFER_SIZE, buffer.capacity());
+        assertEquals(10, buffer.limit());
+        assertEquals(0x2000, pool.acquire(0x1001).capacity());
+        assertEquals(0x2000, pool.acquire(0x2000).capacity());
+        // Larger than pooled.
+        assertEquals(0x10001, pool.acquire(0x10001).capacity());
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(0x10000, 0x8000);
+        ByteBuffer buffer = pool.acquire(0x4000);
+        buffer.putInt(1);
+        pool.release(buffer);
+        assertEquals(1, pool.getFreeCount());
+        ByteBuffer again = pool.acquire(0x3000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(0x3000, again.limit());
+        assertEquals(0, pool.getFreeCount());
+
+        // Only as many bytes as allowed are kept per size class, but always at least one buffer.
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = pool.acquire(0x4000);
+        for (ByteBuffer b : buffers)
+            pool.release(b);
+        assertEquals(2, pool.getFreeCount());
+        ByteBuffer large = pool.acquire(0x10000);
+        pool.release(large);
+        assertEquals(3, pool.getFreeCount());
+        // Buffers that aren't from a size class are dropped.
+        pool.release(ByteBuffer.allocateDirect(0x3000));
+        pool.release(pool.acquire(0x20000));
+        assertEquals(3, pool.getFreeCount());
+    }
+}
@@ -32,13 +32,17 @@ import javax.net.SocketFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(value = Parameterized.class)
 public class NetworkAbstractionTests {
@@ -49,7 +53,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3}, new Integer[]{4},
+                new Integer[]{5});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -60,12 +65,21 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
+        } else if (clientType == 4) {
+            channels = new NioClientManager(3);
+            channels.startAsync();
+        } else if (clientType == 5) {
+            channels = new VirtualThreadClientManager();
+            channels.startAsync();
         } else
             channels = null;
+        // Connections can only be opened once the manager is running.
+        if (channels != null)
+            channels.awaitRunning();
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser<Protos.TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4 || clientType == 5) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -260,6 +274,152 @@ public class NetworkAbstractionTests {
         assertFalse(server.isRunning());
     }
 
+    @Test
+    public void sharedBufferTest() throws Exception {
+        // Tests sending a message from a shared buffer, written out with its length prefix and body as two segments
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final SettableFuture<Protos.TwoWayChannelMessage> clientMessageReceived = SettableFuture.create();
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser<TwoWayChannelMessage> getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public synchronized void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        clientMessageReceived.set(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        clientConnectionOpen.set(null);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+
+        MessageWriteTarget client = openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+        clientConnectionOpen.get();
+
+        // Larger than the read buffers, so it takes several reads at the other end
+        Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder()
+                .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
+                .setClientVersion(Protos.ClientVersion.newBuilder()
+                        .setMajor(CLIENT_MAJOR_VERSION)
+                        .setPreviousChannelContractHash(ByteString.copyFrom(new byte[0x8000])))
+                .build();
+        byte[] messageBytes = msg.toByteArray();
+        DirectBufferPool pool = new DirectBufferPool(0x10000, 0x10000);
+        ByteBuffer buffer = pool.acquire(4 + messageBytes.length);
+        buffer.putInt(messageBytes.length).put(messageBytes).flip();
+        SharedBuffer shared = new SharedBuffer(pool, buffer, 4, messageBytes.length);
+        shared.writeTo(client);
+        shared.release();
+        assertEquals(msg, clientMessageReceived.get());
+        // Once written, the buffer went back to the pool
+        assertEquals(1, pool.getFreeCount());
+        try {
+            shared.retain();
+            fail.set(true);
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        client.closeConnection();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    @Test
+    public void readPausedTest() throws Exception {
+        // Tests that a client which paused reading gets no further messages until it resumes
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final SettableFuture<Void> clientMessagesReceived = SettableFuture.create();
+        final AtomicInteger received = new AtomicInteger();
+        final Semaphore serverEchoes = new Semaphore(0);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser<TwoWayChannelMessage> getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                        serverEchoes.release();
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public synchronized void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        if (received.incrementAndGet() == 2)
+                            clientMessagesReceived.set(null);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        clientConnectionOpen.set(null);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+
+        ReadPausableWriteTarget client = (ReadPausableWriteTarget) openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+        clientConnectionOpen.get();
+
+        client.setReadPaused(true);
+        Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder().setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN).build();
+        clientHandler.write(msg);
+        serverEchoes.acquire();
+        clientHandler.write(msg);
+        serverEchoes.acquire();
+        // Both echoes have been sent. A blocking client is already waiting in a read when it pauses, so it may get
+        // the first, but the second has to wait.
+        assertTrue(received.get() < 2);
+        assertFalse(clientMessagesReceived.isDone());
+        client.setReadPaused(false);
+        clientMessagesReceived.get();
+        assertEquals(2, received.get());
+
+        client.closeConnection();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
     @Test
     public void basicTimeoutTest() throws Exception {
         // Tests various timeout scenarios
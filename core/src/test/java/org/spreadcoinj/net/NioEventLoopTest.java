@@ -0,0 +1,140 @@
+package org.spreadcoinj.net;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoin.paymentchannel.Protos;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class NioEventLoopTest {
+    private static final int THREADS = 3;
+    private static final int CONNECTIONS = 6;
+
+    @Test
+    public void connectionsAreSpreadOverThreads() throws Exception {
+        final Set<String> serverThreads = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> clientThreads = Collections.synchronizedSet(new HashSet<String>());
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser<Protos.TwoWayChannelMessage> getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        serverThreads.add(Thread.currentThread().getName());
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 0), THREADS);
+        server.startAsync();
+        server.awaitRunning();
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalPort());
+        NioClientManager manager = new NioClientManager(THREADS);
+        manager.startAsync();
+        manager.awaitRunning();
+
+        List<ProtobufParser<Protos.TwoWayChannelMessage>> clients = new ArrayList<ProtobufParser<Protos.TwoWayChannelMessage>>();
+        List<SettableFuture<Protos.TwoWayChannelMessage>> replies = new ArrayList<SettableFuture<Protos.TwoWayChannelMessage>>();
+        List<SettableFuture<Void>> opened = new ArrayList<SettableFuture<Void>>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            final SettableFuture<Protos.TwoWayChannelMessage> reply = SettableFuture.create();
+            final SettableFuture<Void> open = SettableFuture.create();
+            ProtobufParser<Protos.TwoWayChannelMessage> client = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                    new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                            reply.set(msg);
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                            clientThreads.add(Thread.currentThread().getName());
+                            open.set(null);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            manager.openConnection(serverAddress, client);
+            clients.add(client);
+            replies.add(reply);
+            opened.add(open);
+        }
+        for (int i = 0; i < CONNECTIONS; i++) {
+            opened.get(i).get();
+            Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder()
+                    .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
+                    .setError(Protos.Error.newBuilder().setExplanation("connection " + i))
+                    .build();
+            clients.get(i).write(msg);
+            assertEquals(msg, replies.get(i).get());
+        }
+        assertEquals(CONNECTIONS, manager.getConnectedClientCount());
+        assertEquals(THREADS, clientThreads.size());
+        assertEquals(THREADS, serverThreads.size());
+
+        manager.stopAsync();
+        manager.awaitTerminated();
+        assertEquals(0, manager.getConnectedClientCount());
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    @Test
+    public void stoppedLoopTakesNoMoreWork() throws Exception {
+        NioEventLoop.KeyHandler keyHandler = new NioEventLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectionKey key) {
+            }
+        };
+        final NioEventLoop dead = new NioEventLoop(keyHandler);
+        NioEventLoop alive = new NioEventLoop(keyHandler);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dead.run();
+            }
+        });
+        thread.start();
+        dead.stop();
+        thread.join();
+        assertFalse(dead.isAvailable());
+        assertTrue(alive.isAvailable());
+        // Even though the dead loop has nothing on it, new work goes elsewhere.
+        NioEventLoop[] loops = { dead, alive };
+        for (int i = 0; i < 4; i++)
+            assertSame(alive, NioEventLoop.leastLoaded(loops, i));
+
+        final SettableFuture<Boolean> ran = SettableFuture.create();
+        dead.execute(new NioEventLoop.Task() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+
+            @Override
+            public void rejected() {
+                ran.set(false);
+            }
+        });
+        assertFalse(ran.get());
+    }
+}
@@ -0,0 +1,212 @@
+package org.spreadcoinj.net.discovery;
+
+import org.spreadcoinj.core.NetworkParameters;
+import org.spreadcoinj.core.PeerAddress;
+import org.spreadcoinj.core.Utils;
+import org.spreadcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressDatabaseTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private File file;
+    private PeerAddressDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        file = File.createTempFile("peeraddresses", null);
+        file.delete();
+        file.deleteOnExit();
+        db = new PeerAddressDatabase(params, file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (db != null)
+            db.close();
+        Utils.mockTime = null;
+    }
+
+    private static PeerAddress address(String ip, long time) throws Exception {
+        PeerAddress address = new PeerAddress(InetAddress.getByName(ip), params.getPort());
+        address.setTime(time);
+        return address;
+    }
+
+    private static InetSocketAddress socketAddress(String ip) throws Exception {
+        return new InetSocketAddress(InetAddress.getByName(ip), params.getPort());
+    }
+
+    @Test
+    public void persistsAcrossRestarts() throws Exception {
+        long now = Utils.currentTimeSeconds();
+        db.add(address("44.0.0.1", now - 100));
+        db.add(address("44.1.0.1", now - 200));
+        db.recordAttempt(socketAddress("44.1.0.1"), true);
+        db.recordPerformance(socketAddress("44.1.0.1"), 50, 2.5);
+        assertEquals(2, db.size());
+        db.close();
+
+        db = new PeerAddressDatabase(params, file);
+        assertEquals(2, db.size());
+        PeerAddressDatabase.Entry entry = db.get(socketAddress("44.1.0.1"));
+        assertEquals(now, entry.getLastSuccessSecs());
+        assertEquals(50, entry.getPingMillis());
+        assertEquals(2.5, entry.getScore(), 0);
+        entry = db.get(socketAddress("44.0.0.1"));
+        assertEquals(now - 100, entry.getLastSeenSecs());
+        assertEquals(Long.MAX_VALUE, entry.getPingMillis());
+        // Addresses come back as discovery would give them, so the PeerGroup doesn't connect twice.
+        assertEquals(new PeerAddress(socketAddress("44.0.0.1")), entry.getAddress());
+    }
+
+    @Test
+    public void futureTimesAreClamped() throws Exception {
+        long now = Utils.currentTimeSeconds();
+        db.add(address("44.0.0.1", now + 100000));
+        assertEquals(now, db.get(socketAddress("44.0.0.1")).getLastSeenSecs());
+    }
+
+    @Test
+    public void bestAddressesFirst() throws Exception {
+        long now = Utils.currentTimeSeconds();
+        db.add(address("44.0.0.1", now));
+        db.add(address("44.1.0.1", now - 1000));
+        db.add(address("44.2.0.1", now - 2000));
+        db.add(address("44.3.0.1", now - 3000));
+        db.recordAttempt(socketAddress("44.2.0.1"), true);
+        db.recordPerformance(socketAddress("44.2.0.1"), 500, 1);
+        db.recordAttempt(socketAddress("44.3.0.1"), true);
+        db.recordPerformance(socketAddress("44.3.0.1"), 50, 10);
+        db.recordAttempt(socketAddress("44.0.0.1"), false);
+
+        List<PeerAddressDatabase.Entry> best = db.getBest(10);
+        assertEquals(4, best.size());
+        // Those that worked, by score, then the untried before the failed.
+        assertEquals(socketAddress("44.3.0.1"), best.get(0).getAddress().toSocketAddress());
+        assertEquals(socketAddress("44.2.0.1"), best.get(1).getAddress().toSocketAddress());
+        assertEquals(socketAddress("44.1.0.1"), best.get(2).getAddress().toSocketAddress());
+        assertEquals(socketAddress("44.0.0.1"), best.get(3).getAddress().toSocketAddress());
+        assertEquals(1, best.get(3).getFailures());
+        assertEquals(2, db.getBest(2).size());
+        assertEquals(4, db.getPeers(1, TimeUnit.SECONDS).length);
+
+        // Addresses that never worked are dropped after too many failures.
+        for (int i = 0; i < PeerAddressDatabase.MAX_FAILURES; i++)
+            db.recordAttempt(socketAddress("44.1.0.1"), false);
+        assertEquals(3, db.getBest(10).size());
+    }
+
+    @Test
+    public void spreadOverNetworkGroups() throws Exception {
+        long now = Utils.currentTimeSeconds();
+        db.add(address("44.0.0.1", now));
+        db.add(address("44.0.0.2", now - 1));
+        db.add(address("44.0.0.3", now - 2));
+        db.add(address("44.1.0.1", now - 1000));
+        List<PeerAddressDatabase.Entry> best = db.getBest(2);
+        // The second address of the same /16 comes after the more stale address from another one.
+        assertEquals(socketAddress("44.0.0.1"), best.get(0).getAddress().toSocketAddress());
+        assertEquals(socketAddress("44.1.0.1"), best.get(1).getAddress().toSocketAddress());
+        assertEquals(4, db.getBest(10).size());
+    }
+
+    @Test
+    public void fullBucketKeepsWhatIsWorthKeeping() throws Exception {
+        db.close();
+        file.delete();
+        // A single bucket, to fill it.
+        db = new PeerAddressDatabase(params, file, 1);
+        long now = Utils.currentTimeSeconds();
+        for (int i = 0; i < PeerAddressDatabase.SLOTS_PER_BUCKET; i++)
+            assertTrue(db.add(address("44." + i + ".0.1", now - 1000 - i)));
+        // The peer that worked stays, even though it was seen longest ago.
+        int last = PeerAddressDatabase.SLOTS_PER_BUCKET - 1;
+        db.recordAttempt(socketAddress("44." + last + ".0.1"), true);
+        Utils.rollMockClock(2000);
+        now = Utils.currentTimeSeconds();
+
+        // Older than everything in the bucket: not worth a slot.
+        assertFalse(db.add(address("198.51.100.1", now - 100000)));
+        // Newer: replaces the stalest address.
+        assertTrue(db.add(address("198.51.100.1", now)));
+        assertEquals(PeerAddressDatabase.SLOTS_PER_BUCKET, db.size());
+        assertNull(db.get(socketAddress("44." + (last - 1) + ".0.1")));
+        assertNotNull(db.get(socketAddress("44." + last + ".0.1")));
+        assertNotNull(db.get(socketAddress("198.51.100.1")));
+    }
+
+    @Test
+    public void ignoresNonRoutableAddresses() throws Exception {
+        long now = Utils.currentTimeSeconds();
+        for (String ip : new String[] {"0.0.0.0", "127.0.0.1", "10.0.0.1", "172.16.0.1", "192.168.0.1", "169.254.0.1",
+                "224.0.0.1", "::", "::1", "fe80::1", "fd00::1"}) {
+            assertFalse(ip, PeerAddressDatabase.isRoutable(InetAddress.getByName(ip)));
+            assertFalse(ip, db.add(address(ip, now)));
+        }
+        assertEquals(0, db.size());
+        assertTrue(db.add(address("44.0.0.1", now)));
+        assertTrue(db.add(address("2001:db8::1", now)));
+        // Local peers we connected to ourselves are remembered.
+        db.recordAttempt(socketAddress("127.0.0.1"), true);
+        assertEquals(3, db.size());
+    }
+
+    @Test
+    public void closeTwice() throws Exception {
+        db.close();
+        db.close();
+    }
+
+    @Test
+    public void rejectsTooManyBuckets() throws Exception {
+        db.close();
+        db = null;
+        file.delete();
+        try {
+            new PeerAddressDatabase(params, file, PeerAddressDatabase.MAX_BUCKETS + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void lockedWhileOpen() throws Exception {
+        try {
+            new PeerAddressDatabase(params, file);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws Exception {
+        File other = File.createTempFile("notpeeraddresses", null);
+        other.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(other);
+        stream.write(new byte[1000]);
+        stream.close();
+        try {
+            new PeerAddressDatabase(params, other);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
@@ -148,6 +148,31 @@ public class WalletProtobufSerializerTest {
         // assertEquals(doubleSpends.t2, t1.getConfidence().getOverridingTransaction());
     }
     
+    @Test
+    public void manyTxns() throws Exception {
+        // Enough transactions to take the parallel decoding path.
+        final int count = 250;
+        for (int i = 0; i < count; i++) {
+            Transaction tx = createFakeTx(params, COIN, myAddress);
+            tx.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByName("1.2.3.4")));
+            myWallet.receivePending(tx, null);
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        for (int threads : new int[] { 1, 4 }) {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setDecodingThreads(threads);
+            Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+            assertEquals(count, wallet1.getTransactions(true).size());
+            assertEquals(COIN.multiply(count), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+            for (Transaction tx : myWallet.getTransactions(true)) {
+                Transaction copy = wallet1.getTransaction(tx.getHash());
+                assertArrayEquals(tx.bitcoinSerialize(), copy.bitcoinSerialize());
+                assertEquals(1, copy.getConfidence().numBroadcastPeers());
+            }
+        }
+    }
+
     @Test
     public void testKeys() throws Exception {
         for (int i = 0 ; i < 20 ; i++) {
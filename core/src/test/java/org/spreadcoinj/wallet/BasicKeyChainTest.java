@@ -28,6 +28,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.junit.Before;
 import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -162,6 +163,27 @@ public class BasicKeyChainTest {
         key.getPrivKeyBytes();
     }
 
+    @Test
+    public void encryptDecryptManyKeys() {
+        // Enough keys to be processed in batches.
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < BulkKeyCrypter.BATCH_SIZE * 3 + 1; i++)
+            keys.add(new ECKey());
+        chain.importKeys(keys);
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = scrypt.deriveKey("password");
+        BasicKeyChain encrypted = chain.toEncrypted(scrypt, aesKey);
+        assertEquals(keys.size(), encrypted.numKeys());
+        for (int i = 0; i < keys.size(); i++) {
+            ECKey key = encrypted.getKeys().get(i);
+            assertTrue(key.isEncrypted());
+            assertArrayEquals(keys.get(i).getPubKey(), key.getPubKey());
+        }
+        BasicKeyChain decrypted = encrypted.toDecrypted(aesKey);
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(keys.get(i).getPrivKey(), decrypted.getKeys().get(i).getPrivKey());
+    }
+
     @Test(expected = KeyCrypterException.class)
     public void cannotImportEncryptedKey() {
         final ECKey key1 = new ECKey();
@@ -206,6 +228,20 @@ public class BasicKeyChainTest {
         assertEquals(key2, chain.getKeys().get(1));
     }
 
+    @Test
+    public void duplicateKeysInProtobuf() throws UnreadableWalletException {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        chain.importKeys(key1, key2);
+        List<Protos.Key> keys = new ArrayList<Protos.Key>(chain.serializeToProtobuf());
+        keys.addAll(chain.serializeToProtobuf());
+        chain = BasicKeyChain.fromProtobufUnencrypted(keys);
+        assertEquals(2, chain.numKeys());
+        assertEquals(2, chain.getKeys().size());
+        assertEquals(key1, chain.findKeyFromPubKey(key1.getPubKey()));
+        assertEquals(2, chain.serializeToProtobuf().size());
+    }
+
     @Test
     public void serializationEncrypted() throws UnreadableWalletException {
         ECKey key1 = new ECKey();
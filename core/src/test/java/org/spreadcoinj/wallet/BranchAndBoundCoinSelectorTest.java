@@ -0,0 +1,122 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.*;
+import org.spreadcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.spreadcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final Address address = new ECKey().toAddress(params);
+
+    private static TransactionOutput output(Coin value, TransactionConfidence.ConfidenceType type) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(value, address);
+        tx.getConfidence().setConfidenceType(type);
+        return tx.getOutput(0);
+    }
+
+    private static List<TransactionOutput> outputs(Coin... values) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        for (Coin value : values)
+            outputs.add(output(value, TransactionConfidence.ConfidenceType.BUILDING));
+        return outputs;
+    }
+
+    @Test
+    public void changeless() throws Exception {
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.multiply(4), COIN.multiply(3), COIN.multiply(2));
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(6), candidates);
+        assertEquals(COIN.multiply(6), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+        assertTrue(selection.gathered.contains(candidates.get(1)));
+        assertTrue(selection.gathered.contains(candidates.get(3)));
+
+        // An excess within the tolerance still counts as change-less, and the smallest excess wins.
+        candidates = outputs(COIN.multiply(3), COIN.add(SATOSHI), COIN.add(SATOSHI.multiply(2)));
+        selection = new BranchAndBoundCoinSelector().select(COIN, candidates);
+        assertEquals(COIN.add(SATOSHI), selection.valueGathered);
+    }
+
+    @Test
+    public void fallback() throws Exception {
+        // No combination lands within the tolerance, so the largest outputs are taken.
+        List<TransactionOutput> candidates = outputs(CENT, COIN.multiply(10), COIN);
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(5), candidates);
+        assertEquals(COIN.multiply(10), selection.valueGathered);
+        assertEquals(1, selection.gathered.size());
+
+        // With no steps allowed at all, the search gives up straight away.
+        candidates = outputs(COIN.multiply(5), COIN.multiply(4), COIN.multiply(2));
+        BranchAndBoundCoinSelector selector =
+                new BranchAndBoundCoinSelector(Transaction.MIN_NONDUST_OUTPUT, 1, TimeUnit.SECONDS, 0);
+        selection = selector.select(COIN.multiply(6), candidates);
+        assertEquals(COIN.multiply(9), selection.valueGathered);
+    }
+
+    @Test
+    public void selectability() throws Exception {
+        List<TransactionOutput> candidates = outputs(COIN, COIN);
+        candidates.add(output(COIN.multiply(2), TransactionConfidence.ConfidenceType.PENDING));
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(2), candidates);
+        assertEquals(COIN.multiply(2), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+
+        // Insufficient funds, or asking for everything, gathers all selectable outputs.
+        selection = new BranchAndBoundCoinSelector().select(COIN.multiply(3), candidates);
+        assertEquals(COIN.multiply(2), selection.valueGathered);
+        selection = new BranchAndBoundCoinSelector().select(NetworkParameters.MAX_MONEY, candidates);
+        assertEquals(COIN.multiply(2), selection.valueGathered);
+    }
+
+    @Test
+    public void indexFollowsCandidates() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.multiply(4), COIN.multiply(2));
+        assertEquals(COIN.multiply(6), selector.select(COIN.multiply(6), candidates).valueGathered);
+
+        // The 4 coin output is spent and a 1 coin output arrives: the selection must follow.
+        TransactionOutput spent = candidates.remove(1);
+        candidates.addAll(outputs(COIN));
+        CoinSelection selection = selector.select(COIN.multiply(6), new ArrayList<TransactionOutput>(candidates));
+        assertEquals(COIN.multiply(6), selection.valueGathered);
+        assertFalse(selection.gathered.contains(spent));
+        assertTrue(selection.gathered.contains(candidates.get(2)));
+
+        // An output that stops being selectable is passed over even though it is still in the index.
+        candidates.get(0).getParentTransaction().getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.DEAD);
+        selection = selector.select(COIN.multiply(3), candidates);
+        assertEquals(COIN.multiply(3), selection.valueGathered);
+        assertFalse(selection.gathered.contains(candidates.get(0)));
+
+        // And a selector switched to different candidates altogether only ever picks from those.
+        candidates = outputs(COIN.multiply(3), COIN.multiply(3));
+        selection = selector.select(COIN.multiply(3), candidates);
+        assertEquals(1, selection.gathered.size());
+        assertTrue(candidates.containsAll(selection.gathered));
+    }
+
+    @Test
+    public void sortByValue() throws Exception {
+        Random random = new Random(1);
+        List<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+        List<Long> values = new ArrayList<Long>();
+        for (int i = 0; i < 1000; i++) {
+            long value = 1 + (random.nextLong() >>> (1 + random.nextInt(50))) % NetworkParameters.MAX_MONEY.value;
+            candidates.add(output(Coin.valueOf(value), TransactionConfidence.ConfidenceType.BUILDING));
+            values.add(value);
+        }
+        Collections.sort(values, Collections.reverseOrder());
+        TransactionOutput[] sorted = BranchAndBoundCoinSelector.sortByValueDescending(candidates);
+        for (int i = 0; i < sorted.length; i++)
+            assertEquals(values.get(i).longValue(), sorted[i].getValue().value);
+    }
+}
@@ -19,6 +19,7 @@ package org.spreadcoinj.wallet;
 import org.spreadcoinj.core.*;
 import org.spreadcoinj.crypto.DeterministicHierarchy;
 import org.spreadcoinj.crypto.DeterministicKey;
+import org.spreadcoinj.crypto.Secp256k1;
 import org.spreadcoinj.params.UnitTestParams;
 import org.spreadcoinj.store.UnreadableWalletException;
 import org.spreadcoinj.utils.BriefLogFormatter;
@@ -68,6 +69,15 @@ public class DeterministicKeyChainTest {
         key3.sign(Sha256Hash.ZERO_HASH);
     }
 
+    @Test
+    public void rootsAreHotKeys() throws Exception {
+        DeterministicKey account = chain.getWatchingKey();
+        assertTrue(Secp256k1.isHotKey(account.getPubKey()));
+        assertTrue(Secp256k1.isHotKey(chain.getKeyByPath(DeterministicKeyChain.EXTERNAL_PATH, false).getPubKey()));
+        assertTrue(Secp256k1.isHotKey(chain.getKeyByPath(DeterministicKeyChain.INTERNAL_PATH, false).getPubKey()));
+        assertFalse(Secp256k1.isHotKey(chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS).getPubKey()));
+    }
+
     @Test
     public void getKeys() throws Exception {
         chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
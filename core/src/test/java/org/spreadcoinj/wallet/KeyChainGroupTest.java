@@ -28,7 +28,9 @@ import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.Arrays;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.*;
@@ -294,6 +296,102 @@ public class KeyChainGroupTest {
         assertFalse(checkNotNull(group.findKeyFromPubKey(key.getPubKey())).isEncrypted());
     }
 
+    @Test
+    public void encryptionUnderLock() throws Exception {
+        ReentrantLock lock = Threading.lock("test");
+        ECKey a = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        ECKey b = new ECKey();
+        group.importKeys(b);
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = scrypt.deriveKey("password");
+        group.encrypt(scrypt, aesKey, lock);
+        assertFalse(lock.isLocked());
+        assertTrue(group.isEncrypted());
+        assertTrue(checkNotNull(group.findKeyFromPubKey(a.getPubKey())).isEncrypted());
+        assertTrue(checkNotNull(group.findKeyFromPubKey(b.getPubKey())).isEncrypted());
+        try {
+            group.encrypt(scrypt, aesKey, lock);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        group.decrypt(aesKey, lock);
+        assertFalse(group.isEncrypted());
+        assertEquals(b.getPrivKey(), checkNotNull(group.findKeyFromPubKey(b.getPubKey())).getPrivKey());
+    }
+
+    @Test
+    public void encryptionRedoneAfterConcurrentImport() throws Exception {
+        final ReentrantLock lock = Threading.lock("test");
+        final ECKey a = new ECKey();
+        final ECKey b = new ECKey();
+        group.importKeys(a);
+        final AtomicInteger encryptionsOffLock = new AtomicInteger();
+        // Imports a key the first time it's asked to encrypt a random key, as another thread holding the lock might,
+        // and checks that the lock is never held while random keys are encrypted.
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2) {
+            @Override
+            public EncryptedData encrypt(byte[] plainBytes, KeyParameter aesKey) throws KeyCrypterException {
+                if (Arrays.areEqual(plainBytes, a.getPrivKeyBytes()) || Arrays.areEqual(plainBytes, b.getPrivKeyBytes())) {
+                    assertFalse(lock.isHeldByCurrentThread());
+                    if (encryptionsOffLock.getAndIncrement() == 0) {
+                        lock.lock();
+                        try {
+                            group.importKeys(b);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+                return super.encrypt(plainBytes, aesKey);
+            }
+        };
+        KeyParameter aesKey = scrypt.deriveKey("password");
+        group.encrypt(scrypt, aesKey, lock);
+        // The first pass saw only a, the second both a and b.
+        assertEquals(3, encryptionsOffLock.get());
+        assertTrue(checkNotNull(group.findKeyFromPubKey(a.getPubKey())).isEncrypted());
+        assertTrue(checkNotNull(group.findKeyFromPubKey(b.getPubKey())).isEncrypted());
+    }
+
+    @Test
+    public void decryptionRedoneAfterConcurrentRemoval() throws Exception {
+        final ReentrantLock lock = Threading.lock("test");
+        final ECKey a = new ECKey();
+        final ECKey b = new ECKey();
+        group.importKeys(a, b);
+        final AtomicReference<ECKey> encryptedB = new AtomicReference<ECKey>();
+        final AtomicInteger decryptions = new AtomicInteger();
+        // Each pass decrypts one random key to check the AES key, then all of them. b is removed when the first pass starts
+        // on the keys, so without the decryption being redone it would come back.
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2) {
+            @Override
+            public byte[] decrypt(EncryptedData data, KeyParameter aesKey) throws KeyCrypterException {
+                byte[] plainBytes = super.decrypt(data, aesKey);
+                boolean randomKey = Arrays.areEqual(plainBytes, a.getPrivKeyBytes()) || Arrays.areEqual(plainBytes, b.getPrivKeyBytes());
+                if (randomKey && encryptedB.get() != null) {
+                    assertFalse(lock.isHeldByCurrentThread());
+                    if (decryptions.incrementAndGet() == 2) {
+                        lock.lock();
+                        try {
+                            assertTrue(group.removeImportedKey(encryptedB.get()));
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+                return plainBytes;
+            }
+        };
+        KeyParameter aesKey = scrypt.deriveKey("password");
+        group.encrypt(scrypt, aesKey, lock);
+        encryptedB.set(group.findKeyFromPubKey(b.getPubKey()));
+        group.decrypt(aesKey, lock);
+        assertEquals(1 + 2 + 1 + 1, decryptions.get());
+        assertFalse(checkNotNull(group.findKeyFromPubKey(a.getPubKey())).isEncrypted());
+        assertNull(group.findKeyFromPubKey(b.getPubKey()));
+    }
+
     @Test
     public void bloom() throws Exception {
         ECKey key1 = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
@@ -0,0 +1,82 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.ECKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyLookupTableTest {
+    @Test
+    public void lookups() throws Exception {
+        KeyLookupTable table = new KeyLookupTable();
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 1000; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            table.add(key);
+        }
+        assertEquals(1000, table.size());
+        assertEquals(keys, table.keys());
+        for (ECKey key : keys) {
+            assertSame(key, table.findByPubKeyHash(key.getPubKeyHash(), 0));
+            byte[] pubKey = key.getPubKey();
+            assertSame(key, table.findByPubKey(pubKey, 0, pubKey.length));
+        }
+        ECKey other = new ECKey();
+        assertNull(table.findByPubKeyHash(other.getPubKeyHash(), 0));
+        assertNull(table.findByPubKey(other.getPubKey(), 0, 33));
+        assertNull(table.findByPubKey(new byte[1], 0, 1));
+
+        // From the middle of a larger array, as in a script.
+        ECKey key = keys.get(500);
+        byte[] script = new byte[25];
+        System.arraycopy(key.getPubKeyHash(), 0, script, 3, 20);
+        assertSame(key, table.findByPubKeyHash(script, 3));
+        assertNull(table.findByPubKeyHash(script, 2));
+        script = new byte[35];
+        System.arraycopy(key.getPubKey(), 0, script, 1, 33);
+        assertSame(key, table.findByPubKey(script, 1, 33));
+        assertNull(table.findByPubKey(script, 1, 34));
+    }
+
+    @Test
+    public void sameFingerprint() throws Exception {
+        // Compressed and uncompressed forms share the bytes after the type byte, and so their fingerprint.
+        KeyLookupTable table = new KeyLookupTable();
+        ECKey compressed = new ECKey();
+        ECKey uncompressed = compressed.decompress();
+        table.add(compressed);
+        assertNull(table.findByPubKey(uncompressed.getPubKey(), 0, 65));
+        table.add(uncompressed);
+        assertSame(compressed, table.findByPubKey(compressed.getPubKey(), 0, 33));
+        assertSame(uncompressed, table.findByPubKey(uncompressed.getPubKey(), 0, 65));
+        assertSame(uncompressed, table.findByPubKeyHash(uncompressed.getPubKeyHash(), 0));
+    }
+
+    @Test
+    public void remove() throws Exception {
+        KeyLookupTable table = new KeyLookupTable();
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        ECKey key3 = new ECKey();
+        table.add(key1);
+        table.add(key2);
+        table.add(key3);
+        assertTrue(table.remove(key2));
+        assertFalse(table.remove(key2));
+        assertEquals(2, table.size());
+        assertNull(table.findByPubKeyHash(key2.getPubKeyHash(), 0));
+        assertSame(key3, table.findByPubKeyHash(key3.getPubKeyHash(), 0));
+        assertSame(key1, table.findByPubKey(key1.getPubKey(), 0, 33));
+        assertEquals(key1, table.keys().get(0));
+        assertEquals(key3, table.keys().get(1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfBounds() throws Exception {
+        new KeyLookupTable().findByPubKeyHash(new byte[20], 1);
+    }
+}
@@ -0,0 +1,104 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.*;
+import org.spreadcoinj.testing.MockTransactionBroadcaster;
+import org.spreadcoinj.testing.TestWithWallet;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.spreadcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class PayoutQueueTest extends TestWithWallet {
+    private MockTransactionBroadcaster broadcaster;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        broadcaster = new MockTransactionBroadcaster(wallet);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void batch() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        PayoutQueue queue = new PayoutQueue(wallet, broadcaster, 1, TimeUnit.HOURS);
+        Address a = new ECKey().toAddress(params);
+        Address b = new ECKey().toAddress(params);
+        ListenableFuture<Transaction> future1 = queue.pay(a, CENT);
+        ListenableFuture<Transaction> future2 = queue.pay(b, CENT.multiply(2));
+        ListenableFuture<Transaction> future3 = queue.pay(a, CENT.multiply(3));
+        assertEquals(3, queue.getQueuedPayments());
+        queue.flush();
+        assertEquals(0, queue.getQueuedPayments());
+
+        MockTransactionBroadcaster.TxFuturePair pair = broadcaster.waitForTxFuture();
+        assertEquals(1, pair.tx.getInputs().size());
+        assertEquals(4, pair.tx.getOutputs().size());  // Three payments and change.
+        List<Coin> values = new ArrayList<Coin>();
+        for (TransactionOutput output : pair.tx.getOutputs())
+            values.add(output.getValue());
+        assertTrue(values.containsAll(ImmutableList.of(CENT, CENT.multiply(2), CENT.multiply(3))));
+        assertFalse(future1.isDone());
+        pair.succeed();
+        assertEquals(pair.tx, future1.get());
+        assertEquals(pair.tx, future2.get());
+        assertEquals(pair.tx, future3.get());
+        assertEquals(0, broadcaster.size());
+        queue.shutdown();
+    }
+
+    @Test
+    public void windowAndSizeLimit() throws Exception {
+        // Two coins, as the change of the first batch won't be spendable until it confirms.
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        PayoutQueue queue = new PayoutQueue(wallet, broadcaster, 10, TimeUnit.MILLISECONDS);
+        queue.pay(new ECKey().toAddress(params), CENT);
+        // Sent on the queue's own thread once the window has passed.
+        assertEquals(2, broadcaster.waitForTransactionAndSucceed().getOutputs().size());
+
+        queue = new PayoutQueue(wallet, broadcaster, 1, TimeUnit.HOURS);
+        queue.setMaxPayments(2);
+        queue.pay(new ECKey().toAddress(params), CENT);
+        queue.pay(new ECKey().toAddress(params), CENT);
+        assertEquals(3, broadcaster.waitForTransactionAndSucceed().getOutputs().size());
+    }
+
+    @Test
+    public void insufficientMoney() throws Exception {
+        sendMoneyToWallet(CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        PayoutQueue queue = new PayoutQueue(wallet, broadcaster, 1, TimeUnit.HOURS);
+        ListenableFuture<Transaction> future1 = queue.pay(new ECKey().toAddress(params), CENT);
+        ListenableFuture<Transaction> future2 = queue.pay(new ECKey().toAddress(params), CENT);
+        queue.flush();
+        assertEquals(0, broadcaster.size());
+        for (ListenableFuture<Transaction> future : ImmutableList.of(future1, future2)) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InsufficientMoneyException);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dust() throws Exception {
+        new PayoutQueue(wallet, broadcaster, 1, TimeUnit.HOURS).pay(new ECKey().toAddress(params), SATOSHI);
+    }
+}
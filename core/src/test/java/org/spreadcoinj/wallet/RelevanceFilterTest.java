@@ -0,0 +1,81 @@
+package org.spreadcoinj.wallet;
+
+import org.spreadcoinj.core.*;
+import org.spreadcoinj.params.UnitTestParams;
+import org.spreadcoinj.script.Script;
+import org.spreadcoinj.script.ScriptBuilder;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.spreadcoinj.core.Coin.*;
+import static org.spreadcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class RelevanceFilterTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void outputs() throws Exception {
+        RelevanceFilter filter = new RelevanceFilter();
+        ECKey key = new ECKey();
+        ECKey rawKey = new ECKey();
+        Address watched = new ECKey().toAddress(params);
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(1, ImmutableList.of(new ECKey()));
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        filter.addPubKeyHash(key.getPubKeyHash());
+        filter.addPubKey(rawKey.getPubKey());
+        filter.addScript(ScriptBuilder.createOutputScript(watched));
+        filter.addScriptHash(p2sh.getPubKeyHash());
+
+        assertTrue(filter.mightBeRelevant(createFakeTx(params, COIN, key.toAddress(params))));
+        assertTrue(filter.mightBeRelevant(createFakeTx(params, COIN, rawKey)));
+        assertTrue(filter.mightBeRelevant(createFakeTx(params, COIN, watched)));
+        Transaction toP2SH = new Transaction(params);
+        toP2SH.addOutput(COIN, p2sh);
+        assertTrue(filter.mightBeRelevant(toP2SH));
+        assertFalse(filter.mightBeRelevant(createFakeTx(params, COIN, new ECKey().toAddress(params))));
+        // Only the hash was added, so paying to the raw key must not match.
+        assertFalse(filter.mightBeRelevant(createFakeTx(params, COIN, key)));
+    }
+
+    @Test
+    public void inputs() throws Exception {
+        RelevanceFilter filter = new RelevanceFilter();
+        Transaction ours = createFakeTx(params, COIN, new ECKey().toAddress(params));
+        filter.addTransaction(ours);
+        Address someone = new ECKey().toAddress(params);
+
+        Transaction spend = new Transaction(params);
+        spend.addInput(ours.getOutput(0));
+        spend.addOutput(COIN, someone);
+        assertTrue(filter.mightBeRelevant(spend));
+
+        TransactionOutPoint outpoint = ours.getInput(0).getOutpoint();
+        Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addInput(outpoint.getHash(), outpoint.getIndex(), new Script(new byte[0]));
+        doubleSpend.addOutput(COIN, someone);
+        assertTrue(filter.mightBeRelevant(doubleSpend));
+
+        Transaction otherIndex = new Transaction(params);
+        otherIndex.addInput(outpoint.getHash(), outpoint.getIndex() + 1, new Script(new byte[0]));
+        otherIndex.addOutput(COIN, someone);
+        assertFalse(filter.mightBeRelevant(otherIndex));
+    }
+
+    @Test
+    public void growth() throws Exception {
+        RelevanceFilter filter = new RelevanceFilter();
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 3000; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            filter.addKey(key);
+        }
+        assertEquals(6000, filter.size());
+        for (ECKey key : keys)
+            assertTrue(filter.mightBeRelevant(createFakeTx(params, COIN, key.toAddress(params))));
+    }
+}
@@ -0,0 +1,149 @@
+package org.spreadcoinj.tools;
+
+import org.spreadcoinj.net.BlockingClientManager;
+import org.spreadcoinj.net.ClientConnectionManager;
+import org.spreadcoinj.net.NioClientManager;
+import org.spreadcoinj.net.NioServer;
+import org.spreadcoinj.net.ProtobufParser;
+import org.spreadcoinj.net.StreamParserFactory;
+import org.spreadcoinj.net.VirtualThreadClientManager;
+import com.google.protobuf.ByteString;
+import org.bitcoin.paymentchannel.Protos;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A program that opens many loopback connections to an echo server with each kind of {@link ClientConnectionManager}
+ * and compares how long connecting and a number of round trips per connection take, and how many platform threads and
+ * how much heap that needs. Arguments: [number of connections] [round trips per connection]
+ */
+public class ClientManagerBenchmark {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 4244);
+    private static final int CONNECT_BATCH = 25;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int roundTrips = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser<Protos.TwoWayChannelMessage> getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+            }
+        }, ADDRESS, Runtime.getRuntime().availableProcessors());
+        server.startAsync();
+        server.awaitRunning();
+
+        VirtualThreadClientManager virtual = new VirtualThreadClientManager();
+        System.out.println(connections + " connections, " + roundTrips + " round trips each, virtual threads "
+                + (virtual.usesVirtualThreads() ? "available" : "not available"));
+        // Warm up, then measure.
+        run(new NioClientManager(), Math.min(50, connections), roundTrips, null);
+        run(new VirtualThreadClientManager(), Math.min(50, connections), roundTrips, null);
+        run(new NioClientManager(), connections, roundTrips, "NioClientManager");
+        run(new NioClientManager(Runtime.getRuntime().availableProcessors()), connections, roundTrips,
+                "NioClientManager (" + Runtime.getRuntime().availableProcessors() + " selectors)");
+        run(virtual, connections, roundTrips, "VirtualThreadClientManager");
+        run(new BlockingClientManager(), connections, roundTrips, "BlockingClientManager");
+
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    private static void run(ClientConnectionManager manager, int connections, final int roundTrips, String name)
+            throws Exception {
+        manager.startAsync();
+        manager.awaitRunning();
+        System.gc();
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        final Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder()
+                .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
+                .setClientVersion(Protos.ClientVersion.newBuilder()
+                        .setMajor(1)
+                        .setPreviousChannelContractHash(ByteString.copyFrom(new byte[256])))
+                .build();
+        final CountDownLatch opened = new CountDownLatch(connections);
+        final CountDownLatch done = new CountDownLatch(connections);
+        List<ProtobufParser<Protos.TwoWayChannelMessage>> clients = new ArrayList<ProtobufParser<Protos.TwoWayChannelMessage>>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            ProtobufParser<Protos.TwoWayChannelMessage> client = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                    new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                        int received = 0;
+
+                        @Override
+                        public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                            if (++received == roundTrips)
+                                done.countDown();
+                            else
+                                handler.write(msg);
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                            opened.countDown();
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+            manager.openConnection(ADDRESS, client);
+            clients.add(client);
+            // Don't overflow the server's accept backlog.
+            if (clients.size() % CONNECT_BATCH == 0) {
+                while (opened.getCount() > connections - clients.size())
+                    Thread.sleep(1);
+            }
+        }
+        if (!opened.await(60, TimeUnit.SECONDS))
+            throw new RuntimeException("Only " + (connections - opened.getCount()) + " connections opened");
+        long connectTime = System.nanoTime() - connectStart;
+        long heapConnected = usedHeap();
+        int threadsConnected = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long echoStart = System.nanoTime();
+        for (ProtobufParser<Protos.TwoWayChannelMessage> client : clients)
+            client.write(msg);
+        if (!done.await(120, TimeUnit.SECONDS))
+            throw new RuntimeException("Only " + (connections - done.getCount()) + " connections finished");
+        long echoTime = System.nanoTime() - echoStart;
+
+        manager.stopAsync();
+        manager.awaitTerminated();
+        if (name == null)
+            return;
+        System.out.println(name);
+        System.out.println(String.format("  Connect            %8.1f ms", connectTime / 1e6));
+        System.out.println(String.format("  Round trips        %8.1f ms, %8.0f round trips/s", echoTime / 1e6,
+                (double) connections * roundTrips / (echoTime / 1e9)));
+        System.out.println(String.format("  Platform threads   %8d", threadsConnected - threadsBefore));
+        System.out.println(String.format("  Heap               %8.1f MB", (heapConnected - heapBefore) / 1e6));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,72 @@
+package org.spreadcoinj.tools;
+
+import org.spreadcoinj.core.*;
+import org.spreadcoinj.params.UnitTestParams;
+import org.spreadcoinj.wallet.BranchAndBoundCoinSelector;
+import org.spreadcoinj.wallet.CoinSelection;
+import org.spreadcoinj.wallet.CoinSelector;
+import org.spreadcoinj.wallet.DefaultCoinSelector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A program that compares the speed of {@link DefaultCoinSelector} and {@link BranchAndBoundCoinSelector} on a
+ * synthetic wallet, along with the number of inputs they pick and how often they manage to avoid change.
+ * Arguments: [number of outputs] [number of selections]
+ */
+public class CoinSelectorBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    public static void main(String[] args) throws Exception {
+        int numOutputs = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int numSelections = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Random random = new Random(42);
+        Address address = new ECKey().toAddress(PARAMS);
+        List<TransactionOutput> candidates = new ArrayList<TransactionOutput>(numOutputs);
+        long total = 0;
+        for (int i = 0; i < numOutputs; i++) {
+            // Values spread over several orders of magnitude, as in a wallet that receives many small payments.
+            long value = Transaction.MIN_NONDUST_OUTPUT.value + (long) Math.pow(10, 3 + random.nextDouble() * 6);
+            Transaction tx = new Transaction(PARAMS);
+            tx.addOutput(Coin.valueOf(value), address);
+            tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            tx.getConfidence().setAppearedAtChainHeight(random.nextInt(100000));
+            tx.getConfidence().setDepthInBlocks(1 + random.nextInt(1000));
+            candidates.add(tx.getOutput(0));
+            total += value;
+        }
+        Coin[] targets = new Coin[numSelections];
+        for (int i = 0; i < numSelections; i++)
+            targets[i] = Coin.valueOf(1 + (long) (random.nextDouble() * total / 20));
+
+        System.out.println(numOutputs + " outputs, " + numSelections + " selections");
+        run("DefaultCoinSelector", new DefaultCoinSelector(), candidates, targets);
+        run("BranchAndBoundCoinSelector", new BranchAndBoundCoinSelector(), candidates, targets);
+        // The branch and bound selector keeps its index between calls, which a fresh selector has yet to build.
+        run("  with a cold index", null, candidates, targets);
+    }
+
+    private static void run(String name, CoinSelector selector, List<TransactionOutput> candidates, Coin[] targets) {
+        // Warm up.
+        for (int i = 0; i < Math.min(20, targets.length); i++)
+            (selector != null ? selector : new BranchAndBoundCoinSelector())
+                    .select(targets[i], new ArrayList<TransactionOutput>(candidates));
+        long inputs = 0;
+        int changeless = 0;
+        long start = System.nanoTime();
+        for (Coin target : targets) {
+            CoinSelector s = selector != null ? selector : new BranchAndBoundCoinSelector();
+            CoinSelection selection = s.select(target, new ArrayList<TransactionOutput>(candidates));
+            inputs += selection.gathered.size();
+            if (selection.valueGathered.subtract(target).compareTo(Transaction.MIN_NONDUST_OUTPUT) <= 0)
+                changeless++;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-28s %8.3f ms/selection, %6.1f inputs/selection, %5.1f%% without change",
+                name, elapsed / 1e6 / targets.length, (double) inputs / targets.length,
+                100.0 * changeless / targets.length));
+    }
+}
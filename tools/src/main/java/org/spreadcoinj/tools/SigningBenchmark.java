@@ -0,0 +1,67 @@
+package org.spreadcoinj.tools;
+
+import org.spreadcoinj.core.ECKey;
+import org.spreadcoinj.core.Sha256Hash;
+import org.spreadcoinj.crypto.RecoverableECDSASigner;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A program that compares signing with {@link RecoverableECDSASigner}, which reads the recovery id off the nonce
+ * point, with the previous approach of signing generically and then finding the recovery id by trial recovery.
+ * Arguments: [number of signatures]
+ */
+public class SigningBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        ECKey key = new ECKey();
+        Random random = new Random(42);
+        Sha256Hash[] hashes = new Sha256Hash[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            hashes[i] = new Sha256Hash(bytes);
+        }
+
+        // Warm up both.
+        for (int i = 0; i < Math.min(200, count); i++) {
+            signWithTrialRecovery(key, hashes[i]);
+            RecoverableECDSASigner.sign(hashes[i], key.getPrivKey());
+        }
+
+        long start = System.nanoTime();
+        for (Sha256Hash hash : hashes)
+            signWithTrialRecovery(key, hash);
+        long trial = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (Sha256Hash hash : hashes)
+            RecoverableECDSASigner.sign(hash, key.getPrivKey());
+        long direct = System.nanoTime() - start;
+
+        System.out.println(count + " signatures");
+        System.out.println(String.format("Trial recovery     %8.1f us/signature", trial / 1e3 / count));
+        System.out.println(String.format("Nonce point        %8.1f us/signature", direct / 1e3 / count));
+        System.out.println(String.format("Speedup            %8.2fx", (double) trial / direct));
+    }
+
+    private static ECKey.ECDSASignature signWithTrialRecovery(ECKey key, Sha256Hash input) {
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+        signer.init(true, new ECPrivateKeyParameters(key.getPrivKey(), ECKey.CURVE));
+        BigInteger[] components = signer.generateSignature(input.getBytes());
+        ECKey.ECDSASignature sig = new ECKey.ECDSASignature(components[0], components[1], 0).toCanonicalised();
+        byte[] pub = key.decompress().getPubKey();
+        for (int i = 0; i < 4; i++) {
+            ECKey k = ECKey.recoverFromSignature(i, sig, input, false);
+            if (k != null && Arrays.equals(k.getPubKey(), pub))
+                return new ECKey.ECDSASignature(sig.r, sig.s, i + 27);
+        }
+        throw new RuntimeException("Could not construct a recoverable key.");
+    }
+}
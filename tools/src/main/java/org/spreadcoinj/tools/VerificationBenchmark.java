@@ -0,0 +1,77 @@
+package org.spreadcoinj.tools;
+
+import org.spreadcoinj.core.ECKey;
+import org.spreadcoinj.core.Sha256Hash;
+import org.spreadcoinj.crypto.Secp256k1;
+
+import java.util.Random;
+
+/**
+ * A program that compares signature verification and public key recovery in pure Java with Spongy Castle's generic
+ * code and with {@link Secp256k1}, for fresh keys and for a key registered as hot. Run it without the native library.
+ * Arguments: [number of signatures]
+ */
+public class VerificationBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(42);
+        ECKey hotKey = new ECKey();
+        ECKey[] keys = new ECKey[count];
+        byte[][] pubKeys = new byte[count][];
+        byte[][] hashes = new byte[count][];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[count];
+        ECKey.ECDSASignature[] hotSigs = new ECKey.ECDSASignature[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = new ECKey();
+            pubKeys[i] = keys[i].getPubKey();
+            hashes[i] = new byte[32];
+            random.nextBytes(hashes[i]);
+            sigs[i] = keys[i].sign(new Sha256Hash(hashes[i]));
+            hotSigs[i] = hotKey.sign(new Sha256Hash(hashes[i]));
+        }
+        byte[] hotPub = hotKey.getPubKey();
+
+        System.out.println(count + " signatures, best of " + ROUNDS + " rounds");
+        long[] verify = {Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] hot = {Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] recover = {Long.MAX_VALUE, Long.MAX_VALUE};
+        // The engines take turns, so that both get the same chance to be compiled and neither gains from going last.
+        for (int round = 0; round < ROUNDS; round++) {
+            for (ECKey.Engine engine : ECKey.Engine.values()) {
+                ECKey.setEngine(engine);
+                int e = engine.ordinal();
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    check(ECKey.verify(hashes[i], sigs[i], pubKeys[i]));
+                verify[e] = Math.min(verify[e], System.nanoTime() - start);
+
+                if (engine == ECKey.Engine.SECP256K1)
+                    Secp256k1.addHotKey(hotPub);
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    check(ECKey.verify(hashes[i], hotSigs[i], hotPub));
+                hot[e] = Math.min(hot[e], System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    check(ECKey.recoverFromSignature(0, sigs[i], new Sha256Hash(hashes[i]), true) != null);
+                recover[e] = Math.min(recover[e], System.nanoTime() - start);
+            }
+        }
+        print("Verify", verify, count);
+        print("Verify, hot key", hot, count);
+        print("Recover", recover, count);
+    }
+
+    private static void check(boolean ok) {
+        if (!ok)
+            throw new RuntimeException("Failed");
+    }
+
+    private static void print(String what, long[] nanos, int count) {
+        System.out.println(String.format("%-16s Spongy Castle %8.1f us, Secp256k1 %8.1f us, speedup %5.2fx", what,
+                nanos[0] / 1e3 / count, nanos[1] / 1e3 / count, (double) nanos[0] / nanos[1]));
+    }
+}